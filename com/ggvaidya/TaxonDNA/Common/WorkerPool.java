@@ -0,0 +1,147 @@
+/**
+ * A WorkerPool runs a numbered set of independent jobs across all
+ * the processors on this machine. Only the thread which called
+ * forEach() ever talks to the DelayCallback, so the usual progress
+ * dialogs work exactly as they do for a single-threaded loop; if
+ * the user cancels, no new jobs are started and the
+ * DelayAbortedException is passed back to the caller as usual.
+ *
+ * Jobs run on their own threads, so they must NOT call
+ * SequenceList.lock(): lock the list in the calling thread, and
+ * let the jobs read from whatever you've prepared there.
+ *
+ * @author Gaurav Vaidya gaurav@ggvaidya.com
+ */
+
+/*
+ * TaxonDNA
+ * Copyright (C) 2010 Gaurav Vaidya
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package com.ggvaidya.TaxonDNA.Common;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class WorkerPool {
+	/**
+	 * A single job. It will be called once for every index
+	 * between 0 and count-1, in no particular order, and
+	 * possibly on several threads at once.
+	 */
+	public interface Job {
+		public void run(int index) throws Exception;
+	}
+
+	/** How often (in milliseconds) we update the DelayCallback. */
+	private static final int	PROGRESS_INTERVAL =	100;
+
+	/**
+	 * Returns the number of threads we'll use by default:
+	 * one per available processor.
+	 */
+	public static int getThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Runs job.run(0) through job.run(count - 1) on as many
+	 * threads as we have processors.
+	 *
+	 * @see #forEach(int, Job, DelayCallback, int)
+	 */
+	public static void forEach(int count, Job job, DelayCallback delay) throws DelayAbortedException, ExecutionException {
+		forEach(count, job, delay, getThreadCount());
+	}
+
+	/**
+	 * Runs job.run(0) through job.run(count - 1) on (at most)
+	 * 'threads' threads, and waits for all of them to finish.
+	 * delay.begin() and delay.end() are NOT called: that's up
+	 * to you, just as it is with any other loop.
+	 *
+	 * @throws DelayAbortedException if the user cancelled. Jobs which
+	 * 		were already running will be allowed to finish.
+	 * @throws ExecutionException if any job threw an exception; the
+	 * 		first such exception will be its cause.
+	 */
+	public static void forEach(final int count, final Job job, DelayCallback delay, int threads) throws DelayAbortedException, ExecutionException {
+		if(count <= 0)
+			return;
+
+		if(threads > count)
+			threads = count;
+		if(threads < 1)
+			threads = 1;
+
+		final AtomicInteger		next = 		new AtomicInteger(0);
+		final AtomicInteger		done = 		new AtomicInteger(0);
+		final AtomicBoolean		stop =		new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure =	new AtomicReference<Throwable>(null);
+		final CountDownLatch		finished = 	new CountDownLatch(threads);
+
+		Runnable worker = new Runnable() {
+			public void run() {
+				try {
+					while(!stop.get()) {
+						int index = next.getAndIncrement();
+						if(index >= count)
+							break;
+
+						job.run(index);
+						done.incrementAndGet();
+					}
+				} catch(Throwable t) {
+					failure.compareAndSet(null, t);
+					stop.set(true);
+				} finally {
+					finished.countDown();
+				}
+			}
+		};
+
+		for(int x = 0; x < threads; x++) {
+			Thread t = new Thread(worker, "WorkerPool-" + x);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		DelayAbortedException aborted = null;
+		try {
+			while(!finished.await(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+				if(delay != null && aborted == null) {
+					try {
+						delay.delay(done.get(), count);
+					} catch(DelayAbortedException e) {
+						aborted = e;
+						stop.set(true);
+					}
+				}
+			}
+		} catch(InterruptedException e) {
+			stop.set(true);
+			throw new ExecutionException("Interrupted while waiting for worker threads", e);
+		}
+
+		if(aborted != null)
+			throw aborted;
+
+		if(failure.get() != null)
+			throw new ExecutionException(failure.get());
+	}
+}
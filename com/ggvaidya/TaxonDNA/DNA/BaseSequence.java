@@ -120,6 +120,18 @@ public class BaseSequence extends Sequence {
 		}
 	}
 
+	/**
+	 * As createSequence(String, String), but straight out of the first
+	 * 'length' characters of a buffer (which isn't kept).
+	 */
+	public static Sequence createSequence(String name, char[] bases, int length) throws SequenceException {
+		try {
+			return new Sequence(name, bases, length);
+		} catch(SequenceException e) {
+			return new BaseSequence(name, new String(bases, 0, length));
+		}
+	}
+
 	public static Sequence promoteSequence(Sequence x) {
 		if(BaseSequence.class.isAssignableFrom(x.getClass())) {
 			try {
@@ -183,6 +195,16 @@ public class BaseSequence extends Sequence {
             return actualLength;
         }
 
+	/**
+	 * Our characters don't line up with our bases, so we can't write
+	 * out a slice of them directly: we go through getSubsequence().
+	 */
+	public int writeSubsequence(java.io.Writer out, int from, int to) throws java.io.IOException, SequenceException {
+		Sequence subseq = getSubsequence(from, to);
+		out.write(subseq.getSequence());
+		return subseq.getLength();
+	}
+
 	/**
 	 * Returns a subsequence of this sequence. If the subsequence is completely 'valid',
 	 * we might return a Sequence! Otherwise, we return a BaseSequence.
@@ -0,0 +1,593 @@
+/**
+ * A KmerIndex is an inverted index of all the k-mers (words of 'k'
+ * bases) in a SequenceList. Given a query, it can tell you which
+ * sequences in the list share at least 'm' k-mers with it, without
+ * having to compare the query against every single sequence. Since
+ * closely related sequences share most of their k-mers and unrelated
+ * ones share very few, this is a good way of figuring out which
+ * sequences are worth calculating a real pairwise distance against.
+ *
+ * Gaps are ignored (so k-mers run across them, and the index works
+ * on aligned and unaligned sequences alike), and any k-mer with an
+ * ambiguous base or missing data in it is skipped.
+ *
+ * Two options let you trade sensitivity for size and speed:
+ * 	- a spaced seed (such as "11011011011011") only uses the bases
+ * 	  marked '1', so a single mismatch (usually at a third codon
+ * 	  position) doesn't destroy every k-mer that overlaps it.
+ * 	- a minimiser window of 'w' only indexes the smallest k-mer out
+ * 	  of every 'w' consecutive ones, which makes the index roughly
+ * 	  w/2 times smaller while still finding closely related sequences.
+ * Queries are always broken into k-mers the same way as the index.
+ *
+ * Internally, every k-mer is packed into an int (two bits a base),
+ * and the index is three arrays: the sorted list of distinct k-mers,
+ * and, for each of them, the range of indices of sequences containing
+ * it. Once created, a KmerIndex is never modified, and can be used
+ * from as many threads as you like. It can be written to disk with
+ * write(File), and read back (against the same SequenceList) with
+ * read(File, SequenceList).
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.DNA;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import com.ggvaidya.TaxonDNA.Common.*;
+
+public class KmerIndex {
+	/** The smallest k we allow. Anything smaller matches everything. */
+	public static final int		MIN_K =		4;
+	/** The largest k we allow (we need 4^k counters while building the index). */
+	public static final int		MAX_K =		12;
+
+	/** Identifies a KmerIndex file ("TKIX"). */
+	private static final int	FILE_MAGIC =	0x544B4958;
+	/** The version of the KmerIndex file format we write. */
+	private static final int	FILE_VERSION =	1;
+
+	private String		seed;			// the spaced seed: '1' for bases we use, '0' for bases we skip
+	private int		window;			// the minimiser window (1 = every k-mer)
+	private int		k;			// the number of bases in each k-mer (the number of '1's in the seed)
+	private int[]		seedOffsets;		// the offset of each '1' in the seed
+	private Sequence[]	sequences;		// the sequences we've indexed, in their original order
+	private IdentityHashMap<Sequence, Integer> indices;	// the index of each sequence in 'sequences'
+	private int[]		kmers;			// every distinct k-mer in the library, sorted
+	private int[]		offsets;		// postings for kmers[x] are postings[offsets[x]] .. postings[offsets[x + 1] - 1]
+	private int[]		postings;		// indices into 'sequences', in increasing order for each k-mer
+
+	/**
+	 * Indexes every contiguous k-mer of every sequence in 'list'. The
+	 * list will be locked while we work.
+	 *
+	 * @param k	the length of each k-mer, between MIN_K and MAX_K.
+	 * @throws IllegalArgumentException if k is out of range.
+	 */
+	public KmerIndex(SequenceList list, int k, DelayCallback delay) throws DelayAbortedException {
+		this(list, getContiguousSeed(k), 1, delay);
+	}
+
+	/**
+	 * Indexes every sequence in 'list' using a spaced seed and (optionally)
+	 * minimisers. The list will be locked while we work; sequences are
+	 * broken up into k-mers on all available processors.
+	 *
+	 * @param seed	the spaced seed, a string of '1's (bases to use) and '0's
+	 * 		(bases to skip), which must begin and end with a '1'. The
+	 * 		number of '1's must be between MIN_K and MAX_K.
+	 * @param window	only index the smallest k-mer out of every 'window'
+	 * 		consecutive k-mers; 1 indexes every k-mer.
+	 * @throws IllegalArgumentException if the seed or window don't make sense.
+	 */
+	public KmerIndex(SequenceList list, String seed, int window, DelayCallback delay) throws DelayAbortedException {
+		setup(seed, window);
+
+		list.lock();
+		try {
+			setSequences((Sequence[]) list.toArray(new Sequence[list.count()]));
+
+			if(delay != null)
+				delay.begin();
+
+			try {
+				build(delay);
+			} catch(RuntimeException e) {
+				if(delay != null)
+					delay.end();
+				throw e;
+			}
+
+			// if we were aborted, the DelayCallback has already end()ed itself
+			if(delay != null)
+				delay.end();
+		} finally {
+			list.unlock();
+		}
+	}
+
+	/**
+	 * Used by read(File, SequenceList): everything else is filled in
+	 * from the file.
+	 */
+	private KmerIndex(String seed, int window) {
+		setup(seed, window);
+	}
+
+	/**
+	 * Checks and sets up the seed and window.
+	 */
+	private void setup(String seed, int window) {
+		if(seed.length() == 0 || seed.charAt(0) != '1' || seed.charAt(seed.length() - 1) != '1')
+			throw new IllegalArgumentException("Spaced seeds must begin and end with a '1', but '" + seed + "' doesn't");
+
+		int weight = 0;
+		for(int x = 0; x < seed.length(); x++) {
+			char ch = seed.charAt(x);
+
+			if(ch == '1')
+				weight++;
+			else if(ch != '0')
+				throw new IllegalArgumentException("Spaced seeds may only contain '0' and '1', but '" + seed + "' doesn't");
+		}
+
+		if(weight < MIN_K || weight > MAX_K)
+			throw new IllegalArgumentException("k-mers must be between " + MIN_K + " and " + MAX_K + " bases long, not " + weight);
+
+		if(window < 1)
+			throw new IllegalArgumentException("The minimiser window must be at least 1, not " + window);
+
+		this.seed = seed;
+		this.window = window;
+		this.k = weight;
+		this.seedOffsets = getSeedOffsets(seed);
+	}
+
+	private void setSequences(Sequence[] sequences) {
+		this.sequences = sequences;
+
+		indices = new IdentityHashMap<Sequence, Integer>(sequences.length * 2);
+		for(int x = 0; x < sequences.length; x++)
+			indices.put(sequences[x], new Integer(x));
+	}
+
+	/**
+	 * Builds the index. The k-mers of each sequence are extracted in
+	 * parallel; we then count the number of sequences containing each
+	 * k-mer, and use that to lay out and fill in the postings.
+	 */
+	private void build(DelayCallback delay) throws DelayAbortedException {
+		final int[][] words = new int[sequences.length][];
+
+		try {
+			WorkerPool.forEach(sequences.length, new WorkerPool.Job() {
+				public void run(int x) {
+					words[x] = getKmers(sequences[x], seedOffsets, window);
+				}
+			}, delay);
+		} catch(ExecutionException e) {
+			throw new RuntimeException("Could not extract k-mers", e.getCause());
+		}
+
+		int[] counts = new int[1 << (2 * k)];
+		for(int x = 0; x < words.length; x++) {
+			for(int y = 0; y < words[x].length; y++)
+				counts[words[x][y]]++;
+		}
+
+		// compact the counts into 'kmers' and 'offsets'; from here on,
+		// counts[kmer] is the next free slot for that k-mer in 'postings'.
+		int distinct = 0;
+		for(int x = 0; x < counts.length; x++) {
+			if(counts[x] > 0)
+				distinct++;
+		}
+
+		kmers = new int[distinct];
+		offsets = new int[distinct + 1];
+
+		int index = 0;
+		int position = 0;
+		for(int x = 0; x < counts.length; x++) {
+			if(counts[x] > 0) {
+				kmers[index] = x;
+				offsets[index] = position;
+				position += counts[x];
+				counts[x] = offsets[index];
+				index++;
+			}
+		}
+		offsets[distinct] = position;
+
+		postings = new int[position];
+		for(int x = 0; x < words.length; x++) {
+			for(int y = 0; y < words[x].length; y++)
+				postings[counts[words[x][y]]++] = x;
+
+			words[x] = null;
+		}
+	}
+
+//
+//	K-MER EXTRACTION.
+//
+	/**
+	 * Returns the spaced seed for contiguous k-mers of length k
+	 * (i.e. 'k' ones).
+	 */
+	public static String getContiguousSeed(int k) {
+		StringBuffer buff = new StringBuffer();
+		for(int x = 0; x < k; x++)
+			buff.append('1');
+		return buff.toString();
+	}
+
+	private static int[] getSeedOffsets(String seed) {
+		int weight = 0;
+		for(int x = 0; x < seed.length(); x++) {
+			if(seed.charAt(x) == '1')
+				weight++;
+		}
+
+		int[] results = new int[weight];
+		weight = 0;
+		for(int x = 0; x < seed.length(); x++) {
+			if(seed.charAt(x) == '1')
+				results[weight++] = x;
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the two-bit code of a base, or -1 if it's not one
+	 * of A, C, T or G.
+	 */
+	private static int encode(char ch) {
+		switch(ch) {
+			case 'A': case 'a':	return 0;
+			case 'C': case 'c':	return 1;
+			case 'G': case 'g':	return 2;
+			case 'T': case 't':	return 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * Scrambles a k-mer, so that minimisers aren't always poly-A
+	 * and friends.
+	 */
+	private static int scramble(int word) {
+		word ^= word >>> 16;
+		word *= 0x45d9f3b;
+		word ^= word >>> 16;
+		return word;
+	}
+
+	/**
+	 * Returns every distinct contiguous k-mer in a sequence, sorted,
+	 * as packed ints. Gaps are skipped over; ambiguous bases and
+	 * missing data break the k-mers which include them.
+	 */
+	public static int[] getKmers(Sequence seq, int k) {
+		return getKmers(seq, getSeedOffsets(getContiguousSeed(k)), 1);
+	}
+
+	/**
+	 * Returns every distinct k-mer in a sequence which this index would
+	 * use, sorted, as packed ints.
+	 */
+	public int[] getKmers(Sequence seq) {
+		return getKmers(seq, seedOffsets, window);
+	}
+
+	private static int[] getKmers(Sequence seq, int[] seedOffsets, int window) {
+		char[]	bases = seq.seq;
+		int	span = seedOffsets[seedOffsets.length - 1] + 1;
+
+		// strip out the gaps, and figure out where the
+		// runs of valid bases are
+		byte[]	codes = new byte[bases.length];
+		int[]	run = new int[bases.length];	// number of valid bases ending at each position
+		int	length = 0;
+		for(int x = 0; x < bases.length; x++) {
+			if(Sequence.isGap(bases[x]))
+				continue;
+
+			int code = encode(bases[x]);
+			codes[length] = (byte) code;
+			if(code == -1)
+				run[length] = 0;
+			else
+				run[length] = (length > 0 ? run[length - 1] : 0) + 1;
+			length++;
+		}
+
+		int[]	words = new int[Math.max(length - span + 1, 0)];
+		int	count = 0;
+
+		// 'group' is the number of valid k-mers in a row which we've
+		// seen just before this one; minimisers are only picked from
+		// unbroken runs.
+		int[]	group = new int[words.length];
+		for(int x = 0; x + span <= length; x++) {
+			if(run[x + span - 1] < span) {
+				continue;
+			}
+
+			int word = 0;
+			for(int y = 0; y < seedOffsets.length; y++)
+				word = (word << 2) | codes[x + seedOffsets[y]];
+
+			group[count] = (count > 0 && x > 0 && run[x + span - 2] >= span) ? group[count - 1] + 1 : 1;
+			words[count++] = word;
+		}
+
+		if(window > 1)
+			count = pickMinimisers(words, group, count, window);
+
+		// sort and remove duplicates
+		Arrays.sort(words, 0, count);
+
+		int distinct = 0;
+		for(int x = 0; x < count; x++) {
+			if(distinct == 0 || words[distinct - 1] != words[x])
+				words[distinct++] = words[x];
+		}
+
+		int[] results = new int[distinct];
+		System.arraycopy(words, 0, results, 0, distinct);
+		return results;
+	}
+
+	/**
+	 * Replaces the first 'count' words with the minimisers of every
+	 * 'window' consecutive words. group[x] is the position of words[x]
+	 * in its unbroken run (starting at 1); windows never span two runs,
+	 * and runs shorter than a window contribute their single smallest
+	 * word.
+	 *
+	 * @return the number of minimisers (which may include duplicates).
+	 */
+	private static int pickMinimisers(int[] words, int[] group, int count, int window) {
+		int[] results = new int[count];
+		int picked = 0;
+
+		int start = 0;
+		while(start < count) {
+			// find the end of this run
+			int end = start + 1;
+			while(end < count && group[end] == group[end - 1] + 1)
+				end++;
+
+			int last = Math.max(end - window, start);
+			for(int x = start; x <= last; x++) {
+				int best = x;
+				for(int y = x + 1; y < x + window && y < end; y++) {
+					if(scramble(words[y]) < scramble(words[best]))
+						best = y;
+				}
+
+				if(picked == 0 || results[picked - 1] != words[best])
+					results[picked++] = words[best];
+			}
+
+			start = end;
+		}
+
+		System.arraycopy(results, 0, words, 0, picked);
+		return picked;
+	}
+
+//
+//	QUERIES.
+//
+	/**
+	 * Counts the number of distinct k-mers every indexed sequence
+	 * shares with 'query'.
+	 *
+	 * @return an array with one entry for every indexed sequence.
+	 */
+	public int[] getSharedCounts(Sequence query) {
+		int[] shared = new int[sequences.length];
+		int[] words = getKmers(query);
+
+		for(int x = 0; x < words.length; x++) {
+			int slot = Arrays.binarySearch(kmers, words[x]);
+			if(slot < 0)
+				continue;
+
+			for(int y = offsets[slot]; y < offsets[slot + 1]; y++)
+				shared[postings[y]]++;
+		}
+
+		return shared;
+	}
+
+	/**
+	 * Returns the indices of every indexed sequence which shares
+	 * at least 'minShared' distinct k-mers with 'query', with the
+	 * sequences sharing the most k-mers first.
+	 */
+	public int[] getCandidates(Sequence query, int minShared) {
+		final int[] shared = getSharedCounts(query);
+
+		int count = 0;
+		for(int x = 0; x < shared.length; x++) {
+			if(shared[x] >= minShared && shared[x] > 0)
+				count++;
+		}
+
+		Integer[] candidates = new Integer[count];
+		count = 0;
+		for(int x = 0; x < shared.length; x++) {
+			if(shared[x] >= minShared && shared[x] > 0)
+				candidates[count++] = new Integer(x);
+		}
+
+		Arrays.sort(candidates, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return shared[b.intValue()] - shared[a.intValue()];
+			}
+		});
+
+		int[] results = new int[count];
+		for(int x = 0; x < count; x++)
+			results[x] = candidates[x].intValue();
+
+		return results;
+	}
+
+//
+//	GETTERS.
+//
+	/** Returns the number of bases in each k-mer in this index. */
+	public int getK() {
+		return k;
+	}
+
+	/** Returns the spaced seed used by this index. */
+	public String getSeed() {
+		return seed;
+	}
+
+	/** Returns the minimiser window used by this index (1 if we index every k-mer). */
+	public int getWindow() {
+		return window;
+	}
+
+	/** Returns the number of sequences indexed. */
+	public int count() {
+		return sequences.length;
+	}
+
+	/** Returns the indexed sequence at 'index'. */
+	public Sequence get(int index) {
+		return sequences[index];
+	}
+
+	/**
+	 * Returns the index of an indexed sequence (i.e. the index you'd
+	 * find in getSharedCounts() or getCandidates()), or -1 if it wasn't
+	 * indexed.
+	 */
+	public int indexOf(Sequence seq) {
+		Integer index = indices.get(seq);
+		if(index == null)
+			return -1;
+		return index.intValue();
+	}
+
+	/** Returns the number of distinct k-mers in the index. */
+	public int countKmers() {
+		return kmers.length;
+	}
+
+//
+//	READING AND WRITING.
+//
+	/**
+	 * Writes this index into a file. The sequences themselves aren't
+	 * written, only their names (so we can check that the index is
+	 * being read back against the right SequenceList).
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(seed);
+			out.writeInt(window);
+
+			out.writeInt(sequences.length);
+			for(int x = 0; x < sequences.length; x++)
+				out.writeUTF(sequences[x].getFullName());
+
+			writeInts(out, kmers);
+			writeInts(out, offsets);
+			writeInts(out, postings);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an index written by write(File). 'list' must contain the
+	 * same sequences, in the same order, as the list the index was
+	 * built from. The list will be locked while we work.
+	 *
+	 * @throws IOException if the file couldn't be read, isn't a KmerIndex,
+	 * 		or doesn't match 'list'.
+	 */
+	public static KmerIndex read(File file, SequenceList list) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+		list.lock();
+		try {
+			if(in.readInt() != FILE_MAGIC)
+				throw new IOException("'" + file + "' is not a k-mer index");
+			if(in.readInt() != FILE_VERSION)
+				throw new IOException("'" + file + "' was written by an incompatible version of this program");
+
+			KmerIndex index;
+			try {
+				index = new KmerIndex(in.readUTF(), in.readInt());
+			} catch(IllegalArgumentException e) {
+				throw new IOException("'" + file + "' is corrupt: " + e.getMessage());
+			}
+
+			int count = in.readInt();
+			if(count != list.count())
+				throw new IOException("'" + file + "' indexes " + count + " sequences, but there are " + list.count() + " in this dataset");
+
+			Sequence[] sequences = (Sequence[]) list.toArray(new Sequence[count]);
+			for(int x = 0; x < count; x++) {
+				if(!in.readUTF().equals(sequences[x].getFullName()))
+					throw new IOException("'" + file + "' doesn't match this dataset: sequence " + (x + 1) + " is different");
+			}
+			index.setSequences(sequences);
+
+			index.kmers = readInts(in);
+			index.offsets = readInts(in);
+			index.postings = readInts(in);
+
+			return index;
+		} finally {
+			list.unlock();
+			in.close();
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] array) throws IOException {
+		out.writeInt(array.length);
+		for(int x = 0; x < array.length; x++)
+			out.writeInt(array[x]);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] array = new int[in.readInt()];
+		for(int x = 0; x < array.length; x++)
+			array[x] = in.readInt();
+		return array;
+	}
+}
@@ -30,6 +30,7 @@
 
 package com.ggvaidya.TaxonDNA.DNA;
 
+import	java.io.*;		// Writers
 import 	java.util.*;		// hashtable
 import	java.util.regex.*;	// used to regex the species names
 
@@ -174,6 +175,20 @@ public class Sequence  implements Comparable, Testable {
 		changeSequence(seq.toUpperCase().trim());
 	}	
 
+	/**
+	 * Creates a Sequence straight out of a buffer of bases: the first
+	 * 'length' characters of 'bases'. This lets file readers build up
+	 * a sequence in a reusable buffer, without going through a String.
+	 * The buffer is not kept, so you can reuse it as soon as we're done.
+	 * Unlike Sequence(String, String), whitespace is NOT trimmed.
+	 *
+	 * @throws SequenceException if there is a problem with understanding the sequence.
+	 */
+	public Sequence(String name, char[] bases, int length) throws SequenceException {
+		changeName(name);
+		changeSequence(bases, length);
+	}
+
 	/**
 	 * 'Clone' constructor. We replicate a given Sequence, creating another identical
 	 * sequence WITH A DIFFERENT UUID (duh) in the process. Note that the old Properties
@@ -327,6 +342,86 @@ public class Sequence  implements Comparable, Testable {
 		return new String(seq);
 	}
 	
+	/**
+	 * Writes the sequence out exactly as getSequence() would return it, but
+	 * straight from our own storage, without making a String first.
+	 */
+	public void writeSequence(Writer out) throws IOException {
+		char[] bases = seq;	// in case someone changes the sequence under us
+		writeBases(out, bases, 0, bases.length);
+	}
+
+	/**
+	 * Writes out exactly what getSubsequence(from, to).getSequence() would
+	 * return, without creating the subsequence (or any Strings) if we can
+	 * help it. Writers use this to interleave large sequences.
+	 *
+	 * @return the length of the subsequence written out.
+	 * @throws SequenceException if getSubsequence() would have.
+	 */
+	public int writeSubsequence(Writer out, int from, int to) throws IOException, SequenceException {
+		char[] bases = seq;
+
+		if(from < 1 || from > to || to > bases.length || to > getLength()) {
+			// reverse complements, padding, out-of-range errors and
+			// so on are getSubsequence()'s problem
+			Sequence subseq = getSubsequence(from, to);
+			out.write(subseq.getSequence());
+			return subseq.getLength();
+		}
+
+		writeBases(out, bases, from - 1, to);
+		return to - from + 1;
+	}
+
+	/**
+	 * Copies the sequence, exactly as getSequence() would return it, into
+	 * 'buffer' starting at 'offset'. There has to be room in 'buffer' for
+	 * all of it. This lets you concatenate sequences into a single buffer
+	 * without making a String (or a Sequence) for every piece.
+	 *
+	 * @return the number of characters copied.
+	 */
+	public int copySequence(char[] buffer, int offset) {
+		char[] bases = seq;
+
+		for(int x = 0; x < bases.length; x++) {
+			char ch = bases[x];
+			buffer[offset + x] = (ch == '_') ? '-' : ch;
+		}
+
+		return bases.length;
+	}
+
+	private static final char[] gaps = new char[256];
+	static {
+		Arrays.fill(gaps, '-');
+	}
+
+	/**
+	 * Writes bases[from] to bases[to - 1] into 'out', with external gaps
+	 * ('_') written as normal gaps ('-'), just like getSequence().
+	 */
+	private static void writeBases(Writer out, char[] bases, int from, int to) throws IOException {
+		int x = from;
+		while(x < to) {
+			int start = x;
+
+			if(bases[x] == '_') {
+				while(x < to && bases[x] == '_')
+					x++;
+
+				for(int count = x - start; count > 0; count -= gaps.length)
+					out.write(gaps, 0, Math.min(count, gaps.length));
+			} else {
+				while(x < to && bases[x] != '_')
+					x++;
+
+				out.write(bases, start, x - start);
+			}
+		}
+	}
+
 	/**
 	 * Returns the sequence (DNA), but wraps it to a particular length first. Why is this here?
 	 * Cos this is the *only* way you're going to put this in human-readable format. 
@@ -708,6 +803,38 @@ public class Sequence  implements Comparable, Testable {
 		warningFlag = flag;
 	}
 
+	// the patterns changeName() uses to pick the name apart. They're
+	// compiled once, since we might be naming millions of sequences.
+	private static final Pattern	pGenusSpeciesSubspecies = Pattern.compile("(\\p{Upper}\\p{Lower}+) (\\p{Lower}+) (\\p{Lower}+)\\b");
+	private static final Pattern	pGenusSpecies = Pattern.compile("(\\p{Upper}\\p{Lower}+) (\\p{Lower}+)\\b");
+	private static final Pattern	pGenusSp = Pattern.compile("(\\p{Upper}\\p{Lower}+) (\\p{Lower}+)\\.\\b");
+	private static final Pattern	pGI = Pattern.compile("gi\\|(\\d+)[\\|:]");	// ends with either '|' (for normal GIs) or 
+											// ':' (for GIs which refer to a part of an 
+											// entire sequence). 
+	private static final Pattern	pFamily = Pattern.compile("\\(family:\\s*(\\p{Alpha}+)\\s*\\)", Pattern.UNICODE_CASE);
+
+	/**
+	 * Returns the species name ("Genus species") that a Sequence with this
+	 * full name would have, without going to the trouble of creating one.
+	 *
+	 * @return null if we can't figure out a species name, just like getSpeciesName().
+	 */
+	public static String getSpeciesName(String fullName) {
+		String name = fullName.replace('\n', ' ').trim();
+
+		Matcher m = pGenusSpeciesSubspecies.matcher(name);
+		if(!m.find()) {
+			m = pGenusSpecies.matcher(name);
+			if(!m.find()) {
+				m = pGenusSp.matcher(name);
+				if(!m.find())
+					return null;
+			}
+		}
+
+		return m.group(1) + " " + m.group(2);
+	}
+
 	/**
 	 * Changes the name of the sequence. This will change THIS Sequence object to
 	 * have a new name. The sequence will remain unchanged. You are entirely responsible
@@ -717,7 +844,6 @@ public class Sequence  implements Comparable, Testable {
 	 * reseting for now ...
 	 */
 	public void changeName(String name) {
-		Pattern		p;
 		Matcher 	m;
 
 		// but no newlines allowed! silently convert into spaces ...
@@ -738,8 +864,7 @@ public class Sequence  implements Comparable, Testable {
 		// guess genus/species and subspecies (first three words in the sequence name)
 		// the '\b' you see all over is the 'word boundary', whatever that might be.
 		// Who knows. It WORKS.
-		p	=	Pattern.compile("(\\p{Upper}\\p{Lower}+) (\\p{Lower}+) (\\p{Lower}+)\\b");
-		m	=	p.matcher(name);
+		m	=	pGenusSpeciesSubspecies.matcher(name);
 
 		if(m.find()) {
 			genus = m.group(1);
@@ -747,15 +872,13 @@ public class Sequence  implements Comparable, Testable {
 			subspecies = m.group(3);
 		} else {
 			// try two?
-			p 	= 	Pattern.compile("(\\p{Upper}\\p{Lower}+) (\\p{Lower}+)\\b");
-			m 	=	p.matcher(name);
+			m 	=	pGenusSpecies.matcher(name);
 			if(m.find()) {
 				genus = m.group(1);
 				species = m.group(2);
 			} else {
 				// pick out the sp.-type
-				p 	= 	Pattern.compile("(\\p{Upper}\\p{Lower}+) (\\p{Lower}+)\\.\\b");
-				m 	=	p.matcher(name);
+				m 	=	pGenusSp.matcher(name);
 				if(m.find()) {
 					genus = m.group(1);
 					species = m.group(2);
@@ -769,18 +892,14 @@ public class Sequence  implements Comparable, Testable {
 		}
 
 		// guess gi
-		p 	=	Pattern.compile("gi\\|(\\d+)[\\|:]");	// ends with either '|' (for normal GIs) or 
-									// ':' (for GIs which refer to a part of an 
-									// entire sequence). 
-		m	=	p.matcher(name);
+		m	=	pGI.matcher(name);
 
 		if(m.find()) {
 			gi = m.group(1);
 		}
 
 		// guess family
-		p	=	Pattern.compile("\\(family:\\s*(\\p{Alpha}+)\\s*\\)", Pattern.UNICODE_CASE);
-		m	=	p.matcher(name);
+		m	=	pFamily.matcher(name);
 
 		if(m.find()) {
 			family = m.group(1);
@@ -802,46 +921,60 @@ public class Sequence  implements Comparable, Testable {
 	 */
 	public void changeSequence(String seq) throws SequenceException {
 		// we're case insensitive here, so make the string uppercase first
-		seq = seq.toUpperCase();
+		char[] chars = seq.toUpperCase().toCharArray();
+
+		changeSequence(chars, chars.length);
+	}
 
+	/**
+	 * Changes the sequence to the first 'size' characters of 'bases'.
+	 * We work in a single pass over the buffer, and don't keep it, so
+	 * the caller is free to reuse it.
+	 *
+	 * @see #changeSequence(String)
+	 */
+	protected void changeSequence(char[] bases, int size) throws SequenceException {
 		// step 1: we need to look for [...] or (...), then replace
-		// the sequence unit with the 'combined' character
-		StringBuffer seq_buff = new StringBuffer();
-		for(int x = 0; x < seq.length(); x++) {
-			char ch = seq.charAt(x);
+		// the sequence unit with the 'combined' character. We uppercase
+		// as we go.
+		char[] sequence = new char[size];
+		int count = 0;
+		for(int x = 0; x < size; x++) {
+			char ch = bases[x];
+			if(ch >= 'a' && ch <= 'z')
+				ch = (char)(ch - ('a' - 'A'));
 
 			if(ch == '(' || ch == '[') {
-				StringBuffer buff = new StringBuffer();
+				int singleChar = 0;
 
-				for(int y = x + 1; y < seq.length(); y++, x++) {	// we need to keep 'x' synchronized with us!
-					ch = seq.charAt(y);
+				for(x++; x < size; x++) {
+					ch = bases[x];
+					if(ch >= 'a' && ch <= 'z')
+						ch = (char)(ch - ('a' - 'A'));
 
 					if(ch == '(' || ch == '[')
 						throw new SequenceException(this.name, "Character '" + ch + "' found unexpectedly while inside a ambiguous base");
 					else if(ch == ')' || ch == ']')
 						break;
-					else
-						buff.append(ch);
-				}
-				x++;	// move past the ')' or ']'
-
-				// now, we need to convert buff into an int
-				int singleChar = 0;
-				for(int y = 0; y < buff.length(); y++) {
-					char aChar = buff.charAt(y);
 
-					if(!isValid(aChar))
+					if(!isValid(ch))
 						throw new SequenceException(this.name, "Invalid character '" + ch + "' found in sequence.");
 
-					singleChar |= getint(aChar);
+					singleChar |= getint(ch);
 				}
+				// the outer loop moves us past the ')' or ']'
 
-				seq_buff.append(getcode(singleChar));
+				sequence[count++] = getcode(singleChar);
 			} else {
-				seq_buff.append(ch);
+				sequence[count++] = ch;
 			}
 		}
-		char[] sequence = seq_buff.toString().toCharArray();
+
+		if(count < size) {
+			char[] shorter = new char[count];
+			System.arraycopy(sequence, 0, shorter, 0, count);
+			sequence = shorter;
+		}
 
 		// we change the gaps before and after the sequence itself to '_',
 		// which represent external GAPs. Using '_' in the sequence itself
@@ -1289,6 +1422,26 @@ public class Sequence  implements Comparable, Testable {
 						return '-';
 	}
 
+	/**
+	 * Returns the bases this character might stand for, as a
+	 * bitmask (0x01 = A, 0x02 = C, 0x04 = T, 0x08 = G). Gaps and
+	 * missing data are 0x00. OR'ing these together for a column
+	 * and converting the result back with bitmaskToBase() gives
+	 * you the same consensus as consensus(char, char) would,
+	 * without having to go through the bases one pair at a time.
+	 */
+	public static int baseToBitmask(char ch) {
+		return getint(ch);
+	}
+
+	/**
+	 * Converts a bitmask (as returned by baseToBitmask()) back
+	 * into a base. A bitmask of 0x00 becomes a gap ('-').
+	 */
+	public static char bitmaskToBase(int mask) {
+		return getcode(mask);
+	}
+
 	/**
 	 * Is this character a pyrimidine (cytosine, thymine)
 	 *
@@ -1915,6 +2068,15 @@ public class Sequence  implements Comparable, Testable {
 		return properties.get(name);	
 	}
 
+	/**
+	 * 	Returns the names of every property which has been set.
+	 */
+	public Set getPropertyNames() {
+		if(properties == null)
+			return new HashSet();
+		return new HashSet(properties.keySet());
+	}
+
 	/**
 	 * 	Sets the property 'name'.
 	 */	
@@ -2,6 +2,13 @@
  * A SequenceGrid holds the kind of data structure that SequenceMatrix likes - an X-Y grid of
  * sequence names vs column names, with real Sequences in the grid places.
  *
+ * Every column name and sequence name is interned into a small integer id when it's first
+ * used, and the grid itself is a dense array of Sequences indexed by [column id][row id],
+ * with a bitmap per column recording which of them are cancelled. The name-based methods
+ * are a thin layer over this; code which needs to visit a lot of cells (rendering, exports,
+ * analyses) can look the ids up once, and then use the id-based methods, which are simple
+ * array lookups.
+ *
  */
 
 /*
@@ -28,6 +35,7 @@
 package com.ggvaidya.TaxonDNA.DNA;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 import com.ggvaidya.TaxonDNA.Common.*;
 
@@ -63,28 +71,200 @@ public class SequenceGrid {
 	 */
 	public static final String INITIAL_SEQNAME_PROPERTY = "com.ggvaidya.TaxonDNA.DNA.SequenceGrid.initialSeqName";
 
-	/** The actual data itself. This is a Perlism, I know. I'm sorry. */
-	private Hashtable hash_master = new Hashtable();	// the master hash:
-								// Hashtable[colName] = Hashtable[seqName] = Sequence
-								// Hashtable[colName] = Hashtable[""] = Integer(max_length)
-								// Hashtable[""] = Hashtable[seqName] = Integer(count_sequence)
-								// (my Perl roots are showing)
-								//
-								// Please don't use this hash directly. That just makes
-								// life more fun for the debuggers. Please use the
-								// helper functions below.
+	/** The names of our columns and rows, and the ids we've given them. */
+	private Names		columns = new Names();
+	private Names		rows = new Names();
+
+	/** The actual data itself, indexed by [column id][row id]. Empty cells are null. */
+	private Sequence[][]	cells = new Sequence[0][];
+	private BitSet[]	cancelled = new BitSet[0];	// cancelled[column id].get(row id): is that sequence cancelled?
+	private int[]		col_lengths = new int[0];	// the length of each column
+	private int[]		col_counts = new int[0];	// the number of sequences in each column
+	private int[]		row_counts = new int[0];	// the number of columns each row has a sequence in
+	private int		row_capacity = 0;		// the length of every cells[] array
 
 	// Counting the number of cancelled sequences (so we know while exporting, etc.)
 	private int	count_cancelledSequences = 0;
 
+	// The properties we use (subclasses, like SequenceMatrix's DataStore, use their own)
+	private String	cancelled_property;
+	private String	initial_colname_property;
+	private String	initial_seqname_property;
+
+	/**
+	 * Interns names into ids. Ids are handed out in order, and the ids of names which
+	 * have been removed are reused.
+	 */
+	private static class Names {
+		private HashMap		ids = new HashMap();		// name -> Integer(id)
+		private String[]	names = new String[0];		// id -> name (or null, if it's not in use)
+		private int[]		free = new int[0];		// ids which have been removed
+		private int		free_count = 0;
+		private int		limit = 0;			// every id is below this
+
+		public int getId(String name) {
+			Integer id = (Integer) ids.get(name);
+			if(id == null)
+				return -1;
+			return id.intValue();
+		}
+
+		public String getName(int id) {
+			if(id < 0 || id >= limit)
+				return null;
+			return names[id];
+		}
+
+		public int count() {
+			return ids.size();
+		}
+
+		public int getLimit() {
+			return limit;
+		}
+
+		/** Returns the size of the arrays indexed by these ids. */
+		public int getCapacity() {
+			return names.length;
+		}
+
+		public Set getNames() {
+			return new HashSet(ids.keySet());
+		}
+
+		public int add(String name) {
+			int id;
+
+			if(free_count > 0) {
+				id = free[--free_count];
+			} else {
+				if(limit == names.length) {
+					String[] bigger = new String[Math.max(16, names.length * 2)];
+					System.arraycopy(names, 0, bigger, 0, limit);
+					names = bigger;
+				}
+				id = limit++;
+			}
+
+			names[id] = name;
+			ids.put(name, new Integer(id));
+			return id;
+		}
+
+		public void remove(int id) {
+			ids.remove(names[id]);
+			names[id] = null;
+
+			if(free_count == free.length) {
+				int[] bigger = new int[Math.max(16, free.length * 2)];
+				System.arraycopy(free, 0, bigger, 0, free_count);
+				free = bigger;
+			}
+			free[free_count++] = id;
+		}
+	}
+
 //
-// 0.	INTERNAL ACCESS FUNCTIONS. hash_columns does a lot of pretty strange shit in a very small space.
-// 	To sort this out, please do NOT use hash_columns directly; use the functions defined here.
+// 0.	INTERNAL ACCESS FUNCTIONS. Please do NOT use the arrays directly; use the functions defined here.
 //
+	/**
+	 * Creates a new column, and returns its id.
+	 */
+	private int addColumn(String colName) {
+		int col = columns.add(colName);
+
+		if(col >= cells.length) {
+			int capacity = columns.getCapacity();
+
+			Sequence[][] new_cells = new Sequence[capacity][];
+			System.arraycopy(cells, 0, new_cells, 0, cells.length);
+			cells = new_cells;
+
+			BitSet[] new_cancelled = new BitSet[capacity];
+			System.arraycopy(cancelled, 0, new_cancelled, 0, cancelled.length);
+			cancelled = new_cancelled;
+
+			int[] new_lengths = new int[capacity];
+			System.arraycopy(col_lengths, 0, new_lengths, 0, col_lengths.length);
+			col_lengths = new_lengths;
+
+			int[] new_counts = new int[capacity];
+			System.arraycopy(col_counts, 0, new_counts, 0, col_counts.length);
+			col_counts = new_counts;
+		}
+
+		cells[col] = new Sequence[row_capacity];
+		cancelled[col] = new BitSet();
+		col_lengths[col] = 0;
+		col_counts[col] = 0;
+
+		return col;
+	}
+
+	/**
+	 * Gets rid of a column. It must already be empty.
+	 */
+	private void removeColumn(int col) {
+		columns.remove(col);
+		cells[col] = null;
+		cancelled[col] = null;
+	}
+
+	/**
+	 * Creates a new row, and returns its id.
+	 */
+	private int addRow(String seqName) {
+		int row = rows.add(seqName);
+
+		if(row >= row_capacity) {
+			int capacity = rows.getCapacity();
+
+			for(int col = 0; col < columns.getLimit(); col++) {
+				if(cells[col] == null)
+					continue;
+
+				Sequence[] bigger = new Sequence[capacity];
+				System.arraycopy(cells[col], 0, bigger, 0, row_capacity);
+				cells[col] = bigger;
+			}
+
+			int[] new_counts = new int[capacity];
+			System.arraycopy(row_counts, 0, new_counts, 0, row_capacity);
+			row_counts = new_counts;
+
+			row_capacity = capacity;
+		}
+
+		row_counts[row] = 0;
+		return row;
+	}
+
+	/**
+	 * Deletes the sequence at (col, row), if there is one, and gets rid of the
+	 * row if that was the last sequence in it. Unlike deleteSequence(), we don't
+	 * get rid of the column.
+	 */
+	private void removeSequence(int col, int row) {
+		if(cells[col][row] == null)
+			return;
+
+		cells[col][row] = null;
+		if(cancelled[col].get(row)) {
+			cancelled[col].clear(row);
+			count_cancelledSequences--;
+		}
+
+		col_counts[col]--;
+		row_counts[row]--;
+
+		if(row_counts[row] == 0)
+			rows.remove(row);
+	}
+
 	/**
 	 * Checks whether 'colName' MIGHT BE a valid column name. Note that we don't actually check
 	 * whether colName *is* a valid column name. Mainly, this is to enforce the rule that colName
-	 * must not be equal to "", since we use that key in the hashtable to store metadata.
+	 * must not be equal to "", which has always been reserved.
 	 */
 	private void validateColName(String colName) {
 		// da rulez: a colName can't be "" or null. Everything else is okay.
@@ -94,7 +274,7 @@ public class SequenceGrid {
 
 	/**
 	 * Checks whether 'seqName' might be a valid sequence name. Mostly to make sure "" can't be
-	 * used as a sequence name, as this would break our internals.
+	 * used as a sequence name, which has always been reserved.
 	 */
 	private void validateSeqName(String seqName) {
 		// da rulez: a seqName can't be "" or null. Everything else is okay.
@@ -114,19 +294,7 @@ public class SequenceGrid {
 		validateColName(colName);
 		validateSeqName(seqName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
-			return null;
-
-		Sequence seq = (Sequence) col.get(seqName);
-
-		if(seq == null)
-			return null;
-
-		if(seq.getProperty(CANCELLED_PROPERTY) != null)
-			return null;
-
-		return seq;
+		return getSequence(columns.getId(colName), rows.getId(seqName));
 	}
 
 	/**
@@ -139,37 +307,21 @@ public class SequenceGrid {
 		validateColName(colName);
 		validateSeqName(seqName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
-			return null;
-
-		Sequence seq = (Sequence) col.get(seqName);
-
-		if(seq == null)
-			return null;
-
-		return seq;
+		return getSequenceIgnoreCancelled(columns.getId(colName), rows.getId(seqName));
 	}	
 
 	/**
 	 * Returns a set of all sequence names in our datastore, unsorted.
 	 */
 	public Set getSequences() {
-		Hashtable ht = (Hashtable) hash_master.get("");
-
-		if(ht == null)
-			return new HashSet();	// just an empty Set
-
-		return ht.keySet();
+		return rows.getNames();
 	}
 
 	/**
 	 * Returns a set of all column names in this dataStore, unsorted.
 	 */
 	public Set getColumns() {
-		Set set = new HashSet(hash_master.keySet());	// copy this
-		set.remove("");	// get rid of the 'meta' data
-		return set;
+		return columns.getNames();
 	}
 
 	/**
@@ -186,15 +338,14 @@ public class SequenceGrid {
 
 		validateColName(colName);
 
-		if(!isColumn(colName))
+		int col = columns.getId(colName);
+		if(col == -1)
 			return set;
 
-		Iterator i = getSequences().iterator();
-		while(i.hasNext()) {
-			String seqName = (String) i.next();
-
-			if(getSequenceIgnoreCancelled(colName, seqName) != null)
-				set.add(seqName);
+		Sequence[] column = cells[col];
+		for(int row = 0; row < rows.getLimit(); row++) {
+			if(column[row] != null)
+				set.add(rows.getName(row));
 		}
 
 		return set;
@@ -210,13 +361,12 @@ public class SequenceGrid {
 
 		validateColName(colName);
 
-		if(!isColumn(colName))
+		int col = columns.getId(colName);
+		if(col == -1)
 			return null;
 
-		Iterator i = getSequences().iterator();
-		while(i.hasNext()) {
-			String seqName = (String) i.next();
-			Sequence seq = getSequence(colName, seqName);
+		for(int row = 0; row < rows.getLimit(); row++) {
+			Sequence seq = getSequence(col, row);
 
 			if(seq != null)
 				sl.add(seq);
@@ -229,41 +379,27 @@ public class SequenceGrid {
 	 * Counts all sequence names in our datastore.
 	 */
 	public int getSequencesCount() {
-		Hashtable ht = (Hashtable) hash_master.get("");
-
-		if(ht == null)
-			return 0;	// just an empty DataStore
-
-		return ht.size();
+		return rows.count();
 	}
 	
 	/**
 	 * Checks whether the sequence at (colName, seqName) is 'cancelled'.
 	 * A cancelled sequence cannot be accessed via getSequence(), which
 	 * will pretend it doesn't exist (returning null as it does). You
-	 * *can* access cancelled sequences via getCancelledSequence();
+	 * *can* access cancelled sequences via getSequenceIgnoreCancelled();
 	 */
 	public boolean isSequenceCancelled(String colName, String seqName) {
 		validateColName(colName);
 		validateSeqName(seqName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
-			return false;
-
-		Sequence seq = (Sequence) col.get(seqName);
-
-		if(seq == null)
-			return false;
-
-		if(seq.getProperty(CANCELLED_PROPERTY) != null)
-			return true;
-
-		return false;
+		return isSequenceCancelled(columns.getId(colName), rows.getId(seqName));
 	}
 
 	/**
-	 * Sets (or unsets) the 'cancelled' flag on a sequence.
+	 * Sets (or unsets) the 'cancelled' flag on a sequence. The flag is kept
+	 * in our bitmap, and in the sequence's cancelled property (so that it's
+	 * saved along with the sequence).
+	 *
 	 * @param cancelled The 'cancel' flag: true indicates that the sequence is to be cancelled, false that it should be ignored.
 	 *
 	 */
@@ -271,45 +407,39 @@ public class SequenceGrid {
 		validateColName(colName);
 		validateSeqName(seqName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
+		int col = columns.getId(colName);
+		if(col == -1)
 			throw new IllegalArgumentException("Can't find column '" + colName + "'.");
 
-		Sequence seq = (Sequence) col.get(seqName);
-
 		// if seq doesn't exist, just ignore it;
 		// it's hard for anybody but us to check whether
 		// a certain sequence is N/A or CANCELLED.
-		if(seq == null)
+		int row = rows.getId(seqName);
+		if(row == -1 || cells[col][row] == null)
 			return;
 
-			// throw new IllegalArgumentException("Column '" + colName + "' doesn't have a sequence named '" + seqName + "'");
-
+		Sequence seq = cells[col][row];
 		if(cancelled) {
-			seq.setProperty(CANCELLED_PROPERTY, new Object());
+			seq.setProperty(cancelled_property, new Object());
 		} else {
-			seq.setProperty(CANCELLED_PROPERTY, null);
+			seq.setProperty(cancelled_property, null);
 		}
 
 		// count it up
-		if(cancelled)
-			count_cancelledSequences++;
-		else
-			count_cancelledSequences--;
+		if(this.cancelled[col].get(row) != cancelled) {
+			this.cancelled[col].set(row, cancelled);
+
+			if(cancelled)
+				count_cancelledSequences++;
+			else
+				count_cancelledSequences--;
+		}
 	}
 
 	/**
 	 *	Toggles 'cancelled' state on the specified sequence.
 	 *	i.e. if it is cancelled, it is now uncancelled; and
 	 *	vice versa.
-	 *
-	 *	I'd optimize this (by unrolling the function calls)
-	 *	but you know what they say about premature 
-	 *	optimization!
-	 *
-	 *	That's actually a pretty good point, since we're
-	 *	not likely to toggle cancelled very frequently
-	 *	or anything.
 	 */
 	public void toggleCancelled(String colName, String seqName) {
 		if(isSequenceCancelled(colName, seqName))
@@ -319,7 +449,8 @@ public class SequenceGrid {
 	}
 	
 	/**
-	 * Overwrites or creates a sequence entry, and puts 'seq' there.
+	 * Overwrites or creates a sequence entry, and puts 'seq' there. If seq
+	 * has its cancelled property set, it goes in as a cancelled sequence.
 	 *
 	 * Warning: this will add a (colName, seqName) entry no matter what - even if that
 	 * involves overwriting an old sequence in that slot, or if it has to create a new
@@ -330,35 +461,34 @@ public class SequenceGrid {
 		validateColName(colName);
 		validateSeqName(seqName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null) {
+		int col = columns.getId(colName);
+		if(col == -1) {
 			// column doesn't exist: MAKE IT!
-			col = new Hashtable();
-			hash_master.put(colName, col);
-			col.put("", new Integer(seq.getLength()));
+			col = addColumn(colName);
+			col_lengths[col] = seq.getLength();
 		} else {
 			// test the column length
-			if(!IGNORE_SIZES && seq.getLength() != getColumnLength(colName))
-				throw new IllegalArgumentException("Column " + colName + " has a length of " + getColumnLength(colName) + ", but you are trying to set a sequence '" + seqName + "' with a length of " + seq.getLength());
-		}
-		col.put(seqName, seq);
-		
-		// by now, the sequence has been 'inserted'.
-		// now, we need to update the master index
-		Hashtable ht = (Hashtable) hash_master.get("");
-		if(ht == null) {
-			// we don't have a master index: MAKE IT!
-			ht = new Hashtable();
-			hash_master.put("", ht);
+			if(!IGNORE_SIZES && seq.getLength() != col_lengths[col])
+				throw new IllegalArgumentException("Column " + colName + " has a length of " + col_lengths[col] + ", but you are trying to set a sequence '" + seqName + "' with a length of " + seq.getLength());
 		}
 
-		if(ht.get(seqName) == null)
-			ht.put(seqName, new Integer(1));
-		else {
-			int oldCount = ((Integer)ht.get(seqName)).intValue();
+		int row = rows.getId(seqName);
+		if(row == -1)
+			row = addRow(seqName);
 
-			ht.put(seqName, new Integer(oldCount+1));
+		if(cells[col][row] == null) {
+			col_counts[col]++;
+			row_counts[row]++;
+		} else if(cancelled[col].get(row)) {
+			count_cancelledSequences--;
 		}
+
+		cells[col][row] = seq;
+
+		boolean is_cancelled = (seq.getProperty(cancelled_property) != null);
+		cancelled[col].set(row, is_cancelled);
+		if(is_cancelled)
+			count_cancelledSequences++;
 	}
 
 	/**	
@@ -369,42 +499,18 @@ public class SequenceGrid {
 		validateColName(colName);
 		validateSeqName(seqName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
+		int col = columns.getId(colName);
+		if(col == -1)
 			throw new IllegalArgumentException("Column '" + colName + "' does not exist.");
 
-		col.remove(seqName);
+		int row = rows.getId(seqName);
+		if(row != -1)
+			removeSequence(col, row);
 
-		if(col.size() == 1) {
-			// if there are no keys left 
-			// (the only key left is the '""' key), 
+		if(col_counts[col] == 0) {
+			// if there are no sequences left,
 			// we can get rid of the column entirely
-			hash_master.remove(colName);
-		}
-
-		// Remove the sequence count from the 'sequences' hash;
-		// if there are no more sequences with this name, remove
-		// the name from this hash as well.
-		Hashtable ht = (Hashtable) hash_master.get("");
-		if(ht != null) {
-			// we don't really care all that much
-			// if there's no ht declared (shouldn't happen!) we just ignore it
-			// and walk calmly on
-			// in to the sunset
-			
-			if(ht.get(seqName) != null) {
-				int oldCount = ((Integer)ht.get(seqName)).intValue();
-
-				//System.err.println("For " + seqName + ": oldCount was " + oldCount + ", it's now " + (oldCount - 1));
-				oldCount--;
-
-				if(oldCount == 0) {
-					// get rid of the sequence!
-					ht.remove(seqName);
-				} else {
-					ht.put(seqName, new Integer(oldCount));
-				}
-			}
+			removeColumn(col);
 		}
 	}
 
@@ -416,12 +522,7 @@ public class SequenceGrid {
 	public int getColumnLength(String colName) {
 		validateColName(colName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
-			return -1;
-			// throw new IllegalArgumentException("Column '" + colName + "' doesn't exist.");
-		
-		return ((Integer)col.get("")).intValue();
+		return getColumnLength(columns.getId(colName));
 	}
 
 	/**	
@@ -432,12 +533,12 @@ public class SequenceGrid {
 
 		validateSeqName(seqName);
 
-		Iterator i = getColumns().iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
-		
-			Sequence seq = getSequence(colName, seqName);
-			if(seq != null)
+		int row = rows.getId(seqName);
+		if(row == -1)
+			return 0;
+
+		for(int col = 0; col < columns.getLimit(); col++) {
+			if(getSequence(col, row) != null)
 				count++;
 		}
 
@@ -454,14 +555,13 @@ public class SequenceGrid {
 	public void setColumnLength(String colName, int newLength) {
 		validateColName(colName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null) {
+		int col = columns.getId(colName);
+		if(col == -1) {
 			// if there isn't a length already, set one up
-			col = new Hashtable();
-			hash_master.put(colName, col);
+			col = addColumn(colName);
 		}
 		
-		col.put("", new Integer(newLength));
+		col_lengths[col] = newLength;
 	}
 
 	/**
@@ -472,11 +572,7 @@ public class SequenceGrid {
 	public boolean isColumn(String colName) {
 		validateColName(colName);
 
-		Hashtable col = (Hashtable) hash_master.get(colName);
-		if(col == null)
-			return false;
-
-		return true;
+		return (columns.getId(colName) != -1);
 	}
 
 	/**	
@@ -487,20 +583,9 @@ public class SequenceGrid {
 	 * to recreate the line in SequenceMatrix - i.e., INCLUDING the gaps.
 	 */
 	public Sequence getCombinedSequence(String seqName) {
-		Sequence result = new Sequence();
-
 		validateSeqName(seqName);
 
-		Iterator i = getColumns().iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
-		
-			Sequence seq = getSequence(colName, seqName);
-			if(seq != null)
-				result = result.concatSequence(seq);
-		}
-
-		return result;
+		return concatenateRow(seqName, rows.getId(seqName), getColumnOrder(), false, false, null);
 	}	
 
 	/**	
@@ -512,11 +597,12 @@ public class SequenceGrid {
 
 		validateSeqName(seqName);
 
-		Iterator i = getColumns().iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
-		
-			Sequence seq = getSequence(colName, seqName);
+		int row = rows.getId(seqName);
+		if(row == -1)
+			return 0;
+
+		for(int col = 0; col < columns.getLimit(); col++) {
+			Sequence seq = getSequence(col, row);
 			if(seq != null)
 				total += seq.getActualLength();	
 		}
@@ -530,24 +616,157 @@ public class SequenceGrid {
 	 * full length gaps into empty slots.
 	 */
 	public Sequence getCompleteSequence(String seqName) {
-		Sequence result = new Sequence();
-
 		validateSeqName(seqName);
 
+		return concatenateRow(seqName, rows.getId(seqName), getColumnOrder(), true, false, null);
+	}
+
+	/**
+	 * Returns the complete sequence for row 'row', made up of the
+	 * columns in 'col_ids' in that order, and named after the row.
+	 * If 'include_cancelled' is true, cancelled sequences go in
+	 * as they are; otherwise they're filled in as missing.
+	 */
+	public Sequence getCompleteSequence(int row, int[] col_ids, boolean include_cancelled) {
+		return concatenateRow(rows.getName(row), row, col_ids, true, include_cancelled, null);
+	}
+
+	/**
+	 * Returns the complete sequences (see getCompleteSequence()) of
+	 * each row in 'row_ids', made up of the columns in 'col_ids' in
+	 * that order. Rows are concatenated in parallel, each straight
+	 * into a single buffer, so a row costs one pass over its bases
+	 * however many columns there are. Each sequence is named after
+	 * its row.
+	 *
+	 * @throws DelayAbortedException if the user cancelled.
+	 */
+	public Sequence[] getCompleteSequences(final int[] row_ids, final int[] col_ids, DelayCallback delay) throws DelayAbortedException {
+		final Sequence[] results = new Sequence[row_ids.length];
+
+		try {
+			WorkerPool.forEach(row_ids.length, new WorkerPool.Job() {
+				private ThreadLocal buffers = new ThreadLocal();
+
+				public void run(int x) {
+					int row = row_ids[x];
+					CharBuffer buffer = (CharBuffer) buffers.get();
+					if(buffer == null) {
+						buffer = new CharBuffer();
+						buffers.set(buffer);
+					}
+
+					results[x] = concatenateRow(rows.getName(row), row, col_ids, true, false, buffer);
+				}
+			}, delay);
+		} catch(ExecutionException e) {
+			throw new RuntimeException("Could not concatenate sequences", e.getCause());
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the ids of every column, in the order getColumns()
+	 * iterates over their names.
+	 */
+	private int[] getColumnOrder() {
+		int[] col_ids = new int[columns.count()];
+
+		int x = 0;
 		Iterator i = getColumns().iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
-		
-			Sequence seq = getSequence(colName, seqName);
+		while(i.hasNext())
+			col_ids[x++] = columns.getId((String) i.next());
+
+		return col_ids;
+	}
+
+	/** A reusable buffer for concatenateRow(). */
+	private static class CharBuffer {
+		char[] chars = new char[0];
+
+		char[] ensure(int size) {
+			if(chars.length < size)
+				chars = new char[size];
+			return chars;
+		}
+	}
+
+	/**
+	 * Concatenates the sequences in row 'row', for the columns in
+	 * 'col_ids' (in that order), into a single Sequence named 'name'.
+	 * If 'complete' is true, missing (or cancelled) cells are filled
+	 * in with '?', just as getCompleteSequence() does; otherwise they
+	 * are left out, as getCombinedSequence() does. Cancelled sequences
+	 * count as missing unless 'include_cancelled' is true.
+	 *
+	 * We measure the row first, then copy every cell straight into
+	 * one buffer; only BaseSequences, which can't be copied that way,
+	 * get concatenated one at a time. 'buffer' may be null.
+	 */
+	private Sequence concatenateRow(String name, int row, int[] col_ids, boolean complete, boolean include_cancelled, CharBuffer buffer) {
+		int length = 0;
+		for(int x = 0; x < col_ids.length; x++) {
+			Sequence seq = getCell(col_ids[x], row, include_cancelled);
+
+			if(seq == null) {
+				if(complete)
+					length += col_lengths[col_ids[x]];
+			} else if(Sequence.class.equals(seq.getClass())) {
+				length += seq.getLength();
+			} else {
+				return concatenateRowSlowly(name, row, col_ids, complete, include_cancelled);
+			}
+		}
+
+		char[] chars = (buffer == null) ? new char[length] : buffer.ensure(length);
+		int pos = 0;
+		for(int x = 0; x < col_ids.length; x++) {
+			Sequence seq = getCell(col_ids[x], row, include_cancelled);
+
+			if(seq != null) {
+				pos += seq.copySequence(chars, pos);
+			} else if(complete) {
+				int col_length = col_lengths[col_ids[x]];
+				Arrays.fill(chars, pos, pos + col_length, '?');
+				pos += col_length;
+			}
+		}
+
+		try {
+			return new Sequence(name, chars, length);
+		} catch(SequenceException e) {
+			// shouldn't happen: all these bases came out of valid sequences
+			throw new RuntimeException("The concatenated sequence for " + name + " is not a valid sequence!");
+		}
+	}
+
+	/**
+	 * Concatenates a row one sequence at a time, which is what we
+	 * have to do if a BaseSequence is involved.
+	 */
+	private Sequence concatenateRowSlowly(String name, int row, int[] col_ids, boolean complete, boolean include_cancelled) {
+		Sequence result = new Sequence();
+
+		for(int x = 0; x < col_ids.length; x++) {
+			Sequence seq = getCell(col_ids[x], row, include_cancelled);
+
 			if(seq != null)
 				result = result.concatSequence(seq);
-			else
-				result = result.concatSequence(Sequence.makeEmptySequence(seqName, getColumnLength(colName)));
+			else if(complete)
+				result = result.concatSequence(Sequence.makeEmptySequence(name, col_lengths[col_ids[x]]));
 		}
 
+		result.changeName(name);
 		return result;
 	}
 
+	private Sequence getCell(int col, int row, boolean include_cancelled) {
+		if(include_cancelled)
+			return getSequenceIgnoreCancelled(col, row);
+		return getSequence(col, row);
+	}
+
 	/**
 	 * Return the length of the complete sequence with gaps - 
 	 * essentially identical to getCompleteSequenceLength, except 
@@ -557,11 +776,9 @@ public class SequenceGrid {
 	public int getCompleteSequenceLength() {
 		int count = 0;
 
-		Iterator i = getColumns().iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
-		
-			count += getColumnLength(colName);
+		for(int col = 0; col < columns.getLimit(); col++) {
+			if(columns.getName(col) != null)
+				count += col_lengths[col];
 		}
 
 		return count;
@@ -574,6 +791,120 @@ public class SequenceGrid {
 		return count_cancelledSequences;
 	}
 
+//
+// 1.	CONSTRUCTORS, AND ACCESS BY ID.
+//
+	/**
+	 * Creates an empty SequenceGrid.
+	 */
+	public SequenceGrid() {
+		this(CANCELLED_PROPERTY, INITIAL_COLNAME_PROPERTY, INITIAL_SEQNAME_PROPERTY);
+	}
+
+	/**
+	 * Creates an empty SequenceGrid which uses different property names
+	 * to mark cancelled sequences, and to find initial column and sequence
+	 * names in addSequenceList().
+	 */
+	protected SequenceGrid(String cancelled_property, String initial_colname_property, String initial_seqname_property) {
+		this.cancelled_property = cancelled_property;
+		this.initial_colname_property = initial_colname_property;
+		this.initial_seqname_property = initial_seqname_property;
+	}
+
+	/*
+	 * ACCESS BY ID. Ids stay the same for as long as the column (or row) exists, but might
+	 * be reused once it's been deleted.
+	 */
+	/**
+	 * Returns the id of column 'colName', or -1 if there is no such column.
+	 */
+	public int getColumnId(String colName) {
+		return columns.getId(colName);
+	}
+
+	/**
+	 * Returns the id of the row named 'seqName', or -1 if there is no such row.
+	 */
+	public int getSequenceId(String seqName) {
+		return rows.getId(seqName);
+	}
+
+	/**
+	 * Returns the name of the column with id 'col', or null if there is no such column.
+	 */
+	public String getColumnName(int col) {
+		return columns.getName(col);
+	}
+
+	/**
+	 * Returns the name of the row with id 'row', or null if there is no such row.
+	 */
+	public String getSequenceName(int row) {
+		return rows.getName(row);
+	}
+
+	/**
+	 * Every column id is below this number, so you can loop over every column with
+	 * for(col = 0; col < getColumnIdLimit(); col++), skipping ids whose getColumnName()
+	 * is null.
+	 */
+	public int getColumnIdLimit() {
+		return columns.getLimit();
+	}
+
+	/**
+	 * Every row id is below this number (see getColumnIdLimit()).
+	 */
+	public int getSequenceIdLimit() {
+		return rows.getLimit();
+	}
+
+	/**
+	 * Returns the sequence at (col, row), or null if there isn't one or if it's
+	 * been cancelled.
+	 */
+	public Sequence getSequence(int col, int row) {
+		if(col < 0 || col >= cells.length || cells[col] == null || row < 0 || row >= row_capacity)
+			return null;
+
+		if(cancelled[col].get(row))
+			return null;
+
+		return cells[col][row];
+	}
+
+	/**
+	 * Returns the sequence at (col, row), whether or not it's been cancelled, or null
+	 * if there isn't one.
+	 */
+	public Sequence getSequenceIgnoreCancelled(int col, int row) {
+		if(col < 0 || col >= cells.length || cells[col] == null || row < 0 || row >= row_capacity)
+			return null;
+
+		return cells[col][row];
+	}
+
+	/**
+	 * Checks whether the sequence at (col, row) has been cancelled.
+	 */
+	public boolean isSequenceCancelled(int col, int row) {
+		if(col < 0 || col >= cells.length || cells[col] == null || row < 0)
+			return false;
+
+		return cancelled[col].get(row);
+	}
+
+	/**
+	 * Returns the length of the column with id 'col', or -1 if there is no such column.
+	 */
+	public int getColumnLength(int col) {
+		if(columns.getName(col) == null)
+			return -1;
+
+		return col_lengths[col];
+	}
+
 //
 // 2.	ADD COMMANDS. Add a SequenceList, add a file, that sort of thing.	
 //
@@ -667,8 +998,8 @@ public class SequenceGrid {
 			seqName = seq.getFullName();
 
 			// Check if we have cues as to what to call this sequence
-			if(seq.getProperty(INITIAL_SEQNAME_PROPERTY) != null)
-				seqName = (String) seq.getProperty(INITIAL_SEQNAME_PROPERTY);
+			if(seq.getProperty(initial_seqname_property) != null)
+				seqName = (String) seq.getProperty(initial_seqname_property);
 
 			// TODO: Cleanup this bit.
 			// 
@@ -680,8 +1011,8 @@ public class SequenceGrid {
 			// people, which - at the end of the day - really is all that 
 			// matters.
 			//
-			if(seq.getProperty(INITIAL_COLNAME_PROPERTY) != null)
-				colName = (String) seq.getProperty(INITIAL_COLNAME_PROPERTY);
+			if(seq.getProperty(initial_colname_property) != null)
+				colName = (String) seq.getProperty(initial_colname_property);
 
 			// Is there already a sequence with this name?
 			Sequence seq_old = getSequence(colName, seqName);
@@ -733,10 +1064,8 @@ public class SequenceGrid {
 	 * Delete the column named 'colName'.
 	 *
 	 * This involves:
-	 * 1.	Deleting the actual column, including all sequences. (this is handled by deleteSequence)
-	 * 2.	Deleting the sequence name, if it is not used once this column is deleted. (also handled by deleteSequence)
-	 *
-	 * When you've got friends like deleteSequence, life is so much easier.
+	 * 1.	Deleting the actual column, including all sequences.
+	 * 2.	Deleting the sequence name, if it is not used once this column is deleted.
 	 */
 	public void deleteColumn(String colName) {
 		if(!isColumn(colName)) {
@@ -744,29 +1073,31 @@ public class SequenceGrid {
 			throw new RuntimeException("Attempt to delete non-existant column '" + colName + "'. Are the threads okay?");
 		}
 
-		// deleteSequence() every sequence in this column
-		//
-		// I have no idea why we allocate a new HashSet at this point, and
-		// I'm too scared to try and figure it out.
-		Iterator i = new HashSet(getSequenceNamesByColumn(colName)).iterator();
-		while(i.hasNext()) {
-			String seqName = (String) i.next();
+		int col = columns.getId(colName);
+		for(int row = 0; row < rows.getLimit(); row++)
+			removeSequence(col, row);
 
-			deleteSequence(colName, seqName);
-		}
+		removeColumn(col);
 	}
 
 	/**
-	 * Deletes the row named 'seqName'.
-	 *
-	 * Once again, having an efficient, useful and workhorseable deleteSequence() is half the battle.
+	 * Deletes the row named 'seqName'. Any columns which were only
+	 * there for this row go as well.
 	 */
 	public void deleteRow(String seqName) {
-		Iterator i = getColumns().iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
+		validateSeqName(seqName);
+
+		int row = rows.getId(seqName);
+		if(row == -1)
+			return;
 
-			deleteSequence(colName, seqName);
+		for(int col = 0; col < columns.getLimit(); col++) {
+			if(cells[col] == null || cells[col][row] == null)
+				continue;
+
+			removeSequence(col, row);
+			if(col_counts[col] == 0)
+				removeColumn(col);
 		}
 	}
 
@@ -774,17 +1105,17 @@ public class SequenceGrid {
 	 * Clear *everything*.
 	 */
 	public void clear() {
-		// I'm guessing we allocate a HashSet for the
-		// same reason we allocate one in deleteColumns(),
-		// but once again, I'm clueless. Sorry.
-		//
-		Set set = new HashSet(getColumns());
-		Iterator i = set.iterator();
-		while(i.hasNext()) {
-			String colName = (String) i.next();
-		
-			deleteColumn(colName);
-		}
+		columns = new Names();
+		rows = new Names();
+
+		cells = new Sequence[0][];
+		cancelled = new BitSet[0];
+		col_lengths = new int[0];
+		col_counts = new int[0];
+		row_counts = new int[0];
+		row_capacity = 0;
+
+		count_cancelledSequences = 0;
 	}
 
 //
@@ -872,10 +1203,19 @@ public class SequenceGrid {
 	public SequenceList getSequenceList() {
 		SequenceList sl = new SequenceList();
 
+		int[] row_ids = new int[rows.count()];
+		int x = 0;
 		Iterator i = getSequences().iterator();
-		while(i.hasNext()) {
-			String seqName = (String) i.next();
-			sl.add(getCompleteSequence(seqName));
+		while(i.hasNext())
+			row_ids[x++] = rows.getId((String) i.next());
+
+		try {
+			Sequence[] seqs = getCompleteSequences(row_ids, getColumnOrder(), null);
+			for(x = 0; x < seqs.length; x++)
+				sl.add(seqs[x]);
+		} catch(DelayAbortedException e) {
+			// can't happen without a DelayCallback
+			throw new RuntimeException("Concatenation cancelled without a DelayCallback!", e);
 		}
 
 		return sl;
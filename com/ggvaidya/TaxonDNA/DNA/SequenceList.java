@@ -102,10 +102,11 @@ public class SequenceList implements List, Testable {
 			//formatHandlers.add(new com.ggvaidya.TaxonDNA.DNA.formats.MegaFile());
 			formatHandlers.add(new com.ggvaidya.TaxonDNA.DNA.formats.NexusFile());
 			formatHandlers.add(new com.ggvaidya.TaxonDNA.DNA.formats.TNTFile());
+			formatHandlers.add(new com.ggvaidya.TaxonDNA.DNA.formats.BinaryFile());
 //			formatHandlers.add(new com.ggvaidya.TaxonDNA.DNA.formats.SequencesFile());
 //			formatHandlers.add(new com.ggvaidya.TaxonDNA.DNA.formats.PhylipFile());
 
-			formatsHandled = "Fasta, Mega, Nexus, TNT and Sequences";
+			formatsHandled = "Fasta, Mega, Nexus, TNT, TaxonDNA binary and Sequences";
 		}
 	}
 
@@ -135,12 +136,80 @@ public class SequenceList implements List, Testable {
 		throws SequenceListException, DelayAbortedException 
 	{
 		initFormatHandlers();				// set up the formatHandlers
-		
-		String fullPath = file.getAbsolutePath();
 
+		FormatInput input = openInput(file);
+		try {
+			load(input, handler, delay);
+		} finally {
+			closeInput(input);
+		}
+
+		modified = false;	// we are being backed by a valid file, and Everything is Okay.
+	}
+
+	/**
+	 * Creates a SequenceList from a file which has already been opened,
+	 * using the specified formatHandler. The FormatInput is read, but
+	 * not closed.
+	 *
+	 * @throws SequenceListException if any exception was thrown creating this SequenceList. 
+	 * 		It wraps the exception and provides a useful message at the same time.
+	 * @throws DelayAbortedException if the DelayCallback was aborted by the user.
+	 */
+	public SequenceList(FormatInput input, FormatHandler handler, DelayCallback delay) 
+		throws SequenceListException, DelayAbortedException 
+	{
+		initFormatHandlers();				// set up the formatHandlers
+
+		load(input, handler, delay);
+
+		modified = false;	// we are being backed by a valid file, and Everything is Okay.
+	}
+
+	/**
+	 * Opens a file for reading, explaining any problem in a SequenceListException.
+	 */
+	private static FormatInput openInput(File file) throws SequenceListException {
+		try {
+			return FormatInput.open(file);
+		} catch(IOException e) {
+			// the file's there, so the exception itself explains what went wrong
+			// (for instance, it's been compressed in a way we can't read)
+			if(file.canRead())
+				throw new SequenceListException("I could not read the input file '" + file.getAbsolutePath() + "': " + e.getMessage(), e);
+
+			throw new SequenceListException(
+					"A system error occured while trying to read '" + 
+					file.getAbsolutePath() + "'. Are you sure that the file exists, " +
+					"and you have the correct permissions to read it?\n" + 
+					"Technical explanation: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Closes a FormatInput. We've read everything we wanted by now, so
+	 * there's nothing useful to do if this fails.
+	 */
+	private static void closeInput(FormatInput input) {
 		try {
-			if(handler.mightBe(file))
-				handler.appendFromFile(this, file, delay);
+			input.close();
+		} catch(IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Reads an opened file into this SequenceList with the specified
+	 * handler, turning any problems into SequenceListExceptions.
+	 */
+	private void load(FormatInput input, FormatHandler handler, DelayCallback delay) 
+		throws SequenceListException, DelayAbortedException 
+	{
+		String fullPath = input.getFile().getAbsolutePath();
+
+		try {
+			if(handler.mightBe(input))
+				handler.appendFromInput(this, input, delay);
 			else
 				throw new SequenceListException(
 						"The specified file '" + fullPath +
@@ -169,8 +238,6 @@ public class SequenceList implements List, Testable {
 					"'. Please check the format and ensure that the format is " +
 					"correct.\nThe error reported is: " + e, e);
 		}
-
-		modified = false;	// we are being backed by a valid file, and Everything is Okay.
 	}
 
 	/**
@@ -500,6 +567,7 @@ public class SequenceList implements List, Testable {
 	 * Oh, and it makes a nice list of the format handlers it *does* support, so you have a better idea about
 	 * what's going on, and so on. 
 	 *
+	 * The file is only opened (and its header read) once, however many handlers we try.
 	 */
 	public static SequenceList readFile(File file, DelayCallback delay, FormatListener listener) throws SequenceListException, DelayAbortedException {
 		initFormatHandlers();
@@ -509,19 +577,29 @@ public class SequenceList implements List, Testable {
 		String 		fullPath	= file.getAbsolutePath();
 		StringBuffer	validFormats	= new StringBuffer();
 
-		while(i.hasNext()) {
-			FormatHandler handler = (FormatHandler) i.next();
+		// We open the file once, and let every handler look at its header;
+		// the one which recognises it then reads on from the same stream.
+		// (If the file's been compressed in a way we can't read, this is
+		// where we find out, and the exception will say so.)
+		FormatInput input = openInput(file);
 
-			if(handler.mightBe(file)) {
-				if(listener != null)
-					handler.addFormatListener(listener);
-				return new SequenceList(file, handler, delay);
+		try {
+			while(i.hasNext()) {
+				FormatHandler handler = (FormatHandler) i.next();
+
+				if(handler.mightBe(input)) {
+					if(listener != null)
+						handler.addFormatListener(listener);
+					return new SequenceList(input, handler, delay);
+				}
+				
+				if(i.hasNext())
+					validFormats.append(handler.getShortName() + ", ");
+				else
+					validFormats.append("or " + handler.getShortName());
 			}
-			
-			if(i.hasNext())
-				validFormats.append(handler.getShortName() + ", ");
-			else
-				validFormats.append("or " + handler.getShortName());
+		} finally {
+			closeInput(input);
 		}
 
 		// if we're here, we couldn't find a working handler
@@ -43,6 +43,14 @@ public class BaseFormatHandler implements FormatHandler {
 
 	public void appendFromFile(SequenceList appendTo, File fileFrom, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {}
 
+	/**
+	 * Handlers which can't read from a FormatInput just read the file again.
+	 */
+	public void appendFromInput(SequenceList appendTo, FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		input.close();
+		appendFromFile(appendTo, input.getFile(), delay);
+	}
+
 	public void writeFile(File file, SequenceList set, DelayCallback delay) throws IOException, DelayAbortedException
 	{
 	}
@@ -51,6 +59,13 @@ public class BaseFormatHandler implements FormatHandler {
 		return false;
 	}
 
+	/**
+	 * Handlers which can't check a header just check the whole file.
+	 */
+	public boolean mightBe(FormatInput input) {
+		return mightBe(input.getFile());
+	}
+
 	public void addFormatListener(FormatListener listener) {
 		if(!formatListeners.contains(listener))
 			formatListeners.add(listener);	
@@ -0,0 +1,1408 @@
+/**
+ * TaxonDNA's own binary format. Text formats have to be parsed from
+ * scratch every time they're opened, which takes minutes for a large
+ * supermatrix; a binary file can be loaded almost as quickly as it can
+ * be read off the disk, since all we need to do is copy the bases out.
+ *
+ * A binary file contains (all numbers are big-endian, as written by
+ * DataOutputStream):
+ *
+ * 1.	A header: the MAGIC string, then the version number, the number
+ * 	of sequences, strings and character sets, the size of the metadata
+ * 	(sections 2 to 5) and the size of the bases (section 6), in bytes.
+ * 2.	A string table: every name, property name and property value
+ * 	appears here once (as an int length followed by UTF-8 bytes), and
+ * 	is referred to everywhere else by its index into this table.
+ * 3.	One fixed-size record per sequence: its name, flags (was it a
+ * 	BaseSequence? is its warning flag set? are its bases stored in two
+ * 	bytes per character?), length, offset into the bases, and the number
+ * 	of properties it has.
+ * 4.	Every sequence's properties, in the same order as the records.
+ * 	We keep strings, integers, lists of FromToPairs (such as the codon
+ * 	positions SequenceMatrix stores as "position_0" to "position_3")
+ * 	and flags (properties which are only ever checked for null, such as
+ * 	the cancelled flags); anything else is left out.
+ * 5.	Character sets (including codon sets, which are named ":0" to ":3"
+ * 	just as NexusFile names them): a name, and where it runs from and to.
+ * 	These are passed on to FormatListeners as CHARACTER_SET_FOUND events
+ * 	when the file is read.
+ * 6.	The bases themselves, one byte per character (or two, for the odd
+ * 	BaseSequence which uses characters outside ISO-8859-1), one sequence
+ * 	after the other.
+ *
+ * Uncompressed files are read by memory-mapping the file, and decoding
+ * the sequences in chunks on as many threads as we have processors.
+ * Compressed files (see CompressedStreams) are read straight through.
+ *
+ * A binary file might have a BinaryJournal next to it, recording the
+ * changes made to it since it was written; we replay these as we read
+ * the file, so you always get the latest version of the dataset. Every
+ * sequence we read is given a RECORD_PROPERTY, so that the journal can
+ * tell which sequence is which when changes are saved.
+ *
+ * @author Gaurav Vaidya, gaurav@ggvaidya.com
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.DNA.formats;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import com.ggvaidya.TaxonDNA.Common.*;
+import com.ggvaidya.TaxonDNA.DNA.*;
+
+public class BinaryFile extends BaseFormatHandler implements Testable {
+	/** Every binary file starts with these (ASCII) characters. */
+	public static final String	MAGIC =		"TaxonDNA binary\n";
+	/** The version of the format we write (and the newest we can read). */
+	public static final int		VERSION =	1;
+
+	/**
+	 * Every sequence we read has this property set to an Integer, which
+	 * BinaryJournal uses to identify it. It's never written into a file.
+	 */
+	public static final String	RECORD_PROPERTY =	"com.ggvaidya.TaxonDNA.DNA.formats.BinaryFile.record";
+
+	/** The size of the header, in bytes. */
+	private static final int	HEADER_SIZE =	16 + 4 * 4 + 8 * 2;
+
+	// record flags
+	private static final int	FLAG_BASE_SEQUENCE =	1;	// the sequence was a BaseSequence
+	private static final int	FLAG_WIDE =		2;	// its bases are stored in two bytes each (UTF-16BE)
+	private static final int	FLAG_WARNING =		4;	// its warning flag was set
+
+	// property types
+	private static final byte	PROPERTY_FLAG =		0;	// a non-null value with nothing in it
+	private static final byte	PROPERTY_STRING =	1;	// a String (stored as an index into the string table)
+	private static final byte	PROPERTY_INTEGER =	2;	// an Integer
+	private static final byte	PROPERTY_RANGES =	3;	// a Vector of FromToPairs
+
+	/** How many bytes of bases (at most, unless a single sequence is larger) we decode in one go. */
+	private static final long	MAPPED_CHUNK_SIZE =	32L * 1024 * 1024;
+
+	/** Creates a BinaryFile reader/writer. */
+	public BinaryFile() {}
+
+	/** Returns the short name of this handler. */
+	public String getShortName() {
+		return "TaxonDNA binary";
+	}
+
+	/** Returns the extension. */
+	public String getExtension() {
+		return "tdna";
+	}
+
+	/** Returns the full name of this handler. */
+	public String getFullName() {
+		return "TaxonDNA binary files (fast to load and save)";
+	}
+
+	/**
+	 * Looks for our MAGIC at the start of the file.
+	 */
+	public boolean mightBe(File file) {
+		try {
+			FormatInput input = FormatInput.open(file);
+			try {
+				return mightBe(input);
+			} finally {
+				input.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Looks for our MAGIC at the start of the header.
+	 */
+	public boolean mightBe(FormatInput input) {
+		return input.getHeader().startsWith(MAGIC);
+	}
+
+	/**
+	 * Reads a binary file into a new SequenceList.
+	 */
+	public SequenceList readFile(File file, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		SequenceList list = new SequenceList();
+		appendFromFile(list, file, delay);
+		return list;
+	}
+
+	/**
+	 * Appends the contents of a binary file to the specified SequenceList.
+	 */
+	public void appendFromFile(SequenceList list, File file, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		FormatInput input = FormatInput.open(file);
+
+		try {
+			appendFromInput(list, input, delay);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Appends the contents of an opened binary file to the specified
+	 * SequenceList. If the file isn't compressed, we close the
+	 * FormatInput and map the file itself instead.
+	 */
+	public void appendFromInput(SequenceList list, FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		File file = input.getFile();
+
+		list.lock();
+
+		try {
+			if(delay != null)
+				delay.begin();
+
+			try {
+				Contents contents;
+
+				if(input.getCompression() == CompressedStreams.NONE) {
+					input.close();
+					contents = readMapped(file, delay);
+				} else
+					contents = readStreamed(input, delay);
+
+				Sequence[] sequences = BinaryJournal.replay(file, contents);
+				for(int x = 0; x < sequences.length; x++)
+					list.add(sequences[x]);
+
+				if(sequences.length > 0) {
+					list.setFile(file);
+					list.setFormatHandler(this);
+				}
+
+				// let our listeners know about the character sets
+				FormatHandlerEvent evt = new FormatHandlerEvent(file, this, list);
+				for(int x = 0; x < contents.charset_names.length; x++)
+					fireEvent(evt.makeCharacterSetFoundEvent(contents.charset_names[x], contents.charset_from[x], contents.charset_to[x]));
+			} catch(IOException e) {
+				if(delay != null)
+					delay.end();
+				throw e;
+			} catch(SequenceException e) {
+				if(delay != null)
+					delay.end();
+				throw e;
+			} catch(FormatException e) {
+				if(delay != null)
+					delay.end();
+				throw e;
+			} catch(RuntimeException e) {
+				if(delay != null)
+					delay.end();
+				throw e;
+			}
+
+			// if we were aborted, the DelayCallback has already end()ed itself
+			if(delay != null)
+				delay.end();
+		} finally {
+			list.unlock();
+		}
+	}
+
+	/**
+	 * Writes the SequenceList into a binary file, without any character sets.
+	 */
+	public void writeFile(File file, SequenceList list, DelayCallback delay) throws IOException, DelayAbortedException {
+		writeFile(file, list, null, delay);
+	}
+
+	/**
+	 * Writes the SequenceList into a binary file, along with some
+	 * character sets. The file is gzipped if its name ends in ".gz".
+	 *
+	 * Any BinaryJournal kept for this file is thrown away, since it
+	 * doesn't apply to the new file.
+	 *
+	 * @param charsets a Map of character set names to Lists of FromToPairs
+	 * 	(such as the ones SequenceMatrix's FileManager collects from
+	 * 	CHARACTER_SET_FOUND events). Codon sets should be named ":0" to
+	 * 	":3", as they are in those events. This may be null.
+	 */
+	public void writeFile(File file, SequenceList list, Map charsets, DelayCallback delay) throws IOException, DelayAbortedException {
+		list.lock();
+
+		try {
+			// SequenceLists are linked lists, so we don't use get()
+			write(file, (Sequence[]) list.toArray(new Sequence[list.count()]), null, charsets, delay);
+		} finally {
+			list.unlock();
+		}
+
+		BinaryJournal.getJournalFile(file).delete();
+	}
+
+	/**
+	 * Writes some sequences into a binary file.
+	 *
+	 * @param properties the properties to write for each sequence, as a
+	 * 	Map of names to values (see getProperties()), instead of the
+	 * 	sequence's own. This array (or any of its elements) may be null,
+	 * 	in which case we write the sequence's own properties.
+	 */
+	static void write(File file, Sequence[] sequences, Map[] properties, Map charsets, DelayCallback delay) throws IOException, DelayAbortedException {
+		if(delay != null)
+			delay.begin();
+
+		try {
+			int		count = sequences.length;
+			StringTable	strings = new StringTable();
+			int[]		names = new int[count];
+			int[]		flags = new int[count];
+			int[]		lengths = new int[count];
+			long		bases_length = 0;
+
+			// Pass 1: collect the strings, and work out how much
+			// space everything will need.
+			for(int x = 0; x < count; x++) {
+				Sequence seq = sequences[x];
+
+				names[x] = strings.add(seq.getFullName());
+				flags[x] = getFlags(seq);
+				lengths[x] = getLength(seq, flags[x]);
+
+				bases_length += getSize(flags[x], lengths[x]);
+			}
+
+			// Pass 2: the string table and the records.
+			ByteArrayOutputStream	records = new ByteArrayOutputStream();
+			DataOutputStream	out_records = new DataOutputStream(records);
+			ByteArrayOutputStream	property_bytes = new ByteArrayOutputStream();
+			DataOutputStream	out_properties = new DataOutputStream(property_bytes);
+
+			long offset = 0;
+			for(int x = 0; x < count; x++) {
+				Sequence seq = sequences[x];
+
+				out_records.writeInt(names[x]);
+				out_records.writeInt(flags[x]);
+				out_records.writeInt(lengths[x]);
+				out_records.writeLong(offset);
+				Map props = (properties == null || properties[x] == null) ? getProperties(seq) : properties[x];
+				out_records.writeInt(writeProperties(out_properties, props, strings));
+
+				offset += getSize(flags[x], lengths[x]);
+			}
+
+			ByteArrayOutputStream	charset_bytes = new ByteArrayOutputStream();
+			DataOutputStream	out_charsets = new DataOutputStream(charset_bytes);
+			int			charset_count = 0;
+
+			if(charsets != null) {
+				Vector charset_names = new Vector(charsets.keySet());
+				Collections.sort(charset_names);
+
+				Iterator i = charset_names.iterator();
+				while(i.hasNext()) {
+					String name = (String) i.next();
+					int name_index = strings.add(name);
+
+					Iterator i_ftp = ((Collection) charsets.get(name)).iterator();
+					while(i_ftp.hasNext()) {
+						FromToPair ftp = (FromToPair) i_ftp.next();
+
+						out_charsets.writeInt(name_index);
+						out_charsets.writeInt(ftp.from);
+						out_charsets.writeInt(ftp.to);
+						charset_count++;
+					}
+				}
+			}
+
+			ByteArrayOutputStream	string_bytes = new ByteArrayOutputStream();
+			strings.write(new DataOutputStream(string_bytes));
+
+			long metadata_length = string_bytes.size() + records.size() + property_bytes.size() + charset_bytes.size();
+
+			// Pass 3: write it all out.
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(CompressedStreams.openOutput(file), CompressedStreams.WRITE_BUFFER_SIZE));
+
+			try {
+				out.writeBytes(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeInt(strings.count());
+				out.writeInt(charset_count);
+				out.writeLong(metadata_length);
+				out.writeLong(bases_length);
+
+				string_bytes.writeTo(out);
+				records.writeTo(out);
+				property_bytes.writeTo(out);
+				charset_bytes.writeTo(out);
+
+				string_bytes = records = property_bytes = charset_bytes = null;
+
+				BaseWriter writer = new BaseWriter(out);
+				for(int x = 0; x < count; x++) {
+					if(delay != null)
+						delay.delay(x, count);
+
+					writeBases(out, writer, sequences[x], flags[x]);
+				}
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			if(delay != null)
+				delay.end();
+			throw e;
+		} catch(RuntimeException e) {
+			if(delay != null)
+				delay.end();
+			throw e;
+		}
+
+		// if we were aborted, the DelayCallback has already end()ed itself
+		if(delay != null)
+			delay.end();
+	}
+
+	/**
+	 * Writes out a set of properties (see getProperties()), with their names
+	 * and any String values as indices into the string table.
+	 *
+	 * @return the number of properties written.
+	 */
+	private static int writeProperties(DataOutputStream out, Map properties, StringTable strings) throws IOException {
+		Vector names = new Vector(properties.keySet());
+		Collections.sort(names);
+
+		Iterator i = names.iterator();
+		while(i.hasNext()) {
+			String name = (String) i.next();
+			Object value = properties.get(name);
+
+			out.writeInt(strings.add(name));
+			writePropertyValue(out, value, strings);
+		}
+
+		return names.size();
+	}
+
+	/**
+	 * Returns the properties of a sequence which we know how to store (see
+	 * getPropertyType()), as a Map of names to values. RECORD_PROPERTY is
+	 * left out.
+	 */
+	public static Map getProperties(Sequence seq) {
+		Hashtable results = new Hashtable();
+
+		Iterator i = seq.getPropertyNames().iterator();
+		while(i.hasNext()) {
+			String name = (String) i.next();
+			Object value = seq.getProperty(name);
+
+			if(name.equals(RECORD_PROPERTY) || getPropertyType(value) == -1)
+				continue;	// we don't store this
+
+			results.put(name, value);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the type we store a property value as, or -1 if we don't
+	 * know how to store it.
+	 */
+	static byte getPropertyType(Object value) {
+		if(value instanceof String)
+			return PROPERTY_STRING;
+
+		if(value instanceof Integer)
+			return PROPERTY_INTEGER;
+
+		if(value instanceof Vector) {
+			Vector v = (Vector) value;
+			for(int x = 0; x < v.size(); x++) {
+				if(!(v.get(x) instanceof FromToPair))
+					return -1;
+			}
+			return PROPERTY_RANGES;
+		}
+
+		// a flag, like DataStore.CANCELLED_PROPERTY
+		if(value != null && value.getClass() == Object.class)
+			return PROPERTY_FLAG;
+
+		return -1;
+	}
+
+	/**
+	 * Writes a property value's type, followed by the value itself. If
+	 * 'strings' is null, Strings are written out in full instead of as
+	 * indices into the string table.
+	 */
+	static void writePropertyValue(DataOutputStream out, Object value, StringTable strings) throws IOException {
+		byte type = getPropertyType(value);
+
+		out.writeByte(type);
+		switch(type) {
+			case PROPERTY_STRING:
+				if(strings == null)
+					writeString(out, (String) value);
+				else
+					out.writeInt(strings.add((String) value));
+				break;
+
+			case PROPERTY_INTEGER:
+				out.writeInt(((Integer) value).intValue());
+				break;
+
+			case PROPERTY_RANGES:
+				Vector ranges = (Vector) value;
+
+				out.writeInt(ranges.size());
+				for(int x = 0; x < ranges.size(); x++) {
+					FromToPair ftp = (FromToPair) ranges.get(x);
+					out.writeInt(ftp.from);
+					out.writeInt(ftp.to);
+				}
+				break;
+
+			case PROPERTY_FLAG:
+				break;
+
+			default:
+				throw new IllegalArgumentException("I don't know how to store a property of class " + value.getClass());
+		}
+	}
+
+	/**
+	 * Reads a property value written by writePropertyValue(). 'strings' is
+	 * the string table, or null if Strings were written out in full.
+	 */
+	static Object readPropertyValue(ByteBuffer in, String[] strings) throws FormatException {
+		byte type = in.get();
+
+		switch(type) {
+			case PROPERTY_FLAG:
+				return new Object();
+
+			case PROPERTY_STRING:
+				if(strings == null)
+					return readString(in);
+
+				int index = in.getInt();
+				if(index < 0 || index >= strings.length)
+					throw new FormatException("A property refers to string " + index + ", but there are only " + strings.length + " strings in this file.");
+				return strings[index];
+
+			case PROPERTY_INTEGER:
+				return new Integer(in.getInt());
+
+			case PROPERTY_RANGES:
+				int count = in.getInt();
+				Vector ranges = new Vector();
+				for(int x = 0; x < count; x++) {
+					int from = in.getInt();
+					int to = in.getInt();
+
+					ranges.add(new FromToPair(from, to));
+				}
+				return ranges;
+
+			default:
+				throw new FormatException("A property has an unknown type (" + type + ").");
+		}
+	}
+
+	/** Writes a String as an int length followed by its UTF-8 bytes. */
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/** Reads a String written by writeString(). */
+	static String readString(ByteBuffer in) throws FormatException {
+		int length = in.getInt();
+		if(length < 0 || length > in.remaining())
+			throw new FormatException("A string " + length + " bytes long can't fit into the " + in.remaining() + " bytes left.");
+
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+
+		try {
+			return new String(bytes, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 isn't supported on this system!");
+		}
+	}
+
+	/**
+	 * Works out the flags for a sequence's record: was it a BaseSequence,
+	 * is its warning flag set, and does it need two bytes per character?
+	 */
+	static int getFlags(Sequence seq) {
+		int flags = 0;
+
+		if(seq.getWarningFlag())
+			flags |= FLAG_WARNING;
+
+		if(seq instanceof BaseSequence) {
+			// BaseSequences can contain anything at all
+			String bases = seq.getSequence();
+
+			flags |= FLAG_BASE_SEQUENCE;
+			for(int y = 0; y < bases.length(); y++) {
+				if(bases.charAt(y) > 0xFF) {
+					flags |= FLAG_WIDE;
+					break;
+				}
+			}
+		}
+
+		return flags;
+	}
+
+	/** Returns the number of characters writeBases() will write for this sequence. */
+	static int getLength(Sequence seq, int flags) {
+		if((flags & FLAG_BASE_SEQUENCE) != 0)
+			return seq.getSequence().length();
+
+		// Sequences only ever contain (ASCII) bases, one per character
+		return seq.getLength();
+	}
+
+	/** Returns the number of bytes 'length' characters take up. */
+	static long getSize(int flags, int length) {
+		return ((flags & FLAG_WIDE) != 0) ? 2L * length : length;
+	}
+
+	/**
+	 * Writes out a sequence's bases, in one or two bytes per character
+	 * depending on its flags. 'writer' must be writing into 'out'.
+	 */
+	static void writeBases(DataOutputStream out, BaseWriter writer, Sequence seq, int flags) throws IOException {
+		if((flags & FLAG_WIDE) != 0)
+			out.writeChars(seq.getSequence());
+		else if((flags & FLAG_BASE_SEQUENCE) != 0)
+			writer.write(seq.getSequence());
+		else
+			seq.writeSequence(writer);
+
+		writer.flush();
+	}
+
+	/**
+	 * Decodes 'length' characters out of 'bytes' into 'buffer'.
+	 */
+	static void decode(ByteBuffer bytes, char[] buffer, int length, int flags) {
+		if((flags & FLAG_WIDE) != 0) {
+			for(int x = 0; x < length; x++)
+				buffer[x] = bytes.getChar();
+		} else {
+			for(int x = 0; x < length; x++)
+				buffer[x] = (char)(bytes.get() & 0xFF);
+		}
+	}
+
+	/**
+	 * Creates a sequence out of its name, flags, bases and properties
+	 * (a Map of names to values, which may be null).
+	 */
+	static Sequence createSequence(String name, int flags, char[] buffer, int length, Map properties) throws SequenceException {
+		Sequence seq;
+
+		if((flags & FLAG_BASE_SEQUENCE) != 0)
+			seq = new BaseSequence(name, new String(buffer, 0, length));
+		else
+			seq = new Sequence(name, buffer, length);
+
+		boolean warning = ((flags & FLAG_WARNING) != 0);
+		if(seq.getWarningFlag() != warning)
+			seq.setWarningFlag(warning);
+
+		if(properties != null) {
+			Iterator i = properties.keySet().iterator();
+			while(i.hasNext()) {
+				String prop = (String) i.next();
+				seq.setProperty(prop, properties.get(prop));
+			}
+		}
+
+		return seq;
+	}
+
+	/**
+	 * Reads everything except the bases out of a binary file: its header,
+	 * strings, records, properties and character sets. BinaryJournal uses
+	 * this to check that a journal belongs to a file.
+	 */
+	static Contents readIndex(File file) throws IOException, FormatException {
+		InputStream input = CompressedStreams.openInput(file);
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+
+			byte[] bytes = new byte[HEADER_SIZE];
+			in.readFully(bytes);
+
+			Contents contents = new Contents();
+			contents.readHeader(ByteBuffer.wrap(bytes));
+
+			bytes = new byte[(int) contents.metadata_length];
+			in.readFully(bytes);
+			contents.readMetadata(ByteBuffer.wrap(bytes));
+
+			return contents;
+		} catch(EOFException e) {
+			throw new FormatException("The file '" + file + "' has been cut short.");
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Reads every sequence out of a binary file (replaying its journal),
+	 * without mapping the file into memory, so it can be replaced as soon
+	 * as we're done. BinaryJournal.compact() uses this to read back what
+	 * it saved.
+	 */
+	static Sequence[] readSequences(File file) throws IOException, SequenceException, FormatException {
+		FormatInput input = FormatInput.open(file);
+
+		try {
+			return BinaryJournal.replay(file, new BinaryFile().readStreamed(input, null));
+		} catch(DelayAbortedException e) {
+			// can't happen without a DelayCallback
+			throw new IOException("Reading '" + file + "' was cancelled.");
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Reads an uncompressed file by mapping it into memory. The
+	 * sequences are decoded in chunks of about MAPPED_CHUNK_SIZE bytes,
+	 * on as many threads as we have processors.
+	 */
+	private Contents readMapped(final File file, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			final FileChannel channel = raf.getChannel();
+
+			if(channel.size() < HEADER_SIZE)
+				throw new FormatException("The file '" + file + "' is too short to be a TaxonDNA binary file.");
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			final Contents contents = new Contents();
+			contents.readHeader(header);
+
+			if(HEADER_SIZE + contents.metadata_length + contents.bases_length > channel.size())
+				throw new FormatException("The file '" + file + "' has been cut short: it should be " + (HEADER_SIZE + contents.metadata_length + contents.bases_length) + " bytes long, but it's only " + channel.size() + " bytes long.");
+
+			contents.readMetadata(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, contents.metadata_length));
+
+			// cut the sequences up into chunks
+			final int[] chunks = contents.getChunks(MAPPED_CHUNK_SIZE);
+			final long bases_start = HEADER_SIZE + contents.metadata_length;
+
+			try {
+				WorkerPool.forEach(chunks.length - 1, new WorkerPool.Job() {
+					public void run(int index) throws Exception {
+						int first = chunks[index];
+						int last = chunks[index + 1];
+
+						long from = contents.offsets[first];
+						long to = contents.getEnd(last - 1);
+
+						MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, bases_start + from, to - from);
+						char[] buffer = new char[0];
+
+						for(int x = first; x < last; x++) {
+							int length = contents.lengths[x];
+							if(buffer.length < length)
+								buffer = new char[length];
+
+							decode(map, buffer, length, contents.flags[x]);
+							contents.createSequence(x, buffer, length);
+						}
+					}
+				}, delay);
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if(cause instanceof SequenceException)
+					throw (SequenceException) cause;
+				if(cause instanceof FormatException)
+					throw (FormatException) cause;
+				if(cause instanceof IOException)
+					throw (IOException) cause;
+
+				throw new IOException("Could not read '" + file + "': " + cause);
+			}
+
+			return contents;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a compressed file straight through, one sequence at a time.
+	 */
+	private Contents readStreamed(FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		DataInputStream in = new DataInputStream(input.getStream());
+		File file = input.getFile();
+
+		try {
+			byte[] bytes = new byte[HEADER_SIZE];
+			in.readFully(bytes);
+
+			Contents contents = new Contents();
+			contents.readHeader(ByteBuffer.wrap(bytes));
+
+			bytes = new byte[(int) contents.metadata_length];
+			in.readFully(bytes);
+			contents.readMetadata(ByteBuffer.wrap(bytes));
+			bytes = null;
+
+			byte[]		buffer_bytes = new byte[0];
+			char[]		buffer = new char[0];
+			int		count = contents.sequences.length;
+			for(int x = 0; x < count; x++) {
+				if(delay != null)
+					delay.delay(x, count);
+
+				int length = contents.lengths[x];
+				int size = (int) getSize(contents.flags[x], length);
+
+				if(buffer.length < length)
+					buffer = new char[length];
+				if(buffer_bytes.length < size)
+					buffer_bytes = new byte[size];
+
+				in.readFully(buffer_bytes, 0, size);
+				decode(ByteBuffer.wrap(buffer_bytes, 0, size), buffer, length, contents.flags[x]);
+				contents.createSequence(x, buffer, length);
+			}
+
+			return contents;
+		} catch(EOFException e) {
+			throw new FormatException("The file '" + file + "' has been cut short.");
+		}
+	}
+
+	/**
+	 * Tests the BinaryFile class: sequences, BaseSequences, their
+	 * properties and the character sets should all come back exactly as
+	 * they were written, compressed or not, and files which have been cut
+	 * short should be refused.
+	 */
+	public void test(TestController testMaster, DelayCallback delay) throws DelayAbortedException {
+		testMaster.begin("DNA.formats.BinaryFile");
+
+		BinaryFile bf = new BinaryFile();
+
+		Sequence[] sequences;
+		Map charsets = new Hashtable();
+		try {
+			sequences = getTestSequences();
+		} catch(SequenceException e) {
+			testMaster.beginTest("Create the test sequences");
+			testMaster.failed("I couldn't create the test sequences: " + e);
+			testMaster.done();
+			return;
+		}
+
+		Vector ranges = new Vector();
+		ranges.add(new FromToPair(1, 4));
+		ranges.add(new FromToPair(9, 12));
+		charsets.put("COI", ranges);
+		ranges = new Vector();
+		ranges.add(new FromToPair(5, 8));
+		charsets.put(":1", ranges);
+
+		File output = testMaster.tempfile();
+
+		testMaster.beginTest("Write out Sequences and BaseSequences with properties, then read them back in");
+			try {
+				write(output, sequences, null, charsets, delay);
+
+				if(!bf.mightBe(output))
+					testMaster.failed("I wrote a binary file to '" + output + "', but I don't recognize it as one");
+				else
+					checkSequences(testMaster, output, sequences, bf.readFile(output, delay));
+			} catch(IOException e) {
+				testMaster.failed("I wrote a binary file to '" + output + "', but I got an IOException: " + e);
+			} catch(SequenceException e) {
+				testMaster.failed("I wrote a binary file to '" + output + "', but I got a SequenceException: " + e);
+			} catch(FormatException e) {
+				testMaster.failed("I wrote a binary file to '" + output + "', but I got a FormatException: " + e);
+			}
+
+		testMaster.beginTest("Read the character sets back out of a binary file");
+			try {
+				final Map found = new Hashtable();
+
+				BinaryFile listening = new BinaryFile();
+				listening.addFormatListener(new FormatListener() {
+					public boolean eventOccured(FormatHandlerEvent evt) {
+						if(evt.getId() != FormatHandlerEvent.CHARACTER_SET_FOUND)
+							return false;
+
+						Vector v = (Vector) found.get(evt.name);
+						if(v == null) {
+							v = new Vector();
+							found.put(evt.name, v);
+						}
+						v.add(new FromToPair(evt.from, evt.to));
+						return true;
+					}
+				});
+				listening.readFile(output, delay);
+
+				if(describeCharsets(found).equals(describeCharsets(charsets)))
+					testMaster.succeeded();
+				else
+					testMaster.failed("I wrote the character sets " + describeCharsets(charsets) + " into '" + output + "', but I read back " + describeCharsets(found));
+			} catch(IOException e) {
+				testMaster.failed("I couldn't read the character sets out of '" + output + "': " + e);
+			} catch(SequenceException e) {
+				testMaster.failed("I couldn't read the character sets out of '" + output + "': " + e);
+			} catch(FormatException e) {
+				testMaster.failed("I couldn't read the character sets out of '" + output + "': " + e);
+			}
+
+		testMaster.beginTest("Write out a gzipped binary file, then read it back in");
+			File gzipped = new File(testMaster.tempfile().getPath() + ".gz");
+			try {
+				write(gzipped, sequences, null, charsets, delay);
+
+				byte[] magic = readBytes(gzipped, 2);
+				if((magic[0] & 0xFF) != 0x1F || (magic[1] & 0xFF) != 0x8B)
+					testMaster.failed("I wrote a binary file to '" + gzipped + "', but it wasn't gzipped");
+				else if(!bf.mightBe(gzipped))
+					testMaster.failed("I wrote a gzipped binary file to '" + gzipped + "', but I don't recognize it as one");
+				else
+					checkSequences(testMaster, gzipped, sequences, bf.readFile(gzipped, delay));
+			} catch(IOException e) {
+				testMaster.failed("I wrote a gzipped binary file to '" + gzipped + "', but I got an IOException: " + e);
+			} catch(SequenceException e) {
+				testMaster.failed("I wrote a gzipped binary file to '" + gzipped + "', but I got a SequenceException: " + e);
+			} catch(FormatException e) {
+				testMaster.failed("I wrote a gzipped binary file to '" + gzipped + "', but I got a FormatException: " + e);
+			} finally {
+				gzipped.delete();
+			}
+
+		testMaster.beginTest("Refuse to read a binary file whose header has been cut short");
+			testTruncated(testMaster, bf, output, MAGIC.length() + 4, delay);
+
+		testMaster.beginTest("Refuse to read a binary file whose bases have been cut short");
+			testTruncated(testMaster, bf, output, output.length() - 1, delay);
+
+		testMaster.beginTest("Stop cleanly when writing or reading a binary file is cancelled");
+			File cancelled = new File(output.getParentFile(), output.getName() + ".gz");
+			try {
+				CancellingDelay cancel = new CancellingDelay();
+				try {
+					write(cancelled, sequences, null, null, cancel);
+					testMaster.failed("I cancelled writing '" + cancelled + "', but it was written anyway");
+				} catch(DelayAbortedException e) {
+					if(cancel.getEnds() != 1)
+						testMaster.failed("I cancelled writing '" + cancelled + "', and the DelayCallback was end()ed " + cancel.getEnds() + " times");
+					else {
+						// the streamed (compressed) reader reports progress for every sequence
+						write(cancelled, sequences, null, null, delay);
+
+						cancel = new CancellingDelay();
+						try {
+							bf.readFile(cancelled, cancel);
+							testMaster.failed("I cancelled reading '" + cancelled + "', but it was read anyway");
+						} catch(DelayAbortedException e2) {
+							if(cancel.getEnds() != 1)
+								testMaster.failed("I cancelled reading '" + cancelled + "', and the DelayCallback was end()ed " + cancel.getEnds() + " times");
+							else
+								testMaster.succeeded();
+						}
+					}
+				}
+			} catch(IOException e) {
+				testMaster.failed("I got an IOException while cancelling '" + cancelled + "': " + e);
+			} catch(SequenceException e) {
+				testMaster.failed("I got a SequenceException while cancelling '" + cancelled + "': " + e);
+			} catch(FormatException e) {
+				testMaster.failed("I got a FormatException while cancelling '" + cancelled + "': " + e);
+			} finally {
+				cancelled.delete();
+			}
+
+		testMaster.beginTest("Recognize other files as being non-binary");
+			File notbinary = testMaster.tempfile();
+			try {
+				SequenceList list = new SequenceList();
+				list.add(sequences[0]);
+				list.add(sequences[1]);
+				new FastaFile().writeFile(notbinary, list, delay);
+
+				if(notbinary.canRead() && !bf.mightBe(notbinary))
+					testMaster.succeeded();
+				else
+					testMaster.failed(notbinary + " was incorrectly identified as a TaxonDNA binary file");
+			} catch(IOException e) {
+				testMaster.failed("I couldn't write a FASTA file to '" + notbinary + "': " + e);
+			}
+
+		testMaster.done();
+
+		BinaryJournal.test(testMaster, delay);
+	}
+
+	/**
+	 * Returns the sequences test() writes out: Sequences and BaseSequences,
+	 * with every kind of property we can store, and a warning flag.
+	 */
+	private static Sequence[] getTestSequences() throws SequenceException {
+		Sequence[] sequences = new Sequence[4];
+
+		sequences[0] = new Sequence("Aus bus 1", "ACGTRYKM--ACGT??");
+		sequences[0].setProperty("gene", "COI");
+		sequences[0].setProperty("length", new Integer(16));
+
+		sequences[1] = new Sequence("Aus bus 2", "----ACGTNNACGT--");
+		Vector positions = new Vector();
+		positions.add(new FromToPair(5, 8));
+		sequences[1].setProperty("position_1", positions);
+		sequences[1].setProperty("cancelled", new Object());
+		sequences[1].setWarningFlag(true);
+
+		sequences[2] = new BaseSequence("Cus dus", "0120?1-2");
+		sequences[2].setProperty("gene", "morphology");
+
+		sequences[3] = new BaseSequence("Eus fus (wide)", "0\u03B1\u03B21");
+
+		return sequences;
+	}
+
+	/**
+	 * Checks that the sequences we read out of 'file' are the ones we
+	 * wrote into it, and tells the TestController.
+	 */
+	private static void checkSequences(TestController testMaster, File file, Sequence[] expected, SequenceList list) {
+		if(list.count() != expected.length) {
+			testMaster.failed("I wrote " + expected.length + " sequences into '" + file + "', but I read back " + list.count());
+			return;
+		}
+
+		Iterator i = list.iterator();
+		for(int x = 0; x < expected.length; x++) {
+			String written = describe(expected[x]);
+			String read = describe((Sequence) i.next());
+
+			if(!written.equals(read)) {
+				testMaster.failed("I wrote sequence " + (x + 1) + " into '" + file + "' as " + written + ", but I read it back as " + read);
+				return;
+			}
+		}
+
+		testMaster.succeeded();
+	}
+
+	/**
+	 * Cuts 'file' down to 'length' bytes, and checks that we refuse to
+	 * read it with a FormatException.
+	 */
+	private static void testTruncated(TestController testMaster, BinaryFile bf, File file, long length, DelayCallback delay) throws DelayAbortedException {
+		File truncated = testMaster.tempfile();
+
+		try {
+			FileOutputStream out = new FileOutputStream(truncated);
+			try {
+				out.write(readBytes(file, (int) length));
+			} finally {
+				out.close();
+			}
+
+			bf.readFile(truncated, delay);
+			testMaster.failed("I cut '" + file + "' down to " + length + " bytes in '" + truncated + "', but I read it anyway");
+		} catch(FormatException e) {
+			testMaster.succeeded();
+		} catch(IOException e) {
+			testMaster.failed("I cut '" + file + "' down to " + length + " bytes in '" + truncated + "', but I got an IOException instead of a FormatException: " + e);
+		} catch(SequenceException e) {
+			testMaster.failed("I cut '" + file + "' down to " + length + " bytes in '" + truncated + "', but I got a SequenceException instead of a FormatException: " + e);
+		}
+	}
+
+	/** Returns the first 'length' bytes of a file. */
+	private static byte[] readBytes(File file, int length) throws IOException {
+		byte[] bytes = new byte[length];
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Describes everything about a sequence which we write into a binary
+	 * file (except RECORD_PROPERTY), so two sequences can be compared.
+	 */
+	static String describe(Sequence seq) {
+		StringBuffer buff = new StringBuffer();
+
+		buff.append(seq.getClass().getName() + " '" + seq.getFullName() + "' " + seq.getSequence());
+		if(seq.getWarningFlag())
+			buff.append(" (warning)");
+
+		Map props = getProperties(seq);
+		Vector names = new Vector(props.keySet());
+		Collections.sort(names);
+
+		for(int x = 0; x < names.size(); x++) {
+			String name = (String) names.get(x);
+			Object value = props.get(name);
+
+			if(getPropertyType(value) == PROPERTY_FLAG)
+				value = "(flag)";
+			buff.append(" " + name + "=" + value);
+		}
+
+		return buff.toString();
+	}
+
+	/**
+	 * A DelayCallback which cancels the first time it's asked to delay(),
+	 * end()ing itself first just as a ProgressDialog does, and counts how
+	 * often it's been end()ed. Ending a ProgressDialog twice hangs, so
+	 * test() checks that this is only ever end()ed once.
+	 */
+	static class CancellingDelay implements DelayCallback {
+		private int ends = 0;
+
+		public void begin() {}
+
+		public void end() {
+			ends++;
+		}
+
+		public void delay(int done, int total) throws DelayAbortedException {
+			end();
+			throw new DelayAbortedException("Cancelled by test()");
+		}
+
+		public void addWarning(String warning) {}
+
+		/** Returns the number of times we've been end()ed. */
+		public int getEnds() {
+			return ends;
+		}
+	}
+
+	/** Describes a Map of character sets (as taken by writeFile()), so two can be compared. */
+	private static String describeCharsets(Map charsets) {
+		Vector names = new Vector(charsets.keySet());
+		Collections.sort(names);
+
+		StringBuffer buff = new StringBuffer();
+		for(int x = 0; x < names.size(); x++) {
+			String name = (String) names.get(x);
+			buff.append(name + "=" + charsets.get(name) + " ");
+		}
+
+		return buff.toString().trim();
+	}
+
+	/**
+	 * Everything we've read out of a binary file so far.
+	 */
+	static class Contents {
+		long		metadata_length;
+		long		bases_length;
+		long		checksum;	// a CRC32 of the header and metadata
+		private CRC32	crc = new CRC32();
+
+		String[]	strings;
+
+		int[]		names;
+		int[]		flags;
+		int[]		lengths;
+		long[]		offsets;
+		Map[]		properties;	// the properties of each sequence, or null if it has none
+
+		String[]	charset_names;
+		int[]		charset_from;
+		int[]		charset_to;
+
+		Sequence[]	sequences;
+
+		/**
+		 * Checks the MAGIC and version, and reads the sizes of everything.
+		 */
+		void readHeader(ByteBuffer header) throws FormatException {
+			updateChecksum(header);
+
+			for(int x = 0; x < MAGIC.length(); x++) {
+				if(header.get() != MAGIC.charAt(x))
+					throw new FormatException("This is not a TaxonDNA binary file.");
+			}
+
+			int version = header.getInt();
+			if(version > VERSION || version < 1)
+				throw new FormatException("This file was written in version " + version + " of the TaxonDNA binary format, but I can only read versions up to " + VERSION + ". Please use a newer version of this program to open it.");
+
+			int count = header.getInt();
+			int string_count = header.getInt();
+			int charset_count = header.getInt();
+			metadata_length = header.getLong();
+			bases_length = header.getLong();
+
+			if(count < 0 || string_count < 0 || charset_count < 0 || metadata_length < 0 || bases_length < 0)
+				throw new FormatException("The header of this TaxonDNA binary file is corrupt.");
+
+			if(metadata_length > Integer.MAX_VALUE)
+				throw new FormatException("This TaxonDNA binary file has more metadata (" + metadata_length + " bytes) than I can read at once.");
+
+			strings = new String[string_count];
+
+			names = new int[count];
+			flags = new int[count];
+			lengths = new int[count];
+			offsets = new long[count];
+			properties = new Map[count];
+			sequences = new Sequence[count];
+
+			charset_names = new String[charset_count];
+			charset_from = new int[charset_count];
+			charset_to = new int[charset_count];
+		}
+
+		/**
+		 * Reads the string table, the records, the properties and
+		 * the character sets.
+		 */
+		void readMetadata(ByteBuffer metadata) throws FormatException {
+			updateChecksum(metadata);
+			checksum = crc.getValue();
+
+			try {
+				for(int x = 0; x < strings.length; x++)
+					strings[x] = readString(metadata);
+
+				int[] property_counts = new int[names.length];
+				for(int x = 0; x < names.length; x++) {
+					names[x] = metadata.getInt();
+					flags[x] = metadata.getInt();
+					lengths[x] = metadata.getInt();
+					offsets[x] = metadata.getLong();
+					property_counts[x] = metadata.getInt();
+
+					getString(names[x]);
+					if(lengths[x] < 0 || offsets[x] < 0 || getEnd(x) > bases_length)
+						throw new FormatException("The record for sequence " + (x + 1) + " is corrupt.");
+				}
+
+				for(int x = 0; x < names.length; x++) {
+					if(property_counts[x] == 0)
+						continue;
+
+					Hashtable props = new Hashtable();
+					for(int y = 0; y < property_counts[x]; y++) {
+						String name = getString(metadata.getInt());
+						props.put(name, readPropertyValue(metadata, strings));
+					}
+
+					properties[x] = props;
+				}
+
+				for(int x = 0; x < charset_names.length; x++) {
+					charset_names[x] = getString(metadata.getInt());
+					charset_from[x] = metadata.getInt();
+					charset_to[x] = metadata.getInt();
+				}
+			} catch(BufferUnderflowException e) {
+				throw new FormatException("The metadata in this TaxonDNA binary file has been cut short.");
+			} catch(RuntimeException e) {
+				// FromToPair complains with RuntimeExceptions
+				throw new FormatException("The metadata in this TaxonDNA binary file is corrupt: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Adds everything left in 'buffer' to our checksum, without
+		 * moving its position.
+		 */
+		private void updateChecksum(ByteBuffer buffer) {
+			ByteBuffer bytes = buffer.duplicate();
+			byte[] block = new byte[Math.min(bytes.remaining(), 64 * 1024)];
+
+			while(bytes.hasRemaining()) {
+				int length = Math.min(block.length, bytes.remaining());
+				bytes.get(block, 0, length);
+				crc.update(block, 0, length);
+			}
+		}
+
+		String getString(int index) throws FormatException {
+			if(index < 0 || index >= strings.length)
+				throw new FormatException("This TaxonDNA binary file refers to string " + index + ", but there are only " + strings.length + " strings in it.");
+			return strings[index];
+		}
+
+		/** Returns the offset of the byte just after sequence 'x'. */
+		long getEnd(int x) {
+			return offsets[x] + getSize(flags[x], lengths[x]);
+		}
+
+		/**
+		 * Returns the character sets, as a Map of names to Vectors of
+		 * FromToPairs (which is what BinaryFile.writeFile() takes).
+		 */
+		Map getCharsets() {
+			Hashtable charsets = new Hashtable();
+
+			for(int x = 0; x < charset_names.length; x++) {
+				Vector v = (Vector) charsets.get(charset_names[x]);
+				if(v == null) {
+					v = new Vector();
+					charsets.put(charset_names[x], v);
+				}
+
+				v.add(new FromToPair(charset_from[x], charset_to[x]));
+			}
+
+			return charsets;
+		}
+
+		/**
+		 * Splits the sequences into runs of (about) 'chunk_size' bytes
+		 * of bases.
+		 *
+		 * @return the index of the first sequence of each chunk, followed
+		 * 	by the number of sequences.
+		 */
+		int[] getChunks(long chunk_size) {
+			int[] chunks = new int[sequences.length + 1];
+			int count = 0;
+
+			long chunk_start = -1;
+			for(int x = 0; x < sequences.length; x++) {
+				if(chunk_start == -1 || getEnd(x) - chunk_start > chunk_size) {
+					chunks[count++] = x;
+					chunk_start = offsets[x];
+				}
+			}
+			chunks[count++] = sequences.length;
+
+			int[] results = new int[count];
+			System.arraycopy(chunks, 0, results, 0, count);
+			return results;
+		}
+
+		/**
+		 * Creates sequence 'x' out of its bases (in 'buffer') and
+		 * its record.
+		 */
+		void createSequence(int x, char[] buffer, int length) throws SequenceException {
+			sequences[x] = BinaryFile.createSequence(strings[names[x]], flags[x], buffer, length, properties[x]);
+			properties[x] = null;
+		}
+	}
+
+	/**
+	 * Collects strings for the string table, giving each distinct
+	 * string an index.
+	 */
+	static class StringTable {
+		private Vector		strings = new Vector();
+		private Hashtable	indices = new Hashtable();
+
+		public int add(String str) {
+			Integer index = (Integer) indices.get(str);
+
+			if(index == null) {
+				index = new Integer(strings.size());
+				strings.add(str);
+				indices.put(str, index);
+			}
+
+			return index.intValue();
+		}
+
+		public int count() {
+			return strings.size();
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			for(int x = 0; x < strings.size(); x++)
+				writeString(out, (String) strings.get(x));
+		}
+	}
+
+	/**
+	 * A Writer which writes every character as a single byte (in
+	 * ISO-8859-1) through a small buffer. We use it to write bases
+	 * straight out of a Sequence's storage (with Sequence.writeSequence()).
+	 */
+	static class BaseWriter extends Writer {
+		private OutputStream	out;
+		private byte[]		buffer = new byte[64 * 1024];
+		private int		count = 0;
+
+		public BaseWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(char[] chars, int off, int len) throws IOException {
+			for(int x = off; x < off + len; x++) {
+				if(count == buffer.length)
+					flush();
+				buffer[count++] = (byte) chars[x];
+			}
+		}
+
+		public void write(String str) throws IOException {
+			for(int x = 0; x < str.length(); x++) {
+				if(count == buffer.length)
+					flush();
+				buffer[count++] = (byte) str.charAt(x);
+			}
+		}
+
+		public void flush() throws IOException {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,1032 @@
+/**
+ * A BinaryJournal lets you save changes to a TaxonDNA binary file (see
+ * BinaryFile) without rewriting the whole thing. Every time you save,
+ * update() works out what's changed since the last save (which sequences
+ * were added, deleted, renamed, edited or reordered, and which of their
+ * properties changed) and appends just that to a journal file next to
+ * the binary file ("dataset.tdna.journal"). BinaryFile replays the
+ * journal whenever it reads the binary file, so nobody else needs to
+ * know it's there.
+ *
+ * Once the journal gets large compared to the file itself (see
+ * needsCompaction()), compact() folds it back in by writing out a new
+ * binary file and throwing the journal away. This can be done in the
+ * background (compactInBackground()), since it only uses what we saved
+ * last time.
+ *
+ * The journal starts with a header identifying the binary file it belongs
+ * to (its size, and a checksum of its header and metadata); a journal
+ * which doesn't match its binary file is ignored. After that, it's a
+ * series of blocks, one per save: each block is its length, the changes
+ * themselves, and a CRC32 of the changes. If we crash halfway through
+ * writing a block, it won't check out, and we'll stop reading there; the
+ * next save overwrites it.
+ *
+ * Sequences are identified by record numbers: sequences in the binary
+ * file are numbered by their position in it, and sequences added through
+ * the journal are numbered after that. Every sequence BinaryFile reads has
+ * its record number in its BinaryFile.RECORD_PROPERTY, which is how open()
+ * works out which sequence is which.
+ *
+ * @author Gaurav Vaidya, gaurav@ggvaidya.com
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.DNA.formats;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+import com.ggvaidya.TaxonDNA.Common.*;
+import com.ggvaidya.TaxonDNA.DNA.*;
+
+public class BinaryJournal {
+	/** Every journal starts with these (ASCII) characters. */
+	public static final String	MAGIC =		"TaxonDNA journal\n";
+	/** The version of the journal format we write (and the newest we can read). */
+	public static final int		VERSION =	1;
+
+	/** The journal is compacted once it's more than 1/COMPACTION_RATIO the size of the binary file. */
+	public static final int		COMPACTION_RATIO =	4;
+
+	/** The size of the header, in bytes. */
+	private static final int	HEADER_SIZE =	17 + 4 + 8 * 2;
+
+	// operations
+	private static final byte	OP_ADD =		1;	// id, then a whole sequence
+	private static final byte	OP_REPLACE =		2;	// id, then a whole sequence
+	private static final byte	OP_DELETE =		3;	// id
+	private static final byte	OP_RENAME =		4;	// id, name
+	private static final byte	OP_SET_PROPERTY =	5;	// id, name, value
+	private static final byte	OP_REMOVE_PROPERTY =	6;	// id, name
+	private static final byte	OP_ORDER =		7;	// count, then every id in order
+
+	private File		file;			// the binary file
+	private File		journal_file;		// its journal
+	private Map		charsets;		// the binary file's character sets
+
+	private long		base_length;		// the binary file's size and checksum,
+	private long		base_checksum;		// which the journal's header identifies it by
+	private long		journal_length = 0;	// the length of the valid part of the journal (0 if it has no header yet)
+
+	private LinkedHashMap	records;		// Integer(id) -> Record, in order, as of the last save
+	private int		next_id;		// the id the next new sequence will get
+	private IOException	compaction_failure = null;	// why the last compactInBackground() failed, if it did
+
+	/**
+	 * Everything we know about one sequence as of the last save.
+	 */
+	private static class Record {
+		int		id;
+		String		name;
+		int		flags;
+		Map		properties;	// name -> value
+		Map		signatures;	// name -> byte[], the value as written by BinaryFile.writePropertyValue()
+
+		Sequence	seq;		// the sequence we saved it from (null if we haven't seen it yet)
+		Object		uuid;		// its UUID when we saved it
+
+		Record(int id, String name, int flags, Map properties) {
+			this.id = id;
+			this.name = name;
+			this.flags = flags;
+			this.properties = (properties == null) ? new Hashtable() : properties;
+		}
+
+		/** Returns the signatures of our properties, working them out if necessary. */
+		Map getSignatures() throws IOException {
+			if(signatures == null)
+				signatures = BinaryJournal.getSignatures(properties);
+			return signatures;
+		}
+	}
+
+	/**
+	 * Everything we found in a journal.
+	 */
+	private static class Replay {
+		LinkedHashMap	records = new LinkedHashMap();	// Integer(id) -> Record
+		int		next_id;
+		long		length = 0;	// the length of the valid part of the journal (0 if it doesn't apply)
+	}
+
+	private BinaryJournal(File file) {
+		this.file = file;
+		this.journal_file = getJournalFile(file);
+	}
+
+	/** Returns the journal file kept for a binary file. */
+	public static File getJournalFile(File file) {
+		return new File(file.getPath() + ".journal");
+	}
+
+	/** Returns the binary file this journal belongs to. */
+	public File getFile() {
+		return file;
+	}
+
+//
+//	1.	CREATING AND OPENING JOURNALS.
+//
+	/**
+	 * Writes some sequences into a new binary file (throwing away any
+	 * journal it used to have), and returns a journal to save later
+	 * changes to them into.
+	 *
+	 * @param properties the properties to write for each sequence (see
+	 * 	BinaryFile.getProperties()), instead of its own. This array
+	 * 	(or any of its elements) may be null. update() must be given
+	 * 	properties in the same way.
+	 * @param charsets the character sets to write (see BinaryFile.writeFile()),
+	 * 	or null.
+	 */
+	public static BinaryJournal create(File file, Sequence[] sequences, Map[] properties, Map charsets, DelayCallback delay) throws IOException, DelayAbortedException {
+		BinaryJournal journal = new BinaryJournal(file);
+
+		BinaryFile.write(file, sequences, properties, charsets, delay);
+		journal.journal_file.delete();
+
+		Record[] saved = new Record[sequences.length];
+		for(int x = 0; x < sequences.length; x++) {
+			Sequence seq = sequences[x];
+			Map props = (properties == null || properties[x] == null) ? BinaryFile.getProperties(seq) : properties[x];
+
+			saved[x] = new Record(x, seq.getFullName(), BinaryFile.getFlags(seq), props);
+			saved[x].seq = seq;
+			saved[x].uuid = seq.getUUID();
+		}
+
+		try {
+			journal.reset(saved);
+		} catch(FormatException e) {
+			throw new IOException("The file '" + file + "' I've just written can't be read: " + e.getMessage());
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Opens the journal for a binary file, which has already been read
+	 * into 'sequences'. These are matched up to the records in the file
+	 * through their BinaryFile.RECORD_PROPERTY; any records which aren't
+	 * in 'sequences' will be deleted the next time you update().
+	 *
+	 * We assume that the bases of 'sequences' haven't been changed since
+	 * they were read; their names and properties can be anything, and will
+	 * be saved the next time you update().
+	 */
+	public static BinaryJournal open(File file, Sequence[] sequences) throws IOException, FormatException {
+		BinaryJournal journal = new BinaryJournal(file);
+		BinaryFile.Contents contents = BinaryFile.readIndex(file);
+
+		journal.base_length = file.length();
+		journal.base_checksum = contents.checksum;
+		journal.charsets = contents.getCharsets();
+
+		Replay replay;
+		try {
+			replay = replay(journal.journal_file, contents, file.length(), false);
+		} catch(SequenceException e) {
+			// we don't create any sequences when we're not loading them
+			throw new FormatException("The journal for '" + file + "' is corrupt: " + e.getMessage());
+		}
+
+		journal.records = replay.records;
+		journal.next_id = replay.next_id;
+		journal.journal_length = replay.length;
+
+		for(int x = 0; x < sequences.length; x++) {
+			Object id = sequences[x].getProperty(BinaryFile.RECORD_PROPERTY);
+			if(id == null)
+				continue;	// it's not from this file: we'll add it when we update()
+
+			Record r = (Record) journal.records.get(id);
+			if(r == null || r.seq != null)
+				continue;	// no such record (or it's already been claimed)
+
+			r.seq = sequences[x];
+			r.uuid = sequences[x].getUUID();
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Replays the journal for a binary file over the sequences we've just
+	 * read out of it. Every sequence we return has its RECORD_PROPERTY set.
+	 */
+	static Sequence[] replay(File file, BinaryFile.Contents contents) throws IOException, SequenceException, FormatException {
+		Replay replay = replay(getJournalFile(file), contents, file.length(), true);
+
+		Sequence[] sequences = new Sequence[replay.records.size()];
+		int count = 0;
+
+		Iterator i = replay.records.values().iterator();
+		while(i.hasNext()) {
+			Record r = (Record) i.next();
+
+			r.seq.setProperty(BinaryFile.RECORD_PROPERTY, new Integer(r.id));
+			sequences[count++] = r.seq;
+		}
+
+		return sequences;
+	}
+
+	/**
+	 * Reads a journal, and applies it to the contents of its binary file.
+	 * If 'load' is set, the Records we return have their Sequences (out
+	 * of 'contents', or created from the journal); otherwise, we only keep
+	 * track of their names, flags and properties, and skip over the bases.
+	 */
+	private static Replay replay(File journal_file, BinaryFile.Contents contents, long base_length, boolean load) throws IOException, SequenceException, FormatException {
+		Replay replay = new Replay();
+
+		int count = contents.names.length;
+		for(int x = 0; x < count; x++) {
+			Record r = new Record(x, contents.strings[contents.names[x]], contents.flags[x], load ? null : contents.properties[x]);
+			if(load)
+				r.seq = contents.sequences[x];
+
+			replay.records.put(new Integer(x), r);
+		}
+		replay.next_id = count;
+
+		if(!journal_file.exists())
+			return replay;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal_file)));
+
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			in.readFully(header);
+
+			ByteBuffer buff = ByteBuffer.wrap(header);
+			for(int x = 0; x < MAGIC.length(); x++) {
+				if(buff.get() != MAGIC.charAt(x))
+					return replay;		// not a journal
+			}
+
+			int version = buff.getInt();
+			if(version > VERSION || version < 1)
+				throw new FormatException("The journal '" + journal_file + "' was written in version " + version + " of the journal format, but I can only read versions up to " + VERSION + ". Please use a newer version of this program to open it.");
+
+			if(buff.getLong() != base_length || buff.getLong() != contents.checksum)
+				return replay;		// it belongs to an older version of the binary file
+
+			replay.length = HEADER_SIZE;
+
+			CRC32 crc = new CRC32();
+			char[] buffer = new char[0];
+			while(true) {
+				int length = in.readInt();
+				if(length < 0 || length > journal_file.length())
+					break;
+
+				byte[] block = new byte[length];
+				in.readFully(block);
+
+				crc.reset();
+				crc.update(block, 0, length);
+				if(in.readLong() != crc.getValue())
+					break;
+
+				buffer = applyBlock(replay, ByteBuffer.wrap(block), buffer, load);
+				replay.length += 4 + length + 8;
+			}
+		} catch(EOFException e) {
+			// a block which was cut short: everything before it is fine
+		} finally {
+			in.close();
+		}
+
+		return replay;
+	}
+
+	/**
+	 * Applies the changes in one block of the journal.
+	 *
+	 * @return the buffer we used to decode bases (so the next block can reuse it).
+	 */
+	private static char[] applyBlock(Replay replay, ByteBuffer block, char[] buffer, boolean load) throws SequenceException, FormatException {
+		try {
+			while(block.hasRemaining()) {
+				byte op = block.get();
+
+				if(op == OP_ORDER) {
+					int count = block.getInt();
+
+					LinkedHashMap records = new LinkedHashMap();
+					for(int x = 0; x < count; x++) {
+						Integer id = new Integer(block.getInt());
+						Object r = replay.records.get(id);
+
+						if(r != null)
+							records.put(id, r);
+					}
+					records.putAll(replay.records);		// just in case we missed any out
+
+					replay.records = records;
+					continue;
+				}
+
+				int id = block.getInt();
+				Integer key = new Integer(id);
+				Record r = (Record) replay.records.get(key);
+
+				if(op == OP_ADD || op == OP_REPLACE) {
+					String name = BinaryFile.readString(block);
+					int flags = block.getInt();
+					int length = block.getInt();
+
+					int size = (int) BinaryFile.getSize(flags, length);
+					if(length < 0 || size > block.remaining())
+						throw new FormatException("A sequence in this journal is " + length + " characters long, but there are only " + block.remaining() + " bytes left.");
+
+					Sequence seq = null;
+					if(load) {
+						if(buffer.length < length)
+							buffer = new char[length];
+						BinaryFile.decode(block, buffer, length, flags);
+					} else
+						block.position(block.position() + size);
+
+					int count = block.getInt();
+					Hashtable props = new Hashtable();
+					for(int x = 0; x < count; x++) {
+						String prop = BinaryFile.readString(block);
+						props.put(prop, BinaryFile.readPropertyValue(block, null));
+					}
+
+					if(load)
+						seq = BinaryFile.createSequence(name, flags, buffer, length, props);
+
+					Record added = new Record(id, name, flags, load ? null : props);
+					added.seq = seq;
+
+					// replacements keep their place; additions go at the end
+					replay.records.put(key, added);
+					if(id >= replay.next_id)
+						replay.next_id = id + 1;
+					continue;
+				}
+
+				if(r == null)
+					throw new FormatException("This journal refers to record " + id + ", which doesn't exist.");
+
+				switch(op) {
+					case OP_DELETE:
+						replay.records.remove(key);
+						break;
+
+					case OP_RENAME:
+						r.name = BinaryFile.readString(block);
+						if(r.seq != null)
+							r.seq.changeName(r.name);
+						break;
+
+					case OP_SET_PROPERTY:
+						String prop = BinaryFile.readString(block);
+						Object value = BinaryFile.readPropertyValue(block, null);
+
+						if(r.seq != null)
+							r.seq.setProperty(prop, value);
+						else
+							r.properties.put(prop, value);
+						break;
+
+					case OP_REMOVE_PROPERTY:
+						prop = BinaryFile.readString(block);
+
+						if(r.seq != null)
+							r.seq.setProperty(prop, null);
+						else
+							r.properties.remove(prop);
+						break;
+
+					default:
+						throw new FormatException("This journal contains an unknown operation (" + op + ").");
+				}
+			}
+		} catch(BufferUnderflowException e) {
+			throw new FormatException("This journal contains a block which has been cut short.");
+		} catch(RuntimeException e) {
+			// FromToPair complains with RuntimeExceptions
+			throw new FormatException("This journal is corrupt: " + e.getMessage());
+		}
+
+		return buffer;
+	}
+
+//
+//	2.	SAVING CHANGES.
+//
+	/**
+	 * Saves the current state of the dataset: whatever's changed since we
+	 * last saved (or opened the file) is appended to the journal. If
+	 * nothing's changed, nothing is written.
+	 *
+	 * Sequences are tracked by identity: a sequence we saved last time is
+	 * the same record this time, even if it's been renamed. If its UUID has
+	 * changed (i.e. its bases have been changed), we save it all over again.
+	 *
+	 * @param properties the properties to save for each sequence, as for
+	 * 	create(). This array (or any of its elements) may be null.
+	 */
+	public synchronized void update(Sequence[] sequences, Map[] properties) throws IOException {
+		ByteArrayOutputStream	bytes = new ByteArrayOutputStream();
+		DataOutputStream	out = new DataOutputStream(bytes);
+		BinaryFile.BaseWriter	writer = new BinaryFile.BaseWriter(out);
+
+		IdentityHashMap		by_sequence = new IdentityHashMap();
+		Iterator i = records.values().iterator();
+		while(i.hasNext()) {
+			Record r = (Record) i.next();
+			if(r.seq != null)
+				by_sequence.put(r.seq, r);
+		}
+
+		LinkedHashMap		new_records = new LinkedHashMap();
+		Vector			expected_order = new Vector();	// the order replay() will end up with if we don't say otherwise
+		Vector			added = new Vector();
+
+		for(int x = 0; x < sequences.length; x++) {
+			Sequence seq = sequences[x];
+			Map props = (properties == null || properties[x] == null) ? BinaryFile.getProperties(seq) : properties[x];
+
+			Record old = (Record) by_sequence.remove(seq);
+			Record r;
+
+			if(old == null) {
+				r = new Record(next_id++, seq.getFullName(), BinaryFile.getFlags(seq), props);
+				writeSequence(out, writer, OP_ADD, r, seq);
+				added.add(new Integer(r.id));
+			} else {
+				r = new Record(old.id, seq.getFullName(), BinaryFile.getFlags(seq), props);
+
+				if(old.uuid != seq.getUUID() || old.flags != r.flags) {
+					writeSequence(out, writer, OP_REPLACE, r, seq);
+				} else {
+					if(!old.name.equals(r.name)) {
+						out.writeByte(OP_RENAME);
+						out.writeInt(r.id);
+						BinaryFile.writeString(out, r.name);
+					}
+
+					writePropertyChanges(out, r.id, old.getSignatures(), r.getSignatures(), props);
+				}
+
+				expected_order.add(new Integer(r.id));
+			}
+
+			r.seq = seq;
+			r.uuid = seq.getUUID();
+			new_records.put(new Integer(r.id), r);
+		}
+
+		// anything we haven't seen has been deleted
+		i = records.values().iterator();
+		while(i.hasNext()) {
+			Record r = (Record) i.next();
+
+			if(r.seq == null || by_sequence.containsKey(r.seq)) {
+				out.writeByte(OP_DELETE);
+				out.writeInt(r.id);
+			}
+		}
+
+		// did anything move? (the expected order has to follow the
+		// old order, so we sort it that way first)
+		final HashMap old_positions = new HashMap();
+		int position = 0;
+		i = records.keySet().iterator();
+		while(i.hasNext())
+			old_positions.put(i.next(), new Integer(position++));
+
+		Collections.sort(expected_order, new Comparator() {
+			public int compare(Object a, Object b) {
+				return ((Integer) old_positions.get(a)).compareTo((Integer) old_positions.get(b));
+			}
+		});
+		expected_order.addAll(added);
+
+		if(!expected_order.equals(new Vector(new_records.keySet()))) {
+			out.writeByte(OP_ORDER);
+			out.writeInt(new_records.size());
+
+			i = new_records.keySet().iterator();
+			while(i.hasNext())
+				out.writeInt(((Integer) i.next()).intValue());
+		}
+
+		out.flush();
+		if(bytes.size() > 0)
+			appendBlock(bytes.toByteArray());
+
+		records = new_records;
+	}
+
+	/**
+	 * Writes an OP_ADD or OP_REPLACE for a sequence.
+	 */
+	private static void writeSequence(DataOutputStream out, BinaryFile.BaseWriter writer, byte op, Record r, Sequence seq) throws IOException {
+		out.writeByte(op);
+		out.writeInt(r.id);
+		BinaryFile.writeString(out, r.name);
+		out.writeInt(r.flags);
+		out.writeInt(BinaryFile.getLength(seq, r.flags));
+		BinaryFile.writeBases(out, writer, seq, r.flags);
+
+		Vector names = new Vector();
+		Iterator i = r.properties.keySet().iterator();
+		while(i.hasNext()) {
+			String name = (String) i.next();
+			if(BinaryFile.getPropertyType(r.properties.get(name)) != -1)
+				names.add(name);
+		}
+		Collections.sort(names);
+
+		out.writeInt(names.size());
+		for(int x = 0; x < names.size(); x++) {
+			String name = (String) names.get(x);
+
+			BinaryFile.writeString(out, name);
+			BinaryFile.writePropertyValue(out, r.properties.get(name), null);
+		}
+	}
+
+	/**
+	 * Writes an OP_SET_PROPERTY for every property which has been added or
+	 * changed, and an OP_REMOVE_PROPERTY for every one which has gone.
+	 */
+	private static void writePropertyChanges(DataOutputStream out, int id, Map old_signatures, Map new_signatures, Map properties) throws IOException {
+		Vector names = new Vector(new_signatures.keySet());
+		Collections.sort(names);
+
+		for(int x = 0; x < names.size(); x++) {
+			String name = (String) names.get(x);
+			byte[] old_value = (byte[]) old_signatures.get(name);
+
+			if(old_value == null || !Arrays.equals(old_value, (byte[]) new_signatures.get(name))) {
+				out.writeByte(OP_SET_PROPERTY);
+				out.writeInt(id);
+				BinaryFile.writeString(out, name);
+				BinaryFile.writePropertyValue(out, properties.get(name), null);
+			}
+		}
+
+		names = new Vector(old_signatures.keySet());
+		Collections.sort(names);
+
+		for(int x = 0; x < names.size(); x++) {
+			String name = (String) names.get(x);
+
+			if(!new_signatures.containsKey(name)) {
+				out.writeByte(OP_REMOVE_PROPERTY);
+				out.writeInt(id);
+				BinaryFile.writeString(out, name);
+			}
+		}
+	}
+
+	/**
+	 * Works out the signature of every property we can store: its value,
+	 * as written by BinaryFile.writePropertyValue(). Comparing these tells
+	 * us whether a property has changed, even if it's been changed in place.
+	 */
+	private static Map getSignatures(Map properties) throws IOException {
+		Hashtable results = new Hashtable();
+
+		Iterator i = properties.keySet().iterator();
+		while(i.hasNext()) {
+			String name = (String) i.next();
+			Object value = properties.get(name);
+
+			if(BinaryFile.getPropertyType(value) == -1)
+				continue;	// we don't store this
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			BinaryFile.writePropertyValue(out, value, null);
+			out.flush();
+
+			results.put(name, bytes.toByteArray());
+		}
+
+		return results;
+	}
+
+	/**
+	 * Appends a block to the journal (writing its header first, if it
+	 * doesn't have one yet), and makes sure it's on the disk.
+	 */
+	private void appendBlock(byte[] block) throws IOException {
+		ByteArrayOutputStream	bytes = new ByteArrayOutputStream();
+		DataOutputStream	out = new DataOutputStream(bytes);
+
+		if(journal_length == 0) {
+			out.writeBytes(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(base_length);
+			out.writeLong(base_checksum);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, block.length);
+
+		out.writeInt(block.length);
+		out.write(block);
+		out.writeLong(crc.getValue());
+		out.flush();
+
+		RandomAccessFile raf = new RandomAccessFile(journal_file, "rw");
+		try {
+			// throw away anything after the last good block
+			raf.setLength(journal_length);
+			raf.seek(journal_length);
+			raf.write(bytes.toByteArray());
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+
+		journal_length += bytes.size();
+	}
+
+//
+//	3.	COMPACTION.
+//
+	/** Returns the size of the journal, in bytes. */
+	public synchronized long getJournalLength() {
+		return journal_length;
+	}
+
+	/**
+	 * Returns true if the journal has grown large enough (compared to the
+	 * binary file) that it should be compacted.
+	 */
+	public synchronized boolean needsCompaction() {
+		return journal_length > 0 && journal_length > base_length / COMPACTION_RATIO;
+	}
+
+	/**
+	 * Folds the journal back into the binary file, by writing the dataset
+	 * as of the last update() into a new binary file, and then replacing
+	 * the old one (and its journal) with it. Records we haven't seen since
+	 * we opened the file are left out, just as the next update() would
+	 * have deleted them.
+	 *
+	 * The dataset as of the last update() is exactly what's in the binary
+	 * file and its journal, so that's what we read back and write out. We
+	 * never look at the sequences themselves, which might have been
+	 * changed since (on another thread, if we're compacting in the
+	 * background); those changes go into the next update(), as usual.
+	 *
+	 * If anything goes wrong, the old file and its journal are left alone.
+	 */
+	public synchronized void compact(DelayCallback delay) throws IOException, DelayAbortedException {
+		Hashtable saved = new Hashtable();		// Integer(id) -> Sequence, as we saved it
+		try {
+			Sequence[] sequences = BinaryFile.readSequences(file);
+			for(int x = 0; x < sequences.length; x++)
+				saved.put(sequences[x].getProperty(BinaryFile.RECORD_PROPERTY), sequences[x]);
+		} catch(SequenceException e) {
+			throw new IOException("The file '" + file + "' can't be read back for compaction: " + e.getMessage());
+		} catch(FormatException e) {
+			throw new IOException("The file '" + file + "' can't be read back for compaction: " + e.getMessage());
+		}
+
+		Vector kept = new Vector();
+		Vector sequences = new Vector();
+		Vector properties = new Vector();
+
+		Iterator i = records.values().iterator();
+		while(i.hasNext()) {
+			Record r = (Record) i.next();
+			if(r.seq == null)
+				continue;
+
+			Sequence seq = (Sequence) saved.get(new Integer(r.id));
+			if(seq == null)
+				throw new IOException("The file '" + file + "' and its journal don't contain record " + r.id + ", which I saved into them.");
+
+			kept.add(r);
+			sequences.add(seq);
+			properties.add(r.properties);
+		}
+		saved = null;
+
+		Sequence[] seqs = (Sequence[]) sequences.toArray(new Sequence[sequences.size()]);
+		Map[] props = (Map[]) properties.toArray(new Map[properties.size()]);
+
+		// the temporary file has the same extension, so it's
+		// compressed in the same way
+		File temp = new File(file.getAbsoluteFile().getParentFile(), "compacting-" + file.getName());
+		try {
+			BinaryFile.write(temp, seqs, props, charsets, delay);
+		} catch(IOException e) {
+			temp.delete();
+			throw e;
+		} catch(DelayAbortedException e) {
+			temp.delete();
+			throw e;
+		}
+
+		if(!temp.renameTo(file)) {
+			// some platforms won't rename over an existing file
+			file.delete();
+			if(!temp.renameTo(file))
+				throw new IOException("I couldn't replace '" + file + "' with the compacted file '" + temp + "'; your dataset is in '" + temp + "'.");
+		}
+
+		// the journal no longer matches the file, so it'll be ignored
+		// from here on; but we may as well get rid of it
+		journal_file.delete();
+
+		try {
+			reset((Record[]) kept.toArray(new Record[kept.size()]));
+		} catch(FormatException e) {
+			throw new IOException("The file '" + file + "' I've just written can't be read: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Compacts the journal on a background thread. If that fails, the
+	 * journal is left as it is, and we'll try again next time; the
+	 * failure is kept for getCompactionFailure() to report.
+	 */
+	public void compactInBackground() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				IOException failure = null;
+
+				try {
+					compact(null);
+				} catch(IOException e) {
+					failure = e;
+				} catch(Exception e) {
+					failure = new IOException("Compacting '" + file + "' failed: " + e);
+				}
+
+				// the journal is still there, so nothing's been lost,
+				// but somebody ought to know about it
+				synchronized(BinaryJournal.this) {
+					compaction_failure = failure;
+				}
+			}
+		}, "BinaryJournal compaction");
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns why the last compactInBackground() failed, or null if it
+	 * didn't (or hasn't finished yet). Each failure is only returned once.
+	 */
+	public synchronized IOException getCompactionFailure() {
+		IOException failure = compaction_failure;
+		compaction_failure = null;
+		return failure;
+	}
+
+	/**
+	 * Starts afresh after the binary file has been written out: the
+	 * journal is empty, and the records we wrote ('saved', in the order
+	 * we wrote them) are renumbered by their position.
+	 */
+	private void reset(Record[] saved) throws IOException, FormatException {
+		BinaryFile.Contents contents = BinaryFile.readIndex(file);
+
+		base_length = file.length();
+		base_checksum = contents.checksum;
+		charsets = contents.getCharsets();
+		journal_length = 0;
+
+		records = new LinkedHashMap();
+		for(int x = 0; x < saved.length; x++) {
+			saved[x].id = x;
+			records.put(new Integer(x), saved[x]);
+		}
+		next_id = saved.length;
+	}
+
+//
+//	4.	TESTING.
+//
+	/**
+	 * Tests BinaryJournal; BinaryFile.test() calls this. Changes should
+	 * come back when the binary file is read; a block which was cut short
+	 * should be ignored (and overwritten by the next update()), and so
+	 * should a journal which belongs to another version of its binary
+	 * file.
+	 */
+	static void test(TestController testMaster, DelayCallback delay) throws DelayAbortedException {
+		testMaster.begin("DNA.formats.BinaryJournal");
+
+		File file = testMaster.tempfile();
+		File journal_file = getJournalFile(file);
+
+		try {
+			testMaster.beginTest("Replay changes to a binary file out of its journal");
+				Sequence[] sequences = getTestSequences();
+				BinaryJournal journal = create(file, sequences, null, null, delay);
+
+				// rename, replace, change properties, reorder and add
+				sequences[0].changeName("Aus bus 3");
+				sequences[0].setProperty("gene", null);
+				sequences[1].changeSequence("ACGTTTAA");
+				sequences[2].setProperty("gene", "16S");
+
+				Sequence[] first = new Sequence[] { sequences[2], sequences[0], sequences[1], new Sequence("Eus fus", "AAAA") };
+				journal.update(first, null);
+				String[] first_saved = describe(first);
+
+				if(checkFile(testMaster, file, first_saved, delay))
+					testMaster.succeeded();
+
+			testMaster.beginTest("Delete sequences through the journal");
+				long first_length = journal.getJournalLength();
+
+				sequences[2].changeName("Cus dus 2");
+				Sequence[] second = new Sequence[] { sequences[2], sequences[1] };
+				journal.update(second, null);
+
+				if(checkFile(testMaster, file, describe(second), delay))
+					testMaster.succeeded();
+
+			testMaster.beginTest("Ignore a journal block which has been cut short, and overwrite it");
+				RandomAccessFile raf = new RandomAccessFile(journal_file, "rw");
+				try {
+					raf.setLength(journal.getJournalLength() - 1);
+				} finally {
+					raf.close();
+				}
+
+				if(checkFile(testMaster, file, first_saved, delay)) {
+					SequenceList list = new BinaryFile().readFile(file, delay);
+					Sequence[] reread = (Sequence[]) list.toArray(new Sequence[list.count()]);
+
+					journal = open(file, reread);
+					if(journal.getJournalLength() != first_length) {
+						testMaster.failed("The journal '" + journal_file + "' should be valid up to byte " + first_length + ", but I think it's valid up to byte " + journal.getJournalLength());
+					} else {
+						reread[0].changeName("Cus dus 3");
+						journal.update(reread, null);
+
+						if(checkFile(testMaster, file, describe(reread), delay))
+							testMaster.succeeded();
+					}
+				}
+
+			testMaster.beginTest("Ignore a journal which belongs to another version of its binary file");
+				// one name changed to another of the same length, so the
+				// binary file is the same size and only its checksum differs
+				long length = file.length();
+				Sequence[] replaced = getTestSequences();
+				replaced[0].changeName("Xus bus 1");
+				BinaryFile.write(file, replaced, null, null, delay);
+
+				if(file.length() != length)
+					testMaster.failed("I replaced '" + file + "' with a file of the same size, but it went from " + length + " to " + file.length() + " bytes");
+				else if(!journal_file.exists())
+					testMaster.failed("The journal '" + journal_file + "' should still be there");
+				else if(checkFile(testMaster, file, describe(replaced), delay))
+					testMaster.succeeded();
+
+			testMaster.beginTest("Compact a journal back into its binary file, leaving out unsaved changes");
+				sequences = getTestSequences();
+				journal = create(file, sequences, null, null, delay);
+
+				sequences[0].changeName("Aus bus 3");
+				sequences[2].changeSequence("AAGGACGT");
+				journal.update(sequences, null);
+				String[] saved = describe(sequences);
+
+				// this change hasn't been saved, so it mustn't be compacted
+				sequences[1].changeSequence("TTTTTTTT");
+				journal.compact(delay);
+
+				if(journal_file.exists())
+					testMaster.failed("I compacted '" + file + "', but its journal '" + journal_file + "' is still there");
+				else if(checkFile(testMaster, file, saved, delay)) {
+					// but it must be saved next time
+					journal.update(sequences, null);
+
+					if(checkFile(testMaster, file, describe(sequences), delay))
+						testMaster.succeeded();
+				}
+
+			testMaster.beginTest("Leave a binary file and its journal alone when compacting them is cancelled");
+				sequences = getTestSequences();
+				journal = create(file, sequences, null, null, delay);
+
+				sequences[0].changeName("Aus bus 3");
+				journal.update(sequences, null);
+				saved = describe(sequences);
+
+				long journal_length = journal_file.length();
+				File temp = new File(file.getAbsoluteFile().getParentFile(), "compacting-" + file.getName());
+				BinaryFile.CancellingDelay cancel = new BinaryFile.CancellingDelay();
+
+				try {
+					journal.compact(cancel);
+					testMaster.failed("I cancelled compacting '" + file + "', but it was compacted anyway");
+				} catch(DelayAbortedException e) {
+					if(cancel.getEnds() != 1)
+						testMaster.failed("I cancelled compacting '" + file + "', and the DelayCallback was end()ed " + cancel.getEnds() + " times");
+					else if(temp.exists())
+						testMaster.failed("I cancelled compacting '" + file + "', but the half-written '" + temp + "' is still there");
+					else if(journal_file.length() != journal_length)
+						testMaster.failed("I cancelled compacting '" + file + "', but its journal went from " + journal_length + " to " + journal_file.length() + " bytes");
+					else if(checkFile(testMaster, file, saved, delay)) {
+						// and it can still be compacted afterwards
+						journal.compact(delay);
+
+						if(journal_file.exists())
+							testMaster.failed("I compacted '" + file + "' after cancelling once, but its journal '" + journal_file + "' is still there");
+						else if(checkFile(testMaster, file, saved, delay))
+							testMaster.succeeded();
+					}
+				} finally {
+					temp.delete();
+				}
+
+		} catch(IOException e) {
+			testMaster.failed("I got an IOException while testing '" + file + "' and its journal: " + e);
+		} catch(SequenceException e) {
+			testMaster.failed("I got a SequenceException while testing '" + file + "' and its journal: " + e);
+		} catch(FormatException e) {
+			testMaster.failed("I got a FormatException while testing '" + file + "' and its journal: " + e);
+		} finally {
+			journal_file.delete();
+		}
+
+		testMaster.done();
+	}
+
+	/** Returns the sequences test() starts with. */
+	private static Sequence[] getTestSequences() throws SequenceException {
+		Sequence[] sequences = new Sequence[3];
+
+		sequences[0] = new Sequence("Aus bus 1", "ACGTACGT");
+		sequences[0].setProperty("gene", "COI");
+		sequences[1] = new Sequence("Aus bus 2", "ACGTTT--");
+		sequences[2] = new Sequence("Cus dus", "--GGACGT");
+
+		return sequences;
+	}
+
+	/** Describes some sequences (see BinaryFile.describe()), so they can be compared later. */
+	private static String[] describe(Sequence[] sequences) {
+		String[] results = new String[sequences.length];
+		for(int x = 0; x < sequences.length; x++)
+			results[x] = BinaryFile.describe(sequences[x]);
+		return results;
+	}
+
+	/**
+	 * Reads 'file' (and its journal), and checks that we get back the
+	 * sequences described in 'expected'. If we don't, we tell the
+	 * TestController, and return false.
+	 */
+	private static boolean checkFile(TestController testMaster, File file, String[] expected, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		SequenceList list = new BinaryFile().readFile(file, delay);
+
+		if(list.count() != expected.length) {
+			testMaster.failed("I expected " + expected.length + " sequences in '" + file + "', but I read back " + list.count());
+			return false;
+		}
+
+		Iterator i = list.iterator();
+		for(int x = 0; x < expected.length; x++) {
+			String read = BinaryFile.describe((Sequence) i.next());
+
+			if(!read.equals(expected[x])) {
+				testMaster.failed("I expected sequence " + (x + 1) + " in '" + file + "' to be " + expected[x] + ", but I read back " + read);
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
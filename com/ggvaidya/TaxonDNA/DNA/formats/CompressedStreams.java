@@ -0,0 +1,288 @@
+/**
+ * Opens files for FormatHandlers, transparently decompressing them if
+ * they've been compressed. Compressed input is recognised by its magic
+ * bytes (not its name), so "sequences.fas" works whether or not it's
+ * been gzipped; compressed output is chosen by the file's extension
+ * (".gz"). Every FormatHandler should open its files through here.
+ *
+ * Input streams keep track of how far into the file (as stored on disk,
+ * i.e. the compressed file) they've read, so handlers can report
+ * progress as Input.getProgress() no matter how well the file compressed.
+ *
+ * Only gzip can actually be read and written, since that's all Java
+ * provides on its own. bzip2 and zstd files are recognised, so that
+ * the user gets a sensible error instead of a screenful of rubbish.
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.DNA.formats;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+
+public class CompressedStreams {
+	/** The file isn't compressed. */
+	public static final int		NONE =		0;
+	/** The file is compressed with gzip. */
+	public static final int		GZIP =		1;
+	/** The file is compressed with bzip2 (which we can't read). */
+	public static final int		BZIP2 =		2;
+	/** The file is compressed with zstd (which we can't read). */
+	public static final int		ZSTD =		3;
+
+	/** The number of bytes we need to recognise any compression format. */
+	public static final int		MAGIC_LENGTH =	4;
+
+	/** The size of the buffers we read and write through. */
+	private static final int	BUFFER_SIZE =	64 * 1024;
+
+	/** The size of the buffer openBufferedWriter() writes through. */
+	public static final int		WRITE_BUFFER_SIZE =	256 * 1024;
+
+	/**
+	 * Works out how a file has been compressed from its first few bytes.
+	 *
+	 * @param header the start of the file.
+	 * @param length the number of bytes in 'header' which were actually read.
+	 * @return NONE, GZIP, BZIP2 or ZSTD.
+	 */
+	public static int getCompression(byte[] header, int length) {
+		if(length >= 2 && (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B)
+			return GZIP;
+
+		if(length >= 3 && header[0] == 'B' && header[1] == 'Z' && header[2] == 'h')
+			return BZIP2;
+
+		if(length >= 4 && (header[0] & 0xFF) == 0x28 && (header[1] & 0xFF) == 0xB5 && (header[2] & 0xFF) == 0x2F && (header[3] & 0xFF) == 0xFD)
+			return ZSTD;
+
+		return NONE;
+	}
+
+	/**
+	 * Works out how a file has been compressed, by reading its first few bytes.
+	 */
+	public static int getCompression(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] header = new byte[MAGIC_LENGTH];
+			int length = 0;
+			int read;
+			while(length < header.length && (read = in.read(header, length, header.length - length)) != -1)
+				length += read;
+
+			return getCompression(header, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Works out how a file should be compressed from its name.
+	 */
+	public static int getCompressionForName(File file) {
+		String name = file.getName().toLowerCase();
+
+		if(name.endsWith(".gz"))
+			return GZIP;
+		if(name.endsWith(".bz2"))
+			return BZIP2;
+		if(name.endsWith(".zst"))
+			return ZSTD;
+
+		return NONE;
+	}
+
+	/**
+	 * Opens a file for reading, decompressing it if necessary.
+	 *
+	 * @throws IOException if the file couldn't be opened, or was
+	 * 	compressed in a format we can't read.
+	 */
+	public static Input openInput(File file) throws IOException {
+		CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+		BufferedInputStream buffered = new BufferedInputStream(counter, BUFFER_SIZE);
+
+		try {
+			buffered.mark(MAGIC_LENGTH);
+			byte[] header = new byte[MAGIC_LENGTH];
+			int length = 0;
+			int read;
+			while(length < header.length && (read = buffered.read(header, length, header.length - length)) != -1)
+				length += read;
+			buffered.reset();
+
+			InputStream in;
+			int compression = getCompression(header, length);
+			switch(compression) {
+				case GZIP:
+					in = new GZIPInputStream(buffered, BUFFER_SIZE);
+					break;
+				case BZIP2:
+					throw new IOException("'" + file + "' has been compressed with bzip2, which I can't read. Please decompress it, or compress it with gzip instead.");
+				case ZSTD:
+					throw new IOException("'" + file + "' has been compressed with zstd, which I can't read. Please decompress it, or compress it with gzip instead.");
+				default:
+					in = buffered;
+			}
+
+			return new Input(in, counter, file.length(), compression);
+		} catch(IOException e) {
+			buffered.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a file for reading as text (in the default character set),
+	 * decompressing it if necessary.
+	 */
+	public static BufferedReader openReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(openInput(file)), BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a file for writing. If its name ends in ".gz", whatever you
+	 * write will be gzipped.
+	 *
+	 * @throws IOException if the file couldn't be created, or its name asks
+	 * 	for a compression format we can't write.
+	 */
+	public static OutputStream openOutput(File file) throws IOException {
+		int compression = getCompressionForName(file);
+
+		if(compression == BZIP2 || compression == ZSTD)
+			throw new IOException("I can't write compressed files other than gzip ('.gz') files. Please choose a different name for '" + file + "'.");
+
+		FileOutputStream out = new FileOutputStream(file);
+		if(compression == GZIP)
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+
+		return out;
+	}
+
+	/**
+	 * Opens a file for writing as text (in the default character set),
+	 * compressing it if its name ends in ".gz". Uncompressed files are
+	 * written straight into the file's channel.
+	 */
+	public static Writer openWriter(File file) throws IOException {
+		OutputStream out = openOutput(file);
+
+		if(out instanceof FileOutputStream)
+			return Channels.newWriter(((FileOutputStream) out).getChannel(), Charset.defaultCharset().newEncoder(), -1);
+
+		return new OutputStreamWriter(out);
+	}
+
+	/**
+	 * Opens a file for writing as text, just like openWriter(), but
+	 * through a large buffer (WRITE_BUFFER_SIZE characters). This is
+	 * what the writers use: sequences are written straight into this
+	 * buffer (see Sequence.writeSequence()), which is only flushed into
+	 * the file (or the compressor) once it's full.
+	 */
+	public static BufferedWriter openBufferedWriter(File file) throws IOException {
+		return new BufferedWriter(openWriter(file), WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * An InputStream which knows how far into the underlying file it is.
+	 */
+	public static class Input extends FilterInputStream {
+		private CountingInputStream	counter;
+		private long			size;
+		private int			compression;
+
+		private Input(InputStream in, CountingInputStream counter, long size, int compression) {
+			super(in);
+
+			this.counter = counter;
+			this.size = size;
+			this.compression = compression;
+		}
+
+		/** Returns how the file was compressed (NONE or GZIP). */
+		public int getCompression() {
+			return compression;
+		}
+
+		/** Returns the number of bytes read from the file on disk so far. */
+		public long getPosition() {
+			return counter.getCount();
+		}
+
+		/** Returns the size of the file on disk. */
+		public long getSize() {
+			return size;
+		}
+
+		/** Returns how much of the file we've read so far, in tenths of a percent. */
+		public int getProgress() {
+			if(size <= 0)
+				return 0;
+
+			long progress = counter.getCount() * 1000 / size;
+			return (int) Math.min(progress, 1000);
+		}
+	}
+
+	/**
+	 * Counts the bytes which pass through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1)
+				count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0)
+				count += read;
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -46,14 +46,22 @@
 package com.ggvaidya.TaxonDNA.DNA.formats;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import com.ggvaidya.TaxonDNA.Common.*;
 import com.ggvaidya.TaxonDNA.DNA.*;
 
 public class FastaFile extends BaseFormatHandler implements Testable {
-	private int count_sequences = 0;
+	/** The size of the blocks we read FASTA files in. */
+	private static final int READ_BUFFER_SIZE = 256 * 1024;
+	/** Files at least this large are memory-mapped and parsed in parallel. */
+	private static final long MAPPED_THRESHOLD = 64L * 1024 * 1024;
+	/** How large (roughly) each chunk of a memory-mapped file should be. */
+	private static final long MAPPED_CHUNK_SIZE = 32L * 1024 * 1024;
 	
 	/** Creates a FastaFile reader/writer. */
 	public FastaFile() {}
@@ -75,76 +83,69 @@ public class FastaFile extends BaseFormatHandler implements Testable {
 
 	/**
 	 * Returns true if it seems likely (heck, possible)
-	 * the file is a FASTA file. To be strict, we'll
-	 * parse the entire file, counting as we go. This
-	 * also saves us a count later on, and it seems
-	 * unlikely that we'll ever run readFile() without
-	 * calling this first.
-	 *
-	 * Note: in the interests of saving time, we will
-	 * NOT test past the 2nd '&gt;'. We'll just count
-	 * the number of '&gt;' we get after this point.
-	 * This should be "good enough".
+	 * the file is a FASTA file.
 	 *
+	 * @see #mightBe(FormatInput)
 	 */
 	public boolean mightBe(File file) {
-		BufferedReader reader = null;
-		
-		count_sequences = 0;		// mightBe() counts the number of sequences as it goes
-		
 		try {
-			reader = new BufferedReader(new FileReader(file));
+			FormatInput input = FormatInput.open(file);
+			try {
+				return mightBe(input);
+			} finally {
+				input.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
 
-			//Pattern 	pSequence =	Pattern.compile("^[A-Za-z\\-\\?\\[\\]\\(\\) ]*$");
-			Pattern 	pSequence =	Pattern.compile("^.*$");
-			Pattern 	pBlank	=	Pattern.compile("^\\s*$");
-			Pattern 	pComment =	Pattern.compile("^\\s*#.*$");
-			Pattern		pName =		Pattern.compile("^>\\s*(.*)\\s*$");
-			Pattern		pNameNotEmpty =	Pattern.compile("^>\\s*(.+)\\s*$");
+	/**
+	 * Returns true if it seems likely (heck, possible)
+	 * the file is a FASTA file. We check the lines in
+	 * the header up to the 3rd '&gt;'; if all's well so
+	 * far, we stop and say yes.
+	 */
+	public boolean mightBe(FormatInput input) {
+		int count_sequences = 0;
 
-			boolean		dontTest =	false;
-	
-			while(reader.ready()) {
-				String line = reader.readLine().trim();
+		//Pattern 	pSequence =	Pattern.compile("^[A-Za-z\\-\\?\\[\\]\\(\\) ]*$");
+		Pattern 	pSequence =	Pattern.compile("^.*$");
+		Pattern 	pBlank	=	Pattern.compile("^\\s*$");
+		Pattern 	pComment =	Pattern.compile("^\\s*#.*$");
+		Pattern		pName =		Pattern.compile("^>\\s*(.*)\\s*$");
 
-				if(dontTest) {
-					// don't test the full para - just count '>'s
-					if(line.length() > 0 && line.charAt(0) == '>')
-						count_sequences++;
-					continue;
-				}
-			
-				if(pNameNotEmpty.matcher(line).matches()) {
-					// it matches a name "^>.......$", so let's say it *might* be
-					if(count_sequences > 2)
-						dontTest = true;	// turn off reg ex testing
-					count_sequences++;
-				} else if(pName.matcher(line).matches()) {
-					count_sequences++;
-				} else if(pName.matcher(line).matches()) {
-					return false;
-				} else if(pSequence.matcher(line).matches()) {
-					// it's a sequence bit
-				} else if(pComment.matcher(line).matches()) {
-					// comments we'll let pass
-				} else if(pBlank.matcher(line).matches()) {
-					// blank lines we'll let pass
-				} else {
-					// if it's not one of the above, something is wrong
-					return false;
-				}
-			}
+		// text files don't have NULs in them; binary files
+		// (such as BinaryFile's) almost always do
+		if(input.getHeader().indexOf('\0') != -1)
+			return false;
 
-			reader.close();
-			
-			if(count_sequences == 0)
+		String[] lines = input.getLines();
+		for(int x = 0; x < lines.length; x++) {
+			String line = lines[x].trim();
+
+			if(pName.matcher(line).matches()) {
+				count_sequences++;
+
+				// three names and nothing odd so far: good enough
+				if(count_sequences > 2)
+					return true;
+			} else if(pSequence.matcher(line).matches()) {
+				// it's a sequence bit
+			} else if(pComment.matcher(line).matches()) {
+				// comments we'll let pass
+			} else if(pBlank.matcher(line).matches()) {
+				// blank lines we'll let pass
+			} else {
+				// if it's not one of the above, something is wrong
 				return false;
-		
-			return true;
+			}
+		}
 			
-		} catch(IOException e) {
+		if(count_sequences == 0)
 			return false;
-		}
+		
+		return true;
 	}
 
 	/**
@@ -158,153 +159,440 @@ public class FastaFile extends BaseFormatHandler implements Testable {
 
 	/**
 	 * Appends the contents of a FASTA file to the specified SequenceList.
-	 * We run mightBe() internally, since it gives us the count anyways.
+	 *
+	 * Small (or compressed) files are streamed through a single
+	 * RecordParser. Uncompressed files of MAPPED_THRESHOLD bytes or more
+	 * (on a machine with more than one processor) are memory-mapped instead, cut into chunks at record
+	 * boundaries, and the chunks parsed simultaneously; the sequences
+	 * are added to the list in the order they appear in the file either
+	 * way.
 	 */
 	public void appendFromFile(SequenceList list, File file, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException
 	{
-		Pattern 	pBlank	=	Pattern.compile("^\\s*$");
-		Pattern 	pComment =	Pattern.compile("^\\s*#.*$");
-		Pattern		pNameNotEmpty =	Pattern.compile("^>\\s*(.+)\\s*$");
-		Pattern		pName	=	Pattern.compile("^>\\s*(.*)\\s*$");
-		//Pattern		pSequence =	Pattern.compile("^\\s*(.*)\\s*$");
-		Pattern		pSequence =	Pattern.compile("^\\s*(.*)\\s*$");
+		FormatInput input = FormatInput.open(file);
 
-		String 		name =	"";
-		String 		seq = 	"";
-		int		lineno = 0;
-		Matcher		m;
+		try {
+			appendFromInput(list, input, delay);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Appends the contents of an opened FASTA file to the specified SequenceList.
+	 *
+	 * @see #appendFromFile(SequenceList, File, DelayCallback)
+	 */
+	public void appendFromInput(SequenceList list, FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException
+	{
+		File file = input.getFile();
 
 		list.lock();
-				
-		if(count_sequences == 0)
-			if(!mightBe(file))
-				return;			// we do nothing to show disrespect for this file 
 
-		if(count_sequences == 0)		// if there are no sequences in this file, it's presumbably not valid
-			return;
-		
-		BufferedReader reader = new BufferedReader(new FileReader(file));
-		
 		if(delay != null)
 			delay.begin();
 		
-		// the hard work
-		int sequences = 0;
-		while(reader.ready()) {
-			lineno++;
-			String line = reader.readLine();
-		
-			if(pBlank.matcher(line).matches()) {
-				// Ignore blank lines 
-			} else if(pComment.matcher(line).matches()) {
-				// Ignore comment lines
-			} else if((m = pNameNotEmpty.matcher(line)).matches()) {
-				// add the previous entry
-				if(!name.equals("")) {
-					try {
-						Sequence x = makeSequence(delay, name, seq);
-						list.add(x);
-					} catch(SequenceException e) {
-						if(delay != null)
-							delay.end();
-						throw e; 
-					}
-					sequences++;
-				}
-				// start new seq
-				name = m.group(1);
-				seq = "";
+		try {
+			int sequences;
 
-				try {
-					if(delay != null) {
-						delay.delay(sequences, count_sequences);
-					}	
-				} catch(DelayAbortedException e) {
-					if(delay != null)
-						delay.end();
-					list.unlock();
-					throw e;
-				}
-			} else if((m = pName.matcher(line)).matches()) {
-				// add the previous entry
-				if(!name.equals("")) {
-					try {
-						Sequence x = makeSequence(delay, name, seq);
-						list.add(x);
-					} catch(SequenceException e) {
-						if(delay != null)
-							delay.end();
-						throw e; 
-					}
-					sequences++;
-				}
-				// if we're here, we don't *have* a next
-				// so we'll start a new sequence called 'no name specified in file'
-				name = "No name specified in file";
-				seq = "";
+			if(file.length() >= MAPPED_THRESHOLD && WorkerPool.getThreadCount() > 1 && input.getCompression() == CompressedStreams.NONE)
+				sequences = appendMapped(list, file, delay);
+			else
+				sequences = appendStreamed(list, input, delay);
 
-				try {
-					if(delay != null) {
-						delay.delay(sequences, count_sequences);
-					}	
-				} catch(DelayAbortedException e) {
-					if(delay != null)
-						delay.end();
-					list.unlock();
-					throw e;
-				}
- 
-			} else if((m = pSequence.matcher(line)).matches()) {
-				// append the sequence part
-				seq += m.group(1);
-			} else {
+			// if there are no sequences in this file, it's presumbably not valid
+			if(sequences > 0) {
+				list.setFile(file);
+				list.setFormatHandler(this);	
+			}
+		} finally {
+			if(delay != null)
 				delay.end();
-				throw new FormatException("Unable to interpret line " + lineno + ": " + line);
+
+			list.unlock();
+		}
+	}
+
+	/**
+	 * Reads the file once, a block of bytes at a time, through a single
+	 * RecordParser (the FormatInput has decompressed it if necessary). The
+	 * caller closes the FormatInput. Progress is reported
+	 * as the fraction of the file (on disk) we've read so far, in tenths
+	 * of a percent.
+	 *
+	 * @return the number of sequences added to the list.
+	 */
+	private int appendStreamed(SequenceList list, FormatInput input, DelayCallback delay) throws IOException, SequenceException, DelayAbortedException {
+		InputStream	stream = input.getStream();
+		int		last_reported = -1;
+
+		byte[]		buffer = new byte[READ_BUFFER_SIZE];
+		RecordParser	parser = new RecordParser();
+		int		sequences = 0;
+
+		int read;
+		while((read = stream.read(buffer)) != -1) {
+			if(delay != null) {
+				int permille = input.getProgress();
+				if(permille != last_reported) {
+					delay.delay(permille, 1000);
+					last_reported = permille;
+				}
 			}
+
+			parser.parse(buffer, 0, read);
+			sequences += parser.drainInto(list, delay);
 		}
 
-		// done!
-		if(delay != null)
-			delay.end();
+		parser.finish();
+		sequences += parser.drainInto(list, delay);
 
-		reader.close();
+		return sequences;
+	}
+
+	/**
+	 * Maps the file into memory, splits it into chunks which begin on a
+	 * '&gt;' at the start of a line, and parses every chunk on its own
+	 * thread. Each chunk gets its own RecordParser, so nothing is shared
+	 * until we add the results to the list (in file order) at the end.
+	 *
+	 * @return the number of sequences added to the list.
+	 */
+	private int appendMapped(SequenceList list, File file, DelayCallback delay) throws IOException, SequenceException, DelayAbortedException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			final FileChannel	channel = raf.getChannel();
+			final long[]		bounds = getChunkBounds(channel);
+			final RecordParser[]	parsers = new RecordParser[bounds.length - 1];
 
-		// is there anything in the buffers?
-		if(!name.equals("")) {
 			try {
-				Sequence x = makeSequence(delay, name, seq);
-				list.add(x);
-			} catch(SequenceException e) {
-				if(delay != null)
-					delay.end();
+				WorkerPool.forEach(parsers.length, new WorkerPool.Job() {
+					public void run(int index) throws Exception {
+						long from = bounds[index];
+						long size = bounds[index + 1] - from;
+
+						RecordParser parser = new RecordParser();
+						byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+						// a single mapping can't be larger than 2 GB,
+						// but our chunks are much smaller than that.
+						MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, from, size);
+						while(map.hasRemaining()) {
+							int length = Math.min(buffer.length, map.remaining());
+							map.get(buffer, 0, length);
+							parser.parse(buffer, 0, length);
+						}
+						parser.finish();
+
+						parsers[index] = parser;
+					}
+				}, delay);
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if(cause instanceof SequenceException)
+					throw (SequenceException) cause;
+				if(cause instanceof IOException)
+					throw (IOException) cause;
+
+				throw new IOException("Could not read '" + file + "': " + cause);
 			}
+
+			int sequences = 0;
+			for(int x = 0; x < parsers.length; x++) {
+				sequences += parsers[x].drainInto(list, delay);
+				parsers[x] = null;
+			}
+
+			return sequences;
+		} finally {
+			raf.close();
 		}
+	}
 
-		list.setFile(file);
-		list.setFormatHandler(this);	
-		list.unlock();
+	/**
+	 * Works out where to cut a file into chunks: roughly every MAPPED_CHUNK_SIZE
+	 * bytes (and at least one chunk per processor), moved forward to the next
+	 * '&gt;' which begins a line, so that every chunk starts with a name.
+	 *
+	 * @return the offsets of each chunk, followed by the size of the file.
+	 */
+	private static long[] getChunkBounds(FileChannel channel) throws IOException {
+		long	file_size = channel.size();
+		long	chunks = Math.max(WorkerPool.getThreadCount(), (file_size + MAPPED_CHUNK_SIZE - 1) / MAPPED_CHUNK_SIZE);
+		long	chunk_size = (file_size + chunks - 1) / chunks;
+
+		Vector	bounds = new Vector();
+		bounds.add(new Long(0));
+
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long	search_from = chunk_size;
+		while(search_from < file_size) {
+			// look for "\n&gt;" or "\r&gt;" starting at the byte before search_from
+			long	position = search_from - 1;
+			long	found = -1;
+			byte	previous = 0;
+			boolean	first = true;
+
+			while(found == -1 && position < file_size) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				if(read <= 0)
+					break;
+
+				for(int x = 0; x < read; x++) {
+					byte b = buffer.get(x);
+					if(!first && b == '>' && (previous == '\n' || previous == '\r')) {
+						found = position + x;
+						break;
+					}
+					previous = b;
+					first = false;
+				}
+				position += read;
+			}
+
+			if(found == -1)
+				break;	// no more records
+
+			bounds.add(new Long(found));
+			search_from = Math.max(found + 1, found + chunk_size);
+		}
+		bounds.add(new Long(file_size));
+
+		long[] results = new long[bounds.size()];
+		for(int x = 0; x < results.length; x++)
+			results[x] = ((Long) bounds.get(x)).longValue();
+		return results;
 	}
 
 	/**
-	 * Returns a new Sequence() object. Automatically converts 'U's into 'T's, warning the user
-	 * through the DelayCallback (if there is one).
+	 * A RecordParser turns blocks of bytes from a FASTA file into
+	 * Sequences. Each sequence is built up in a single reusable buffer
+	 * (dropping whitespace and converting uracil as we go) and handed
+	 * straight to the Sequence, so long interleaved records cost no more
+	 * than short ones. Anything before the first name is ignored.
 	 *
-	 * This method is a hack entirely placed here to make working with Dambe easier.
+	 * A RecordParser doesn't talk to the SequenceList or the DelayCallback
+	 * until you call drainInto(), so you can run several on different
+	 * threads. FastaIndex overrides record() to note down where each
+	 * record is instead of creating its Sequence.
 	 */
-	private Sequence makeSequence(DelayCallback delay, String name, String seq) throws SequenceException {
-		// I know I'm going to regret this
-		name = name.replace('_', ' ');
+	static class RecordParser {
+		private static final int	LINE_START =	0;	// nothing but whitespace on this line so far
+		private static final int	LINE_NAME =	1;	// this is a '>' line
+		private static final int	LINE_COMMENT =	2;	// this is a '#' comment line
+		private static final int	LINE_SEQUENCE =	3;	// this line is part of a sequence
+
+		private byte[]		name_buff = new byte[256];	// the name line we're reading
+		private int		name_length = 0;
+		private char[]		seq_buff = new char[4096];	// the sequence we're building
+		private int		seq_length = 0;
+		private boolean		seq_has_uracil = false;
+		private String		name = null;			// the name of the sequence we're building, if any
+
+		private long		position = 0;			// offset of the next byte we parse
+		private long		name_offset = 0;		// offset of the '>' on the name line we're reading
+		private long		record_offset = 0;		// offset of the '>' which started the current record
+
+		private int		state = LINE_START;
+		private boolean		first_column = true;
+
+		private Vector		sequences = new Vector();	// sequences which haven't been drained yet
+		private Vector		uracil_names = new Vector();	// names of those which had uracils in them
+
+		/**
+		 * Parses the next 'length' bytes of the file.
+		 */
+		public void parse(byte[] buffer, int offset, int length) throws SequenceException {
+			int end = offset + length;
+			long start_position = position - offset;	// so that buffer[x] is at start_position + x
+			position += length;
+
+			for(int x = offset; x < end; x++) {
+				byte b = buffer[x];
+
+				// lines may end in '\n', '\r' or both
+				if(b == '\n' || b == '\r') {
+					if(state == LINE_NAME)
+						startRecord();
+
+					state = LINE_START;
+					first_column = true;
+					continue;
+				}
 
-		// convert U to T
-		if(seq.indexOf('U') != -1 || seq.indexOf('u') != -1) {
-			// Uracil!
-			if(delay != null)
-				delay.addWarning("Sequence '" + name + "' contains one or more uracil bases. This program can only handle DNA sequences at the moment. I'm converting all uracil (U) bases into thymine (T) bases.");
+				switch(state) {
+					case LINE_START:
+						if(b == '>' && first_column) {
+							state = LINE_NAME;
+							name_length = 0;
+							name_offset = start_position + x;
+							break;
+						} else if(b == '#') {
+							state = LINE_COMMENT;
+							break;
+						} else if(isWhitespace(b)) {
+							break;
+						}
+						state = LINE_SEQUENCE;
+						// fall through: this is the first base on the line
+
+					case LINE_SEQUENCE:
+						if(isWhitespace(b))
+							break;
+
+						char ch = (char) (b & 0xFF);
+						if(ch == 'U') {
+							ch = 'T';
+							seq_has_uracil = true;
+						} else if(ch == 'u') {
+							ch = 't';
+							seq_has_uracil = true;
+						}
+
+						if(seq_length == seq_buff.length) {
+							char[] bigger = new char[seq_buff.length * 2];
+							System.arraycopy(seq_buff, 0, bigger, 0, seq_length);
+							seq_buff = bigger;
+						}
+						seq_buff[seq_length++] = ch;
+						break;
+
+					case LINE_NAME:
+						if(name_length == name_buff.length) {
+							byte[] bigger = new byte[name_buff.length * 2];
+							System.arraycopy(name_buff, 0, bigger, 0, name_length);
+							name_buff = bigger;
+						}
+						name_buff[name_length++] = b;
+						break;
+
+					case LINE_COMMENT:
+						// ignore comment lines
+						break;
+				}
+
+				first_column = false;
+			}
+		}
+
+		/**
+		 * Call this once you've run out of bytes, to finish off the last sequence.
+		 */
+		public void finish() throws SequenceException {
+			// the file might not end with a newline
+			if(state == LINE_NAME)
+				startRecord();
+
+			// is there anything in the buffers?
+			if(name != null)
+				addRecord();
+
+			name = null;
+			state = LINE_START;
+			first_column = true;
+		}
+
+		/**
+		 * Adds every sequence we've parsed so far into the list (and
+		 * warns the DelayCallback, if any, about uracils), then
+		 * forgets about them.
+		 *
+		 * @return the number of sequences added.
+		 */
+		public int drainInto(SequenceList list, DelayCallback delay) {
+			int count = sequences.size();
+
+			for(int x = 0; x < count; x++)
+				list.add(sequences.get(x));
+
+			if(delay != null) {
+				for(int x = 0; x < uracil_names.size(); x++)
+					delay.addWarning("Sequence '" + uracil_names.get(x) + "' contains one or more uracil bases. This program can only handle DNA sequences at the moment. I'm converting all uracil (U) bases into thymine (T) bases.");
+			}
+
+			sequences.clear();
+			uracil_names.clear();
+
+			return count;
+		}
+
+		/**
+		 * Returns every sequence we've parsed so far, and forgets
+		 * about them (and any uracil warnings).
+		 */
+		public Vector drain() {
+			Vector results = sequences;
+
+			sequences = new Vector();
+			uracil_names.clear();
+
+			return results;
+		}
+
+		/**
+		 * We've just finished reading a name line: add the previous
+		 * entry, and start a new one.
+		 */
+		private void startRecord() throws SequenceException {
+			if(name != null)
+				addRecord();
+
+			name = getName(name_buff, name_length);
+			record_offset = name_offset;
+			seq_length = 0;
+			seq_has_uracil = false;
+		}
 
-			seq = seq.replace('U', 'T').replace('u', 't');
+		/**
+		 * We've got a complete record: pass it on to record().
+		 *
+		 * This method is a hack entirely placed here to make working with Dambe easier.
+		 */
+		private void addRecord() throws SequenceException {
+			// I know I'm going to regret this
+			String seq_name = name.replace('_', ' ');
+
+			record(seq_name, record_offset, seq_buff, seq_length, seq_has_uracil);
 		}
 
-		return BaseSequence.createSequence(name, seq.replaceAll("\\s+", ""));	// delete whitespace characters from the sequence before adding.
+		/**
+		 * Turns a record into a new Sequence. 'offset' is where its '&gt;'
+		 * is in the file, and its bases are the first 'length' characters
+		 * of 'bases' (which will be reused once we return). Uracils have
+		 * already been converted into thymines; if there were any, we
+		 * note the name so we can warn the user later.
+		 */
+		protected void record(String name, long offset, char[] bases, int length, boolean had_uracil) throws SequenceException {
+			if(had_uracil)
+				uracil_names.add(name);
+
+			sequences.add(BaseSequence.createSequence(name, bases, length));
+		}
+	}
+
+	/**
+	 * Is this byte whitespace? (Exactly what '\s' would match in a regular expression.)
+	 */
+	private static boolean isWhitespace(byte b) {
+		return (b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r');
+	}
+
+	/**
+	 * Works out the name of a sequence from the bytes following the '>'.
+	 * Leading whitespace is ignored.
+	 */
+	private static String getName(byte[] name_buff, int name_length) {
+		int start = 0;
+		while(start < name_length && isWhitespace(name_buff[start]))
+			start++;
+
+		if(start == name_length)
+			return "No name specified in file";
+
+		return new String(name_buff, start, name_length - start);
 	}
 
 	/**
@@ -314,7 +602,10 @@ public class FastaFile extends BaseFormatHandler implements Testable {
 	 * @throws DelayAbortedException if the user aborted this function.
 	 */
 	public void writeFile(File file, SequenceList set, DelayCallback delay) throws IOException, DelayAbortedException {
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		// we write through a large buffer (straight into the file's channel,
+		// unless we're compressing it), and wrap each sequence ourselves
+		// instead of building up the wrapped string first.
+		PrintWriter writer = new PrintWriter(CompressedStreams.openBufferedWriter(file));
 		Iterator i = set.iterator();
 		int count = set.count();
 		int x = 0;
@@ -326,7 +617,19 @@ public class FastaFile extends BaseFormatHandler implements Testable {
 			Sequence seq = (Sequence) i.next();
 
 			writer.println(">" + seq.getFullName().trim().replace(' ', '_'));
-			writer.println(seq.getSequenceWrapped(70));
+
+			// exactly as getSequenceWrapped(70) would have it, including
+			// the trailing newline after a complete last line.
+			String str = seq.getSequence();
+			for(int pos = 0; pos < str.length(); pos += 70) {
+				if(pos + 70 > str.length()) {
+					writer.write(str, pos, str.length() - pos);
+				} else {
+					writer.write(str, pos, 70);
+					writer.write('\n');
+				}
+			}
+			writer.println();
 
 			try {
 				if(delay != null)
@@ -345,6 +648,8 @@ public class FastaFile extends BaseFormatHandler implements Testable {
 			delay.end();
 
 		writer.close();
+		if(writer.checkError())
+			throw new IOException("Could not write to '" + file + "'");
 	}
 
 	/**
@@ -434,5 +739,7 @@ public class FastaFile extends BaseFormatHandler implements Testable {
 			}
 
 		testMaster.done();
+
+		FastaIndex.test(testMaster, delay);
 	}
 }
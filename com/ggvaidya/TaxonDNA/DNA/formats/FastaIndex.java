@@ -0,0 +1,538 @@
+/**
+ * A FastaIndex lets you work with a FASTA file too large to load
+ * into a SequenceList. Opening one reads through the file once,
+ * noting down where each record starts, its name, species name and
+ * length, but doesn't keep the bases themselves: getSequence()
+ * reads and decodes them when you ask, and keeps the most recently
+ * used Sequences in a small cache. So you can browse or filter a
+ * million-sequence file by name or species with very little memory,
+ * and then pull the subset you want into a real SequenceList with
+ * getSequences().
+ *
+ * Since Sequences are created on demand, asking for the same record
+ * twice might give you two different Sequence objects (with different
+ * UUIDs) if it fell out of the cache in between. If the file changes
+ * after it was indexed, getSequence() will throw an IOException
+ * rather than return the wrong sequence. Compressed files can't be
+ * indexed, since we can't jump into the middle of them.
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.DNA.formats;
+
+import java.io.*;
+import java.util.*;
+
+import com.ggvaidya.TaxonDNA.Common.*;
+import com.ggvaidya.TaxonDNA.DNA.*;
+
+public class FastaIndex {
+	/** The number of decoded Sequences we keep around, unless told otherwise. */
+	public static final int		DEFAULT_CACHE_SIZE =	1000;
+
+	/** The size of the blocks we read the file in while indexing. */
+	private static final int	READ_BUFFER_SIZE =	256 * 1024;
+
+	private File		file;			// the file we've indexed
+	private long		file_size;		// its size and modification time when we indexed it,
+	private long		file_modified;		// so we can tell if it's changed since
+
+	private int		count = 0;		// the number of records
+	private long[]		offsets = new long[1024];	// where each record's '>' is
+	private int[]		lengths = new int[1024];	// the length of each sequence
+	private String[]	names = new String[1024];	// the full name of each sequence
+	private String[]	species = new String[1024];	// the species name of each sequence (or null)
+
+	private Map		cache;			// Integer(index) -> Sequence, least recently used first
+	private RandomAccessFile input = null;		// opened the first time we need to decode something
+
+	/**
+	 * Indexes a FASTA file, with the default cache size.
+	 */
+	public FastaIndex(File file, DelayCallback delay) throws IOException, SequenceException, DelayAbortedException {
+		this(file, DEFAULT_CACHE_SIZE, delay);
+	}
+
+	/**
+	 * Indexes a FASTA file. At most 'cache_size' decoded Sequences
+	 * will be kept in memory at any one time.
+	 */
+	public FastaIndex(File file, final int cache_size, DelayCallback delay) throws IOException, SequenceException, DelayAbortedException {
+		this.file = file;
+		this.file_size = file.length();
+		this.file_modified = file.lastModified();
+
+		if(CompressedStreams.getCompression(file) != CompressedStreams.NONE)
+			throw new IOException("'" + file + "' is compressed, so I can't index it. Please decompress it first.");
+
+		cache = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > cache_size;
+			}
+		};
+
+		final Hashtable species_names = new Hashtable();	// so we only keep one copy of each species name
+		FastaFile.RecordParser parser = new FastaFile.RecordParser() {
+			protected void record(String name, long offset, char[] bases, int length, boolean had_uracil) {
+				String species_name = Sequence.getSpeciesName(name);
+				if(species_name != null) {
+					String existing = (String) species_names.get(species_name);
+					if(existing == null)
+						species_names.put(species_name, species_name);
+					else
+						species_name = existing;
+				}
+
+				addRecord(offset, name.replace('\n', ' ').trim(), species_name, getLength(bases, length));
+			}
+		};
+
+		InputStream input = new FileInputStream(file);
+		long position = 0;
+		int last_reported = -1;
+
+		if(delay != null)
+			delay.begin();
+
+		try {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+			int read;
+			while((read = input.read(buffer)) != -1) {
+				position += read;
+
+				if(delay != null && file_size > 0) {
+					int permille = (int)(position * 1000 / file_size);
+					if(permille != last_reported) {
+						delay.delay(permille, 1000);
+						last_reported = permille;
+					}
+				}
+
+				parser.parse(buffer, 0, read);
+			}
+			parser.finish();
+		} catch(DelayAbortedException e) {
+			// the DelayCallback has already end()ed itself
+			delay = null;
+			throw e;
+		} finally {
+			input.close();
+
+			if(delay != null)
+				delay.end();
+		}
+	}
+
+	/**
+	 * Notes down a record, growing our arrays if necessary.
+	 */
+	private void addRecord(long offset, String name, String species_name, int length) {
+		if(count == offsets.length) {
+			int size = offsets.length * 2;
+
+			long[] new_offsets = new long[size];
+			System.arraycopy(offsets, 0, new_offsets, 0, count);
+			offsets = new_offsets;
+
+			int[] new_lengths = new int[size];
+			System.arraycopy(lengths, 0, new_lengths, 0, count);
+			lengths = new_lengths;
+
+			String[] new_names = new String[size];
+			System.arraycopy(names, 0, new_names, 0, count);
+			names = new_names;
+
+			String[] new_species = new String[size];
+			System.arraycopy(species, 0, new_species, 0, count);
+			species = new_species;
+		}
+
+		offsets[count] = offset;
+		lengths[count] = length;
+		names[count] = name;
+		species[count] = species_name;
+		count++;
+	}
+
+	/**
+	 * Works out how long a sequence will be once it's been turned into
+	 * a Sequence: every '[...]' or '(...)' becomes a single base.
+	 */
+	private static int getLength(char[] bases, int length) {
+		int result = 0;
+		boolean in_brackets = false;
+
+		for(int x = 0; x < length; x++) {
+			char ch = bases[x];
+
+			if(ch == '[' || ch == '(')
+				in_brackets = true;
+			else if(ch == ']' || ch == ')') {
+				in_brackets = false;
+				result++;
+			} else if(!in_brackets)
+				result++;
+		}
+
+		return result;
+	}
+
+	/** Returns the file we've indexed. */
+	public File getFile() {
+		return file;
+	}
+
+	/** Returns the number of sequences in the file. */
+	public int count() {
+		return count;
+	}
+
+	/** Returns the full name of the sequence at 'index'. */
+	public String getName(int index) {
+		checkIndex(index);
+		return names[index];
+	}
+
+	/**
+	 * Returns the species name of the sequence at 'index', or null if
+	 * we couldn't figure one out (just like Sequence.getSpeciesName()).
+	 */
+	public String getSpeciesName(int index) {
+		checkIndex(index);
+		return species[index];
+	}
+
+	/** Returns the length of the sequence at 'index' (including gaps). */
+	public int getLength(int index) {
+		checkIndex(index);
+		return lengths[index];
+	}
+
+	/**
+	 * Returns every distinct species name in the file, in alphabetical order.
+	 */
+	public Vector getSpeciesNames() {
+		HashSet set = new HashSet();
+		for(int x = 0; x < count; x++) {
+			if(species[x] != null)
+				set.add(species[x]);
+		}
+
+		Vector results = new Vector(set);
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Returns the indices of every sequence with this species name,
+	 * in the order they appear in the file.
+	 */
+	public int[] getIndicesForSpecies(String species_name) {
+		int found = 0;
+		for(int x = 0; x < count; x++) {
+			if(species_name.equals(species[x]))
+				found++;
+		}
+
+		int[] results = new int[found];
+		found = 0;
+		for(int x = 0; x < count; x++) {
+			if(species_name.equals(species[x]))
+				results[found++] = x;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the Sequence at 'index', reading it from the file if it
+	 * isn't already in the cache.
+	 */
+	public synchronized Sequence getSequence(int index) throws IOException, SequenceException {
+		checkIndex(index);
+
+		Integer key = new Integer(index);
+		Sequence seq = (Sequence) cache.get(key);
+
+		if(seq == null) {
+			seq = readSequence(index);
+			cache.put(key, seq);
+		}
+
+		return seq;
+	}
+
+	/**
+	 * Reads the sequences at 'indices' into a new SequenceList, in that
+	 * order. These don't go through (or disturb) the cache, since you
+	 * probably want more of them than it holds.
+	 */
+	public synchronized SequenceList getSequences(int[] indices, DelayCallback delay) throws IOException, SequenceException, DelayAbortedException {
+		SequenceList list = new SequenceList();
+
+		if(delay != null)
+			delay.begin();
+
+		try {
+			for(int x = 0; x < indices.length; x++) {
+				if(delay != null)
+					delay.delay(x, indices.length);
+
+				checkIndex(indices[x]);
+
+				Sequence seq = (Sequence) cache.get(new Integer(indices[x]));
+				if(seq == null)
+					seq = readSequence(indices[x]);
+
+				list.add(seq);
+			}
+		} catch(DelayAbortedException e) {
+			// the DelayCallback has already end()ed itself
+			delay = null;
+			throw e;
+		} finally {
+			if(delay != null)
+				delay.end();
+		}
+
+		return list;
+	}
+
+	/**
+	 * Closes the file. It'll be opened again if you ask for another sequence.
+	 */
+	public synchronized void close() throws IOException {
+		if(input != null) {
+			input.close();
+			input = null;
+		}
+	}
+
+	/**
+	 * Reads and decodes a single record from the file.
+	 */
+	private Sequence readSequence(int index) throws IOException, SequenceException {
+		if(file.length() != file_size || file.lastModified() != file_modified)
+			throw new IOException("The file '" + file + "' has changed since it was indexed; please reopen it.");
+
+		if(input == null)
+			input = new RandomAccessFile(file, "r");
+
+		long from = offsets[index];
+		long to = (index + 1 < count) ? offsets[index + 1] : file_size;
+
+		byte[] buffer = new byte[(int)(to - from)];
+		input.seek(from);
+		input.readFully(buffer);
+
+		FastaFile.RecordParser parser = new FastaFile.RecordParser();
+		parser.parse(buffer, 0, buffer.length);
+		parser.finish();
+
+		Vector results = parser.drain();
+		if(results.size() != 1)
+			throw new IOException("The file '" + file + "' has changed since it was indexed; please reopen it.");
+
+		return (Sequence) results.get(0);
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("There is no sequence " + index + " in " + file + " (which has " + count + " sequences)");
+	}
+
+	/**
+	 * Tests FastaIndex; FastaFile.test() calls this. Every record should
+	 * be found at the right offset and decode to what FastaFile reads,
+	 * the cache should hand back the same Sequence until it's pushed out,
+	 * and a file which has changed (or been compressed) should be refused.
+	 */
+	static void test(TestController testMaster, DelayCallback delay) throws DelayAbortedException {
+		testMaster.begin("DNA.formats.FastaIndex");
+
+		File file = testMaster.tempfile();
+		FastaIndex index = null;
+
+		try {
+			// records split over several lines, with blank lines and ambiguities
+			writeTestFile(file,
+				">Aus bus 1\nACGT\nAC[AG]T\n\n" +
+				">Aus bus 2\nAC(CT)TTT--\n" +
+				">Cus dus 1\n--GGACGTAA\nTTTT\nGG\n" +
+				">Aus bus 3\nAAAA\n"
+			);
+
+			testMaster.beginTest("Index a FASTA file, then read each sequence back from its offset");
+				SequenceList list = new FastaFile().readFile(file, delay);
+				index = new FastaIndex(file, 2, delay);
+
+				if(checkIndex(testMaster, index, list))
+					testMaster.succeeded();
+
+			testMaster.beginTest("List the species in an indexed FASTA file");
+				Vector names = index.getSpeciesNames();
+				int[] aus_bus = index.getIndicesForSpecies("Aus bus");
+
+				if(!names.toString().equals("[Aus bus, Cus dus]"))
+					testMaster.failed("I expected species [Aus bus, Cus dus] in '" + file + "', but I found " + names);
+				else if(aus_bus.length != 3 || aus_bus[0] != 0 || aus_bus[1] != 1 || aus_bus[2] != 3)
+					testMaster.failed("I expected 'Aus bus' to be sequences 0, 1 and 3 in '" + file + "', but I found " + aus_bus.length + " sequences");
+				else {
+					SequenceList subset = index.getSequences(aus_bus, delay);
+					Iterator i = subset.iterator();
+
+					boolean ok = (subset.count() == aus_bus.length);
+					for(int x = 0; ok && x < aus_bus.length; x++) {
+						Sequence seq = (Sequence) i.next();
+						Sequence expected = (Sequence) list.get(aus_bus[x]);
+
+						ok = seq.getFullName().equals(expected.getFullName()) && seq.getSequence().equals(expected.getSequence());
+					}
+
+					if(!ok)
+						testMaster.failed("The 'Aus bus' sequences I read out of '" + file + "' weren't the ones FastaFile read");
+					else
+						testMaster.succeeded();
+				}
+
+			testMaster.beginTest("Keep the most recently used sequences in the cache, and decode the rest again");
+				index.close();
+				index = new FastaIndex(file, 2, delay);
+
+				Sequence first = index.getSequence(0);
+				Sequence second = index.getSequence(1);
+
+				if(index.getSequence(0) != first)
+					testMaster.failed("Sequence 0 should have been in the cache, but it was decoded again");
+				else {
+					// 0 was used more recently than 1, so 1 gets pushed out
+					index.getSequence(2);
+
+					if(index.getSequence(0) != first)
+						testMaster.failed("Sequence 0 was recently used, so it should still be in the cache");
+					else if(index.getSequence(1) == second)
+						testMaster.failed("Sequence 1 should have been pushed out of the cache, but it wasn't");
+					else if(!index.getSequence(1).getSequence().equals(second.getSequence()))
+						testMaster.failed("Sequence 1 was decoded again as " + index.getSequence(1).getSequence() + ", but it used to be " + second.getSequence());
+					else
+						testMaster.succeeded();
+				}
+
+			testMaster.beginTest("Refuse to read sequences out of a FASTA file which has changed since it was indexed");
+				index.close();
+				writeTestFile(file,
+					">Aus bus 1\nACGT\nAC[AG]T\n\n" +
+					">Aus bus 2\nAC(CT)TTT--\n" +
+					">Cus dus 1\n--GGACGTAA\nTTTT\nGG\n" +
+					">Aus bus 3\nAAAA\n" +
+					">Aus bus 4\nCCCC\n"
+				);
+
+				try {
+					index.getSequence(3);
+					testMaster.failed("I changed '" + file + "' after indexing it, but I could still read sequence 3 out of it");
+				} catch(IOException e) {
+					testMaster.succeeded();
+				}
+
+			testMaster.beginTest("Refuse to index a compressed FASTA file");
+				index.close();
+				index = null;
+
+				OutputStream out = new java.util.zip.GZIPOutputStream(new FileOutputStream(file));
+				try {
+					out.write(">Aus bus 1\nACGT\n".getBytes("US-ASCII"));
+				} finally {
+					out.close();
+				}
+
+				try {
+					index = new FastaIndex(file, delay);
+					testMaster.failed("I indexed the gzipped file '" + file + "', but I shouldn't be able to");
+				} catch(IOException e) {
+					testMaster.succeeded();
+				}
+
+		} catch(IOException e) {
+			testMaster.failed("I got an IOException while testing '" + file + "': " + e);
+		} catch(SequenceException e) {
+			testMaster.failed("I got a SequenceException while testing '" + file + "': " + e);
+		} catch(FormatException e) {
+			testMaster.failed("I got a FormatException while testing '" + file + "': " + e);
+		} finally {
+			if(index != null) {
+				try {
+					index.close();
+				} catch(IOException e) {
+					// nothing we can do about it now
+				}
+			}
+		}
+
+		testMaster.done();
+	}
+
+	/** Writes 'contents' into 'file' as a FASTA file. */
+	private static void writeTestFile(File file, String contents) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks that every record in 'index' has the same name, species,
+	 * length and bases as in 'list' (which FastaFile read). If they
+	 * don't, we tell the TestController, and return false.
+	 */
+	private static boolean checkIndex(TestController testMaster, FastaIndex index, SequenceList list) throws IOException, SequenceException {
+		if(index.count() != list.count()) {
+			testMaster.failed("I expected " + list.count() + " sequences in '" + index.getFile() + "', but I indexed " + index.count());
+			return false;
+		}
+
+		Iterator i = list.iterator();
+		for(int x = 0; x < index.count(); x++) {
+			Sequence expected = (Sequence) i.next();
+			Sequence seq = index.getSequence(x);
+
+			if(!index.getName(x).equals(expected.getFullName()) || !seq.getFullName().equals(expected.getFullName())) {
+				testMaster.failed("I expected sequence " + x + " to be named '" + expected.getFullName() + "', but it was indexed as '" + index.getName(x) + "' and read back as '" + seq.getFullName() + "'");
+				return false;
+			}
+
+			if(!String.valueOf(index.getSpeciesName(x)).equals(String.valueOf(expected.getSpeciesName()))) {
+				testMaster.failed("I expected sequence " + x + " to be from species '" + expected.getSpeciesName() + "', but it was indexed as '" + index.getSpeciesName(x) + "'");
+				return false;
+			}
+
+			if(index.getLength(x) != expected.getLength() || !seq.getSequence().equals(expected.getSequence())) {
+				testMaster.failed("I expected sequence " + x + " to be " + expected.getSequence() + " (" + expected.getLength() + " bp), but it was indexed as " + index.getLength(x) + " bp and read back as " + seq.getSequence());
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -86,6 +86,20 @@ public interface FormatHandler {
 	 */
 	public void appendFromFile(SequenceList appendTo, File fileFrom, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException;
 
+	/**
+	 * Append a file which has already been opened (and recognised by
+	 * mightBe(FormatInput)) to the specified SequenceList. This is just
+	 * like appendFromFile(), except that we read from the FormatInput's
+	 * stream instead of opening the file again. The caller closes the
+	 * FormatInput.
+	 *
+	 * @throws IOException if there was an error doing I/O
+	 * @throws SequenceException if a Sequence is malformed - incorrect bases, etc.
+	 * @throws FormatException if there was an error in the format of the file.
+	 * @throws DelayAbortedException if the DelayCallback was aborted by the user.
+	 */
+	public void appendFromInput(SequenceList appendTo, FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException;
+
 	/**
 	 * Writes the content of this sequence list into a file. The file is
 	 * overwritten. The order of the sequences written into the file is
@@ -104,6 +118,13 @@ public interface FormatHandler {
 	 */
 	public boolean mightBe(File file);
 
+	/**
+	 * Checks to see if an opened file *might* be of this format, by looking
+	 * at its header (see FormatInput.getHeader()). This shouldn't read from
+	 * the FormatInput's stream, since other handlers may need it after you.
+	 */
+	public boolean mightBe(FormatInput input);
+
 	/**
 	 * Add a new FormatListener to this FormatHandler. We'll keep the Listener notified during
 	 * a parse, so that he can chug up any other information which we can't stuff into the file.
@@ -0,0 +1,176 @@
+/**
+ * A FormatInput is a file which has been opened for reading, with
+ * the first few kilobytes already read into a header. We use it to
+ * figure out which FormatHandler understands a file without every
+ * handler opening (and, sometimes, reading through) the file itself:
+ * SequenceList.readFile() opens a FormatInput once, shows its header
+ * to each handler's mightBe(FormatInput), and then hands the very same
+ * stream to the chosen handler's appendFromInput().
+ *
+ * The stream is decompressed (see CompressedStreams) if necessary, and
+ * getProgress() tells you how much of the file on disk has been read,
+ * so handlers can report progress without counting lines first.
+ *
+ * You can only read the stream once, either through getStream() or
+ * getReader(). Please close() it when you're done.
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.DNA.formats;
+
+import java.io.*;
+import java.util.*;
+
+public class FormatInput {
+	/** The (maximum) number of bytes in the header. */
+	public static final int		HEADER_SIZE =	64 * 1024;
+
+	private File			file;
+	private CompressedStreams.Input	input;		// the file, decompressed if need be
+	private BufferedInputStream	stream;		// ... and buffered, rewound to the start
+	private String			header;
+	private boolean			complete;	// is the entire file in the header?
+	private String[]		lines = null;	// the complete lines in the header (worked out when needed)
+	private boolean			taken = false;	// has someone started reading the stream?
+
+	private FormatInput(File file) throws IOException {
+		this.file = file;
+
+		input = CompressedStreams.openInput(file);
+		stream = new BufferedInputStream(input, HEADER_SIZE);
+
+		try {
+			byte[] bytes = new byte[HEADER_SIZE];
+			int length = 0;
+			int read;
+
+			stream.mark(HEADER_SIZE);
+			while(length < bytes.length && (read = stream.read(bytes, length, bytes.length - length)) != -1)
+				length += read;
+			stream.reset();
+
+			complete = (length < HEADER_SIZE);
+			header = new String(bytes, 0, length);
+		} catch(IOException e) {
+			stream.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a file, and reads in its header.
+	 *
+	 * @throws IOException if the file couldn't be read, or has been
+	 * 	compressed in a format we can't read.
+	 */
+	public static FormatInput open(File file) throws IOException {
+		return new FormatInput(file);
+	}
+
+	/** Returns the file we're reading. */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the first HEADER_SIZE bytes of the file (decompressed, in
+	 * the default character set), or the entire file if it's smaller.
+	 * The last line might have been cut off; see isComplete() and getLines().
+	 */
+	public String getHeader() {
+		return header;
+	}
+
+	/** Returns how the file was compressed (see CompressedStreams). */
+	public int getCompression() {
+		return input.getCompression();
+	}
+
+	/** Is the entire file in the header? */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns the lines in the header. If the header doesn't contain the
+	 * entire file, the last (possibly incomplete) line is left out.
+	 */
+	public String[] getLines() {
+		if(lines == null) {
+			String text = header;
+
+			if(!complete) {
+				int last_newline = Math.max(text.lastIndexOf('\n'), text.lastIndexOf('\r'));
+				text = text.substring(0, last_newline + 1);
+			}
+
+			Vector v = new Vector();
+			BufferedReader reader = new BufferedReader(new StringReader(text));
+			try {
+				String line;
+				while((line = reader.readLine()) != null)
+					v.add(line);
+			} catch(IOException e) {
+				// can't happen on a StringReader
+			}
+
+			lines = (String[]) v.toArray(new String[v.size()]);
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Returns the file as a stream of bytes, starting from the beginning.
+	 *
+	 * @throws IOException if the stream has already been taken.
+	 */
+	public InputStream getStream() throws IOException {
+		if(taken)
+			throw new IOException("'" + file + "' has already been read.");
+		taken = true;
+
+		return stream;
+	}
+
+	/**
+	 * Returns the file as text (in the default character set), starting
+	 * from the beginning.
+	 *
+	 * @throws IOException if the stream has already been taken.
+	 */
+	public BufferedReader getReader() throws IOException {
+		return new BufferedReader(new InputStreamReader(getStream()));
+	}
+
+	/**
+	 * Returns how much of the file (as stored on disk) has been read,
+	 * in tenths of a percent.
+	 */
+	public int getProgress() {
+		return input.getProgress();
+	}
+
+	/** Closes the file. */
+	public void close() throws IOException {
+		stream.close();
+	}
+}
@@ -120,7 +120,7 @@ public class MegaFile extends BaseFormatHandler implements Testable {
 
 		Hashtable names = new Hashtable();	// names are stored, to be checked for duplicate names
 
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		PrintWriter writer = new PrintWriter(CompressedStreams.openBufferedWriter(file));
 		
 		if(delay != null)
 			delay.begin();
@@ -156,7 +156,9 @@ public class MegaFile extends BaseFormatHandler implements Testable {
 			}
 			
 			names.put((Object)name, new Integer(1));
-			writer.println("#" + name + "\t" + seq.getSequence());
+			writer.print("#" + name + "\t");
+			seq.writeSequence(writer);
+			writer.println();
 
 			try {
 				if(delay != null)
@@ -181,7 +183,7 @@ public class MegaFile extends BaseFormatHandler implements Testable {
 	 */
 	public boolean mightBe(File file) {
 		try {
-			BufferedReader	read	=	new BufferedReader(new FileReader(file));
+			BufferedReader	read	=	CompressedStreams.openReader(file);
 			String 		line;
 			while((line = read.readLine()) != null) {
 				line = line.trim();
@@ -223,7 +225,7 @@ public class MegaFile extends BaseFormatHandler implements Testable {
 			int lineno		=	0;			// line we are currently working on
 			int spid		=	0;			// species id
 
-			BufferedReader	read	=	new BufferedReader(new FileReader(file));
+			BufferedReader	read	=	CompressedStreams.openReader(file);
 
 			list.lock();
 
@@ -135,6 +135,26 @@ public class NexusFile extends BaseFormatHandler {
 	 * @throws DelayAbortedException if the DelayCallback was aborted by the user.
 	 */
 	public void appendFromFile(SequenceList appendTo, File fileFrom, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		FormatInput input = FormatInput.open(fileFrom);
+
+		try {
+			appendFromInput(appendTo, input, delay);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Append an opened file to the specified SequenceList. Progress is
+	 * reported as the fraction of the file we've read so far.
+	 *
+	 * @throws IOException if there was an error doing I/O
+	 * @throws SequenceException if a Sequence is malformed - incorrect bases, etc.
+	 * @throws FormatException if there was an error in the format of the file.
+	 * @throws DelayAbortedException if the DelayCallback was aborted by the user.
+	 */
+	public void appendFromInput(SequenceList appendTo, FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		File fileFrom = input.getFile();
 		FormatHandlerEvent evt = new FormatHandlerEvent(fileFrom, this, appendTo);
 
 		// set up the delay
@@ -144,27 +164,11 @@ public class NexusFile extends BaseFormatHandler {
 		appendTo.lock();
 
 		// Reset the codonposset-already-defined flag.
-		codonposset_already_defined = false;
+		codonposset_already_defined.set(Boolean.FALSE);
 
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(fileFrom));
-
-			// count lines
-			int count_lines = 0;
-			int count_data = 0;
-			long file_length = fileFrom.length();
-			while(reader.ready()) {
-				if(delay != null)
-					delay.delay((int)((float)count_data/file_length * 100), 1000);
-					// note that we're really going from 0% to 10%. This will
-					// make the user less confused when we jump from 10% to 0% and
-					// start over.
-				count_data += reader.readLine().length();
-				count_lines++;
-			}
-
 			// let's go!
-			reader = new BufferedReader(new FileReader(fileFrom));
+			BufferedReader reader = input.getReader();
 			NexusTokenizer tok = new NexusTokenizer(reader);
 			// let's pre-read the #NEXUS line
 			if(tok.nextToken() != '#')
@@ -188,7 +192,7 @@ public class NexusFile extends BaseFormatHandler {
 			while(true) {
 				/* Before anything else, do the delay */
 				if(delay != null)
-					delay.delay(tok.lineno(), count_lines);
+					delay.delay(input.getProgress(), 1000);
 
 				/* Now ... to business! */
 				int type = tok.nextToken();
@@ -240,15 +244,15 @@ public class NexusFile extends BaseFormatHandler {
 								throw formatException(tok, "There is a strange character ('" + nextChar + "') after the BEGIN " + beginWhat + " command! How odd.");
 
 							if(beginWhat.equalsIgnoreCase("DATA") || beginWhat.equalsIgnoreCase("CHARACTERS"))
-								blockData(appendTo, tok, evt, delay, count_lines);
+								blockData(appendTo, tok, evt, delay, input);
 								// the reference says they *are* identical
 								// (except that NEWTAXA is implicit in DATA)
 								// TODO: we might want to care about this.
 								// you know. to be anal, and all that.
 							else if(beginWhat.equalsIgnoreCase("SETS"))
-								blockSets(appendTo, tok, evt, delay, count_lines);
+								blockSets(appendTo, tok, evt, delay, input);
                                                         else if(beginWhat.equalsIgnoreCase("CODONS"))
-                                                                blockCodons(appendTo, tok, evt, delay, count_lines);
+                                                                blockCodons(appendTo, tok, evt, delay, input);
 							else {
 								inStrangeBlock = true;
 								// warn the user!
@@ -295,7 +299,7 @@ public class NexusFile extends BaseFormatHandler {
 	 * 2.
 	 *
 	 */
-	public void blockData(SequenceList appendTo, NexusTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, int count_lines)
+	public void blockData(SequenceList appendTo, NexusTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, FormatInput input)
 		throws FormatException, DelayAbortedException, IOException
 	{
 		boolean isDatasetInterleaved = false;
@@ -312,18 +316,25 @@ public class NexusFile extends BaseFormatHandler {
 		tok.setGapChar(gapChar);
 		tok.setMissingChar(missingChar);
 
-		Hashtable hash_names = new Hashtable();			// String name -> Sequence
+		Hashtable hash_names = new Hashtable();			// String name -> StringBuffer (the last row for this name)
+		Vector rows = new Vector();				// Object[] { String name, StringBuffer bases }, in order
 		String name = null;
 
 		int commentLevel = 0;
 		boolean newCommand = true;
 
 		while(true) {
-			int type = tok.nextToken();
+			// sequence data doesn't need to become a String: we
+			// copy it straight out of the tokenizer's buffer
+			int type;
+			if(inMatrix && name != null)
+				type = tok.nextTokenView();
+			else
+				type = tok.nextToken();
 			String str = tok.sval;
 
 			if(delay != null)
-				delay.delay(tok.lineno(), count_lines);
+				delay.delay(input.getProgress(), 1000);
 
 			if(type == NexusTokenizer.TT_EOF) {
 				// wtf?!
@@ -489,25 +500,8 @@ public class NexusFile extends BaseFormatHandler {
 						// wtf name?!
 						throw formatException(tok, "You can't use '(' symbols in names, sorry!");
 					} else {
-						// direct copy from below
-                                                // please translate bugs, too!
-                                                String strseq = "[" + chars.toString() + "]";
-
-						try {
-							Sequence seq = null;
-							if(!isDatasetInterleaved || hash_names.get(name) == null) {
-								// doesn't exist, just add it
-								seq = new BaseSequence(name, strseq);
-								appendTo.add(seq);
-								hash_names.put(name, seq);
-							} else {
-								// it DOES exist, append it
-								seq = (Sequence) hash_names.get(name);
-								seq.changeSequence(seq.getSequence() + strseq);
-							}
-						} catch(SequenceException e) {
-							throw formatException(tok, "The sequence for taxon '" + name + "' is invalid: " + e);
-						}
+						StringBuffer bases = getMatrixRow(rows, hash_names, name, isDatasetInterleaved);
+						bases.append('[').append(chars).append(']');
 					}
 				}
 				else if(type == NexusTokenizer.TT_WORD) {
@@ -515,25 +509,19 @@ public class NexusFile extends BaseFormatHandler {
 						// put spaces back
 						name = str.replace('_', ' ');		// we do NOT support '. Pfft.
 					} else {
-						String strseq = str;
+						StringBuffer bases = getMatrixRow(rows, hash_names, name, isDatasetInterleaved);
+
 						// fix up gaps and missings to TaxonDNA specs
-						strseq = str.replace(gapChar, '-');
-						strseq = strseq.replace(missingChar, '?');
-
-						try {
-							Sequence seq = null;
-							if(!isDatasetInterleaved || hash_names.get(name) == null) {
-								// doesn't exist, just add it
-								seq = new BaseSequence(name, strseq);
-								appendTo.add(seq);
-								hash_names.put(name, seq);
-							} else {
-								// it DOES exist, append it
-								seq = (Sequence) hash_names.get(name);
-								seq.changeSequence(seq.getSequence() + strseq);
-							}
-						} catch(SequenceException e) {
-							throw formatException(tok, "The sequence for taxon '" + name + "' is invalid: " + e);
+						CharSequence word = tok.getWord();
+						int length = word.length();
+						bases.ensureCapacity(bases.length() + length);
+						for(int x = 0; x < length; x++) {
+							char ch = word.charAt(x);
+							if(ch == gapChar)
+								ch = '-';
+							if(ch == missingChar)
+								ch = '?';
+							bases.append(ch);
 						}
 					}
 				} else {
@@ -549,7 +537,8 @@ public class NexusFile extends BaseFormatHandler {
 					if(str.equalsIgnoreCase("MATRIX")) {
 						if(gapChar == missingChar) {
 							missingChar = 0;	// ha! find *this* character!
-							delay.addWarning("This Nexus file defines BOTH the gap character and the missing character as '" + gapChar + "'. I will use this as the gap character only; no missing data will be recognized for this dataset.");
+							if(delay != null)
+								delay.addWarning("This Nexus file defines BOTH the gap character and the missing character as '" + gapChar + "'. I will use this as the gap character only; no missing data will be recognized for this dataset.");
 						}
 
 						tok.reportNewlines(true);
@@ -606,24 +595,53 @@ public class NexusFile extends BaseFormatHandler {
 		tok.setGapChar((char)0);
 		tok.setMissingChar((char)0);
 
-		// FINALLY, we need to convert any sequences we can into Real Sequences.
-		Iterator i_names = hash_names.keySet().iterator();
-		while(i_names.hasNext()) {
-			String str_name = (String) i_names.next();
-			Sequence sold = (Sequence) hash_names.get(str_name);
-			Sequence snew = BaseSequence.promoteSequence(sold);
-			if(!snew.equals(sold)) {
-				int x = appendTo.indexOf(sold);
-				appendTo.remove(sold);
-				appendTo.add(x, snew);
+		// FINALLY, we turn each row into a sequence, and convert any
+		// we can into Real Sequences (only the last row for any
+		// given name gets promoted, as it always has).
+		Iterator i = rows.iterator();
+		while(i.hasNext()) {
+			Object[] row = (Object[]) i.next();
+			String str_name = (String) row[0];
+			StringBuffer bases = (StringBuffer) row[1];
+
+			Sequence seq;
+			try {
+				seq = new BaseSequence(str_name, bases.toString());
+			} catch(SequenceException e) {
+				throw formatException(tok, "The sequence for taxon '" + str_name + "' is invalid: " + e);
+			}
+
+			if(hash_names.get(str_name) == bases) {
+				Sequence snew = BaseSequence.promoteSequence(seq);
+				if(!snew.equals(seq))
+					seq = snew;
 			}
+
+			appendTo.add(seq);
 		}
 	}
 
+	/**
+	 * Returns the buffer we should add bases for taxon 'name' to in
+	 * the matrix. Unless the matrix is interleaved, every row gets a
+	 * new buffer, even if the name has been used before.
+	 */
+	private StringBuffer getMatrixRow(Vector rows, Hashtable hash_names, String name, boolean isDatasetInterleaved) {
+		StringBuffer bases = (StringBuffer) hash_names.get(name);
+
+		if(!isDatasetInterleaved || bases == null) {
+			bases = new StringBuffer();
+			rows.add(new Object[] { name, bases });
+			hash_names.put(name, bases);
+		}
+
+		return bases;
+	}
+
 	/**
 	 * Processes the 'SETS' block.
 	 */
-	public void blockSets(SequenceList appendTo, NexusTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, int count_lines)
+	public void blockSets(SequenceList appendTo, NexusTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, FormatInput input)
 		throws FormatException, DelayAbortedException, IOException
 	{
 		int commentLevel = 0;
@@ -636,7 +654,7 @@ public class NexusFile extends BaseFormatHandler {
 			String str = tok.sval;
 
 			if(delay != null)
-				delay.delay(tok.lineno(), count_lines);
+				delay.delay(input.getProgress(), 1000);
 
 			if(type == NexusTokenizer.TT_EOF) {
 				// wtf?!
@@ -860,12 +878,17 @@ public class NexusFile extends BaseFormatHandler {
             }
         }
 
-		private boolean codonposset_already_defined = false;
+		// Several files can be read at once, so every thread needs its own flag.
+		private final ThreadLocal<Boolean> codonposset_already_defined = new ThreadLocal<Boolean>() {
+			protected Boolean initialValue() {
+				return Boolean.FALSE;
+			}
+		};
 
 	/**
 	 * Processes the 'CODONS' block.
 	 */
-	public void blockCodons(SequenceList appendTo, NexusTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, int count_lines)
+	public void blockCodons(SequenceList appendTo, NexusTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, FormatInput input)
 		throws FormatException, DelayAbortedException, IOException
 	{
 		int commentLevel = 0;
@@ -878,7 +901,7 @@ public class NexusFile extends BaseFormatHandler {
 			String str = tok.sval;
 
 			if(delay != null)
-				delay.delay(tok.lineno(), count_lines);
+				delay.delay(input.getProgress(), 1000);
 
 			if(type == NexusTokenizer.TT_EOF) {
 				// wtf?!
@@ -936,7 +959,7 @@ public class NexusFile extends BaseFormatHandler {
 						throw formatException(tok, "Expecting a '=', but got something else altogether.");
 					}
 
-					if(codonposset_already_defined) {
+					if(codonposset_already_defined.get().booleanValue() && delay != null) {
 						delay.addWarning("More than one CODONPOSSET command was found in this file. Only the first one will be added.");
 					}
 
@@ -960,11 +983,11 @@ public class NexusFile extends BaseFormatHandler {
 							continue;
 						}
 
-						addCodonPosSet(x, evt, tok, !codonposset_already_defined); // Only add the first one.
+						addCodonPosSet(x, evt, tok, !codonposset_already_defined.get().booleanValue()); // Only add the first one.
 						token = tok.nextToken();
 					}
 
-					codonposset_already_defined = true;
+					codonposset_already_defined.set(Boolean.TRUE);
 
 					// Consume the last ';'
 					if (token != ';') {
@@ -1056,7 +1079,7 @@ public class NexusFile extends BaseFormatHandler {
 			delay.begin();
 
 		// write out a 'preamble'
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		PrintWriter writer = new PrintWriter(CompressedStreams.openBufferedWriter(file));
 
 		writer.println("#NEXUS");
 		writer.println("[Written by TaxonDNA " + Versions.getTaxonDNA() + " on " + new Date() + "]");
@@ -1181,7 +1204,9 @@ public class NexusFile extends BaseFormatHandler {
 				String name = (String) i_names.next();
 				Sequence seq = (Sequence) names.get(name);
 				String display_name = pad_string("'" + name + "'", MAX_TAXON_LENGTH);
-				writer.println(display_name + " " + seq.getSequence() + " [" + seq.getLength() + "]");
+				writer.print(display_name + " ");
+				seq.writeSequence(writer);
+				writer.println(" [" + seq.getLength() + "]");
 
 				x++;
 			}
@@ -1208,11 +1233,15 @@ public class NexusFile extends BaseFormatHandler {
 				while(i_names.hasNext()) {
 					String name = (String) i_names.next();
 					Sequence seq = (Sequence) names.get(name);
-					Sequence subseq = null;
 
 					//System.err.println("Writing sequence " + name + ": " + seq);
 
+					String display_name = pad_string("'" + name + "'", MAX_TAXON_LENGTH);
+					//System.err.println("'" + name + "' became <" + display_name + ">");
+					writer.print(display_name + " ");
+
 					int until = 0;
+					int length = 0;
 
 					try {
 						until = x + interleaveAt;
@@ -1222,15 +1251,14 @@ public class NexusFile extends BaseFormatHandler {
 							until = seq.getLength();
 						}
 
-						subseq = seq.getSubsequence(x + 1, until);
+						// straight from the sequence into the file
+						length = seq.writeSubsequence(writer, x + 1, until);
 					} catch(SequenceException e) {
 						delay.end();
 						throw new IOException("Could not get subsequence (" + (x + 1) + ", " + until + ") from sequence " + seq + ". This is most likely a programming error. The reason given was: " + e.getMessage());
 					}
 
-					String display_name = pad_string("'" + name + "'", MAX_TAXON_LENGTH);
-					//System.err.println("'" + name + "' became <" + display_name + ">");
-					writer.println(display_name + " " + subseq.getSequence() + " [" + subseq.getLength() + ":" + (x + 1) + "-" + (until) + "]");
+					writer.println(" [" + length + ":" + (x + 1) + "-" + (until) + "]");
 				}
 
 				writer.println("");	// print a blank line
@@ -1380,26 +1408,80 @@ public class NexusFile extends BaseFormatHandler {
 	 */
 	public boolean mightBe(File file) {
 		try {
-			BufferedReader buff = new BufferedReader(new FileReader(file));
+			FormatInput input = FormatInput.open(file);
+			try {
+				return mightBe(input);
+			} finally {
+				input.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
 
-			while(buff.ready()) {
-				String str = buff.readLine().trim();
+	/**
+	 * Checks to see if an opened file *might* be of this format: the first
+	 * non-blank line in its header must be '#nexus'.
+	 */
+	public boolean mightBe(FormatInput input) {
+		String[] lines = input.getLines();
 
-				if(str.equals(""))
-					continue;
+		for(int x = 0; x < lines.length; x++) {
+			String str = lines[x].trim();
 
-				if(str.equalsIgnoreCase("#nexus")) {
-					// we find signature!
-					return true;
-				} else {
-					return false;
-				}
+			if(str.equals(""))
+				continue;
+
+			if(str.equalsIgnoreCase("#nexus")) {
+				// we find signature!
+				return true;
+			} else {
+				return false;
 			}
+		}
 
-			return false;
-		} catch(IOException e) {
-			return false;
+		return false;
+	}
+
+	/**
+	 * Joins a row of sequences into a single sequence named 'name', just
+	 * as concatenating them one at a time onto an empty Sequence would.
+	 * If they're all ordinary Sequences (which they usually are), we do
+	 * it in a single pass, instead of copying the sequence so far every
+	 * time another one is added onto it.
+	 */
+	private Sequence concatenateRow(Vector row, String name, int length) {
+		boolean simple = !row.isEmpty();
+
+		Iterator i = row.iterator();
+		while(i.hasNext()) {
+			if(!Sequence.class.equals(i.next().getClass()))
+				simple = false;
 		}
+
+		if(simple) {
+			CharArrayWriter buff = new CharArrayWriter(length);
+
+			try {
+				i = row.iterator();
+				while(i.hasNext())
+					((Sequence) i.next()).writeSequence(buff);
+
+				return new Sequence(name, buff.toString());
+			} catch(IOException e) {
+				// can't happen on a CharArrayWriter
+			} catch(SequenceException e) {
+				// fall through, and do it the slow way
+			}
+		}
+
+		Sequence seq = new Sequence();
+		i = row.iterator();
+		while(i.hasNext())
+			seq = seq.concatSequence((Sequence) i.next());
+		seq.changeName(name);
+
+		return seq;
 	}
 
 	/**
@@ -1530,7 +1612,7 @@ public class NexusFile extends BaseFormatHandler {
 		// do the writing.
 		PrintWriter writer = null;
 		if(how == EXPORT_AS_BLOCKS || how == EXPORT_AS_SINGLE_LINE) {
-			writer = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+			writer = new PrintWriter(CompressedStreams.openBufferedWriter(f));
 
 			writer.println("#NEXUS");
 			writer.println("[Written by TaxonDNA " + Versions.getTaxonDNA() + " on " + new Date() + "]");
@@ -1583,7 +1665,9 @@ public class NexusFile extends BaseFormatHandler {
 					if(seq == null)
 						seq = Sequence.makeEmptySequence(seqName, colLength);
 
-					writer.println(getNexusName(seqName, MAX_TAXON_LENGTH) + " " + seq.getSequence() + " [" + colLength + " bp]");
+					writer.print(getNexusName(seqName, MAX_TAXON_LENGTH) + " ");
+					seq.writeSequence(writer);
+					writer.println(" [" + colLength + " bp]");
 				}
 
 				writer.println("[end of " + fixColumnName(colName) + "]");
@@ -1601,13 +1685,13 @@ public class NexusFile extends BaseFormatHandler {
 				countThisLoop++;
 
 				String seqName = (String) i_rows.next();
-				Sequence seq_interleaved = null;
+				Vector row = null;
 				int length = 0;
 
 				if(how == EXPORT_AS_SINGLE_LINE)
 					writer.print(getNexusName(seqName, MAX_TAXON_LENGTH) + " ");
 				else if(how == EXPORT_AS_INTERLEAVED)
-					seq_interleaved = new Sequence();
+					row = new Vector();
 
 				Iterator i_cols = grid.getColumns().iterator();
 				while(i_cols.hasNext()) {
@@ -1620,20 +1704,17 @@ public class NexusFile extends BaseFormatHandler {
 					length += seq.getLength();
 
 					if(how == EXPORT_AS_SINGLE_LINE)
-						writer.print(seq.getSequence());
+						seq.writeSequence(writer);
 					else if(how == EXPORT_AS_INTERLEAVED)
-						seq_interleaved = seq_interleaved.concatSequence(seq);
+						row.add(seq);
 					else
 						throw new RuntimeException("'how' makes no sense in NexusFile.exportAsNexus()! [how = " + how + "]");
 				}
 
-				if(how == EXPORT_AS_INTERLEAVED)
-					seq_interleaved.changeName(getNexusName(seqName, MAX_TAXON_LENGTH));
-
 				if(how == EXPORT_AS_SINGLE_LINE)
 					writer.println(" [" + length + " bp]");
 				else if(how == EXPORT_AS_INTERLEAVED)
-					list.add(seq_interleaved);
+					list.add(concatenateRow(row, getNexusName(seqName, MAX_TAXON_LENGTH), length));
 			}
 		}
 
@@ -9,6 +9,12 @@
  * We still need to come up with a smart solution for Nexus sequence
  * blocks with wholes in them, but whatever.
  *
+ * We read the file a block at a time, and build each word up in a
+ * single reusable buffer. nextToken() turns words into Strings (in
+ * sval) as usual; nextTokenView() doesn't, and lets you look at the
+ * word through getWord() instead, which is what you want for the
+ * (very long) words in a MATRIX.
+ *
  * @author Gaurav Vaidya gaurav@ggvaidya.com
  */
 
@@ -43,126 +49,29 @@ public class NexusTokenizer {
 	public static final int		TT_WORD =	-3;	// a word (it's in this.sval)
 	public static final int		TT_EOL =	-4;	// end of line
 
-	private int	current_status 	= TT_NULL;
+	/** The size of the blocks we read from the Reader. */
+	private static final int	READ_BUFFER_SIZE = 64 * 1024;
+
 	public 	String 	sval		= null;		// string value
 	private int	lineno		= 1;
 	private Reader	r		= null;
 
-	private Results reportChar(StringBuffer s, char x) {
-		//System.err.println("Reporting string " + s + ", character " + x + " (also known as " + (int)x + ")");
-		Results r = reportWord(s, (int) x);
-		//System.err.println("Resulting in: " + r);
-		return r;
-	}
-
-	private Results reportWord(StringBuffer x) {
-		return reportWord(x, TT_WORD);
-	}
-
-	private Results reportWord(StringBuffer x, int val) {
-		try {
-			if(x == null || x.length() == 0) {
-				if(val == TT_WORD)
-					return null;
-				return new Results(this, val);
-			}
-			return new Results(this, x.toString(), val);
-		} finally {
-			if(x != null)
-				x.delete(0, x.length());
-		}
-	}
-
-	private class Results {
-		private NexusTokenizer tok = null;
-		public int status = 0;
-		public String sval = null;
-
-		public Results(Results r) {
-			tok = r.tok;
-			status = r.status;
-			sval = r.sval;
-		}
-
-		public Results(NexusTokenizer nt, String x) {
-			status = TT_WORD;
-			sval = x;
-			tok = nt;
-		}
-
-		public Results(NexusTokenizer nt, int x) {
-			status = x;
-			sval = null;
-			tok = nt;
-		}
-
-		public Results(NexusTokenizer nt, String x, int status) {
-			sval = x;
-			this.status = status;
-			tok = nt;
-		}
-
-		// we can only be deleted IFF:
-		// 1.	the status is TT_WORD and sval == null
-		// 2.	the status is TT_NULL
-		public boolean canDelete() {
-			return (
-					(status == TT_NULL) ||
-					(status == TT_WORD && sval == null)
-				);
-		}
-
-		public int go() {
-			if(status == TT_WORD) {
-				tok.sval = sval;
-				tok.current_status = status;
-				sval = null;
-				status = TT_NULL;	// the TT_WORD has been consumed.
-			} else {
-				if(sval != null) {
-					// generate the TT_WORD *first*
-					tok.sval = sval;
-					tok.current_status = TT_WORD;
-					sval = null;
-					// but 'status' still has the alternate status message
-				} else {
-					// sval == null
-					// NOW we consume the final status
-					tok.current_status = status;
-					status = TT_NULL;
-				}
-			}
-
-			return tok.current_status;
-		}
+	private char[]	buffer		= new char[READ_BUFFER_SIZE];	// what we've read from 'r'
+	private int	buffer_pos	= 0;
+	private int	buffer_limit	= 0;
+	private boolean	eof		= false;
 
-		public String toString() {
-			StringBuffer str = new StringBuffer();
-			boolean hasString = false;
+	private char[]	token		= new char[256];	// the word we're building (or have just built)
+	private int	token_length	= 0;
 
-			if(sval != null) {
-				if(sval.length() > 20)
-					str.append("status = TT_WORD, word = '" + sval.substring(0, 20) + " ...'");
-				else		
-					str.append("status = TT_WORD, word = '" + sval + "'");
-				hasString = true;
-			}
-			
-			if(status == TT_WORD) {
-				// nothing else to report
-			} else {
-				if(hasString)
-					str.append(" | also hiding: ");
-
-				if(status > 0)
-					str.append("status = '" + (char) status + "'");
-				else
-					str.append("status = " + status);
-			}
+	// what we've lexed, but not yet returned: a word (in 'token') and/or
+	// a status (a character, TT_EOF or TT_EOL) which comes after it
+	private boolean	pending_word	= false;
+	private int	pending_status	= TT_NULL;
 
-			return str.toString();
-		}
-	}
+	// the last token we returned, in case we're asked to pushBack()
+	private int	last_type	= TT_NULL;
+	private boolean	pushed_back	= false;
 
 	public NexusTokenizer(Reader r) {
 		this.r = r;
@@ -204,49 +113,76 @@ public class NexusTokenizer {
 		return false;
 	}
 
-	// 'static' variables for eatNextToken();
+	// state which carries over between calls to eatNextToken()
 	private int commentingLevel = 0;
-	private StringBuffer token = new StringBuffer();
 	private boolean inSingleQuotes = false;
 	private int noOfConseqNewlines = 0;
 
-	private char lastChar = '@';
-	private char ch = '@';
 	/**
-	 * @return TT_NULL, TT_EOF, TT_WORD or (if reportNewlines is on) TT_EOL
+	 * Finishes the current word (if there is one), and notes down
+	 * 'status' (if it isn't TT_NULL) as the token to return after it.
+	 */
+	private void report(int status) {
+		if(token_length > 0)
+			pending_word = true;
+		pending_status = status;
+	}
+
+	/**
+	 * Appends a character to the current word.
+	 */
+	private void append(char ch) {
+		if(token_length == token.length) {
+			char[] bigger = new char[token.length * 2];
+			System.arraycopy(token, 0, bigger, 0, token_length);
+			token = bigger;
+		}
+		token[token_length++] = ch;
+	}
+
+	/**
+	 * Reads characters until we've got something to report: a word, a
+	 * status (a character, TT_EOF or TT_EOL), or both. This might report
+	 * nothing at all (an empty word), in which case you'll have to call
+	 * it again.
+	 *
 	 * @throws IOException if something went wrong while reading the file (note that EOFException will NEVER be thrown)
 	 */ 
-	public Results eatNextToken() throws IOException, FormatException {
+	private void eatNextToken() throws IOException, FormatException {
 		char ch = '@';
+		char lastChar;
+
+		token_length = 0;
+
 		while(true) {
 			lastChar = ch;
-				int c = -1;
-			try {
-				c = r.read();	// next character
-				if(c == -1)
-					throw new EOFException();
-			} catch(EOFException e) {
-				// if there's any words left, we need
-				// to send that first!
-				return reportWord(token, TT_EOF);
+
+			if(buffer_pos == buffer_limit) {
+				int read = eof ? -1 : r.read(buffer, 0, buffer.length);
+				if(read == -1) {
+					// if there's any words left, we need
+					// to send that first!
+					eof = true;
+					report(TT_EOF);
+					return;
+				}
+				buffer_pos = 0;
+				buffer_limit = read;
 			}
 
-			ch = (char) c;
-			int type = Character.getType(ch);
-			// newlines
-			if(
-				(type == Character.PARAGRAPH_SEPARATOR) ||
-				(type == Character.LINE_SEPARATOR) ||
-				(ch == 0x000A || ch == 0x000D)
-			) {
+			ch = buffer[buffer_pos++];
+
+			// newlines (including the Unicode line and paragraph separators)
+			if(ch == 0x000A || ch == 0x000D || ch == '\u2028' || ch == '\u2029') {
 				noOfConseqNewlines++;
 				if(noOfConseqNewlines%2 == 1) {	// skip alternate contiguous newlines
 					lineno++;
 					if(reportNewlines) {
-						return reportWord(token, TT_EOL);	// yes, report BOTH
+						report(TT_EOL);		// yes, report BOTH
 					} else {
-						return reportWord(token);
+						report(TT_NULL);
 					}
+					return;
 				}
 
 				continue;
@@ -275,22 +211,21 @@ public class NexusTokenizer {
 			if(ch == '\'' || ch == '"') {
 				if(lastChar == ch) {
 					// two 's; actually insert one into the buffer (as a normal character)
-					token.append(ch);
+					append(ch);
 				}
 				// one, probably single, 's.
 				// 
 				// are we in a word? if not, a word just ended!
 				if(inSingleQuotes) {
 					inSingleQuotes = false;
-					return reportWord(token);
+					report(TT_NULL);
+					return;
 				} else
 					inSingleQuotes = true;
 
 				continue;
 			}
 
-			//System.err.println("character = '" + ch + "', isWhitespace: " + Character.isWhitespace(ch) + ", lastChar.isWhitespace: " + Character.isWhitespace(lastChar) + ", isLetterOrDigit: " + Character.isLetterOrDigit(ch) + ", heck; token = '" + token + "'");
-	
 			// 2. Now that we'll know if the user *really* means
 			// to put a space in somewhere, let's squeeze up
 			// whitespace!
@@ -301,72 +236,87 @@ public class NexusTokenizer {
 			if(Character.isWhitespace(ch)) {
 				if(Character.isWhitespace(lastChar)) {
 					if(inSingleQuotes)
-						token.append(ch);
+						append(ch);
 					// skip it!
 					continue;
 				} else {
 					if(inSingleQuotes) {
 						// whitespace significant, get on with life.
-						token.append(ch);
+						append(ch);
 						continue;
 					}
 	
 					// not inSingleQuotes! End of word!
-					return reportWord(token);
+					report(TT_NULL);
+					return;
 				}
 			}
 
 			// 3. BUT - punctuation also ends words! (unless we're inSingleQuotes)
 			if(!inSingleQuotes && !Character.isLetterOrDigit(ch) && !isValidCharacter(ch)) {	// TODO are hyphens always okay?
-				return reportChar(token, ch);
+				report((int) ch);
+				return;
 			}
 
 			// it's a letter or digit
-			token.append(ch);
+			append(ch);
 		}
 	}
 
-	private Stack previousResults = new Stack();	// Stack of Results
-	private Results lastResult = null;
-	int v = 0;
+	/**
+	 * Returns the next token: either a character (cast to int), TT_EOF,
+	 * TT_EOL (if reportNewlines is on) or TT_WORD, in which case the
+	 * word is in sval.
+	 */
 	public int nextToken() throws IOException, FormatException {
-		while(lastResult == null) {
-			lastResult = eatNextToken();
+		int type = nextTokenView();
+
+		if(type == TT_WORD)
+			sval = new String(token, 0, token_length);
+
+		return type;
+	}
+
+	/**
+	 * Returns the next token, just like nextToken(), except that words are
+	 * NOT copied into sval (which is left alone). Use getWord() to look
+	 * at them instead.
+	 */
+	public int nextTokenView() throws IOException, FormatException {
+		if(pushed_back) {
+			pushed_back = false;
+			return last_type;
 		}
-		
-		//System.err.println(lastResult);
-
-		// now we have a 'lastResult'.
-		// There are three kinds of lastResults
-		//
-		// luckily, there *is* one this OOP is good at
-		int retVal = lastResult.go();
-
-		// now, we CREATE a Results FROM what we're about to RETURN
-		// and we KEEP a copy in the STACK
-		//
-		// so we can POP it if we HAVE to
-		if(retVal == TT_WORD) {
-			if(lastResult.status != TT_WORD) {				
-				previousResults.push(new Results(this, sval, lastResult.status));
-//				previousResults.push(new Results(this, null, lastResult.status));
-//				previousResults.push(new Results(this, sval, TT_WORD));
-			} else
-				previousResults.push(new Results(this, sval, retVal));					
-		} else
-			previousResults.push(new Results(this, null, retVal));
-
-		// Okay, NOW we can delete the current 'lastResult'
-		if(lastResult.canDelete()) {
-			lastResult = null;
+
+		while(!pending_word && pending_status == TT_NULL)
+			eatNextToken();
+
+		if(pending_word) {
+			pending_word = false;
+			last_type = TT_WORD;
+		} else {
+			last_type = pending_status;
+			pending_status = TT_NULL;
 		}
 
-		return retVal;
+		return last_type;
+	}
+
+	/**
+	 * Returns the word we've just returned TT_WORD for. This is a view into
+	 * our own buffer, so it'll change the next time you call nextToken() or
+	 * nextTokenView(): copy it (with toString()) if you need to keep it.
+	 */
+	public CharSequence getWord() {
+		return java.nio.CharBuffer.wrap(token, 0, token_length);
 	}
 
+	/**
+	 * Pushes the last token back, so the next call to nextToken() will
+	 * return it again. You can only push back one token at a time.
+	 */
 	public void pushBack() {
-		lastResult = (Results) previousResults.pop();
-		//System.err.println("Popping: " + lastResult);
+		pushed_back = true;
 	}
 
 	// Functions which need to work/we need to have:
@@ -375,39 +325,4 @@ public class NexusTokenizer {
 	//	tok.sval 	-> the string value (if nextToken() returns TT_WORD
 	//	tok.lineno()	-> the current line number
 	//		
-
-	/*
-	public void initTokenizer() {
-		ordinaryChar('/');	// this is the default StringTokenizer comment char, so we need to set it back to nothingness
-
-		// turn off parseNumbers()
-		ordinaryChar('.');
-		ordinaryChar('-');
-		ordinaryChars('0','9');
-		wordChars('.','.');
-		wordChars('-','-');
-		wordChars('0','9');
-
-		wordChars('|','|');		// this is officially allowed in Nexus, and pretty convenient for us
-		wordChars('_', '_');
-						// we need to replace this manually. they form one 'word' in NEXUS.
-		wordChars('(','(');		// sequences which use '(ACTG)' = 'N' will now be read in in one shot.
-		wordChars(')',')');
-		ordinaryChar('[');	// We need this to be an 'ordinary' so that we can use it to discriminate comments
-		ordinaryChar(']');	// We need this to be a 'word' so that we can use it to discriminate comments
-		ordinaryChar(';');	// We need this to be a 'word' so that we can use it to distinguish commands 
-
-		// let's see if plain old fashioned quoteChars() works
-		ordinaryChar('\'');
-	}
-	*/
-
-	/**
-	 * Returns the nextToken() (with a little preprocessing from your friends)
-	public int nextToken() throws IOException {
-		int tok = super.nextToken();
-
-		return tok;
-	}
-	*/
 }
@@ -113,7 +113,7 @@ public class PhylipFile extends BaseFormatHandler {
 			delay.begin();
 
 		// write out a 'preamble'
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		PrintWriter writer = new PrintWriter(CompressedStreams.openBufferedWriter(file));
 
 		/*
 		writer.println("nstates 32;");		// give our data the best possible chance
@@ -195,7 +195,9 @@ public class PhylipFile extends BaseFormatHandler {
 				String name = (String) i_names.next();
 				Sequence seq = (Sequence) names.get(name);
 
-				writer.println(name + " " + seq.getSequence());
+				writer.print(name + " ");
+				seq.writeSequence(writer);
+				writer.println();
 
 				x++;
 			}
@@ -164,7 +164,7 @@ public class SequencesFile extends BaseFormatHandler implements Testable {
 		BufferedReader reader = null;
 		
 		try {
-			reader = new BufferedReader(new FileReader(file));
+			reader = CompressedStreams.openReader(file);
 
 			return reader.readLine().trim().regionMatches(
 					true,		// ignore case?
@@ -311,7 +311,7 @@ public class SequencesFile extends BaseFormatHandler implements Testable {
 		int		count_lines = 0;		// we need to know how many sequences there are 
 
 		// okay, first: count sequences. yes, all of them.
-		BufferedReader reader = new BufferedReader(new FileReader(file));
+		BufferedReader reader = CompressedStreams.openReader(file);
 		while(reader.readLine() != null) {
 			count_lines++;
 		}
@@ -319,7 +319,7 @@ public class SequencesFile extends BaseFormatHandler implements Testable {
 		reader = null;
 
 		// start reading the file
-		reader = new BufferedReader(new FileReader(file));
+		reader = CompressedStreams.openReader(file);
 		
 		// the hard work
 		while(reader.ready()) {
@@ -428,7 +428,7 @@ public class SequencesFile extends BaseFormatHandler implements Testable {
 	 * @throws DelayAbortedException if the user aborted this function.
 	 */
 	public void writeFile(File file, SequenceList set, DelayCallback delay) throws IOException, DelayAbortedException {
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		PrintWriter writer = new PrintWriter(new BufferedWriter(CompressedStreams.openWriter(file)));
 		Iterator i = set.iterator();
 		int count = set.count();
 		int x = 0;
@@ -41,6 +41,7 @@ package com.ggvaidya.TaxonDNA.DNA.formats;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ggvaidya.TaxonDNA.Common.*;
 import com.ggvaidya.TaxonDNA.DNA.*;
@@ -125,6 +126,26 @@ public class TNTFile extends BaseFormatHandler {
 	 * @throws DelayAbortedException if the DelayCallback was aborted by the user.
 	 */
 	public void appendFromFile(SequenceList appendTo, File fileFrom, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		FormatInput input = FormatInput.open(fileFrom);
+
+		try {
+			appendFromInput(appendTo, input, delay);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Append an opened file to the specified SequenceList. Progress is
+	 * reported as the fraction of the file we've read so far.
+	 *
+	 * @throws IOException if there was an error doing I/O
+	 * @throws SequenceException if a Sequence is malformed - incorrect bases, etc.
+	 * @throws FormatException if there was an error in the format of the file.
+	 * @throws DelayAbortedException if the DelayCallback was aborted by the user.
+	 */
+	public void appendFromInput(SequenceList appendTo, FormatInput input, DelayCallback delay) throws IOException, SequenceException, FormatException, DelayAbortedException {
+		File fileFrom = input.getFile();
 		FormatHandlerEvent evt = new FormatHandlerEvent(fileFrom, this, appendTo);
 
 		// set up the delay
@@ -134,25 +155,9 @@ public class TNTFile extends BaseFormatHandler {
 		appendTo.lock();
 
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(fileFrom));
-
-			// count lines
-			int count_lines = 0;
-			int count_data = 0;
-			long file_length = fileFrom.length();
-			while(reader.ready()) {
-				if(delay != null)
-					delay.delay((int)((float)count_data/file_length * 100), 1000);
-					// note that we're really going from 0% to 10%. This will
-					// make the user less confused when we jump from 10% to 0% and
-					// start over.
-				count_data += reader.readLine().length();
-				count_lines++;
-			}
-
 			// let's go!
-			reader = new BufferedReader(new FileReader(fileFrom));
-			StreamTokenizer tok = new StreamTokenizer(reader);
+			BufferedReader reader = input.getReader();
+			TNTTokenizer tok = new TNTTokenizer(reader);
 
 			// okay, here's how it's going to work:
 			// 1. 	we will ONLY handle xread for now. i.e. NO other commands will be
@@ -168,13 +173,9 @@ public class TNTFile extends BaseFormatHandler {
 			// 	rigid flexibility they allowed. If any of these rules do NOT work
 			// 	in TNT, lemme know.
 
-			tok.ordinaryChar('/');	// this is the default StringTokenizer comment char, so we need to set it back to nothingness
 			tok.wordChars('@', '@');	// this is a special command we look out for in the title
 
-			// turn off parseNumbers()
-		        tok.ordinaryChar('.');
-		        tok.ordinaryChar('-');
-		        tok.ordinaryChars('0','9');
+			// numbers are just words
 		        tok.wordChars('.','.');
 		        tok.wordChars('-','-');
 		        tok.wordChars('0','9');
@@ -196,13 +197,13 @@ public class TNTFile extends BaseFormatHandler {
 			while(true) {
 				/* Before anything else, do the delay */
 				if(delay != null) 
-					delay.delay(tok.lineno(), count_lines);
+					delay.delay(input.getProgress(), 1000);
 
 				/* Now ... to business! */
 				int type = tok.nextToken();
 
 				// break at end of file
-				if(type == StreamTokenizer.TT_EOF)
+				if(type == TNTTokenizer.TT_EOF)
 					break;
 				
 				// is it a comment?
@@ -228,7 +229,7 @@ public class TNTFile extends BaseFormatHandler {
 				}
 
 				// Words in here are guaranteed to be a 'command'
-				if(newCommand && type == StreamTokenizer.TT_WORD) {
+				if(newCommand && type == TNTTokenizer.TT_WORD) {
 					String str = tok.sval;
 
 					// nstates {we only understand 'nstates tnt'}
@@ -236,7 +237,7 @@ public class TNTFile extends BaseFormatHandler {
 						int token = tok.nextToken();
 
 						if(
-							(token == StreamTokenizer.TT_WORD) &&
+							(token == TNTTokenizer.TT_WORD) &&
 							(tok.sval.equalsIgnoreCase("dna"))
 						) {
 							// nstates dna! we can handle this ...
@@ -249,7 +250,7 @@ public class TNTFile extends BaseFormatHandler {
 
 					// xread {okay, we need to actually read the matrix itself}
 					else if(str.equalsIgnoreCase("xread")) {
-						xreadBlock(appendTo, tok, evt, delay, count_lines);
+						xreadBlock(appendTo, tok, evt, delay, input);
 						newCommand = true;
 						continue;
 					}
@@ -260,12 +261,12 @@ public class TNTFile extends BaseFormatHandler {
 					// since the format is essentially identical, we'll use the
 					// same function to handle them
 					else if(str.equalsIgnoreCase("xgroup")) {
-						groupCommand(GROUP_CHARSET, appendTo, tok, evt, delay, count_lines);
+						groupCommand(GROUP_CHARSET, appendTo, tok, evt, delay, input);
 						newCommand = true;
 						continue;
 					}
 					else if(str.equalsIgnoreCase("agroup")) {
-						groupCommand(GROUP_TAXONSET, appendTo, tok, evt, delay, count_lines);
+						groupCommand(GROUP_TAXONSET, appendTo, tok, evt, delay, input);
 						newCommand = true;
 						continue;
 					}
@@ -297,7 +298,7 @@ public class TNTFile extends BaseFormatHandler {
 		appendTo.setFormatHandler(this);
 	}
 
-	public FormatException formatException(StreamTokenizer tok, String message) {
+	public FormatException formatException(TNTTokenizer tok, String message) {
 		return new FormatException("Error on line " + tok.lineno() + ": " + message);
 	}
 
@@ -310,11 +311,11 @@ public class TNTFile extends BaseFormatHandler {
 	 *
 	 * Implementation note: the string '[]' in the sequence will be converted into a single '-' 
 	 */
-	public void xreadBlock(SequenceList appendTo, StreamTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, int count_lines) 
+	public void xreadBlock(SequenceList appendTo, TNTTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, FormatInput input) 
 		throws FormatException, DelayAbortedException, IOException
 	{
-		Interleaver interleaver = new Interleaver();
-		int seq_names_count = 0;
+		Vector seq_names = new Vector();			// the sequence names, in the order we first saw them
+		Hashtable hash_sequences = new Hashtable();		// String name -> StringBuffer (its bases so far)
 		int begin_at = tok.lineno();		// which line did this xreadBlock start at
 		char missingChar =	'?';
 		char gapChar =		'-';		// there is no standard definition of which characters
@@ -327,16 +328,13 @@ public class TNTFile extends BaseFormatHandler {
 		tok.wordChars('[', '[');		// for [ACTG] -> N type stuff
 		tok.wordChars(']', ']');
 
-		Hashtable hash_names = new Hashtable();			// String name -> Sequence
-		String name = null;
-
 		// '.', '(' and ')' should be read as part of sequence names.
 		tok.wordChars('.', '.');
 		tok.wordChars('(', ')');
 		tok.wordChars(')', ')');
 
 		// okay, 'xread' has started.
-		if(tok.ttype == StreamTokenizer.TT_WORD && tok.sval.equalsIgnoreCase("xread"))
+		if(tok.ttype == TNTTokenizer.TT_WORD && tok.sval.equalsIgnoreCase("xread"))
 			;	// we've already got xread on the stream, do nothing
 		else	
 			tok.nextToken();		// this token IS 'xread'
@@ -351,7 +349,7 @@ public class TNTFile extends BaseFormatHandler {
 
 			while(true) {
 				if(delay != null)
-					delay.delay(tok.lineno(), count_lines);
+					delay.delay(input.getProgress(), 1000);
 				
 				int type = tok.nextToken();
 
@@ -359,13 +357,13 @@ public class TNTFile extends BaseFormatHandler {
 					break;
 
 				// comment commands (our hacks, basically)
-				if(type == StreamTokenizer.TT_WORD) {
+				if(type == TNTTokenizer.TT_WORD) {
 					if(tok.sval.length() > 0 && tok.sval.charAt(0) == '@') {
 						// special command!
 						if(tok.sval.equalsIgnoreCase("@xgroup")) {
-							groupCommand(GROUP_CHARSET, appendTo, tok, evt, delay, count_lines);
+							groupCommand(GROUP_CHARSET, appendTo, tok, evt, delay, input);
 						} else if(tok.sval.equalsIgnoreCase("@agroup")) {
-							groupCommand(GROUP_TAXONSET, appendTo, tok, evt, delay, count_lines);
+							groupCommand(GROUP_TAXONSET, appendTo, tok, evt, delay, input);
 						} else {
 							// oops ... not a command! (that we recognize, anyway)
 						}
@@ -375,7 +373,7 @@ public class TNTFile extends BaseFormatHandler {
 				} else
 					title.append(type);
 
-				if(type == StreamTokenizer.TT_EOF)
+				if(type == TNTTokenizer.TT_EOF)
 					throw formatException(tok, "The title doesn't seem to have been closed properly. Are you sure the final quote character is present?");
 			}
 		} else {
@@ -389,7 +387,7 @@ public class TNTFile extends BaseFormatHandler {
 		// number of characters
 		int nChars = 0;
 		tok.nextToken();
-		if(tok.ttype != StreamTokenizer.TT_WORD)
+		if(tok.ttype != TNTTokenizer.TT_WORD)
 			throw formatException(tok, "Couldn't find the number of characters. I found '" + (char)tok.ttype + "' instead!");
 		try {
 			nChars = Integer.parseInt(tok.sval);
@@ -400,7 +398,7 @@ public class TNTFile extends BaseFormatHandler {
 		// number of taxa
 		int nTax = 0;
 		tok.nextToken();
-		if(tok.ttype != StreamTokenizer.TT_WORD)
+		if(tok.ttype != TNTTokenizer.TT_WORD)
 			throw formatException(tok, "Couldn't find the number of taxa. I found '" + (char)tok.ttype + "' instead!");
 		try {
 			nTax = Integer.parseInt(tok.sval);
@@ -420,9 +418,9 @@ public class TNTFile extends BaseFormatHandler {
 			int type = tok.nextToken();
 
 			if(delay != null)
-				delay.delay(lineno, count_lines);
+				delay.delay(input.getProgress(), 1000);
 
-			if(type == StreamTokenizer.TT_EOF) {
+			if(type == TNTTokenizer.TT_EOF) {
 				// wtf?!
 				throw formatException(tok, "I've reached the end of the file, but the 'xread' beginning at line " + begin_at + " was never terminated.");
 			}
@@ -447,7 +445,7 @@ public class TNTFile extends BaseFormatHandler {
 			if(commentLevel > 0)
 				continue;
 			*/
-			if(type == StreamTokenizer.TT_WORD) {
+			if(type == TNTTokenizer.TT_WORD) {
 				// word!
 				String word = tok.sval;
 
@@ -481,22 +479,22 @@ public class TNTFile extends BaseFormatHandler {
 									// would point to tok.sval.
 				seq_name = seq_name.replace('_', ' ');
 				
-				// get the sequence itself
-				int tmp_type = tok.nextToken();
-				if(tmp_type != StreamTokenizer.TT_WORD) {
+				// get the sequence itself, and add it straight
+				// onto whatever we've got for this name so far
+				// (which is how TNT interleaves)
+				int tmp_type = tok.nextTokenView();
+				if(tmp_type != TNTTokenizer.TT_WORD) {
 					
 					throw formatException(tok, "I recognize sequence name '" + seq_name + "', but instead of the sequence, I find '" + (char)tok.ttype + "'. What's going on?");
 				}
-				String sequence = tok.sval;
-				seq_names_count++;
-
-				// add the sequence to the interleaver
-				try {
-					interleaver.appendSequence(seq_name, sequence);
 
-				} catch(SequenceException e) {
-					throw formatException(tok, "Sequence '" + name + "' contains invalid characters. The exact error encountered was: " + e);
+				StringBuffer bases = (StringBuffer) hash_sequences.get(seq_name);
+				if(bases == null) {
+					bases = new StringBuffer();
+					seq_names.add(seq_name);
+					hash_sequences.put(seq_name, bases);
 				}
+				tok.appendWord(bases);
 
 			} else if(type == '&') {
 				// indicates TNT interleaving
@@ -509,18 +507,23 @@ public class TNTFile extends BaseFormatHandler {
 		// Okay, done with this. Back to ordinaryChar with you!
 		tok.ordinaryChar('.');
 
-		// now, let's 'unwind' the interleaver and 
+		// now, let's turn the bases into sequences, and 
 		// check that the numbers we get match up with
 		// the numbers specified in the file itself.
-		Iterator i = interleaver.getSequenceNamesIterator();
+		Iterator i = seq_names.iterator();
 		int count = 0;
 		while(i.hasNext()) {
 			if(delay != null)
-				delay.delay(count, seq_names_count);
+				delay.delay(count, seq_names.size());
 			count++;
 
 			String seqName = (String) i.next();
-			Sequence seq = interleaver.getSequence(seqName);
+			Sequence seq;
+			try {
+				seq = BaseSequence.createSequence(seqName, ((StringBuffer) hash_sequences.get(seqName)).toString());
+			} catch(SequenceException e) {
+				throw formatException(tok, "Sequence '" + seqName + "' contains invalid characters. The exact error encountered was: " + e);
+			}
 	
 			if(seq.getLength() != nChars) {
 				throw new FormatException("The number of characters specified in the file (" + nChars + ") do not match with the number of characters is sequence '" + seqName + "' (" + seq.getLength() + ").");
@@ -541,7 +544,8 @@ public class TNTFile extends BaseFormatHandler {
 		tok.ordinaryChar(')');
 	}
 
-	int last_group_id_used = 10000;
+	// several files can be read at once, so this has to be atomic
+	private final AtomicInteger last_group_id_used = new AtomicInteger(10000);
 
 	/**
 	 * Parses a 'group' command. Group commands are relatively easy to work with; they go like this:
@@ -553,7 +557,7 @@ public class TNTFile extends BaseFormatHandler {
 	 * 	  				indicates a new taxongroup starting
 	 * In this function, I'll use ?group or _group to indicate, err, well, /[ax]group/.
 	 */
-	public void groupCommand(int which_group, SequenceList appendTo, StreamTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, int count_lines) 
+	public void groupCommand(int which_group, SequenceList appendTo, TNTTokenizer tok, FormatHandlerEvent evt, DelayCallback delay, FormatInput input) 
 		throws FormatException, DelayAbortedException, IOException
 	{
 		int begin_at = tok.lineno();					// which line did this group start at 
@@ -600,12 +604,12 @@ public class TNTFile extends BaseFormatHandler {
 		int sequence_end = -1;
 
 		while(true) {
-			int type = tok.nextToken();
+			int type = tok.nextTokenView();
 
 			if(delay != null)
-				delay.delay(tok.lineno(), count_lines);
+				delay.delay(input.getProgress(), 1000);
 
-			if(type == StreamTokenizer.TT_EOF) {
+			if(type == TNTTokenizer.TT_EOF) {
 				// wtf?!
 				throw formatException(tok, "I've reached the end of the file, but the '" + current_command_name + "' beginning at line " + begin_at + " was never terminated.");
 			}
@@ -637,11 +641,11 @@ public class TNTFile extends BaseFormatHandler {
 
 				// okay, the next token ought to be a unique group id
 				String group_id;
-				if(tok.nextToken() != StreamTokenizer.TT_WORD) {
+				if(tok.nextToken() != TNTTokenizer.TT_WORD) {
 					tok.pushBack();
 
 					// throw formatException(tok, "Expecting the group id, but found '" + (char)tok.ttype + "' instead!");
-					group_id = new Integer(++last_group_id_used).toString();
+					group_id = String.valueOf(last_group_id_used.incrementAndGet());
 				} else {
 					group_id = tok.sval;
 				}
@@ -664,11 +668,11 @@ public class TNTFile extends BaseFormatHandler {
 
 				while(tok.nextToken() != ')') {
 					if(delay != null)
-						delay.delay(tok.lineno(), count_lines);
+						delay.delay(input.getProgress(), 1000);
 
-					if(tok.ttype == StreamTokenizer.TT_EOF)
+					if(tok.ttype == TNTTokenizer.TT_EOF)
 						throw formatException(tok, "The title which began in " + current_command_name + " on line " + title_began + " is not terminated! (I can't find the ')' which would end it).");
-					else if(tok.ttype == StreamTokenizer.TT_WORD)
+					else if(tok.ttype == TNTTokenizer.TT_WORD)
 						buff_name.append(tok.sval);
 					else
 						buff_name.append((char) tok.ttype);
@@ -707,9 +711,10 @@ public class TNTFile extends BaseFormatHandler {
 
 				continue;
 
-			} else if(type == StreamTokenizer.TT_WORD) {
-				// word!
-				String word = tok.sval;
+			} else if(type == TNTTokenizer.TT_WORD) {
+				// word! (most of these are single numbers, which we
+				// can read without turning them into Strings)
+				CharSequence word = tok.getWord();
 
 				// now, this is either:
 				// 1.	\d+	->	a number! submit straightaway, get on with life
@@ -720,7 +725,7 @@ public class TNTFile extends BaseFormatHandler {
 				// the trick is figuring out which one is which.
 				//
 			
-				if(word.indexOf('.') == -1) {
+				if(!contains(word, '.')) {
 					// We've got a single number.
 
 					int locus = atoi(word, tok);
@@ -767,6 +772,7 @@ public class TNTFile extends BaseFormatHandler {
 					// sigh.
 					//
 					// you have to wonder why you bother, sometimes.
+					String str = word.toString();
 
 					// one question: do we have an unfired sequence?
 					// if we do, fire it first!
@@ -787,30 +793,30 @@ public class TNTFile extends BaseFormatHandler {
 					// okay, now we can fire this next bugger
 					int from = 0;
 					int to = 0;
-					if(word.charAt(0) == '.') {
+					if(str.charAt(0) == '.') {
 						// it's a '.\d+' or a '.'
 						
-						if(word.length() == 1) {
+						if(str.length() == 1) {
 							// it's a '.'
 							from = 0;
 							to = appendTo.getMaxLength();
 						} else {
 							// it's a '.\d+'
 							from = 0;
-							to = atoi(word.substring(1), tok);
+							to = atoi(str.substring(1), tok);
 						}
 
-					} else if(word.charAt(word.length() - 1) == '.') {
+					} else if(str.charAt(str.length() - 1) == '.') {
 						// it's at the end
 						
-						from = atoi(word.substring(0, word.length() - 1), tok);
+						from = atoi(str.substring(0, str.length() - 1), tok);
 						to = appendTo.getMaxLength();
 					} else {
 						// it's in the middle
-						int indexOf = word.indexOf('.');
+						int indexOf = str.indexOf('.');
 
-						from = atoi(word.substring(0, indexOf - 1), tok);
-						to = atoi(word.substring(indexOf + 1), tok);
+						from = atoi(str.substring(0, indexOf - 1), tok);
+						to = atoi(str.substring(indexOf + 1), tok);
 					}
 
 					if(which_group == GROUP_CHARSET) {
@@ -869,14 +875,38 @@ public class TNTFile extends BaseFormatHandler {
 		tok.wordChars(')', ')');
 	}
 
-	private int atoi(String word, StreamTokenizer tok) throws FormatException {
+	private int atoi(CharSequence word, TNTTokenizer tok) throws FormatException {
+		// most loci are short runs of digits, which we can do ourselves
+		int length = word.length();
+		if(length > 0 && length < 10) {
+			int result = 0;
+			int x;
+			for(x = 0; x < length; x++) {
+				char ch = word.charAt(x);
+				if(ch < '0' || ch > '9')
+					break;
+				result = result * 10 + (ch - '0');
+			}
+			if(x == length)
+				return result;
+		}
+
 		try {
-			return Integer.parseInt(word);
+			return Integer.parseInt(word.toString());
 		} catch(NumberFormatException e) {
 			throw formatException(tok, "Could not convert word '" + word + "' to a number: " + e);
 		}
 	}
 
+	private static boolean contains(CharSequence word, char ch) {
+		int length = word.length();
+		for(int x = 0; x < length; x++) {
+			if(word.charAt(x) == ch)
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Writes the content of this sequence list into a file. The file is
 	 * overwritten. The order of the sequences written into the file is
@@ -909,7 +939,7 @@ public class TNTFile extends BaseFormatHandler {
 			delay.begin();
 
 		// Start writing to file.
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		PrintWriter writer = new PrintWriter(CompressedStreams.openBufferedWriter(file));
 
 		// First, we write out the TNT preamble.
 		writer.println("nstates 32;");		// give our data the best possible chance
@@ -978,7 +1008,9 @@ public class TNTFile extends BaseFormatHandler {
 
 				String name =	(String)	i_names.next();
 				Sequence seq =	(Sequence)	names.get(name);
-				writer.println(name + " " + seq.getSequence());
+				writer.print(name + " ");
+				seq.writeSequence(writer);
+				writer.println();
 				x++;
 			}
 		} else {
@@ -1005,7 +1037,6 @@ public class TNTFile extends BaseFormatHandler {
 				while (i_names.hasNext()) {
 					String name =	(String)	i_names.next();
 					Sequence seq =	(Sequence)	names.get(name);
-					Sequence subseq = null;
 					int until = 0;
 					try {
 						until = x + interleaveAt;
@@ -1013,7 +1044,11 @@ public class TNTFile extends BaseFormatHandler {
 						if (until > seq.getLength()) {
 							until = seq.getLength();
 						}
-						subseq = seq.getSubsequence(x + 1, until);
+
+						// straight from the sequence into the file
+						writer.print(name + " ");
+						seq.writeSubsequence(writer, x + 1, until);
+						writer.println();
 
 					} catch (SequenceException e) {
 
@@ -1021,8 +1056,6 @@ public class TNTFile extends BaseFormatHandler {
 						throw new IOException("Could not get subsequence (" + (x + 1) + ", " + until + ") from sequence " + seq + ". This is most likely a programming error.");
 
 					}
-
-					writer.println(name + " " + subseq.getSequence());
 				}
 			}
 		}
@@ -1151,29 +1184,42 @@ public class TNTFile extends BaseFormatHandler {
 	 */
 	public boolean mightBe(File file) {
 		try {
-			BufferedReader buff = new BufferedReader(new FileReader(file));
+			FormatInput input = FormatInput.open(file);
+			try {
+				return mightBe(input);
+			} finally {
+				input.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
 
-			while(buff.ready()) {
-				String str = buff.readLine().trim();
+	/**
+	 * Checks to see if an opened file *might* be of this format: there must
+	 * be an 'xread' somewhere in its header.
+	 */
+	public boolean mightBe(FormatInput input) {
+		String[] lines = input.getLines();
 
-				if(str.equals(""))
-					continue;
+		for(int x = 0; x < lines.length; x++) {
+			String str = lines[x].trim();
 
-				if(str.toLowerCase().indexOf("xread") != -1) {
-					// we find xread!
-					// we don't know if its parseable, but ... well.
-					// *shrugs*
-					// </irresponsibility>
-					//
-					// TODO Make this actually work, etc.
-					return true;
-				}
-			}
+			if(str.equals(""))
+				continue;
 
-			return false;
-		} catch(IOException e) {
-			return false;
+			if(str.toLowerCase().indexOf("xread") != -1) {
+				// we find xread!
+				// we don't know if its parseable, but ... well.
+				// *shrugs*
+				// </irresponsibility>
+				//
+				// TODO Make this actually work, etc.
+				return true;
+			}
 		}
+
+		return false;
 	}
 
 	/**
@@ -0,0 +1,281 @@
+/**
+ * TNTTokenizer splits a TNT file into tokens. It works just like the
+ * java.io.StreamTokenizer TNTFile used to use (you set up word,
+ * whitespace and ordinary characters in the same way, and ttype, sval,
+ * lineno() and pushBack() mean the same thing), except that it never
+ * parses numbers or comments, and it's a lot faster on the very long
+ * words which make up an xread matrix: we read the file a block at a
+ * time, and build each word up in a single reusable buffer.
+ *
+ * nextToken() turns words into Strings (in sval) as usual;
+ * nextTokenView() doesn't, and lets you look at the word through
+ * getWord() or appendWord() instead.
+ *
+ * @author Gaurav Vaidya gaurav@ggvaidya.com
+ */
+
+/*
+ * TaxonDNA
+ * Copyright (C) 2010 Gaurav Vaidya
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package com.ggvaidya.TaxonDNA.DNA.formats;
+
+import java.io.*;
+import java.nio.*;
+
+public class TNTTokenizer {
+	public static final int		TT_EOF =	StreamTokenizer.TT_EOF;		// end of file
+	public static final int		TT_WORD =	StreamTokenizer.TT_WORD;	// a word (it's in this.sval)
+	private static final int	TT_NOTHING =	-4;				// nothing read yet
+
+	/** The size of the blocks we read from the Reader. */
+	private static final int	READ_BUFFER_SIZE = 64 * 1024;
+
+	// character types
+	private static final byte	CT_ORDINARY =	0;
+	private static final byte	CT_WHITESPACE =	1;
+	private static final byte	CT_WORD =	2;
+	private static final byte	CT_QUOTE =	3;
+
+	public int	ttype		= TT_NOTHING;	// the type of the last token
+	public String 	sval		= null;		// string value
+	private int	lineno		= 1;
+	private Reader	r		= null;
+
+	private byte[]	ctype		= new byte[256];	// the type of every character below 256 (everything else is a word character)
+
+	private char[]	buffer		= new char[READ_BUFFER_SIZE];	// what we've read from 'r'
+	private int	buffer_pos	= 0;
+	private int	buffer_limit	= 0;
+	private boolean	eof		= false;
+
+	private char[]	token		= new char[256];	// the word we've just read
+	private int	token_length	= 0;
+
+	private boolean	pushed_back	= false;
+
+	/**
+	 * Creates a tokenizer with the same default syntax as StreamTokenizer
+	 * (letters are word characters, control characters and spaces are
+	 * whitespace, and '"' and '\'' quote strings) except that there are
+	 * no comment characters, and numbers aren't parsed.
+	 */
+	public TNTTokenizer(Reader r) {
+		this.r = r;
+
+		wordChars('a', 'z');
+		wordChars('A', 'Z');
+		wordChars(128 + 32, 255);
+		whitespaceChars(0, ' ');
+		quoteChar('"');
+		quoteChar('\'');
+	}
+
+	public int lineno() {
+		return lineno;
+	}
+
+	/** Characters from 'low' to 'high' (inclusive) are part of words. */
+	public void wordChars(int low, int high) {
+		setType(low, high, CT_WORD);
+	}
+
+	/** Characters from 'low' to 'high' (inclusive) separate tokens. */
+	public void whitespaceChars(int low, int high) {
+		setType(low, high, CT_WHITESPACE);
+	}
+
+	/** Characters from 'low' to 'high' (inclusive) are tokens on their own. */
+	public void ordinaryChars(int low, int high) {
+		setType(low, high, CT_ORDINARY);
+	}
+
+	/** 'ch' is a token on its own. */
+	public void ordinaryChar(int ch) {
+		setType(ch, ch, CT_ORDINARY);
+	}
+
+	/**
+	 * 'ch' delimits strings, which run until the next 'ch' (or the end
+	 * of the line). They're returned with ttype set to 'ch'.
+	 */
+	public void quoteChar(int ch) {
+		setType(ch, ch, CT_QUOTE);
+	}
+
+	private void setType(int low, int high, byte type) {
+		if(low < 0)
+			low = 0;
+		if(high >= ctype.length)
+			high = ctype.length - 1;
+
+		for(int x = low; x <= high; x++)
+			ctype[x] = type;
+	}
+
+	/**
+	 * Reads the next character, or returns -1 at the end of the file.
+	 */
+	private int read() throws IOException {
+		if(buffer_pos == buffer_limit) {
+			int read = eof ? -1 : r.read(buffer, 0, buffer.length);
+			if(read <= 0) {
+				eof = true;
+				return -1;
+			}
+			buffer_pos = 0;
+			buffer_limit = read;
+		}
+
+		return buffer[buffer_pos++];
+	}
+
+	/**
+	 * Puts back the character we've just read. Since read() never
+	 * discards the block the last character came from, this always works.
+	 */
+	private void unread() {
+		buffer_pos--;
+	}
+
+	/**
+	 * Appends a character to the current word.
+	 */
+	private void append(char ch) {
+		if(token_length == token.length) {
+			char[] bigger = new char[token.length * 2];
+			System.arraycopy(token, 0, bigger, 0, token_length);
+			token = bigger;
+		}
+		token[token_length++] = ch;
+	}
+
+	/**
+	 * Returns the next token: either a character (cast to int), TT_EOF, or
+	 * TT_WORD, in which case the word is in sval. Quoted strings are
+	 * returned with the quote character as their type, and their contents
+	 * in sval.
+	 */
+	public int nextToken() throws IOException {
+		if(pushed_back) {
+			pushed_back = false;
+			return ttype;
+		}
+
+		nextTokenView();
+
+		if(ttype == TT_WORD || (ttype >= 0 && ttype < ctype.length && ctype[ttype] == CT_QUOTE))
+			sval = new String(token, 0, token_length);
+		else
+			sval = null;
+
+		return ttype;
+	}
+
+	/**
+	 * Returns the next token, just like nextToken(), except that words are
+	 * NOT copied into sval (which is left alone). Use getWord() or
+	 * appendWord() to look at them instead.
+	 */
+	public int nextTokenView() throws IOException {
+		if(pushed_back) {
+			pushed_back = false;
+			return ttype;
+		}
+
+		int ch = read();
+		while(true) {
+			if(ch == -1)
+				return (ttype = TT_EOF);
+
+			byte type = (ch < ctype.length) ? ctype[ch] : CT_WORD;
+
+			if(type == CT_WHITESPACE) {
+				if(ch == '\r') {
+					lineno++;
+					ch = read();
+					if(ch == '\n')
+						ch = read();
+				} else {
+					if(ch == '\n')
+						lineno++;
+					ch = read();
+				}
+				continue;
+			}
+
+			token_length = 0;
+
+			if(type == CT_WORD) {
+				do {
+					append((char) ch);
+					ch = read();
+				} while(ch != -1 && (ch >= ctype.length || ctype[ch] == CT_WORD));
+
+				if(ch != -1)
+					unread();
+
+				return (ttype = TT_WORD);
+			}
+
+			if(type == CT_QUOTE) {
+				int quote = ch;
+
+				ch = read();
+				while(ch != -1 && ch != quote && ch != '\n' && ch != '\r') {
+					append((char) ch);
+					ch = read();
+				}
+
+				if(ch == '\n' || ch == '\r')
+					unread();
+
+				return (ttype = quote);
+			}
+
+			// an ordinary character
+			return (ttype = ch);
+		}
+	}
+
+	/**
+	 * Returns the word we've just returned TT_WORD for. This is a view into
+	 * our own buffer, so it'll change the next time you call nextToken() or
+	 * nextTokenView(): copy it (with toString()) if you need to keep it.
+	 */
+	public CharSequence getWord() {
+		return CharBuffer.wrap(token, 0, token_length);
+	}
+
+	/**
+	 * Appends the word we've just returned TT_WORD for to a StringBuffer.
+	 */
+	public void appendWord(StringBuffer buff) {
+		buff.append(token, 0, token_length);
+	}
+
+	/**
+	 * Pushes the last token back, so the next call to nextToken() will
+	 * return it again. You can only push back one token at a time.
+	 */
+	public void pushBack() {
+		if(ttype != TT_NOTHING)
+			pushed_back = true;
+	}
+}
@@ -0,0 +1,374 @@
+/**
+ * A CellCache holds the values a DisplayMode shows in its table, for
+ * display modes whose values take a while to work out. Only the cells
+ * in the viewport (and a margin around it) are ever worked out, on a
+ * background thread; until they're ready, getValueAt() returns whatever
+ * we showed in that cell last time (or PLACEHOLDER, if we've never shown
+ * it), and the rows are repainted as soon as their values come in. So
+ * opening an enormous matrix shows the first screen straight away,
+ * instead of after every cell in the table has been worked out.
+ *
+ * Values are remembered by row and column name, so they survive the
+ * table being resorted. Once the table is invalidate()d they are
+ * 'stale': we still show them, but we work them out again. The least
+ * recently used values are forgotten once there are more than MAX_CELLS
+ * of them.
+ *
+ * Everything except the background thread's calls to
+ * DisplayMode.computeValueAt() happens on the event dispatch thread.
+ */
+
+/*
+ *
+ *  SequenceMatrix
+ *  Copyright (C) 2010 Gaurav Vaidya
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package com.ggvaidya.TaxonDNA.SequenceMatrix;
+
+import java.awt.Rectangle;
+import java.util.*;
+
+import javax.swing.*;
+import javax.swing.event.*;
+
+public class CellCache implements Runnable {
+	/** What we show in a cell we haven't worked out yet. */
+	public static final String	PLACEHOLDER =		"...";
+
+	private static final int	MAX_CELLS =		200000;	// how many values we remember
+	private static final int	ROW_MARGIN =		100;	// how many rows above and below the viewport we work out
+	private static final int	COLUMN_MARGIN =		5;	// ditto, for columns to the left and right
+	private static final int	CELLS_PER_UPDATE =	500;	// how many cells we work out between repaints
+
+	private DisplayMode		mode =			null;
+
+	private int			generation =		0;	// incremented every time we're invalidate()d
+	private int			fresh =			0;	// how many values are from this generation
+
+	private LinkedHashMap		cells =			new LinkedHashMap(1024, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			if(size() <= MAX_CELLS)
+				return false;
+
+			if(((Cell) eldest.getValue()).generation == generation)
+				fresh--;
+			return true;
+		}
+	};
+
+	private Request			pending =		null;	// the last request we made
+	private Request			next =			null;	// the request the background thread should work on next
+	private Thread			thread =		null;
+
+	/** The value in a single cell, and the generation it was worked out in. */
+	private static class Cell {
+		private String	value;
+		private int	generation;
+
+		public Cell(String value, int generation) {
+			this.value = value;
+			this.generation = generation;
+		}
+	}
+
+	/** A block of cells we'd like the background thread to work out. */
+	private static class Request {
+		private int	generation;
+		private int	from_row, to_row;		// rows from_row to to_row - 1
+		private int	from_col, to_col;		// ditto, for columns
+		private int	rows[];				// the (row, col) of every cell
+		private int	cols[];				// which needs working out
+		private String	keys[];
+		private int	count = 0;
+
+		public Request(int generation, int from_row, int to_row, int from_col, int to_col) {
+			this.generation = generation;
+			this.from_row = from_row;
+			this.to_row = to_row;
+			this.from_col = from_col;
+			this.to_col = to_col;
+
+			int size = (to_row - from_row) * (to_col - from_col);
+			rows = new int[size];
+			cols = new int[size];
+			keys = new String[size];
+		}
+
+		public boolean covers(int generation, int row, int col) {
+			return (
+				this.generation == generation &&
+				row >= from_row && row < to_row &&
+				col >= from_col && col < to_col
+			);
+		}
+
+		public void add(int row, int col, String key) {
+			rows[count] = row;
+			cols[count] = col;
+			keys[count] = key;
+			count++;
+		}
+	}
+
+	/**
+	 * Creates a CellCache which works out its values using
+	 * mode.computeValueAt().
+	 */
+	public CellCache(DisplayMode mode) {
+		this.mode = mode;
+	}
+
+//
+// 1.	THE CACHE
+//
+	/**
+	 * Returns the value at (rowIndex, columnIndex) if we have it (even if
+	 * it's stale), or PLACEHOLDER if we don't. If it isn't fresh, we'll
+	 * work out everything around the viewport in the background.
+	 *
+	 * Cells outside the viewport aren't usually asked for, so if one is,
+	 * we just work it out there and then.
+	 */
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		String key = getKey(rowIndex, columnIndex);
+		Cell cell = (Cell) cells.get(key);
+
+		if(cell != null && cell.generation == generation)
+			return cell.value;
+
+		if(!request(rowIndex, columnIndex)) {
+			String value = String.valueOf(mode.computeValueAt(rowIndex, columnIndex));
+
+			cells.put(key, new Cell(value, generation));
+			if(cell == null || cell.generation != generation)
+				fresh++;
+
+			return value;
+		}
+
+		if(cell == null)
+			return PLACEHOLDER;
+
+		return cell.value;
+	}
+
+	/**
+	 * Returns true if we have an up-to-date value for (rowIndex, columnIndex).
+	 */
+	public boolean isValueReady(int rowIndex, int columnIndex) {
+		if(fresh == 0)
+			return false;		// don't bother looking
+
+		Cell cell = (Cell) cells.get(getKey(rowIndex, columnIndex));
+		return (cell != null && cell.generation == generation);
+	}
+
+	/**
+	 * Marks every value we have as stale. Call this whenever the
+	 * table changes.
+	 */
+	public void invalidate() {
+		generation++;
+		fresh = 0;
+		pending = null;
+	}
+
+	private String getKey(int rowIndex, int columnIndex) {
+		return mode.getRowName(rowIndex) + "\t" + mode.getColumnName(columnIndex);
+	}
+
+//
+// 2.	THE BACKGROUND THREAD
+//
+	/**
+	 * Asks the background thread to work out every cell in and around
+	 * the viewport which isn't fresh, unless we've already asked.
+	 *
+	 * @return false if (rowIndex, columnIndex) isn't anywhere near the
+	 * 	viewport, so it won't be worked out in the background.
+	 */
+	private boolean request(int rowIndex, int columnIndex) {
+		if(pending != null && pending.covers(generation, rowIndex, columnIndex))
+			return true;
+
+		// figure out what's on the screen; if we're not on a table, just
+		// work out the block around this cell.
+		int from_row = rowIndex;
+		int to_row = rowIndex + 1;
+		int from_col = columnIndex;
+		int to_col = columnIndex + 1;
+
+		JTable table = mode.table;
+		if(table != null) {
+			Rectangle visible = table.getVisibleRect();
+
+			int top = table.rowAtPoint(visible.getLocation());
+			int bottom = table.rowAtPoint(new java.awt.Point(visible.x, visible.y + visible.height - 1));
+			int left = table.columnAtPoint(visible.getLocation());
+			int right = table.columnAtPoint(new java.awt.Point(visible.x + visible.width - 1, visible.y));
+
+			if(top != -1 && left != -1) {
+				if(bottom == -1)
+					bottom = mode.getRowCount() - 1;
+				if(right == -1)
+					right = mode.getColumnCount() - 1;
+
+				from_row = top;
+				to_row = bottom + 1;
+				from_col = left;
+				to_col = right + 1;
+			}
+		}
+
+		from_row = Math.max(0, from_row - ROW_MARGIN);
+		to_row = Math.min(mode.getRowCount(), to_row + ROW_MARGIN);
+		from_col = Math.max(1, from_col - COLUMN_MARGIN);		// column 0 is never cached
+		to_col = Math.min(mode.getColumnCount(), to_col + COLUMN_MARGIN);
+
+		if(
+			rowIndex < from_row || rowIndex >= to_row ||
+			columnIndex < from_col || columnIndex >= to_col
+		)
+			return false;
+
+		Request r = new Request(generation, from_row, to_row, from_col, to_col);
+		for(int row = from_row; row < to_row; row++) {
+			for(int col = from_col; col < to_col; col++) {
+				String key = getKey(row, col);
+				Cell cell = (Cell) cells.get(key);
+
+				if(cell == null || cell.generation != generation)
+					r.add(row, col, key);
+			}
+		}
+
+		pending = r;
+		if(r.count == 0)
+			return true;
+
+		synchronized(this) {
+			next = r;
+
+			if(thread == null) {
+				thread = new Thread(this, "CellCache");
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			notifyAll();
+		}
+
+		return true;
+	}
+
+	/**
+	 * The background thread: works out whichever Request we were
+	 * given most recently, sending the values back to the event
+	 * dispatch thread every CELLS_PER_UPDATE cells. A newer Request
+	 * (say, because the user scrolled) takes over straight away.
+	 */
+	public void run() {
+		while(true) {
+			Request r = null;
+
+			synchronized(this) {
+				while(next == null) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+
+				r = next;
+				next = null;
+			}
+
+			String values[] = new String[r.count];
+			boolean failed[] = new boolean[r.count];
+			int from = 0;
+			for(int x = 0; x < r.count; x++) {
+				try {
+					values[x] = String.valueOf(mode.computeValueAt(r.rows[x], r.cols[x]));
+				} catch(RuntimeException e) {
+					// either the table changed under our feet, or the
+					// display mode is broken; deliver() sorts out which
+					failed[x] = true;
+				}
+
+				boolean superseded;
+				synchronized(this) {
+					superseded = (next != null);
+				}
+
+				if(superseded || x == r.count - 1 || x - from + 1 == CELLS_PER_UPDATE) {
+					deliver(r, values, failed, from, x + 1);
+					from = x + 1;
+				}
+
+				if(superseded)
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Hands values[from] to values[to - 1] over to the event dispatch
+	 * thread, which stores them (unless the table has changed since)
+	 * and repaints their rows.
+	 *
+	 * Cells which failed[] on the background thread are worked out again
+	 * on the event dispatch thread. If the table has changed since, the
+	 * whole lot is thrown away anyway; if it hasn't, the failure wasn't
+	 * because of a change, so a display mode which keeps failing throws
+	 * its exception here, just as it would without a CellCache, instead
+	 * of leaving PLACEHOLDER in the cell for ever.
+	 */
+	private void deliver(final Request r, final String values[], final boolean failed[], final int from, final int to) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if(r.generation != generation)
+					return;		// too late!
+
+				for(int x = from; x < to; x++) {
+					if(failed[x])
+						values[x] = String.valueOf(mode.computeValueAt(r.rows[x], r.cols[x]));
+				}
+
+				int first_row = Integer.MAX_VALUE;
+				int last_row = -1;
+
+				for(int x = from; x < to; x++) {
+					Cell old = (Cell) cells.put(r.keys[x], new Cell(values[x], generation));
+					if(old == null || old.generation != generation)
+						fresh++;
+
+					first_row = Math.min(first_row, r.rows[x]);
+					last_row = Math.max(last_row, r.rows[x]);
+				}
+
+				if(last_row == -1)
+					return;
+
+				mode.fireTableModelEvent(new TableModelEvent(mode, first_row, last_row));
+				mode.cellsComputed(first_row, last_row + 1);
+			}
+		});
+	}
+}
@@ -71,13 +71,6 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 	private List		scores			=	null;	// A List of scores for the entire row; we 
 									// need this to display column #2
 
-	private int		ignore_col		=	-1;	// the column component of the sequence to ignore while calculating correlation
-	private int		ignore_row		=	-1;	// the row component of the sequence to ignore while calculating correlation
-
-	private String		override_reference_sequence = null;	// try not to think about this ;-)
-									// okay: for testCorrelation(), this will over-ride
-									// the reference sequence.
-
 	private class Score implements Comparable {
 			private String seqName_top = "";	// the seqname named 'seqName_top' is floated to the top
 			private String name = "";
@@ -217,8 +210,6 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 		}
 
 		String seqName_top = this.seqName_top;		// make a local copy
-		if(override_reference_sequence != null)
-			seqName_top = override_reference_sequence;
 		
 		// Okay: NOW, we need to calculate all the distances! Isn't this fun?!
 		distances = new double[columnList.size()][sequencesList.size()];	// TODO: catch OutOfMemory here?
@@ -380,6 +371,7 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 		//if(Math.random() > 0.999)
 		//	throw new RuntimeException("GO!");
 
+		sums = null;		// the correlations will need to be recalculated
 		sortedSequences = sequencesList;
 		return sortedSequences;
 	}
@@ -579,179 +571,272 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 //
 // MATHEMATICS BACKING THE CORRELATION CALCULATIONS
 //
-	double[][] correlations = null;
+	private CorrelationSums sums = null;		// the sums for distances[][]; null until we need them
+
 	/**
-	 * Calculates and returns the correlation between two columns;
-	 * in this case indicated by indices into the arrays used by
-	 * us.
+	 * The correlations between every pair of columns in a table of distances
+	 * from a reference sequence, which must be in row 0. Columns in which row 0
+	 * isn't DIST_SEQ_ON_TOP (i.e. the reference sequence has no data) can't be
+	 * correlated, and cells with a distance below 0 are left out.
+	 *
+	 * For every pair of columns we keep the running sums the correlation is
+	 * worked out from (n, sum of x, sum of y, sum of x^2, sum of y^2 and sum
+	 * of xy). Leaving a single cell out only changes the sums for the pairs
+	 * involving its column, by exactly that cell's contribution, so we can
+	 * work out the average correlation without it in O(columns) instead of
+	 * walking down every column again.
 	 */
-	public double getCorrelation(int x, int y) {
-		// only do a half-rectangle (a triangle)
-		if(x == y)
-			return 1.0;		// identical columns are perfectly correlated
-
-		if(x > y)
-			return getCorrelation(y, x);		// only do a triangle
-
-		// okay, he're how it work: 
-		// 0.	HACK TIME! Okay, here's how we're REALLY going to do it:
-		// 	1.	The first time we're run, we generate an correlation
-		// 		matrix: column vs. column correlations for everything
-		// 		on the board. This matrix is obviously reset every
-		// 		time getSortedSequences() is called (alternatively,
-		// 		we could do it every time ignore_row and ignore_col
-		// 		are at -1).
-		//
-		// 	2.	Every subsequent time we're called (with ignore_row
-		// 		and ignore_col not being set to -1), we ONLY recalculate
-		// 		the part of the matrix which is relevant to the
-		// 		ignore_row/col. For a normal correlation matrix, this
-		// 		is every entry in that column's ROW and COLUMN.
-		//
-		// See below for the actual (non-pre-calculated algorithm)
-		//
-		int N = sortedColumns.size();
-		if(ignore_col == -1 || correlations == null || correlations[0].length < N) {
+	private static class CorrelationSums {
+		private double	dist[][];		// [column][row]
+		private boolean	usable[];		// does row 0 have data in this column?
+
+		private int	n[][];			// these are all [x][y], for x < y
+		private double	sum_x[][];
+		private double	sum_y[][];
+		private double	sum_x2[][];
+		private double	sum_y2[][];
+		private double	sum_xy[][];
+		private double	r[][];
+
+		private double	total_r = 0;		// the sum of every correlation we average ...
+		private int	count_r = 0;		// ... and how many of them there are
+
+		private static final double ROUNDING_ERROR = 1e-12;	// relative to n * sum_x2
+
+		public CorrelationSums(double dist[][]) {
+			int N = dist.length;
+
+			this.dist = dist;
+			usable = new boolean[N];
+			for(int x = 0; x < N; x++)
+				usable[x] = (dist[x].length > 0 && dist[x][0] == DIST_SEQ_ON_TOP);
+
+			n = new int[N][N];
+			sum_x = new double[N][N];
+			sum_y = new double[N][N];
+			sum_x2 = new double[N][N];
+			sum_y2 = new double[N][N];
+			sum_xy = new double[N][N];
+			r = new double[N][N];
+
+			for(int x = 0; x < N; x++) {
+				for(int y = x + 1; y < N; y++) {
+					if(!usable[x] || !usable[y])
+						continue;
 
-			correlations = new double[N][N];
+					for(int c = 1; c < dist[x].length; c++) {
+						double d_x = dist[x][c];
+						double d_y = dist[y][c];
 
-			for(int c = 0; c < N; c++)
-				Arrays.fill(correlations[c], -1.0);
-		}
+						if(d_x < 0 || d_y < 0)
+							continue;
+
+						// valid!
+						n[x][y]++;
+
+						sum_x[x][y] += d_x;
+						sum_x2[x][y] += (d_x * d_x);
 
-		if(ignore_col != -1) {
-			// we have an ignore_row/col situation
-			// do we have to recalculate ourselves?
-			if(x != ignore_col && y != ignore_col) {
-				// we don't know which order we'll come up with next
-				if(correlations[x][y] != -1)
-					return correlations[x][y];
-				if(correlations[y][x] != -1)
-					return correlations[y][x];
+						sum_y[x][y] += d_y;
+						sum_y2[x][y] += (d_y * d_y);
+
+						sum_xy[x][y] += (d_x * d_y);
+					}
+
+					r[x][y] = correlation(n[x][y], sum_x[x][y], sum_y[x][y], sum_x2[x][y], sum_y2[x][y], sum_xy[x][y]);
+
+					total_r += r[x][y];
+					count_r++;
+				}
+
+				// identical columns are perfectly correlated
+				total_r += 1.0;
+				count_r++;
 			}
 		}
 
+		/**
+		 * Returns the correlation between columns x and y, or -2
+		 * if either column has no data for the reference sequence.
+		 */
+		public double getCorrelation(int x, int y) {
+			if(x == y)
+				return 1.0;
 
-		//
-		// 1.	walk pairwise along the column. 
-		//
-		// 	For every valid match:
-		// 	1.	increment N
-		// 	2.	sum += x
-		// 	3.	sum_2 += (x * x)
-		// 	etc.
-		// ?
-		//
-		if(distances == null)
-			return -1.0;
+			if(x > y)
+				return getCorrelation(y, x);		// only do a triangle
 
-		int n = 0;
+			if(!usable[x] || !usable[y])
+				return -2;	// error
 
-		double sum_x = 0;
-		double sum_y = 0;
+			return r[x][y];
+		}
 
-		double sum_x2 = 0;
-		double sum_y2 = 0;
+		/**
+		 * Returns the average correlation between every pair of columns
+		 * (including every column with itself), or -1 if there are fewer
+		 * than two columns.
+		 */
+		public double getAverageR() {
+			if(dist.length < 2)
+				return -1.0;
 
-		double sum_xy = 0;
+			return (total_r / (double)count_r);
+		}
 
-		if(distances[x][0] != DIST_SEQ_ON_TOP || distances[y][0] != DIST_SEQ_ON_TOP)
-			return -2;	// error
+		/**
+		 * Returns what getAverageR() would be if the cell at (col, row)
+		 * were left out of the table.
+		 */
+		public double getAverageRWithout(int col, int row) {
+			double d_col = dist[col][row];
 
-		for(int c = 1; c < sortedSequences.size(); c++) {
-			if(c == ignore_row) {
-				if(x == ignore_col || y == ignore_col)
-					continue;
-			}
+			if(dist.length < 2 || row == 0 || !usable[col] || d_col < 0)
+				return getAverageR();
 
-			double d_x = distances[x][c];
-			double d_y = distances[y][c];
+			double total = total_r;
+			for(int other = 0; other < dist.length; other++) {
+				double d_other = dist[other][row];
 
-			if(d_x < 0 || d_y < 0)
-				continue;
-
-			// valid!
-			n++;
+				if(other == col || !usable[other] || d_other < 0)
+					continue;
 
-			sum_x += d_x;
-			sum_x2 += (d_x * d_x);
+				int x = Math.min(col, other);
+				int y = Math.max(col, other);
+				double d_x = dist[x][row];
+				double d_y = dist[y][row];
+
+				double r_without = correlation(
+					n[x][y] - 1,
+					sum_x[x][y] - d_x,
+					sum_y[x][y] - d_y,
+					sum_x2[x][y] - (d_x * d_x),
+					sum_y2[x][y] - (d_y * d_y),
+					sum_xy[x][y] - (d_x * d_y)
+				);
 
-			sum_y += d_y;
-			sum_y2 += (d_y * d_y);
+				total += r_without - r[x][y];
+			}
 
-			sum_xy += (d_x * d_y);
+			return (total / (double)count_r);
 		}
 
-		double variable_x = (n * sum_x2) - (sum_x * sum_x);
-		double variable_y = (n * sum_y2) - (sum_y * sum_y);		
-
-		// since these cases mean that there is inadequate information
-		// for a match (too many N/A sequences, basically) this is
-		// logically the same as there being no correlation between
-		// this pair of numbers
-		if(variable_x <= 0)
-			return 0.0;
-
-		if(variable_y <= 0)
-			return 0.0;
-
-		double r = (
-				((double)n * sum_xy) - (sum_x * sum_y)
-			) 
-			/ 
-			(
-			 	Math.sqrt(
-					variable_x
+		/**
+		 * Works out Pearson's correlation coefficient from the running sums.
+		 */
+		private static double correlation(int n, double sum_x, double sum_y, double sum_x2, double sum_y2, double sum_xy) {
+			// with fewer than two values, there's no variance to speak of (and
+			// subtracting a value back out of the sums might leave a rounding
+			// error which would suggest otherwise)
+			if(n < 2)
+				return 0.0;
+
+			double variable_x = (n * sum_x2) - (sum_x * sum_x);
+			double variable_y = (n * sum_y2) - (sum_y * sum_y);		
+
+			// since these cases mean that there is inadequate information
+			// for a match (too many N/A sequences, basically) this is
+			// logically the same as there being no correlation between
+			// this pair of numbers. A column of identical distances can
+			// leave a rounding error behind, so anything that small is
+			// zero, too.
+			if(variable_x <= ROUNDING_ERROR * n * sum_x2)
+				return 0.0;
+
+			if(variable_y <= ROUNDING_ERROR * n * sum_y2)
+				return 0.0;
+
+			return (
+					((double)n * sum_xy) - (sum_x * sum_y)
 				) 
-				*
-				Math.sqrt(
-					variable_y
-				)
-			);
+				/ 
+				(
+				 	Math.sqrt(
+						variable_x
+					) 
+					*
+					Math.sqrt(
+						variable_y
+					)
+				);
+		}
+	}
 
-		correlations[x][y] = r;
+	/**
+	 * Returns the CorrelationSums for the table we're displaying.
+	 */
+	private CorrelationSums getSums() {
+		if(sums == null)
+			sums = new CorrelationSums(distances);
+
+		return sums;
+	}
+
+	/**
+	 * Calculates and returns the correlation between two columns;
+	 * in this case indicated by indices into the arrays used by
+	 * us.
+	 */
+	public double getCorrelation(int x, int y) {
+		if(distances == null)
+			return -1.0;
 
-		return r;
+		return getSums().getCorrelation(x, y);
 	}
 
 	public double getAverageR() {
 		int N = sortedColumns.size();
 
-		//System.err.println("avg_r begin");
 		if(N == 0 || distances == null)
 			return -2.0;		// don't try this unless you've got atleast one column
 
 		if(N == 1)
 			return -1.0;		// don't try this unless you've got atleast two columns
 
-		//System.err.println("avg_r middle");
+		return getSums().getAverageR();
+	}
 
-		double dist[][] = dist = (double[][]) distances.clone();
-		double R_iy[] = new double[N - 1];
-		double R_ii[][] = new double[N - 1][N - 1];
-		double total = 0;
-		long n = 0;
+	/**
+	 * Works out the distances from the reference sequence (row id 'top')
+	 * to every row in 'rows', in every column in 'cols'. The reference
+	 * sequence goes into row 0, and the others follow in the order they're
+	 * in 'rows'.
+	 */
+	private static double[][] getDistances(DataStore ds, int cols[], int rows[], int top) {
+		double dist[][] = new double[cols.length][rows.length];
 
-		// calculate R_ii, the matrix of correlations amongst Xs
-		for(int y = 0; y < N; y++) {
-			for(int x = 0; x < N; x++) {
-				if(y < x)
-					continue;
+		for(int x = 0; x < cols.length; x++) {
+			Sequence seq_compare = ds.getSequence(cols[x], top);
 
-				double c = getCorrelation(y, x);
-				if(c < -1)		// error
+			dist[x][0] = (seq_compare == null) ? DIST_NO_COMPARE_SEQ : DIST_SEQ_ON_TOP;
+
+			int y = 1;
+			for(int c = 0; c < rows.length; c++) {
+				if(rows[c] == top)
 					continue;
-				total += c;
-				n++;
+
+				Sequence seq = ds.getSequence(cols[x], rows[c]);
+
+				double dist_y = DIST_ILLEGAL;
+				if(seq_compare == null) {
+					dist_y = DIST_NO_COMPARE_SEQ;
+				} else if(seq == null) {
+					if(ds.isSequenceCancelled(cols[x], rows[c]))
+						dist_y = DIST_CANCELLED;
+					else
+						dist_y = DIST_SEQ_NA;
+				}
+				else if((dist_y = seq.getPairwiseNoBuffer(seq_compare)) < 0) {
+					// illegal!
+					dist_y = DIST_NO_OVERLAP;
+				}
+
+				dist[x][y] = dist_y;
+				y++;
 			}
 		}
-		
-		//System.err.println("avg_r end");
 
-		if(n == 0)
-			return -1;
-
-		return (total / (double)n);
+		return dist;
 	}
 
 	public void testCorrelation() {
@@ -764,23 +849,18 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 		}
 	}
 
+	/** How many of the most improving sequences we list for each gene. */
+	private static final int NO_SEQUENCES = 10;
+
 	public void run() {
-		// here's what we do ...
-		// 1. 	cancel every single sequence, one by one (note that this actually means
-		// 	we UNCANCEL sequences which are already cancelled, which does kinda sorta
-		// 	make something of a logical sense to me).
+		// here's what we do, for every reference sequence z:
+		// 1. 	leave out every single sequence, one by one.
 		// 2.	we calculate the getAverageR() for the entire dataset as a whole, storing
 		// 	the initial, final and difference.
 		// 3.	we sort them by difference (we can actually use Score to do this!)
-
-		// what's the initial R2?
-		double r2_initial = -1;
-
-		ProgressDialog delay = ProgressDialog.create(
-				tableManager.getFrame(),
-				"Please wait, calculation correlations ...",
-				"Correlations between genes are being calculated. Sorry for the delay!");
-		delay.begin();
+		//
+		// Every reference sequence is independent of the others, so we
+		// work through them on a WorkerPool.
 
 		if(sortedSequences == null || sortedSequences.size() == 0)
 			return;				// can't do without sequences to test
@@ -793,91 +873,52 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 		v_list.add("Please select a gene to view the most improving sequences for that gene");
 		list_sequences.setListData(v_list);
 
-		String initial_seqName = (String) sortedSequences.get(0);
+		final DataStore ds = tableManager.getDataStore();
+		final List columns = new Vector(sortedColumns);
+		final List sequences = new Vector(sortedSequences);
 
-		ignore_col = -1;
-		ignore_row = -1;
+		final int cols[] = new int[columns.size()];
+		for(int y = 0; y < cols.length; y++)
+			cols[y] = ds.getColumnId((String) columns.get(y));
 
-		Hashtable ht_scoresPerGene = new Hashtable();
-		Iterator i = sortedColumns.iterator();
-		while(i.hasNext()) {
-			String name = (String) i.next();
-
-			ht_scoresPerGene.put(name, new Vector());
-		}
-
-		Set sequencesSet = new HashSet(sortedSequences);
-		Vector initialSequencesList = new Vector(sortedSequences);
-		for(int z = 0; z < initialSequencesList.size(); z++) {
-			String seqName_z = (String) initialSequencesList.get(z);
-
-			override_reference_sequence = seqName_z;
-			System.err.println("Sorting z=" + seqName_z);
-			try {
-				delay.delay(z, initialSequencesList.size());
-			} catch(DelayAbortedException e) {
-				// ignore
-			}
-			getSortedSequences(sequencesSet);	// we don't need it, just the tables
-			//updateDisplay();
-		
-			r2_initial = 	getAverageR();
-
-			for(int y = 0; y < sortedColumns.size(); y++) {
-				String colName = (String) sortedColumns.get(y);
-
-				for(int x = 1; x < sortedSequences.size(); x++) {
-					String seqName = (String) sortedSequences.get(x);
+		final int rows[] = new int[sequences.size()];
+		for(int x = 0; x < rows.length; x++)
+			rows[x] = ds.getSequenceId((String) sequences.get(x));
 
-					// cancel (or uncancel) this sequence
-					ignore_col = y;
-					ignore_row = x;
+		// best[z][y] is the most improving sequences (as a Vector of Scores)
+		// in column y, with sequence z as the reference sequence.
+		final Vector best[][] = new Vector[rows.length][cols.length];
 
-					// what's the R_squared now?
-					double r2_final =	getAverageR();
-					double diff = 		r2_final - r2_initial;
-
-//					String name = seqName_z + ":" + seqName + ":" + colName + "\t" + (float)r2_initial + "\t" + (float)r2_final + "\t(" + (float) diff + ")";
-//					TODO: we will need a way to 'fall back', in case the system's font doesn't
-//					support Unicode characters 2191-94.
-//
-					String str_direction = "\u2191";	// up_arrow
-					if(diff < 0) {
-						str_direction = "\u2193";	// down_arrow
-						diff = -diff;			// make the different positive
-					}
-					if(identical(diff, 0.0))
-						str_direction = "\u2194";	// '<->' symbol
-					String name = seqName_z + ":" + seqName + " ~ " + (float)r2_final + " (" + (float)r2_initial + "" + str_direction + "" + (float) diff + ")";
+		ProgressDialog delay = ProgressDialog.create(
+				tableManager.getFrame(),
+				"Please wait, calculation correlations ...",
+				"Correlations between genes are being calculated. Sorry for the delay!");
+		delay.begin();
 
-					((Vector)ht_scoresPerGene.get(colName)).add(new Score(name, r2_final, -1));
-//					vec_scores.add(new Score(name, diff, -1));
-	
-					// uncancel (or recancel) this sequence
-					ignore_col = -1;
-					ignore_row = -1;
+		try {
+			WorkerPool.forEach(rows.length, new WorkerPool.Job() {
+				public void run(int z) {
+					best[z] = findImprovingSequences(ds, cols, rows, z, (String) sequences.get(z));
 				}
-			}
+			}, delay);
+		} catch(DelayAbortedException e) {
+			// the ProgressDialog has already end()ed itself
+			return;
+		} catch(java.util.concurrent.ExecutionException e) {
+			delay.end();
+			throw new RuntimeException("Could not calculate correlations", e.getCause());
 		}
 
-		override_reference_sequence = null;
-		getSortedSequences(sequencesSet);	// we don't need it, just re-initialize to
-							// what we're displaying
-		ignore_col = -1;
-		ignore_row = -1;
-		r2_initial = getAverageR();
-
 		// sort 'em!
 		ht_matches = new Hashtable();
 
-		i = ht_scoresPerGene.keySet().iterator();
-		while(i.hasNext()) {
-			String gene = (String) i.next();
+		for(int y = 0; y < cols.length; y++) {
+			String gene = (String) columns.get(y);
 			Vector matches = new Vector();
 
-			int NO_SEQUENCES = 10;
-
-			Vector v = (Vector) ht_scoresPerGene.get(gene);
+			Vector v = new Vector();
+			for(int z = 0; z < rows.length; z++)
+				v.addAll(best[z][y]);
 			Collections.sort(v);
 			
 			Iterator i2 = v.iterator();
@@ -885,10 +926,6 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 			while(i2.hasNext()) {
 				Score s = (Score) i2.next();
 
-				if(s.getName().indexOf("0.0)") != -1) {	// FIXME: TODO
-					continue;
-				}
-
 				if(x >= NO_SEQUENCES)
 					break;
 				x++;
@@ -899,7 +936,6 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 			ht_matches.put(gene, matches);
 		}
 
-		System.err.println("CDM:testCorrelation");
 		delay.end();
 		
 		//MessageBox mb = new MessageBox(
@@ -909,6 +945,65 @@ public class DisplayCorrelationsMode extends DisplayMode implements MouseListene
 		//mb.go();
 	}
 
+	/**
+	 * Leaves out every cell, one at a time, from the table of distances
+	 * to the reference sequence rows[z], and works out how much the
+	 * average correlation changes. Returns the NO_SEQUENCES sequences
+	 * whose removal most improves the average correlation for each
+	 * column, as a Vector of Scores.
+	 */
+	private Vector[] findImprovingSequences(DataStore ds, int cols[], int rows[], int z, String seqName_z) {
+		double dist[][] = getDistances(ds, cols, rows, rows[z]);
+		CorrelationSums sums = new CorrelationSums(dist);
+
+		double r2_initial = sums.getAverageR();
+
+		Vector best[] = new Vector[cols.length];
+		for(int y = 0; y < cols.length; y++) {
+			Vector scores = new Vector();
+
+			// dist[y] has the reference in row 0, followed by
+			// every other row in order
+			int row = 1;
+			for(int x = 0; x < rows.length; x++) {
+				if(x == z)
+					continue;
+
+				// what's the R_squared now?
+				double r2_final =	sums.getAverageRWithout(y, row);
+				double diff = 		r2_final - r2_initial;
+				row++;
+
+//				TODO: we will need a way to 'fall back', in case the system's font doesn't
+//				support Unicode characters 2191-94.
+//
+				String str_direction = "\u2191";	// up_arrow
+				if(diff < 0) {
+					str_direction = "\u2193";	// down_arrow
+					diff = -diff;			// make the different positive
+				}
+
+				// if it makes no difference, it's not worth listing
+				if((float) diff == 0)
+					continue;
+
+				if(identical(diff, 0.0))
+					str_direction = "\u2194";	// '<->' symbol
+				String name = seqName_z + ":" + ds.getSequenceName(rows[x]) + " ~ " + (float)r2_final + " (" + (float)r2_initial + "" + str_direction + "" + (float) diff + ")";
+
+				scores.add(new Score(name, r2_final, -1));
+			}
+
+			// we only need the best few from each reference sequence
+			Collections.sort(scores);
+			if(scores.size() > NO_SEQUENCES)
+				scores.setSize(NO_SEQUENCES);
+			best[y] = scores;
+		}
+
+		return best;
+	}
+
 	public boolean identical(double x, double y) {
 		return com.ggvaidya.TaxonDNA.DNA.Settings.identical(x, y);
 	}
@@ -77,11 +77,82 @@ public class DisplayDistancesMode extends DisplayMode implements ItemListener {
 
 	private List		scores			=	null;
 
+	private HashMap		distance_caches		=	new HashMap();	// colName -> DistanceCache
+
+	/**
+	 * The pairwise distances we've already worked out in one column.
+	 * We keep them for the last few reference sequences (and distance
+	 * methods), so clicking back to an earlier reference taxon doesn't
+	 * mean working them all out again. Every distance is stored against
+	 * its row id, along with the UUID of the sequence it was worked out
+	 * for; since changing a sequence changes its UUID, a changed cell
+	 * is simply recalculated.
+	 */
+	private static class DistanceCache {
+		private static final int MAX_REFERENCES = 4;
+
+		private LinkedHashMap references = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > MAX_REFERENCES;
+			}
+		};
+
+		/** The distances to one reference sequence, by row id. */
+		public static class Distances {
+			private com.ggvaidya.TaxonDNA.Others.UUID	uuids[] = new com.ggvaidya.TaxonDNA.Others.UUID[0];
+			private double	values[] = new double[0];
+
+			/**
+			 * Returns seq.getPairwise(reference) for the sequence in row 'row',
+			 * calculating it only if we haven't already.
+			 */
+			public double getPairwise(int row, Sequence seq, Sequence reference) {
+				if(uuids[row] != seq.getId()) {		// a changed sequence gets a new UUID object
+					values[row] = seq.getPairwiseNoBuffer(reference);
+					uuids[row] = seq.getId();
+				}
+
+				return values[row];
+			}
+
+			private void ensureCapacity(int rows) {
+				if(uuids.length >= rows)
+					return;
+
+				com.ggvaidya.TaxonDNA.Others.UUID new_uuids[] = new com.ggvaidya.TaxonDNA.Others.UUID[rows];
+				double new_values[] = new double[rows];
+				System.arraycopy(uuids, 0, new_uuids, 0, uuids.length);
+				System.arraycopy(values, 0, new_values, 0, values.length);
+
+				uuids = new_uuids;
+				values = new_values;
+			}
+		}
+
+		/**
+		 * Returns the distances to 'reference' under the current distance
+		 * method and minimum overlap, with room for rows ids below 'rows'.
+		 */
+		public Distances getDistances(Sequence reference, int rows) {
+			String key = reference.getId() + " " + Sequence.getPairwiseDistanceMethod() + " " + Sequence.getMinOverlap();
+
+			Distances distances = (Distances) references.get(key);
+			if(distances == null) {
+				distances = new Distances();
+				references.put(key, distances);
+			}
+
+			distances.ensureCapacity(rows);
+			return distances;
+		}
+	}
+
 	private class Score implements Comparable {
 		private String seqName_top = "";
 		private String seqName = "";
 		private double pairwise = 0.0;
 		private int constant = +1;
+		private int index = 0;		// where seqName was before we sorted it
 
 		public Score(String seqName, double pairwise) {
 			this.seqName = seqName;
@@ -240,65 +311,42 @@ public class DisplayDistancesMode extends DisplayMode implements ItemListener {
 		}
 		
 		// Okay: NOW, we need to calculate all the distances! Isn't this fun?!
-		distances = new double[columnList.size()][sequencesList.size()];	// TODO: catch OutOfMemory here?
+		// We look everything up by id, work through the columns in parallel,
+		// and remember each column's distances to the reference sequence, so
+		// that we only recalculate the cells which have changed since.
+		final DataStore ds = tableManager.getDataStore();
+		final int col_ids[] = new int[columnList.size()];
+		final int row_ids[] = new int[sequencesList.size()];
+		final DistanceCache caches[] = new DistanceCache[columnList.size()];
+		final int top = ds.getSequenceId(seqName_top);
 
-		double max[] = new double[columnList.size()];
-		Arrays.fill(max, -1.0);
-		double min[] = new double[columnList.size()];
-		Arrays.fill(min, +2.0);
-
-		// pass 1: calculate all the distances, figure out max and min
 		for(int x = 0; x < columnList.size(); x++) {
 			String colName = (String) columnList.get(x);
 
-			for(int y = 0; y < sequencesList.size(); y++) {
-				String seqName = (String) sequencesList.get(y);
-
-				Sequence seq = tableManager.getSequence(colName, seqName);
-				Sequence seq_compare = tableManager.getSequence(colName, seqName_top);
-
-				double dist = DIST_ILLEGAL;
-				if(seq_compare == null) {
-					dist = DIST_NO_COMPARE_SEQ;
-				}
-				else if(seqName_top.equals(seqName)) {
-					dist = DIST_SEQ_ON_TOP;
-				} else if(seq == null) {
-					if(tableManager.isSequenceCancelled(colName, seqName))
-						dist = DIST_CANCELLED;
-					else
-						dist = DIST_SEQ_NA;
-				}
-				else if((dist = seq.getPairwise(seq_compare)) < 0) {
-					// illegal!
-					dist = DIST_NO_OVERLAP;
-				}
-
-				distances[x][y] = dist;
-
-				if(dist >= 0) {
-					if(dist > max[x])
-						max[x] = dist;
-
-					if(dist < min[x])
-						min[x] = dist;
-				}
+			col_ids[x] = ds.getColumnId(colName);
+			caches[x] = (DistanceCache) distance_caches.get(colName);
+			if(caches[x] == null) {
+				caches[x] = new DistanceCache();
+				distance_caches.put(colName, caches[x]);
 			}
 		}
+		distance_caches.keySet().retainAll(columnList);		// forget columns which have gone
 
-		// pass 2: normalise this
-		norm_distances = new double[columnList.size()][sequencesList.size()];
+		for(int y = 0; y < sequencesList.size(); y++)
+			row_ids[y] = ds.getSequenceId((String) sequencesList.get(y));
 
-		for(int x = 0; x < columnList.size(); x++) {
-			for(int y = 0; y < sequencesList.size(); y++) {
-				if(distances[x][y] >= 0) {
-				    norm_distances[x][y] = (distances[x][y] - min[x])/(max[x] - min[x]);
-				} else
-					norm_distances[x][y] = distances[x][y];	// save the <0's
+		distances = new double[columnList.size()][];			// TODO: catch OutOfMemory here?
+		norm_distances = new double[columnList.size()][];
+
+		// pass 1: calculate all the distances, and normalise them
+		runInParallel(columnList.size(), new WorkerPool.Job() {
+			public void run(int x) {
+				distances[x] = getColumnDistances(ds, col_ids[x], row_ids, top, caches[x]);
+				norm_distances[x] = normalise(distances[x]);
 			}
-		}
+		});
 
-		// pass 3: now, we've got rationalised numbers
+		// pass 2: now, we've got rationalised numbers
 		// we need to figure out the average of THESE, and use THIS to sort the
 		// sequenceList.
 		scores = (List) new Vector();
@@ -323,69 +371,171 @@ public class DisplayDistancesMode extends DisplayMode implements ItemListener {
 
 			totalScore = totalScore/count;
 
-			scores.add(new Score(seqName, totalScore));
+			Score score = new Score(seqName, totalScore);
+			score.index = y;
+			scores.add(score);
 		}
 
 		// sort out the sequence names ...
 		Collections.sort(scores);
 
-		double[][] old_distances = distances;		// ditto (see below)
-		double[][] old_norm_distances = norm_distances;	// I'm just saving a pointer, I hope
-		norm_distances = new double[columnList.size()][scores.size()];	// and writing over the old POINTER,
-										// NOT the old data. I hope.
-		distances = new double[columnList.size()][scores.size()];	// ditto (see above)
+		final int order[] = new int[scores.size()];
+		sequencesList = (List) new Vector();
 
-		// ... and resort the distances[][] table.
-		Iterator i = scores.iterator();	
-		int seqIndex = 0;
-		while(i.hasNext()) {
-			String seqName = ((Score) i.next()).getName();
+		for(int y = 0; y < scores.size(); y++) {
+			Score score = (Score) scores.get(y);
 
-			int oldIndex = sequencesList.indexOf(seqName);
+			order[y] = score.index;
+			sequencesList.add(score.getName());
+		}
 
-			for(int x = 0; x < columnList.size(); x++) {
-				distances[x][seqIndex] = old_distances[x][oldIndex];
-				norm_distances[x][seqIndex] = old_norm_distances[x][oldIndex];
+		// pass 3: resort the distances[][] table, and now that we have a
+		// definite list, nicely synced up and everything, we can figure out
+		// the rank table!
+		ranks = new int[columnList.size()][];
+
+		runInParallel(columnList.size(), new WorkerPool.Job() {
+			public void run(int x) {
+				distances[x] = reorder(distances[x], order);
+				norm_distances[x] = reorder(norm_distances[x], order);
+				ranks[x] = rank(distances[x]);
 			}
+		});
 
-			seqIndex++;
-		}
+		sortedSequences = sequencesList;
+		return sequencesList;
+	}
 
-		old_distances = null;	// free the array	
-		old_norm_distances = null;
-		sequencesList = (List) new Vector();
+	/**
+	 * Works out the distance from every row in column 'col' to the
+	 * reference sequence (row 'top'), or the DIST_* code explaining
+	 * why there isn't one. Distances already in the column's cache
+	 * aren't calculated again.
+	 */
+	private double[] getColumnDistances(DataStore ds, int col, int rows[], int top, DistanceCache cache) {
+		double dists[] = new double[rows.length];
+		Sequence seq_compare = ds.getSequence(col, top);
+		DistanceCache.Distances known = null;
 
-		i = scores.iterator();
-		while(i.hasNext()) {
-			String seqName = ((Score) i.next()).getName();
+		if(seq_compare != null)
+			known = cache.getDistances(seq_compare, ds.getSequenceIdLimit());
 
-			sequencesList.add(seqName);
+		for(int y = 0; y < rows.length; y++) {
+			Sequence seq = ds.getSequence(col, rows[y]);
+
+			double dist = DIST_ILLEGAL;
+			if(seq_compare == null) {
+				dist = DIST_NO_COMPARE_SEQ;
+			}
+			else if(rows[y] == top) {
+				dist = DIST_SEQ_ON_TOP;
+			} else if(seq == null) {
+				if(ds.isSequenceCancelled(col, rows[y]))
+					dist = DIST_CANCELLED;
+				else
+					dist = DIST_SEQ_NA;
+			}
+			else if((dist = known.getPairwise(rows[y], seq, seq_compare)) < 0) {
+				// illegal!
+				dist = DIST_NO_OVERLAP;
+			}
+
+			dists[y] = dist;
 		}
 
-		// Now that we have a definite list, nicely synced up and
-		// everything, we can figure out the rank table!
-		//
-		ranks = new int[columnList.size()][sequencesList.size()];
-		for(int x = 0; x < columnList.size(); x++) {
-			LinkedList ll = new LinkedList();		// easier to append
+		return dists;
+	}
 
-			for(int y = 0; y < sequencesList.size(); y++) {
-				if(distances[x][y] >= 0)
-					ll.add(new Double(distances[x][y]));
-			}
+	/**
+	 * Normalises a column of distances to between 0 and 1, leaving
+	 * the DIST_* codes (which are all below 0) as they are.
+	 */
+	private static double[] normalise(double dists[]) {
+		double max = -1.0;
+		double min = +2.0;
 
-			Collections.sort(ll);	
+		for(int y = 0; y < dists.length; y++) {
+			if(dists[y] >= 0) {
+				if(dists[y] > max)
+					max = dists[y];
 
-			for(int y = 0; y < sequencesList.size(); y++) {
-				if(distances[x][y] >= 0)
-					ranks[x][y] = ll.indexOf(new Double(distances[x][y]));
-				else
-					ranks[x][y] = (int) Math.floor(distances[x][y]);
+				if(dists[y] < min)
+					min = dists[y];
 			}
 		}
 
-		sortedSequences = sequencesList;
-		return sequencesList;
+		double norm[] = new double[dists.length];
+		for(int y = 0; y < dists.length; y++) {
+			if(dists[y] >= 0)
+				norm[y] = (dists[y] - min)/(max - min);
+			else
+				norm[y] = dists[y];	// save the <0's
+		}
+
+		return norm;
+	}
+
+	/**
+	 * Returns values[order[0]], values[order[1]], and so on.
+	 */
+	private static double[] reorder(double values[], int order[]) {
+		double reordered[] = new double[order.length];
+
+		for(int y = 0; y < order.length; y++)
+			reordered[y] = values[order[y]];
+
+		return reordered;
+	}
+
+	/**
+	 * Ranks a column of distances. A distance's rank is the number of
+	 * smaller distances in the column, so equal distances share a rank;
+	 * the DIST_* codes are 'ranked' as themselves.
+	 */
+	private static int[] rank(double dists[]) {
+		double sorted[] = new double[dists.length];
+		int count = 0;
+
+		for(int y = 0; y < dists.length; y++) {
+			if(dists[y] >= 0)
+				sorted[count++] = dists[y];
+		}
+		Arrays.sort(sorted, 0, count);
+
+		int ranks[] = new int[dists.length];
+		for(int y = 0; y < dists.length; y++) {
+			if(dists[y] >= 0) {
+				// find the first entry which isn't smaller than dists[y]
+				int from = 0;
+				int to = count;
+				while(from < to) {
+					int mid = (from + to) >>> 1;
+
+					if(sorted[mid] < dists[y])
+						from = mid + 1;
+					else
+						to = mid;
+				}
+
+				ranks[y] = from;
+			} else
+				ranks[y] = (int) Math.floor(dists[y]);
+		}
+
+		return ranks;
+	}
+
+	/**
+	 * Runs 'job' over 'count' columns on the WorkerPool.
+	 */
+	private static void runInParallel(int count, WorkerPool.Job job) {
+		try {
+			WorkerPool.forEach(count, job, null);
+		} catch(DelayAbortedException e) {
+			// can't happen: there's no DelayCallback to abort
+		} catch(java.util.concurrent.ExecutionException e) {
+			throw new RuntimeException("Could not calculate pairwise distances", e.getCause());
+		}
 	}
 
 //
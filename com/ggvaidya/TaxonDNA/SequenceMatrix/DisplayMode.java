@@ -79,6 +79,13 @@ public abstract class DisplayMode implements TableModel, MouseListener {
 	protected List 	sortedSequences = null;
 	protected int	additionalColumns = 0;
 
+	/**
+	 * If your values take a while to work out, set this to a new CellCache(this):
+	 * we'll then only work out the values on screen, in the background (see
+	 * CellCache). Column 0 (the sequence names) is never cached.
+	 */
+	protected CellCache cellCache = null;
+
 	public abstract List getAdditionalColumns();
 	public abstract List getSortedColumns(Set colNames);
 	public abstract List getSortedSequences(Set seqNames);
@@ -122,6 +129,18 @@ public abstract class DisplayMode implements TableModel, MouseListener {
 	}
 
 	public Object getValueAt(int rowIndex, int columnIndex) {
+		if(cellCache != null && columnIndex != 0)
+			return cellCache.getValueAt(rowIndex, columnIndex);
+
+		return computeValueAt(rowIndex, columnIndex);
+	}
+
+	/**
+	 * Works out the value at a particular cell. This is what getValueAt()
+	 * returns, unless we have a cellCache, in which case it calls this on
+	 * a background thread for the cells on screen.
+	 */
+	public Object computeValueAt(int rowIndex, int columnIndex) {
 		String colName = getColumnName(columnIndex);
 		String rowName = getRowName(rowIndex);
 
@@ -137,6 +156,33 @@ public abstract class DisplayMode implements TableModel, MouseListener {
 		}
 	}
 
+	/**
+	 * Fills in values[0] to values[to - from - 1] with what getValueAt() returns
+	 * for rows 'from' to 'to - 1' of column 'columnIndex'. The tab-delimited export
+	 * works through the table a column at a time like this, so display modes which
+	 * can work out a column faster than cell by cell should override it.
+	 */
+	public void getColumnValues(int columnIndex, int from, int to, String[] values) {
+		for(int row = from; row < to; row++) {
+			if(cellCache != null && columnIndex != 0)
+				values[row - from] = String.valueOf(computeValueAt(row, columnIndex));
+			else
+				values[row - from] = String.valueOf(getValueAt(row, columnIndex));
+		}
+	}
+
+	/**
+	 * Returns true if getValueAt() would return the real value of this
+	 * cell right now, rather than a stale value or a placeholder from
+	 * the cellCache.
+	 */
+	public boolean isValueReady(int rowIndex, int columnIndex) {
+		if(cellCache != null && columnIndex != 0)
+			return cellCache.isValueReady(rowIndex, columnIndex);
+
+		return true;
+	}
+
 	public boolean isCellEditable(int rowIndex, int columnIndex) {
 		if(columnIndex == 0)	// yes, you can rename the sequence names
 			return true;
@@ -259,11 +305,24 @@ public abstract class DisplayMode implements TableModel, MouseListener {
 	 * remember to save and reload the table headers before you do!
 	 */
 	public void updateDisplay() {
+		if(cellCache != null)
+			cellCache.invalidate();
+
 		Hashtable widths = saveWidths();
 		fireTableModelEvent(new TableModelEvent(this, TableModelEvent.HEADER_ROW));
 		restoreWidths(widths);
 	}
 
+	/**
+	 * Called by the cellCache once the values in rows 'from' to 'to - 1'
+	 * have been worked out (and repainted), so that we can make room
+	 * for them.
+	 */
+	public void cellsComputed(int from, int to) {
+		if(tableManager != null)
+			tableManager.resizeColumnsToFit(from, to);
+	}
+
 	/**
 	 * Send a TableModelEvent to every listener. 
 	 */
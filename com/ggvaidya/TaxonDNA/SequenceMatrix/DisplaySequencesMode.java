@@ -186,6 +186,10 @@ public class DisplaySequencesMode extends DisplayMode implements ItemListener {
 		sortedColumns = null;
 		sortedSequences = null;
 		additionalColumns = 3;
+
+		// describing every sequence takes a while on a big table,
+		// so only do the ones on screen
+		cellCache = new CellCache(this);
 	}
 
 //
@@ -259,6 +263,36 @@ public class DisplaySequencesMode extends DisplayMode implements ItemListener {
 		if(tableManager.isSequenceCancelled(colName, seqName))
 			return "(EXCISED)";
 
+		return describeSequence(seq);
+	}
+
+	/**
+	 * Works out a whole column of sequences at once, straight out of
+	 * the DataStore, for the tab-delimited export.
+	 */
+	public void getColumnValues(int columnIndex, int from, int to, String[] values) {
+		if(columnIndex < additionalColumns) {
+			super.getColumnValues(columnIndex, from, to, values);
+			return;
+		}
+
+		DataStore ds = tableManager.getDataStore();
+		int col = ds.getColumnId(getColumnName(columnIndex));
+
+		for(int row = from; row < to; row++) {
+			int seq_id = ds.getSequenceId(getRowName(row));
+
+			if(ds.isSequenceCancelled(col, seq_id))
+				values[row - from] = "(EXCISED)";
+			else
+				values[row - from] = describeSequence(ds.getSequence(col, seq_id));
+		}
+	}
+
+	/**
+	 * Describes a (non-cancelled) sequence, or the lack of one, for the table.
+	 */
+	private String describeSequence(Sequence seq) {
 		if(seq == null)
 			return "(No data)";
 		
@@ -29,6 +29,7 @@ package com.ggvaidya.TaxonDNA.SequenceMatrix;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.*;
 
 import javax.swing.*;		// "Come, thou Tortoise, when?"
@@ -53,36 +54,56 @@ public class Exporter implements SequencesHandler {
 	//
 	// Processing functions
 	//
+	/** How many rows of the table exportTableAsTabDelimited() works out at a time. */
+	private static final int TAB_DELIMITED_ROWS = 1024;
+
 	/**
 	 * Exports the table as a tab delimited file. This is a pretty
 	 * brainless, dump-everything-on-the-table-to-file function.
+	 *
+	 * We don't go through the JTable: we ask the current DisplayMode
+	 * for a block of rows at a time, one column at a time (see
+	 * DisplayMode.getColumnValues()), and write them out through a
+	 * buffer.
 	 */
 	public void exportTableAsTabDelimited(File file) throws IOException {
-		TableModel tableModel = matrix.getTableManager().getTableModel();
+		DisplayMode mode = matrix.getTableManager().getCurrentDisplayMode();
 		
-		PrintWriter writer = new PrintWriter(new FileWriter(file));
-
-		// intro
-		writer.println("Exported by " + matrix.getName() + " at " + new Date());
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file), 65536);
 
-		// print columns
-		int cols = tableModel.getColumnCount();
-		for(int x = 0; x < cols; x++) {
-			writer.print(tableModel.getColumnName(x) + "\t");
-		}
-		writer.println();
+		try {
+			// intro
+			writer.write("Exported by " + matrix.getName() + " at " + new Date());
+			writer.newLine();
 
-		// print table 
-		int rows = tableModel.getRowCount();	
-		for(int y = 0; y < rows; y++) {
+			// print columns
+			int cols = mode.getColumnCount();
 			for(int x = 0; x < cols; x++) {
-				writer.print(tableModel.getValueAt(y, x) + "\t");
+				writer.write(mode.getColumnName(x));
+				writer.write('\t');
 			}
-			writer.println();
-		}
+			writer.newLine();
 
-		writer.flush();
-		writer.close();
+			// print table 
+			int rows = mode.getRowCount();	
+			String[][] values = new String[cols][TAB_DELIMITED_ROWS];
+			for(int from = 0; from < rows; from += TAB_DELIMITED_ROWS) {
+				int to = Math.min(rows, from + TAB_DELIMITED_ROWS);
+
+				for(int x = 0; x < cols; x++)
+					mode.getColumnValues(x, from, to, values[x]);
+
+				for(int y = 0; y < to - from; y++) {
+					for(int x = 0; x < cols; x++) {
+						writer.write(values[x][y]);
+						writer.write('\t');
+					}
+					writer.newLine();
+				}
+			}
+		} finally {
+			writer.close();
+		}
 
 		MessageBox mb = new MessageBox(
 				matrix.getFrame(),
@@ -94,51 +115,31 @@ public class Exporter implements SequencesHandler {
 	/**
 	 * Exports the entire table as individual gene files (one per column) into a particular directory.
 	 * This really is kinda convoluted ... no, VERY convoluted. Hatred.
-         *
-         * Note: because of that bug where the "please wait" dialog opens and closes too quickly, I'm just
-         * going to ignore the 'delay' argument. Please reinsert if needed.
+	 *
+	 * The columns don't depend on each other at all, so they're written out in parallel, straight
+	 * out of the DataStore. The 'delay' is only begun and ended once for the whole export (once per
+	 * file used to make the "please wait" dialog open and close too quickly), and reports how many
+	 * columns have been written so far.
 	 */
-	public void exportSequencesByColumn(File dir, FormatHandler fh, boolean writeNASequences, DelayCallback delay) throws IOException, DelayAbortedException {
+	public void exportSequencesByColumn(File dir, final FormatHandler fh, final boolean writeNASequences, DelayCallback delay) throws IOException, DelayAbortedException {
 		TableManager tm = matrix.getTableManager();
+		final DataStore ds = tm.getDataStore();
 
-		Vector<String> vec_sequences = new Vector<String>( (Collection) tm.getSequenceNames());
-		int count_columns = tm.getCharsets().size();
-		Iterator i = tm.getCharsets().iterator();
-
-		int count = 0;
-		while(i.hasNext()) {
-			count++;
-
-			String colName = (String) i.next();
+		List seqNames = tm.getSequenceNames();
+		final int[] rows = new int[seqNames.size()];
+		for(int x = 0; x < rows.length; x++)
+			rows[x] = ds.getSequenceId((String) seqNames.get(x));
 
-			int colLength = tm.getColumnLength(colName);
-			SequenceList sl = new SequenceList();
+		// Figure out every file name before we start, so that two columns
+		// can't end up fighting over the same file.
+		List colNames = tm.getCharsets();
+		final int[] cols = new int[colNames.size()];
+		final File[] files = new File[colNames.size()];
+		HashSet claimed = new HashSet();
 
-			Iterator i2 = vec_sequences.iterator();	
-			while(i2.hasNext()) {
-				String seqName = (String) i2.next();
-				// okay, this is a little odd, so listen up
-				// we can't just 'get the Sequence, put it into a List, and export it'
-				// because then it assumes it's TRUE name, NOT the name specified in the
-				// left-most column.
-				//
-				//  This fixes issue #112, if you're interested.
-				Sequence seq = tm.getSequence(colName, seqName);
-	
-				if(seq == null) {
-					if(writeNASequences) {
-						sl.add(Sequence.makeEmptySequence(seqName, colLength));
-					} else {
-						// seq == null ... ignore it
-					}
-				} else {
-					// seq != null
-					// write it!
-					seq = new Sequence(seq);	// clone 'seq'
-					seq.changeName(seqName);	// and rename it to the 'correct' row name.
-					sl.add(seq);
-				}
-			}
+		for(int x = 0; x < cols.length; x++) {
+			String colName = (String) colNames.get(x);
+			cols[x] = ds.getColumnId(colName);
 
 			int attempts = 1;	// Start with x_1.txt.
 			String offset;
@@ -147,34 +148,85 @@ public class Exporter implements SequencesHandler {
 			File writeTo;
 			do {
 				writeTo = new File(dir, makeFileName(colName) + offset + "." + fh.getExtension());
-				if(writeTo.exists()) {
-					writeTo = null;
-					offset = "_" + attempts;
-
+				if(writeTo.exists() || claimed.contains(writeTo)) {
 					if(attempts > 100)
 						throw new IOException("Can't create file '" + writeTo + "' - it already exists!");
-					
+
+					writeTo = null;
+					offset = "_" + attempts;
 					attempts++;
 				}
 			} while(writeTo == null);
 
-			if(writeTo.exists() && !writeTo.canWrite()) {
-				throw new IOException("Couldn't open '" + writeTo + "' for writing. Are you sure you have permissions to write into this directory?");
-			}
+			claimed.add(writeTo);
+			files[x] = writeTo;
+		}
 
-			try {
-				fh.writeFile(writeTo, sl, null);
-			} catch(IOException e) {
-				throw e;
+		if(delay != null)
+			delay.begin();
+
+		try {
+			WorkerPool.forEach(cols.length, new WorkerPool.Job() {
+				public void run(int x) throws IOException, DelayAbortedException {
+					fh.writeFile(files[x], getColumnSequences(ds, cols[x], rows, writeNASequences), null);
+				}
+			}, delay);
+		} catch(ExecutionException e) {
+			if(delay != null)
+				delay.end();
+
+			Throwable cause = e.getCause();
+
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+
+			throw new RuntimeException("Could not export sequences by column", cause);
+		}
+
+		// if we were aborted, the ProgressDialog has already end()ed itself
+		if(delay != null)
+			delay.end();
+	}
+
+	/**
+	 * Returns the sequences in column 'col' of the DataStore, for each of
+	 * the rows in 'rows' (in that order). Cancelled sequences are left out;
+	 * so are missing ones, unless 'writeNASequences' is true, in which case
+	 * they're filled in with missing characters.
+	 */
+	private SequenceList getColumnSequences(DataStore ds, int col, int[] rows, boolean writeNASequences) {
+		SequenceList sl = new SequenceList();
+		int colLength = ds.getColumnLength(col);
+
+		for(int x = 0; x < rows.length; x++) {
+			String seqName = ds.getSequenceName(rows[x]);
+
+			// okay, this is a little odd, so listen up
+			// we can't just 'get the Sequence, put it into a List, and export it'
+			// because then it assumes it's TRUE name, NOT the name specified in the
+			// left-most column.
+			//
+			//  This fixes issue #112, if you're interested.
+			Sequence seq = ds.getSequence(col, rows[x]);
+
+			if(seq == null) {
+				if(writeNASequences)
+					sl.add(Sequence.makeEmptySequence(seqName, colLength));
+			} else {
+				seq = new Sequence(seq);	// clone 'seq'
+				seq.changeName(seqName);	// and rename it to the 'correct' row name.
+				sl.add(seq);
 			}
 		}
+
+		return sl;
 	}
 
 	private String makeFileName(String name) {
 		return name.replace(' ', '_').replace('.', '_');
 	}
 
-	public void exportColumnsInGroups(int total_randomizations, int per_group, int taxa_to_randomly_delete, File f_directory_to_export_to, String taxonToNeverDelete, FormatHandler handler, boolean bool_includeNAs, DelayCallback delay) throws DelayAbortedException, IOException {
+	public void exportColumnsInGroups(int total_randomizations, final int per_group, final int taxa_to_randomly_delete, File f_directory_to_export_to, String taxonToNeverDelete, final FormatHandler handler, final boolean bool_includeNAs, DelayCallback delay) throws DelayAbortedException, IOException {
 		//new MessageBox(matrix.getFrame(), "Dude", "Okay, check this out: " + total_randomizations + ", " + per_group).go();
 		
 		// Step 1: Get stuff ready
@@ -196,11 +248,35 @@ public class Exporter implements SequencesHandler {
 					"You have no columns to export. Please import some data and try again. If that doesn't help, this is probably a programming problem, and should be reported to the developers.").go();
 			return;
 		}
-		
-		// Step 2: Go!
+
+		if(per_group < 1)
+			return;
+
+		// Every replicate works off the same DataStore: a group is just
+		// a selection of column and row ids, and its rows are concatenated
+		// straight out of the DataStore when the group is written out.
+		final DataStore ds = tm.getDataStore();
+
+		final int[] cols = new int[list_columns.size()];
+		for(int x = 0; x < cols.length; x++)
+			cols[x] = ds.getColumnId((String) list_columns.get(x));
+
+		List list_rows = tm.getSequenceNames();
+		final int[] rows = new int[list_rows.size()];
+		for(int x = 0; x < rows.length; x++)
+			rows[x] = ds.getSequenceId((String) list_rows.get(x));
+
+		int row_to_never_delete = -1;
+		if(taxonToNeverDelete != null && taxonToNeverDelete.length() > 0)
+			row_to_never_delete = ds.getSequenceId(taxonToNeverDelete);
+		final int never_delete = row_to_never_delete;
+
+		// Every randomization gets its own seed (and its own directory)
+		// up front, so they can be run in any order, or all at once.
+		final long[] seeds = new long[total_randomizations];
+		final File[] dirs = new File[total_randomizations];
 		for(int randomization = 0; randomization < total_randomizations; randomization++) {
-			LinkedList list_to_pick = new LinkedList(); 	// so we get O(1) deletion
-			list_to_pick.addAll(list_columns);
+			seeds[randomization] = rand.nextLong();
 
 			// we're in randomization #..., so let's create the directory!
 			File f_dir = new File(f_directory_to_export_to, "" + (randomization+1));
@@ -212,65 +288,112 @@ public class Exporter implements SequencesHandler {
 						"I'm trying to create '" + f_dir + "' to store the results of randomization #" + (randomization + 1) + ", but I don't seem to have adequate permissions to do this.").go();
 				return;
 			}
+			dirs[randomization] = f_dir;
+		}
+		
+		// Step 2: Go!
+		if(delay != null)
+			delay.begin();
 
-			int group_id = -1;	// so we'll be '0' on the first iteration, for symmetry with randomization
-			while(list_to_pick.size() > 0) {
-				// pick per_group columns
-				LinkedList list_to_add = new LinkedList();
-				group_id++;
-
-				for(int x = 0; x < per_group; x++) {
-					int max = list_to_pick.size();
-					if(max == 0)		// nobody else to pick!
-						break;
-					int selection = rand.nextInt(max); // random no between 0 and (max - 1);
-
-					// now, move it out of one group, and into the other.
-					Object o = list_to_pick.get(selection);
-					list_to_pick.remove(o);
-					list_to_add.add(o);
+		try {
+			WorkerPool.forEach(total_randomizations, new WorkerPool.Job() {
+				public void run(int randomization) throws IOException, DelayAbortedException {
+					exportRandomization(ds, cols, rows, never_delete, per_group, taxa_to_randomly_delete, bool_includeNAs, handler, dirs[randomization], randomization, new Random(seeds[randomization]));
 				}
+			}, delay);
+		} catch(ExecutionException e) {
+			if(delay != null)
+				delay.end();
 
-				// okay, we now have a list_to_add. We need to add it.
-				// wait, do we?
-				if(list_to_add.size() == 0)	// the for loop didn't run, because we perfectly picked the size ... or something. In any case, nothing to add, what.
-					break;
+			Throwable cause = e.getCause();
 
-				// as a reminder, we need to write the cluster to: $folder/$rand/yeast_$rand_$no.txt
-				SequenceGrid sg = new SequenceGrid();
-				
-				Iterator i = list_to_add.iterator();
-				while(i.hasNext()) {
-					String colName = (String) i.next();
-					sg.addColumnFromDataStore(tm.getDataStore(), colName, bool_includeNAs);	// add this column to the SequenceGrid.
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+
+			throw new RuntimeException("Could not export columns in groups", cause);
+		}
+
+		// if we were aborted, the ProgressDialog has already end()ed itself
+		if(delay != null)
+			delay.end();
+	}
+
+	/**
+	 * Writes out a single randomization for exportColumnsInGroups(): the
+	 * columns in 'cols' are shuffled into groups of 'per_group', and each
+	 * group is written out (less 'taxa_to_randomly_delete' random taxa)
+	 * into a file in 'f_dir'. Columns and rows stay in the order they
+	 * appear in 'cols' and 'rows'. Cancelled sequences are written out
+	 * as they are.
+	 *
+	 * We only read from the DataStore, so several randomizations can
+	 * run at once, as long as each has its own Random.
+	 */
+	private void exportRandomization(DataStore ds, int[] cols, int[] rows, int never_delete, int per_group, int taxa_to_randomly_delete, boolean bool_includeNAs, FormatHandler handler, File f_dir, int randomization, Random rand) throws IOException, DelayAbortedException {
+		// shuffle the column positions; each run of 'per_group' is a group
+		int[] picks = new int[cols.length];
+		for(int x = 0; x < picks.length; x++)
+			picks[x] = x;
+		for(int x = picks.length - 1; x > 0; x--) {
+			int y = rand.nextInt(x + 1);
+			int tmp = picks[x];
+			picks[x] = picks[y];
+			picks[y] = tmp;
+		}
+
+		int[] selected_rows = new int[rows.length];
+		int[] deletable = new int[rows.length];
+		boolean[] deleted = new boolean[rows.length];
+
+		for(int group_id = 0; group_id * per_group < picks.length; group_id++) {
+			int from = group_id * per_group;
+			int[] group = new int[Math.min(per_group, picks.length - from)];
+
+			System.arraycopy(picks, from, group, 0, group.length);
+			Arrays.sort(group);
+			for(int x = 0; x < group.length; x++)
+				group[x] = cols[group[x]];
+
+			// which rows are in this group? Either all of them, or only
+			// those with a sequence (even a cancelled one) in one of
+			// its columns.
+			int count = 0;
+			for(int x = 0; x < rows.length; x++) {
+				boolean include = bool_includeNAs;
+
+				for(int y = 0; !include && y < group.length; y++) {
+					if(ds.getSequenceIgnoreCancelled(group[y], rows[x]) != null)
+						include = true;
 				}
 
-				// now, remove 'taxa_to_randomly_delete' taxa from this DataStore.
-				// DO YOU HAVE ANY IDEA HOW FRIGGIN EASY THIS IS AFTER THE LAST
-				// PUSHAROUND?!?!
-				Vector<String> v = new Vector<String>(sg.getSequences());
-				if(taxonToNeverDelete != null && taxonToNeverDelete.length() > 0)
-					v.remove(taxonToNeverDelete);
-
-				if(v.size() != 0)
-					for(int x = 0; x < taxa_to_randomly_delete; x++) {
-						int index = rand.nextInt(v.size());
-						String seqName = (String) v.get(index);
-						sg.deleteRow(seqName);
-						v.remove(seqName);
-					}
-				
-				// we now have a DataStore we'd like to Write Out.
-				// the easiest way to do that: rewrite the Nexus and TNT
-				// exports to handle DataStores directly.
-				//
-				// Fun.
-				//
+				if(include)
+					selected_rows[count++] = rows[x];
+			}
 
-				File f = new File(f_dir, "group_" + (randomization + 1) + "_" + (group_id + 1) + "." + handler.getExtension());
+			// now, remove 'taxa_to_randomly_delete' taxa from this group.
+			int count_deletable = 0;
+			for(int x = 0; x < count; x++) {
+				deleted[x] = false;
+				if(selected_rows[x] != never_delete)
+					deletable[count_deletable++] = x;
+			}
+
+			for(int x = 0; x < taxa_to_randomly_delete && count_deletable > 0; x++) {
+				int index = rand.nextInt(count_deletable);
+
+				deleted[deletable[index]] = true;
+				deletable[index] = deletable[--count_deletable];
+			}
 
-				handler.writeFile(f, sg.getSequenceList(), delay);
+			SequenceList sl = new SequenceList();
+			for(int x = 0; x < count; x++) {
+				if(!deleted[x])
+					sl.add(ds.getCompleteSequence(selected_rows[x], group, true));
 			}
+
+			File f = new File(f_dir, "group_" + (randomization + 1) + "_" + (group_id + 1) + "." + handler.getExtension());
+
+			handler.writeFile(f, sl, null);
 		}
 	}
 
@@ -415,32 +538,117 @@ public class Exporter implements SequencesHandler {
 			delay.end();
 	}
 
-	public void exportAsPhylip(File f, DelayCallback delay) throws IOException, DelayAbortedException {
+	/**
+	 * Exports the current matrix as a TaxonDNA binary file (see BinaryFile). Just like a
+	 * Sequences file, every sequence (including cancelled ones) goes in, along with its
+	 * column name and sequence name, so loading the file back in gets you the same matrix.
+	 *
+	 * @return a BinaryJournal, which saveToJournal() can save later changes into.
+	 */
+	public BinaryJournal exportAsBinary(File f, DelayCallback delay) throws IOException, DelayAbortedException {
+		Vector sequences = new Vector();
+		Vector properties = new Vector();
+		getBinaryRecords(sequences, properties);
+
+		return BinaryJournal.create(f,
+			(Sequence[]) sequences.toArray(new Sequence[sequences.size()]),
+			(Map[]) properties.toArray(new Map[properties.size()]),
+			null,
+			delay);
+	}
+
+	/**
+	 * Saves whatever has changed in the matrix since it was last exported or saved
+	 * into a TaxonDNA binary file's journal.
+	 */
+	public void saveToJournal(BinaryJournal journal) throws IOException {
+		Vector sequences = new Vector();
+		Vector properties = new Vector();
+		getBinaryRecords(sequences, properties);
+
+		journal.update(
+			(Sequence[]) sequences.toArray(new Sequence[sequences.size()]),
+			(Map[]) properties.toArray(new Map[properties.size()])
+		);
+	}
+
+	/**
+	 * Opens the journal for a TaxonDNA binary file which has just been loaded into the
+	 * matrix, so that changes can be saved back into it with saveToJournal().
+	 */
+	public BinaryJournal openJournal(File f) throws IOException, FormatException {
+		Vector sequences = new Vector();
+		getBinaryRecords(sequences, new Vector());
+
+		return BinaryJournal.open(f, (Sequence[]) sequences.toArray(new Sequence[sequences.size()]));
+	}
+
+	/**
+	 * Collects every sequence in the matrix (including cancelled ones) into 'sequences',
+	 * and the properties we save with each of them into 'properties': its own, plus its
+	 * column name and sequence name. We don't put these names on the sequences themselves,
+	 * since BinaryJournal needs to see them exactly as they are.
+	 */
+	private void getBinaryRecords(Vector sequences, Vector properties) {
 		TableManager tm = matrix.getTableManager();
+		DataStore ds = tm.getDataStore();
 
-		// Construct a SequenceList of concatenated sequences to output,
-		// then let the PhylipFile routines handle it.
-		SequenceList list = new SequenceList();
+		List colNames = tm.getCharsets();
+		Object[] seqNames = tm.getSequenceNames().toArray();
 
-		// Make sure we add the sequences in the correct order.
-		List seqNames = tm.getSequenceNames();
-		for(Object o_seqName: seqNames) {
-			String sequenceName = o_seqName.toString();
+		// look up every row's id once, rather than once per cell
+		int[] rows = new int[seqNames.length];
+		for(int x = 0; x < rows.length; x++)
+			rows[x] = ds.getSequenceId((String) seqNames[x]);
+
+		Iterator i_cols = colNames.iterator();
+		while(i_cols.hasNext()) {
+			String colName = (String) i_cols.next();
+			int col = ds.getColumnId(colName);
 
-			Sequence seq_row = new Sequence();
-			seq_row.changeName(sequenceName);
-			for(Object o_charsetName: tm.getCharsets()) {
-				String charsetName = o_charsetName.toString();
+			for(int x = 0; x < rows.length; x++) {
+				String seqName = (String) seqNames[x];
 
-				Sequence seq = tm.getSequence(charsetName, sequenceName);
+				// cancelled sequences go in too, still marked as cancelled
+				Sequence seq = ds.getCancelledSequence(col, rows[x]);
 				if(seq == null)
-					seq = Sequence.makeEmptySequence(sequenceName, tm.getColumnLength(charsetName));
+					continue;
 
-				seq_row.concatSequence(seq);
-			}
+				Map props = BinaryFile.getProperties(seq);
+				props.put(DataStore.INITIAL_COLNAME_PROPERTY, colName);
+				props.put(DataStore.INITIAL_SEQNAME_PROPERTY, seqName);
 
-			list.add(seq_row);
+				sequences.add(seq);
+				properties.add(props);
+			}
 		}
+	}
+
+	public void exportAsPhylip(File f, DelayCallback delay) throws IOException, DelayAbortedException {
+		TableManager tm = matrix.getTableManager();
+
+		DataStore ds = tm.getDataStore();
+
+		// Construct a SequenceList of concatenated sequences to output,
+		// then let the PhylipFile routines handle it.
+		SequenceList list = new SequenceList();
+
+		// Make sure we add the sequences in the correct order.
+		List seqNames = tm.getSequenceNames();
+		int[] rows = new int[seqNames.size()];
+		int x = 0;
+		for(Object o_seqName: seqNames)
+			rows[x++] = ds.getSequenceId(o_seqName.toString());
+
+		List charsets = tm.getCharsets();
+		int[] cols = new int[charsets.size()];
+		x = 0;
+		for(Object o_charsetName: charsets)
+			cols[x++] = ds.getColumnId(o_charsetName.toString());
+
+		Sequence[] seqs = ds.getCompleteSequences(rows, cols, null);
+		for(x = 0; x < seqs.length; x++)
+			list.add(seqs[x]);
 
 		// 'list' is now ready for export!
 		PhylipFile pf = new PhylipFile();
@@ -42,6 +42,7 @@ package com.ggvaidya.TaxonDNA.SequenceMatrix;
 import java.awt.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 import com.ggvaidya.TaxonDNA.Common.*;
 import com.ggvaidya.TaxonDNA.DNA.*;
@@ -52,6 +53,19 @@ public class FileManager implements FormatListener {
 
 	private SequenceMatrix matrix;
 	private final HashMap<String, ArrayList<FromToPair>> hashmap_codonsets = new HashMap<String, ArrayList<FromToPair>>();
+
+	/**
+	 * While addFiles() is reading a file on a worker thread, the character
+	 * sets it finds go here, rather than into hashmap_codonsets.
+	 */
+	private final ThreadLocal<HashMap<String, ArrayList<FromToPair>>> codonsets_for_thread = new ThreadLocal<HashMap<String, ArrayList<FromToPair>>>();
+
+	/**
+	 * The journal of the TaxonDNA binary file this dataset was last exported
+	 * to (or loaded from), which File -> Save saves into; or null, if there
+	 * isn't one.
+	 */
+	private BinaryJournal journal = null;
 //
 //      0.      CONFIGURATION OPTIONS
 //
@@ -371,6 +385,16 @@ public class FileManager implements FormatListener {
 		if (handler == null)
 			handler = list.getFormatHandler();
 
+		warnAboutNexus(handler);
+
+		return list;
+	}
+
+	/**
+	 * If 'handler' reads Nexus files, display the Nexus standard
+	 * warning (but only once per session).
+	 */
+	private void warnAboutNexus(FormatHandler handler) {
 		if (handler.getShortName().equals("NEXUS")) {
 			// A Nexus file! Once per session, we should display the Nexus
 			// standard warning.
@@ -386,8 +410,6 @@ public class FileManager implements FormatListener {
 				f_displayed_nexus_warning = true;
 			}
 		}
-
-		return list;
 	}
 
 	/**
@@ -483,8 +505,8 @@ public class FileManager implements FormatListener {
 		return results;
 	}
 
-	/** Reads the sets stored in hashmap_codonsets and splits the datasets into individual sequencelists
-	for each non-overlapping character sets.
+	/** Reads the sets in 'sets' and splits the datasets into individual sequencelists
+	for each non-overlapping character sets, which are then added to the table.
 
 	(2009-Nov-28) I want to see codonposset information to be read into the file, and I'd love
 	to see it recognize overlapping datasets. Will I live to see my dreams realized? Only time
@@ -516,105 +538,127 @@ public class FileManager implements FormatListener {
 	the user), otherwise the number of character sets which have been successfully
 	extracted.
 	 */
-	private int incorporateSets(File file, SequenceList sequences) {
-		// charset count.
-		int count_charsets = 0;
-
-		// Storage areas
-		ArrayList<FromToPair> positions_N = null;
-		ArrayList<FromToPair> positions_1 = null;
-		ArrayList<FromToPair> positions_2 = null;
-		ArrayList<FromToPair> positions_3 = null;
-
-		// We want to make sure nobody touches hashmap_codonsets while we're working. This
-		// Should Never Happen (tm), but better safe than sorry.
-		synchronized (hashmap_codonsets) {
-			HashMap<String, ArrayList<FromToPair>> sets = hashmap_codonsets;
-
-			// Don't let anybody change these sequences, either.
-			sequences.lock();
-
-			// Step one: extract the positional sets. These are named ':<position>'.
-			// We also remove them from hashmap_codonsets, since this makes subsequent
-			// processing a whole lot easier.
-			positions_N = sets.get(":0");
-			sets.remove(":0");
-			positions_1 = sets.get(":1");
-			sets.remove(":1");
-			positions_2 = sets.get(":2");
-			sets.remove(":2");
-			positions_3 = sets.get(":3");
-			sets.remove(":3");
-
-			// To simplify code, we'll set the positional data to empty datasets
-			// (so we don't have to keep testing for 'null', you understand).
-			if (positions_N == null) {
-				positions_N = new ArrayList<FromToPair>();
+	private int incorporateSets(File file, SequenceList sequences, HashMap<String, ArrayList<FromToPair>> sets) {
+		LinkedHashMap<String, SequenceList> charsets;
 
-			}
-			if (positions_1 == null) {
-				positions_1 = new ArrayList<FromToPair>();
+		DelayCallback pd = ProgressDialog.create(
+			matrix.getFrame(),
+			"Splitting file by character set",
+			file + " is being split into its character sets. We apologize for the delay."
+		);
 
-			}
-			if (positions_2 == null) {
-				positions_2 = new ArrayList<FromToPair>();
+		// Don't let anybody change these sequences while we're working.
+		sequences.lock();
+		try {
+			charsets = splitByCharacterSets(sequences, sets, pd);
+		} catch (CharacterSetException e) {
+			new MessageBox(matrix.getFrame(), e.getTitle(), e.getMessage()).go();
+			return -1;
+		} catch (DelayAbortedException e) {
+			return -1;
+		} finally {
+			sequences.unlock();
+		}
 
-			}
-			if (positions_3 == null) {
-				positions_3 = new ArrayList<FromToPair>();
+		// Sequence lists are ready for use!
+		for (String charset_name : charsets.keySet())
+			addSequenceListToTable(charset_name, charsets.get(charset_name), true);
 
-			}
+		return charsets.size();
+	}
+
+	/**
+	 * Thrown by splitByCharacterSets() when a character set can't be
+	 * extracted. The title and message are ready to show to the user.
+	 */
+	private static class CharacterSetException extends Exception {
+		/**
+		 * A generated serialVersionUID
+		 */
+		private static final long serialVersionUID = -7092730206537665588L;
+
+		private String title;
+
+		public CharacterSetException(String title, String message) {
+			super(message);
+			this.title = title;
+		}
 
-			// It would be nice if we could go through these sets and "compress"
-			// them down (i.e. 'position 1 = 1, 2, 3' => 'position 1 = 1-3'). But
-			// hopefully we'll be fast enough without.
-			//
-			// If not, you know what TODO.
+		public String getTitle() {
+			return title;
+		}
+	}
 
-			// Okay, so now we have a set of positional data sets. Rest of this
-			// kinda runs the way it's always run.
+	/**
+	 * Splits 'sequences' into one SequenceList for each of the character
+	 * sets in 'sets', with codon position information (the sets named
+	 * ':<position>') attached to each new sequence. 'sets' loses its
+	 * codon position sets in the process.
+	 *
+	 * This doesn't talk to the user or touch the table, so addFiles() can
+	 * split several files at once; lock 'sequences' first if anybody else
+	 * can see it.
+	 *
+	 * @return the new SequenceLists, by character set name.
+	 * @throws CharacterSetException if a character set couldn't be extracted.
+	 * @throws DelayAbortedException if the user cancelled.
+	 */
+	private LinkedHashMap<String, SequenceList> splitByCharacterSets(SequenceList sequences, HashMap<String, ArrayList<FromToPair>> sets, DelayCallback delay) throws CharacterSetException, DelayAbortedException {
+		LinkedHashMap<String, SequenceList> results = new LinkedHashMap<String, SequenceList>();
+
+		// Step one: extract the positional sets. These are named ':<position>'.
+		// We also remove them from 'sets', since this makes subsequent
+		// processing a whole lot easier.
+		ArrayList<FromToPair> positions_N = sets.remove(":0");
+		ArrayList<FromToPair> positions_1 = sets.remove(":1");
+		ArrayList<FromToPair> positions_2 = sets.remove(":2");
+		ArrayList<FromToPair> positions_3 = sets.remove(":3");
+
+		// To simplify code, we'll set the positional data to empty datasets
+		// (so we don't have to keep testing for 'null', you understand).
+		if (positions_N == null)
+			positions_N = new ArrayList<FromToPair>();
+		if (positions_1 == null)
+			positions_1 = new ArrayList<FromToPair>();
+		if (positions_2 == null)
+			positions_2 = new ArrayList<FromToPair>();
+		if (positions_3 == null)
+			positions_3 = new ArrayList<FromToPair>();
+
+		// It would be nice if we could go through these sets and "compress"
+		// them down (i.e. 'position 1 = 1, 2, 3' => 'position 1 = 1-3'). But
+		// hopefully we'll be fast enough without.
+		//
+		// If not, you know what TODO.
 
-			// Okay, now proceed with the rest of our algorithm.
-			Iterator<String> i_sets = hashmap_codonsets.keySet().iterator();
+		if (delay != null)
+			delay.begin();
+
+		try {
+			int total = sets.size() * sequences.count();
+			int count = 0;
+
+			Iterator<String> i_sets = sets.keySet().iterator();
 			while (i_sets.hasNext()) {
 				String charset_name = i_sets.next();
-				ArrayList<FromToPair> charset_fromtos = hashmap_codonsets.get(charset_name);
+				ArrayList<FromToPair> charset_fromtos = sets.get(charset_name);
 				SequenceList sl_charset = new SequenceList();
 
 				// If the dire comment above is correct, then this next bit is likely quite important.
 				// We sort the fromToPairs so that they are in left-to-right order.
 				Collections.sort(charset_fromtos);
 
-				// You can move this out of this method quite easily
-				// if you really want to.
-				DelayCallback pd = ProgressDialog.create(
-					matrix.getFrame(),
-					"Splitting file by character set",
-					"The character set " + charset_name + " is being split from " +
-					file + ". We apologize for the delay."
-				);
-
-				if(pd != null)
-					pd.begin();
-
 				// Our goal here is to create a single SequenceList which consists of
 				// all the bits mentioned in charsets_fromtos. Note that these could be
 				// incomplete bits (0 .. 12, 14 .. 16) or, in an extreme case, (1, 2, 3, 4).
 				// We reassemble them into a sequence, figure out a name for it, and
 				// Our Job Here Is Done.
 				Iterator i_seq = sequences.iterator();
-				int total = sequences.count();
-				int count = 0;
 				while (i_seq.hasNext()) {
 					Sequence seq = (Sequence) i_seq.next();
 
-					try {
-						if(pd != null)
-							pd.delay(count, total);
-					} catch(DelayAbortedException e) {
-						return -1;	// A fatal error already shown to the user.
-					}
-
+					if (delay != null)
+						delay.delay(count, total);
 					count++;
 
 					// The new, synthesized sequence we're going to generate.
@@ -665,55 +709,29 @@ public class FileManager implements FormatListener {
 							index_assembled_sequence += subseq.getLength();
 
 						} catch (SequenceException e) {
-							if(pd != null)
-								pd.end();
-
-							MessageBox mb_2 = new MessageBox(
-									matrix.getFrame(),
+							throw new CharacterSetException(
 									"Uh-oh: Error forming a set",
 									"According to this file, character set " + charset_name + " extends from " + from + " to " + to + ". "
 									+ "While processing sequence '" + seq.getFullName() + "', I got the following problem:\n"
 									+ "\t" + e.getMessage() + "\nI'm skipping this file.");
-							mb_2.go();
-
-							sequences.unlock();
-							hashmap_codonsets.clear();
-
-							return -1;
 						} catch (RuntimeException e) {
-							if(pd != null)
-								pd.end();
-
-							new MessageBox(matrix.getFrame(),
+							throw new CharacterSetException(
 								"Fatal internal error",
-								"A fatal internal error occured while processing " + charset_name + ", extending from " + from + " to " + to + ": " + e.getMessage()).go();
-
-							sequences.unlock();
-							hashmap_codonsets.clear();
-
-							return -1;
+								"A fatal internal error occured while processing " + charset_name + ", extending from " + from + " to " + to + ": " + e.getMessage());
 						}
 					}
 
 					// Null out any seq_positions_N without information.
-					if (seq_positions_N.size() == 0) {
+					if (seq_positions_N.size() == 0)
 						seq_positions_N = null;
-
-					}
-					if (seq_positions_1.size() == 0) {
+					if (seq_positions_1.size() == 0)
 						seq_positions_1 = null;
-
-					}
-					if (seq_positions_2.size() == 0) {
+					if (seq_positions_2.size() == 0)
 						seq_positions_2 = null;
-
-					}
-					if (seq_positions_3.size() == 0) {
+					if (seq_positions_3.size() == 0)
 						seq_positions_3 = null;
 
-						// Add any position information in.
-						
-					}
+					// Add any position information in.
 					seq_out.setProperty("position_0", seq_positions_N);
 					seq_out.setProperty("position_1", seq_positions_1);
 					seq_out.setProperty("position_2", seq_positions_2);
@@ -722,36 +740,139 @@ public class FileManager implements FormatListener {
 					// seq_out is ready for use! Add it to the sequence list.
 					if (seq_out.getActualLength() > 0) {
 						sl_charset.add(seq_out);
-						
 					}
 				}
 
-				if(pd != null)
-					pd.end();
-
-				// Sequence list is ready for use!
-				addSequenceListToTable(charset_name, sl_charset);
-				count_charsets++;
+				results.put(charset_name, sl_charset);
 			}
+		} catch (CharacterSetException e) {
+			if (delay != null)
+				delay.end();
+			throw e;
+		}
 
-			hashmap_codonsets.clear();
-			sequences.unlock();
+		// if we were aborted, the ProgressDialog has already end()ed itself
+		if (delay != null)
+			delay.end();
+
+		return results;
+	}
+
+	/**
+	 * Does 'sets' contain any character sets (as opposed to just
+	 * CODONPOSSETs)? If a file has CODONPOSSETs, but no CODONSETs, we
+	 * CANNOT allow incorporateSets() to fire, because it won't have any
+	 * codonsets to extract and we'll end up with nothing being added at all.
+	 */
+	private boolean hasCharacterSets(HashMap<String, ArrayList<FromToPair>> sets) {
+		int no_of_sets = sets.size();
+
+		if (sets.get(":0") != null)
+			no_of_sets--;
+		if (sets.get(":1") != null)
+			no_of_sets--;
+		if (sets.get(":2") != null)
+			no_of_sets--;
+		if (sets.get(":3") != null)
+			no_of_sets--;
+
+		return (no_of_sets > 0);
+	}
+
+	/**
+	 * Asks the user whether 'file', which has character sets, should be
+	 * split into them.
+	 */
+	private boolean checkSplitIntoSets(File file) {
+		MessageBox mb = new MessageBox(
+				matrix.getFrame(),
+				"I see sets!",
+				"The file " + file + " contains character sets. Do you want me to split the file into character sets?",
+				MessageBox.MB_YESNOTOALL | MessageBox.MB_TITLE_IS_UNIQUE);
+
+		return (mb.showMessageBox() == MessageBox.MB_YES);
+	}
+
+	/**
+	 * Applies any CODONPOSSET information in 'sets' to every sequence
+	 * in 'sequences', for files which aren't being split into their
+	 * character sets. Rather handily, this information doesn't need to
+	 * be recalculated or anything and can go right in.
+	 */
+	private void applyCodonPositions(SequenceList sequences, HashMap<String, ArrayList<FromToPair>> sets) {
+		// Extract the positional sets. These are named ':<position>'.
+		Vector<FromToPair> positions_N = new Vector<FromToPair>();
+		Vector<FromToPair> positions_1 = new Vector<FromToPair>();
+		Vector<FromToPair> positions_2 = new Vector<FromToPair>();
+		Vector<FromToPair> positions_3 = new Vector<FromToPair>();
+
+		boolean nothing_to_do = true;
+
+		if (sets.containsKey(":0")) {
+			positions_N.addAll(sets.get(":0"));
+			nothing_to_do = false;
+		}
+
+		if (sets.containsKey(":1")) {
+			positions_1.addAll(sets.get(":1"));
+			nothing_to_do = false;
+		}
+
+		if (sets.containsKey(":2")) {
+			positions_2.addAll(sets.get(":2"));
+			nothing_to_do = false;
+		}
+
+		if (sets.containsKey(":3")) {
+			positions_3.addAll(sets.get(":3"));
+			nothing_to_do = false;
 		}
 
-		return count_charsets;
+		// Do we have ANY sort of codonposset information?
+		if (nothing_to_do)
+			return;
+
+		Iterator i_seq = sequences.iterator();
+		while (i_seq.hasNext()) {
+			Sequence seq = (Sequence) i_seq.next();
+
+			// Apply the positional information.
+			seq.setProperty("position_0", positions_N);
+			seq.setProperty("position_1", positions_1);
+			seq.setProperty("position_2", positions_2);
+			seq.setProperty("position_3", positions_3);
+		}
 	}
 
 	/**
-	 * Adds a sequence list to Sequence Matrix's table.
+	 * Works out what to call the column for a file which isn't split
+	 * into its character sets: its name, without its extension.
+	 */
+	private String getColumnName(File file) {
+		String filename = file.getName();
+
+		// Remove the extension, if there is one.
+		// Note that this does almost-Windows style extensions
+		// (one to FOUR characters at the end, separated
+		// from the rest with a single fullstop), so this
+		// should leave funky names like "test.sequences"
+		// alone.
+		return filename.replaceFirst("\\.\\w{1,4}$", "");
+	}
+
+	/**
+	 * Adds a sequence list to Sequence Matrix's table. If you're adding
+	 * several, set 'update' to false, and call TableManager.updateDisplay()
+	 * once you're done.
 	 *
 	 * @return Nothing. We report errors directly to the user.
 	 */
-	private void addSequenceListToTable(String name, SequenceList sl) {
+	private void addSequenceListToTable(String name, SequenceList sl, boolean update) {
 		setupNamesToUse(sl);
 		checkGappingSituation(name, sl);
 
 		StringBuffer buff_complaints = new StringBuffer();
-		matrix.getTableManager().addSequenceList(name, sl, buff_complaints, null);
+		matrix.getTableManager().addSequenceList(name, sl, buff_complaints, null, update);
 
 		if (buff_complaints.length() > 0) {
 			new MessageBox(matrix.getFrame(),
@@ -761,7 +882,8 @@ public class FileManager implements FormatListener {
 	}
 
 	/**
-	 * Adds a new file to the table. All file loading for SequenceMatrix goes through here.
+	 * Adds a new file to the table. All file loading for SequenceMatrix goes through here
+	 * (or through addFiles(), for several files at once).
 	 * This method should mostly coordinate the other methods around to get its work done.
 	 *
 	 * There used to be dragons here, but they've moved out into other methods now.
@@ -769,138 +891,235 @@ public class FileManager implements FormatListener {
 	 * This method throws no exceptions; any errors are displayed to the user directly.
 	 */
 	public void addFile(File file, FormatHandler handler) {
+		// If this is a TaxonDNA binary file going into an empty table,
+		// we can save changes straight back into it.
+		boolean was_empty = (matrix.getTableManager().getSequencesCount() == 0);
 
 		// Load the files.
 		SequenceList sequences = loadFile(file, handler);
 		if (sequences == null) {
 			return;
+		}
 
-			// Figure out the sets.
+		// Figure out the sets. We take them out of hashmap_codonsets,
+		// so it's ready for the next file.
+		HashMap<String, ArrayList<FromToPair>> sets;
+		synchronized (hashmap_codonsets) {
+			sets = new HashMap<String, ArrayList<FromToPair>>(hashmap_codonsets);
+			hashmap_codonsets.clear();
+		}
 
+		if (hasCharacterSets(sets) && checkSplitIntoSets(file)) {
+			// By this point, sets have *already been incorporated*,
+			// or the user's been told why they couldn't be.
+			incorporateSets(file, sequences, sets);
+			return;
 		}
-		synchronized (hashmap_codonsets) {
 
-			// If a file has CODONPOSSETs, but no CODONSETs, we
-			// CANNOT allow incorporateSets() to fire, because it
-			// won't have any codonsets to extract and we'll end
-			// up with nothing being added at all.
-			int no_of_sets = hashmap_codonsets.size();
+		// If we're here, the user chose not to incorporate sets.
+		// However, we need to add in any CODONPOSSET information
+		// which might still be hanging around.
+		sequences.lock();
+		applyCodonPositions(sequences, sets);
+		sequences.unlock();
 
-			if (hashmap_codonsets.get(":0") != null) {
-				no_of_sets--;
+		addSequenceListToTable(getColumnName(file), sequences, true);
 
+		if (was_empty && sequences.getFormatHandler() instanceof BinaryFile) {
+			try {
+				journal = matrix.getExporter().openJournal(file);
+			} catch (IOException e) {
+				// File -> Save will just export a new file instead.
+				journal = null;
+			} catch (FormatException e) {
+				journal = null;
 			}
-			if (hashmap_codonsets.get(":1") != null) {
-				no_of_sets--;
+		}
+	}
 
-			}
-			if (hashmap_codonsets.get(":2") != null) {
-				no_of_sets--;
+	/**
+	 * A file being added by addFiles(), and everything we've worked
+	 * out about it so far.
+	 */
+	private static class PendingFile {
+		File file;
+		SequenceList sequences;		// or null, if it couldn't be read
+		SequenceListException error;	// why it couldn't be read
+		HashMap<String, ArrayList<FromToPair>> sets = new HashMap<String, ArrayList<FromToPair>>();
+		boolean split;			// should it be split into its character sets?
+		LinkedHashMap<String, SequenceList> charsets;
+		CharacterSetException split_error;
+
+		PendingFile(File file) {
+			this.file = file;
+		}
+	}
 
-			}
-			if (hashmap_codonsets.get(":3") != null) {
-				no_of_sets--;
+	/**
+	 * Adds several files to the table at once. Files are read, and split
+	 * into their character sets, in parallel, each with its own set of
+	 * character sets; only adding them to the table happens one file at
+	 * a time, in the order given, and the table is only redrawn once, at
+	 * the end. Questions are asked in between, so the user still answers
+	 * them file by file.
+	 *
+	 * This method throws no exceptions; any errors are displayed to the user directly.
+	 */
+	public void addFiles(java.util.List files) {
+		if (files.size() == 0)
+			return;
 
+		if (files.size() == 1) {
+			addFile((File) files.get(0));
+			return;
+		}
 
-			}
-			if (no_of_sets > 0) {
-				MessageBox mb = new MessageBox(
-						matrix.getFrame(),
-						"I see sets!",
-						"The file " + file + " contains character sets. Do you want me to split the file into character sets?",
-						MessageBox.MB_YESNOTOALL | MessageBox.MB_TITLE_IS_UNIQUE);
+		final PendingFile[] pending = new PendingFile[files.size()];
+		for (int x = 0; x < pending.length; x++)
+			pending[x] = new PendingFile((File) files.get(x));
 
-				if (mb.showMessageBox() == MessageBox.MB_YES) {
-					int count = incorporateSets(file, sequences);
+		// The readers tell us about character sets as they find them. The
+		// worker threads can't safely sign us up as a FormatListener, so
+		// we make sure every FormatHandler knows about us before we start.
+		Iterator i_handlers = SequenceList.getFormatHandlers().iterator();
+		while (i_handlers.hasNext())
+			((FormatHandler) i_handlers.next()).addFormatListener(this);
 
-					hashmap_codonsets.clear();
+		// Step 1: read all the files.
+		DelayCallback pd = ProgressDialog.create(
+				matrix.getFrame(),
+				"Loading files ...",
+				"Loading " + pending.length + " files into memory. Sorry for the delay!",
+				ProgressDialog.FLAG_NOCANCEL);
 
-					if (count <= -1) {
-						return;     // We're not adding this file.
-					}
+		if (!runInParallel(pending.length, new WorkerPool.Job() {
+			public void run(int x) {
+				readFileInBackground(pending[x]);
+			}
+		}, pd))
+			return;
 
-					// Otherwise, by this point, sets have *already been incorporated*.
-					return;
-				}
+		// Step 2: report any problems, and ask which files to split up.
+		for (int x = 0; x < pending.length; x++) {
+			PendingFile p = pending[x];
+
+			if (p.sequences == null) {
+				new MessageBox(
+					matrix.getFrame(),
+					"Could not read file!",
+					"I could not understand a sequence in " + p.file + ". Please fix any errors in the file.\n\n"
+					+ "The technical description of the error is: " + p.error).go();
+				continue;
 			}
+
+			warnAboutNexus(p.sequences.getFormatHandler());
+
+			p.split = hasCharacterSets(p.sets) && checkSplitIntoSets(p.file);
 		}
 
-		// If we're here, the user chose not to incorporate sets.
-		// However, we need to add in any CODONPOSSET information
-		// which might still be hanging around.
-		synchronized (hashmap_codonsets) {
-			HashMap<String, ArrayList<FromToPair>> sets = hashmap_codonsets;
+		// Step 3: split them up.
+		pd = ProgressDialog.create(
+				matrix.getFrame(),
+				"Splitting files by character set",
+				"Your files are being split into their character sets. We apologize for the delay.",
+				ProgressDialog.FLAG_NOCANCEL);
 
-			// Don't let anybody change these sequences, either.
-			sequences.lock();
+		if (!runInParallel(pending.length, new WorkerPool.Job() {
+			public void run(int x) throws DelayAbortedException {
+				PendingFile p = pending[x];
 
-			// Step one: extract the positional sets. These are named ':<position>'.
-			// We also remove them from hashmap_codonsets, since this makes subsequent
-			// processing a whole lot easier.
-			Vector<FromToPair> positions_N = new Vector<FromToPair>();
-			Vector<FromToPair> positions_1 = new Vector<FromToPair>();
-			Vector<FromToPair> positions_2 = new Vector<FromToPair>();
-			Vector<FromToPair> positions_3 = new Vector<FromToPair>();
+				if (p.sequences == null)
+					return;
 
-			boolean nothing_to_do = true;
+				if (!p.split) {
+					applyCodonPositions(p.sequences, p.sets);
+					return;
+				}
 
-			if (sets.containsKey(":0")) {
-				positions_N.addAll(sets.get(":0"));
-				sets.remove(":0");
-				nothing_to_do = false;
+				try {
+					p.charsets = splitByCharacterSets(p.sequences, p.sets, null);
+				} catch (CharacterSetException e) {
+					p.split_error = e;
+				}
 			}
+		}, pd))
+			return;
 
-			if (sets.containsKey(":1")) {
-				positions_1.addAll(sets.get(":1"));
-				sets.remove(":1");
-				nothing_to_do = false;
-			}
+		// Step 4: add them to the table, one at a time.
+		for (int x = 0; x < pending.length; x++) {
+			PendingFile p = pending[x];
 
-			if (sets.containsKey(":2")) {
-				positions_2.addAll(sets.get(":2"));
-				sets.remove(":2");
-				nothing_to_do = false;
-			}
+			if (p.sequences == null)
+				continue;
 
-			if (sets.containsKey(":3")) {
-				positions_3.addAll(sets.get(":3"));
-				sets.remove(":3");
-				nothing_to_do = false;
+			if (p.split_error != null) {
+				new MessageBox(matrix.getFrame(), p.split_error.getTitle(), p.split_error.getMessage()).go();
+				continue;
 			}
 
-			// Do we have ANY sort of codonposset information?
-			if (!nothing_to_do) {
-				// For every sequence in this file, we need to apply the CODONPOSSET
-				// information. Rather handily, this information doesn't need to be
-				// recalculated or anything and can go right in.
-				Iterator i_seq = sequences.iterator();
-				while (i_seq.hasNext()) {
-					Sequence seq = (Sequence) i_seq.next();
-
-					// Apply the positional information.
-					seq.setProperty("position_0", positions_N);
-					seq.setProperty("position_1", positions_1);
-					seq.setProperty("position_2", positions_2);
-					seq.setProperty("position_3", positions_3);
-				}
+			if (p.split) {
+				for (String charset_name : p.charsets.keySet())
+					addSequenceListToTable(charset_name, p.charsets.get(charset_name), false);
+			} else {
+				addSequenceListToTable(getColumnName(p.file), p.sequences, false);
 			}
+		}
 
-			// We're done here.
-			sequences.unlock();
+		matrix.getTableManager().updateDisplay();
+	}
+
+	/**
+	 * Reads a file for addFiles(), on a worker thread. Any character sets
+	 * it finds go into its own 'sets', and any problems are stored for
+	 * addFiles() to report.
+	 */
+	private void readFileInBackground(PendingFile p) {
+		codonsets_for_thread.set(p.sets);
+		try {
+			p.sequences = SequenceList.readFile(p.file, null, this);
+		} catch (SequenceListException e) {
+			p.error = e;
+		} catch (DelayAbortedException e) {
+			// can't happen without a DelayCallback
+			p.error = new SequenceListException("Reading " + p.file + " was cancelled.");
+		} catch (RuntimeException e) {
+			// one bad file shouldn't stop us from reading all the others
+			p.error = new SequenceListException(e.toString(), e);
+		} finally {
+			codonsets_for_thread.remove();
 		}
+	}
 
-		// Reformat the name so we know what to call this sequencelist.
-		String filename = file.getName();
+	/**
+	 * Runs 'job' over 'count' items on a WorkerPool, behind the
+	 * DelayCallback.
+	 *
+	 * @return false if something went wrong (which has already been
+	 * 		shown to the user), otherwise true.
+	 */
+	private boolean runInParallel(int count, WorkerPool.Job job, DelayCallback delay) {
+		if (delay != null)
+			delay.begin();
 
-		// Remove the extension, if there is one.
-		// Note that this does almost-Windows style extensions
-		// (one to FOUR characters at the end, separated
-		// from the rest with a single fullstop), so this
-		// should leave funky names like "test.sequences"
-		// alone.
-		filename = filename.replaceFirst("\\.\\w{1,4}$", "");
+		try {
+			WorkerPool.forEach(count, job, delay);
+		} catch (DelayAbortedException e) {
+			// the ProgressDialog has already end()ed itself
+			return false;
+		} catch (ExecutionException e) {
+			if (delay != null)
+				delay.end();
+
+			new MessageBox(matrix.getFrame(),
+				"Fatal internal error",
+				"A fatal internal error occured while adding these files: " + e.getCause()).go();
+			return false;
+		}
+
+		if (delay != null)
+			delay.end();
 
-		addSequenceListToTable(filename, sequences);
+		return true;
 	}
 
 	/**
@@ -1248,6 +1467,74 @@ public class FileManager implements FormatListener {
 		}
 	}
 
+	/**
+	 * 	Export the current set as a TaxonDNA binary file. Like a Sequences file, this
+	 * 	keeps cancelled sequences, so we don't need to check for them.
+	 */
+	public void exportAsBinary() {
+		File f = getFile("Export as TaxonDNA binary ...");
+		if (f == null) {
+			return;
+		}
+
+		try {
+			journal = matrix.getExporter().exportAsBinary(f,
+					ProgressDialog.create(
+					matrix.getFrame(),
+					"Please wait, exporting dataset ...",
+					"The dataset is being exported. Sorry for the delay."));
+
+			MessageBox mb = new MessageBox(
+					matrix.getFrame(),
+					"Success!",
+					"This set was successfully exported to '" + f + "' in the TaxonDNA binary format.");
+			mb.go();
+
+		} catch (IOException e) {
+			reportIOException(e, f, IOE_WRITING);
+		} catch (DelayAbortedException e) {
+			reportDelayAbortedException(e, "Export of TaxonDNA binary file");
+		}
+	}
+
+	/**
+	 * 	Save the current set. If it came from (or was last exported to) a TaxonDNA
+	 * 	binary file, we only append whatever has changed to that file's journal,
+	 * 	compacting it in the background once it gets too large; otherwise, we
+	 * 	export it as a new TaxonDNA binary file.
+	 */
+	public void save() {
+		if (journal == null) {
+			exportAsBinary();
+			return;
+		}
+
+		// if the last background compaction failed, the journal is
+		// still intact, but the user should know why it's still there
+		IOException failure = journal.getCompactionFailure();
+		if (failure != null) {
+			reportIOException(failure, journal.getFile(), IOE_WRITING);
+		}
+
+		try {
+			matrix.getExporter().saveToJournal(journal);
+
+			if (journal.needsCompaction()) {
+				journal.compactInBackground();
+			}
+		} catch (IOException e) {
+			reportIOException(e, journal.getFile(), IOE_WRITING);
+		}
+	}
+
+	/**
+	 * 	Forget about the TaxonDNA binary file we've been saving into, such as
+	 * 	when the table is cleared.
+	 */
+	public void closeJournal() {
+		journal = null;
+	}
+
 	/**
 	 * Export the table itself as a tab delimited file.
 	 */
@@ -1522,8 +1809,9 @@ public class FileManager implements FormatListener {
 	/**
 	 * A format Listener for listening in on character sets. Every time the FormatHandler
 	 * sees a characterset it calls this method, which then stores the characterset into
-	 * hashmap_codonsets. Once the file has finished loading, incorporateSets() will use
-	 * this data to subdivide the input file.
+	 * hashmap_codonsets (or, if addFiles() is reading the file, that file's own sets).
+	 * Once the file has finished loading, incorporateSets() will use this data to
+	 * subdivide the input file.
 	 */
 	public boolean eventOccured(FormatHandlerEvent evt) throws FormatException {
 		switch (evt.getId()) {
@@ -1535,7 +1823,12 @@ public class FileManager implements FormatListener {
 				int to = evt.to;
 				FromToPair ftp = new FromToPair(from, to);
 
-				synchronized (hashmap_codonsets) {
+				// Which file are these sets for?
+				HashMap<String, ArrayList<FromToPair>> sets = codonsets_for_thread.get();
+				if (sets == null)
+					sets = hashmap_codonsets;
+
+				synchronized (sets) {
 					// Make sure characters aren't double-counted. This is a
 					// somewhat complex set of rules:
 					//	1.	CodonPosSets can overlap with all other datasets
@@ -1546,13 +1839,13 @@ public class FileManager implements FormatListener {
 					if(name.startsWith(":") && !name.equals(":0")) {
 						// CodonPosSet! Compare against all other codonpossets.
 
-						for(String compare_to: hashmap_codonsets.keySet()) {
+						for(String compare_to: sets.keySet()) {
 							// Only compare against other codonpossets.
 							if(!compare_to.startsWith(":") || compare_to.equals(":0"))
 								continue;
 
 							ArrayList<FromToPair> compare_list =
-									hashmap_codonsets.get(compare_to);
+									sets.get(compare_to);
 							for(FromToPair compare_ftp: compare_list) {
 								//System.err.println("Comparing position " + name + ":" + ftp + " with position " + compare_to + ":" + compare_ftp + " -> " + ftp.overlapsMovesInThrees(compare_ftp));
 								if(compare_ftp.overlapsMovesInThrees(ftp)) {
@@ -1574,13 +1867,13 @@ public class FileManager implements FormatListener {
 					} else {
 						// Not a codonposset. Compare against all other
 						// non-codonpossets.
-						for(String compare_to: hashmap_codonsets.keySet()) {
+						for(String compare_to: sets.keySet()) {
 							// Don't compare against codonpossets.
 							if(compare_to.startsWith(":"))
 								continue;
 
 							ArrayList<FromToPair> compare_list =
-									hashmap_codonsets.get(compare_to);
+									sets.get(compare_to);
 							for(FromToPair compare_ftp: compare_list) {
 								//System.err.println("Comparing " + name + ":" + ftp + " with " + compare_to + ":" + compare_ftp + " -> " + ftp.overlaps(compare_ftp));
 								if(compare_ftp.overlaps(ftp)) {
@@ -1601,13 +1894,13 @@ public class FileManager implements FormatListener {
 
 					// This is all very Perlish.
 
-					if (hashmap_codonsets.get(name) != null) {
-						ArrayList<FromToPair> al = hashmap_codonsets.get(name);
+					if (sets.get(name) != null) {
+						ArrayList<FromToPair> al = sets.get(name);
 						al.add(ftp);
 					} else {
 						ArrayList<FromToPair> al = new ArrayList<FromToPair>();
 						al.add(ftp);
-						hashmap_codonsets.put(name, al);
+						sets.put(name, al);
 					}
 				}
 
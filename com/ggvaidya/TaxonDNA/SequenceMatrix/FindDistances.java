@@ -59,6 +59,257 @@ public class FindDistances implements WindowListener, ActionListener {
 
 	private Vector			pdColumns = null;
 
+	private Map			indices = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_INDICES;
+		}
+	};								// String(colName, or "" for all genes) -> DistanceIndex
+	private static final int	MAX_INDICES = 4;		// how many DistanceIndexes we hang on to
+
+	/**
+	 * Every pairwise distance between a set of sequences (all the sequences
+	 * in one gene, or in every gene), sorted from smallest to largest. This
+	 * makes finding the pairs between two distances a binary search for the
+	 * first one, followed by a walk over the hits. 
+	 *
+	 * The index remembers the sequences (and their UUIDs) it was built from,
+	 * as well as the distance method and minimum overlap, so we can tell
+	 * when it's out of date and needs to be built again.
+	 */
+	private static class DistanceIndex {
+		/** The most pairs we can index: Java arrays can't be any longer. */
+		public static final long	MAX_PAIRS = Integer.MAX_VALUE - 8;
+
+		private Sequence	sequences[];
+		private Object		uuids[];		// the UUID of each sequence, when we indexed it
+		private String		colNames[];		// the column each sequence came from
+		private int		pairwiseDistanceMethod;
+		private int		minOverlap;
+
+		private int		row_start[];		// the pairs (i, j > i) are numbered from row_start[i]
+		private double		distances[];		// every distance, sorted
+		private int		pairs[];		// the pair each of these distances is for
+
+		/** Returns the number of pairs between 'count' sequences. */
+		public static long countPairs(int count) {
+			return ((long)count * (count - 1)) / 2;
+		}
+
+		/**
+		 * Calculates every pairwise distance between 'sequences' (in
+		 * parallel), and sorts them.
+		 */
+		public DistanceIndex(Sequence sequences[], String colNames[], DelayCallback delay) throws DelayAbortedException {
+			final int n = sequences.length;
+			final Sequence seqs[] = sequences;
+
+			this.sequences = sequences;
+			this.colNames = colNames;
+			uuids = new Object[n];
+			for(int x = 0; x < n; x++)
+				uuids[x] = sequences[x].getId();
+			pairwiseDistanceMethod = Sequence.getPairwiseDistanceMethod();
+			minOverlap = Sequence.getMinOverlap();
+
+			row_start = new int[n];
+			int count = 0;
+			for(int x = 0; x < n; x++) {
+				row_start[x] = count;
+				count += (n - x - 1);
+			}
+
+			distances = new double[count];
+			pairs = new int[count];
+
+			try {
+				WorkerPool.forEach(n, new WorkerPool.Job() {
+					public void run(int x) {
+						int pair = row_start[x];
+
+						for(int y = x + 1; y < n; y++) {
+							distances[pair] = seqs[x].getPairwiseNoBuffer(seqs[y]);
+							pairs[pair] = pair;
+							pair++;
+						}
+					}
+				}, delay);
+			} catch(java.util.concurrent.ExecutionException e) {
+				throw new RuntimeException("Could not calculate pairwise distances", e.getCause());
+			}
+
+			sort(0, count - 1);
+		}
+
+		/**
+		 * Checks whether we were built from exactly these sequences (unchanged)
+		 * in these columns, using the current distance method and minimum overlap.
+		 */
+		public boolean isCurrent(Sequence sequences[], String colNames[]) {
+			if(pairwiseDistanceMethod != Sequence.getPairwiseDistanceMethod() || minOverlap != Sequence.getMinOverlap())
+				return false;
+
+			if(sequences.length != this.sequences.length)
+				return false;
+
+			for(int x = 0; x < sequences.length; x++) {
+				if(sequences[x] != this.sequences[x] || sequences[x].getId() != uuids[x])
+					return false;
+
+				if(!colNames[x].equals(this.colNames[x]))
+					return false;
+			}
+
+			return true;
+		}
+
+		/** Returns the index of the first distance which is at least 'from'. */
+		public int getIndexFrom(double from) {
+			int low = 0;
+			int high = distances.length;
+
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+
+				if(distances[mid] < from)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+
+			return low;
+		}
+
+		/** Returns the index of the first distance which is greater than 'to'. */
+		public int getIndexAbove(double to) {
+			int low = 0;
+			int high = distances.length;
+
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+
+				if(distances[mid] <= to)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+
+			return low;
+		}
+
+		/** Returns the distance at 'index'. */
+		public double getDistance(int index) {
+			return distances[index];
+		}
+
+		/** Returns the first sequence (as an index into our sequences) of the pair at 'index'. */
+		public int getSequenceA(int index) {
+			int pair = pairs[index];
+
+			// find the last row which starts at or before 'pair'
+			int low = 0;
+			int high = row_start.length - 2;	// the last sequence doesn't start any pairs
+			while(low < high) {
+				int mid = (low + high + 1) >>> 1;
+
+				if(row_start[mid] <= pair)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+
+			return low;
+		}
+
+		/** Returns the second sequence (as an index into our sequences) of the pair at 'index'. */
+		public int getSequenceB(int index) {
+			int a = getSequenceA(index);
+
+			return a + 1 + (pairs[index] - row_start[a]);
+		}
+
+		/** Returns the name we report sequence 'x' by. */
+		public String getSequenceName(int x) {
+			return sequences[x].getDisplayName() + " (from " + colNames[x] + ")";
+		}
+
+		/**
+		 * Sorts distances[from] to distances[to] (inclusive), and pairs[]
+		 * along with them. Equal distances are sorted by pair, so that
+		 * they come out in the order the sequences are in.
+		 */
+		private void sort(int from, int to) {
+			while(to - from > 16) {
+				// median of three
+				int mid = (from + to) >>> 1;
+				if(lessThan(mid, from))
+					swap(mid, from);
+				if(lessThan(to, from))
+					swap(to, from);
+				if(lessThan(to, mid))
+					swap(to, mid);
+
+				double pivot_distance = distances[mid];
+				int pivot_pair = pairs[mid];
+
+				int x = from;
+				int y = to;
+				while(x <= y) {
+					while(compare(x, pivot_distance, pivot_pair) < 0)
+						x++;
+					while(compare(y, pivot_distance, pivot_pair) > 0)
+						y--;
+
+					if(x <= y) {
+						swap(x, y);
+						x++;
+						y--;
+					}
+				}
+
+				// recurse into the smaller half, and loop on the larger one
+				if(y - from < to - x) {
+					sort(from, y);
+					from = x;
+				} else {
+					sort(x, to);
+					to = y;
+				}
+			}
+
+			// insertion sort for the little bits
+			for(int x = from + 1; x <= to; x++) {
+				for(int y = x; y > from && lessThan(y, y - 1); y--)
+					swap(y, y - 1);
+			}
+		}
+
+		private int compare(int x, double distance, int pair) {
+			int c = Double.compare(distances[x], distance);		// NaNs go at the very end
+			if(c != 0)
+				return c;
+
+			if(pairs[x] < pair)
+				return -1;
+			if(pairs[x] > pair)
+				return +1;
+			return 0;
+		}
+
+		private boolean lessThan(int x, int y) {
+			return compare(x, distances[y], pairs[y]) < 0;
+		}
+
+		private void swap(int x, int y) {
+			double d = distances[x];
+			distances[x] = distances[y];
+			distances[y] = d;
+
+			int p = pairs[x];
+			pairs[x] = pairs[y];
+			pairs[y] = p;
+		}
+	}
+
 	/**
 	 * Constructor. Sets us up the bomb.
 	 */
@@ -178,87 +429,82 @@ public class FindDistances implements WindowListener, ActionListener {
                     // Add just the column we're interested in
                     vec_colNames.add(colName_to_use);  
 
-                // Calculation time!
-                ProgressDialog pd = ProgressDialog.create(
-                        fr_findDistances,
-                        "Please wait, calculating pairwise distances ...",
-                        "Calculating all pairwise distances, please wait! This will take a long time."
-                );
-
-                // get a SequenceList for each column
+                // Find (or build) the index of every pairwise distance within
+                // these columns; if none of them have changed since we last
+                // looked, we don't need to calculate anything at all.
                 TableManager tm = matrix.getTableManager();
-                int count_results = 0;
-                int count = 0;
-                int total = // Very approximately 
-                    vec_colNames.size() * tm.getSequencesCount()
-                        *
-                    (tm.getColumns().size() * tm.getSequencesCount() - 1)
-                ;
+                String key = (colName_to_use == null) ? "" : colName_to_use;
 
-                // Results go here.
-                Vector results = new Vector();
+                Vector vec_sequences = new Vector();
+                Vector vec_seqColNames = new Vector();
 
-                pd.begin();
-                
                 Iterator i = vec_colNames.iterator();
                 while(i.hasNext()) {
                         String colName = (String)i.next();
                         
                         SequenceList sl = tm.getSequenceListByColumn(colName);
+                        if(sl == null)
+                            continue;
 
-                        // Go through all the sequences.
-                        Iterator i_outer_seq = sl.iterator();
-                        while(i_outer_seq.hasNext()) {
-                            Sequence seq_outer = (Sequence) i_outer_seq.next();
-
-                            // Go through all the columns.
-                            Iterator i_columns = vec_colNames.iterator();
-                            while(i_columns.hasNext()) {
-                                String compareTo_colName = (String) i_columns.next();
-
-                                SequenceList sl_compareTo = tm.getSequenceListByColumn(compareTo_colName);
-
-                                Iterator i_inner_seq = sl_compareTo.iterator();
-                                while(i_inner_seq.hasNext()) {
-                                    Sequence seq_inner = (Sequence) i_inner_seq.next();
-
-                                    // Don't compare sequences to themselves.
-                                    if(seq_inner.equals(seq_outer))
-                                        continue;
+                        Iterator i_seq = sl.iterator();
+                        while(i_seq.hasNext()) {
+                            vec_sequences.add(i_seq.next());
+                            vec_seqColNames.add(colName);
+                        }
+                }
 
-                                    count++;
-                                    pd.delay(count, total);
-                                    double pairwise = seq_outer.getPairwise(seq_inner);
+                Sequence sequences[] = (Sequence[]) vec_sequences.toArray(new Sequence[vec_sequences.size()]);
+                String seqColNames[] = (String[]) vec_seqColNames.toArray(new String[vec_seqColNames.size()]);
 
-                                    if(from <= pairwise && pairwise <= to) {
-                                        Sequence a, b;
+                DistanceIndex index = (DistanceIndex) indices.get(key);
+                if(index == null || !index.isCurrent(sequences, seqColNames)) {
+                    indices.remove(key);
 
-                                        a = new Sequence(seq_outer);
-                                        b = new Sequence(seq_inner);
+                    long pairs = DistanceIndex.countPairs(sequences.length);
+                    if(pairs > DistanceIndex.MAX_PAIRS) {
+                        new MessageBox(
+                                fr_findDistances,
+                                "Too many sequences!",
+                                "There are " + sequences.length + " sequences to compare, which makes " + pairs + " pairs; I can't compare more than " + DistanceIndex.MAX_PAIRS + " pairs at once. Please pick a single gene to search within.").go();
+                        return;
+                    }
 
-                                        a.changeName(a.getDisplayName() + " (from " + colName + ")");
-                                        b.changeName(b.getDisplayName() + " (from " + compareTo_colName + ")");
+                    // Calculation time!
+                    ProgressDialog pd = ProgressDialog.create(
+                            fr_findDistances,
+                            "Please wait, calculating pairwise distances ...",
+                            "Calculating all pairwise distances, please wait! This will take a long time."
+                    );
+
+                    pd.begin();
+                    try {
+                        index = new DistanceIndex(sequences, seqColNames, pd);
+                    } catch(RuntimeException e) {
+                        pd.end();
+                        throw e;
+                    }
 
-                                        PairwiseDistance pairdist = new PairwiseDistance(a, b);
-                                        results.add(pairdist);
+                    // if we were aborted, the ProgressDialog has already end()ed itself
+                    pd.end();
 
-                                        count_results++;
-                                    }
-                                }
-                            }
-                        }
+                    indices.put(key, index);
                 }
 
-                // TODO: Get rid of duplicates (X <-> Y and Y <-> X).
-
+                // Results go here.
+                int count_results = 0;
                 StringBuffer buff = new StringBuffer();
-                Collections.sort(results);
 
-                i = results.iterator();
-                while(i.hasNext()) {
-                    PairwiseDistance pairdist = (PairwiseDistance) i.next();
+                int to_index = index.getIndexAbove(to);
+                for(int x = index.getIndexFrom(from); x < to_index; x++) {
+                    String name_a = index.getSequenceName(index.getSequenceA(x));
+                    String name_b = index.getSequenceName(index.getSequenceB(x));
+                    String distance = percentage(index.getDistance(x), 1) + "%\n";
+
+                    // We report each pair both ways around.
+                    buff.append(name_a + "\t" + name_b + "\t" + distance);
+                    buff.append(name_b + "\t" + name_a + "\t" + distance);
 
-                    buff.append(pairdist.getSequenceA().getFullName() + "\t" + pairdist.getSequenceB().getFullName() + "\t" + percentage(pairdist.getDistance(), 1) + "%\n");
+                    count_results += 2;
                 }
 
                 String pdm_method = "(unknown)";
@@ -273,7 +519,6 @@ public class FindDistances implements WindowListener, ActionListener {
 
 		text_main.setText(count_results + " sequence pairs found with distances between " + percentage(from, 1) + "% and " + percentage(to, 1) + "%.\nNote that distances were calculated using " + pdm_method + " and sequence overlaps of less than " + Sequence.getMinOverlap() + " bp weren't counted.\n\n" + buff);
 
-		pd.end();
 	}
 
 	private double percentage(double x, double y) {
@@ -215,8 +215,10 @@ public class SequenceMatrix implements WindowListener, ActionListener, ItemListe
 		//
 		// File -> New. Just close the present file. 
 		// 
-		if(cmd.equals("Clear all sequences"))
+		if(cmd.equals("Clear all sequences")) {
 			tableManager.clear();
+			fileManager.closeJournal();
+		}
 
 		//
 		// File -> Open. Tries to load the file specified.
@@ -227,10 +229,11 @@ public class SequenceMatrix implements WindowListener, ActionListener, ItemListe
 			fileManager.addFile();
 
 		//
-		// File -> Save. Effectively an 'export as #sequences'.
+		// File -> Save. Saves into the TaxonDNA binary file we
+		// came from, or exports a new one.
 		//
 		if(cmd.equals("Save"))
-			fileManager.exportAsSequences();
+			fileManager.save();
 
 		//
 		// File -> Exit. Calls our exit() way out.
@@ -309,6 +312,12 @@ public class SequenceMatrix implements WindowListener, ActionListener, ItemListe
 		if(cmd.equals("Export sequences as TNT"))
 			fileManager.exportAsTNT();
 
+		//
+		// Export -> Export as TaxonDNA binary.
+		//
+		if(cmd.equals("Export sequences as TaxonDNA binary"))
+			fileManager.exportAsBinary();
+
 		//
 		// Export -> Export as PHYLIP
 		if(cmd.equals("Export sequences for RAxML analyses on CIPRES"))
@@ -405,12 +414,8 @@ public class SequenceMatrix implements WindowListener, ActionListener, ItemListe
 			}
 			dtde.dropComplete(true);		// so long and thanks for all the fish!
 
-			Iterator i = list.iterator();
-			while(i.hasNext()) {
-				File file = 	(File) i.next();
-
-				fileManager.addFile(file);
-			}
+			// read them all at once
+			fileManager.addFiles(list);
 		} else {
 			dtde.rejectDrop();
 		}
@@ -565,7 +570,7 @@ public class SequenceMatrix implements WindowListener, ActionListener, ItemListe
 		Menu 	file		=	new Menu("File");
 		file.add(new MenuItem("Clear all sequences"));
 		
-		//file.add(new MenuItem("Save"));
+		file.add(new MenuItem("Save"));
                 
         // Import submenu
 		Menu	imports		= 	new Menu("Import");
@@ -615,6 +620,7 @@ public class SequenceMatrix implements WindowListener, ActionListener, ItemListe
 		export.add(new MenuItem("Export sequences as NEXUS (non-interleaved)"));
 		export.add(new MenuItem("Export sequences as NEXUS (\"naked\", e.g. for GARLI)"));
 		export.add(new MenuItem("Export sequences for RAxML analyses on CIPRES"));
+		export.add(new MenuItem("Export sequences as TaxonDNA binary"));
 
 		export.addSeparator();
 
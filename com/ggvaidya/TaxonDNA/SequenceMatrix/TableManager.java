@@ -187,6 +187,27 @@ public class TableManager implements ActionListener {
 	 * @param shrinkAllowed Is shrinking of columns allowed? 'S or No.
 	 */
 	public void resizeColumnToFit(String x, boolean shrinkAllowed) {
+		resizeColumnToFit(x, shrinkAllowed, 0, sortedSequences.size());
+	}
+
+	/**
+	 * Widens every column to fit rows 'from' to 'to - 1', if they need
+	 * more room than the column has already.
+	 */
+	public void resizeColumnsToFit(int from, int to) {
+		Iterator i = sortedColumns.iterator();
+		while(i.hasNext()) {
+			String colName = (String) i.next();
+
+			resizeColumnToFit(colName, false, from, to);
+		}
+	}
+
+	/**
+	 * Resizes column 'x' to fit the widest entry in rows 'from' to 'to - 1'.
+	 * Values which the display mode hasn't worked out yet are skipped.
+	 */
+	private void resizeColumnToFit(String x, boolean shrinkAllowed, int from, int to) {
 		TableColumnModel tcm = table.getColumnModel();
 		if(tcm == null)
 			return;		// it could happen
@@ -214,7 +235,11 @@ public class TableManager implements ActionListener {
 			maxLength = (int) comp.getPreferredSize().getWidth();
 
 		// get the renderer component for each row in the column
-		for(int row = 0; row < sortedSequences.size(); row++) {
+		to = Math.min(to, sortedSequences.size());
+		for(int row = from; row < to; row++) {
+			if(!currentDisplayMode.isValueReady(row, col))
+				continue;
+
 			TableCellRenderer renderer = table.getCellRenderer(row, col);
 			Component c = renderer.getTableCellRendererComponent(table, table.getValueAt(row, col), true, true, row, col);
 
@@ -253,8 +278,18 @@ public class TableManager implements ActionListener {
 	}
 
 	public void addSequenceList(String colName, SequenceList sl, StringBuffer complaints, DelayCallback delay) {
+		addSequenceList(colName, sl, complaints, delay, true);
+	}
+
+	/**
+	 * Adds a sequence list as a column, but only updates the display if
+	 * 'update' is true. If you're adding several columns at once, it's
+	 * much faster to call updateDisplay() just once, when you're done.
+	 */
+	public void addSequenceList(String colName, SequenceList sl, StringBuffer complaints, DelayCallback delay, boolean update) {
 		dataStore.addSequenceList(colName, sl, complaints, delay);
-		updateDisplay();
+		if(update)
+			updateDisplay();
 	}
 
 	/** 
@@ -547,6 +582,10 @@ public class TableManager implements ActionListener {
 		return (TableModel) currentDisplayMode;
 	}
 
+	public DisplayMode getCurrentDisplayMode() {
+		return currentDisplayMode;
+	}
+
 //
 // USER INTERFACE CODE
 //
@@ -145,12 +145,14 @@ public class BarcodeGenerator extends Panel implements UIExtension, ActionListen
 
 		delay.begin();
 
-		// first, collate into species groups
+		// first, collate into species groups. We keep the groups in the
+		// order in which we first saw each species, and look up existing
+		// groups by name.
 		Vector groups = new Vector(); 
+		Hashtable groups_by_name = new Hashtable();
 		Iterator i = set.iterator();
 		count = 0;
 		while(i.hasNext()) {
-			boolean found = false;
 			Sequence seq = (Sequence) i.next();
 
 			count++;
@@ -163,29 +165,22 @@ public class BarcodeGenerator extends Panel implements UIExtension, ActionListen
 			}
 
 			// if there's no spName, we'll put it by itself
-			if(seq.getSpeciesName() != null) {
-				Iterator group_i = groups.iterator();
-				while(group_i.hasNext()) {
-					Vector	v	= (Vector) group_i.next();
-					Sequence seq2	= (Sequence) v.get(0);
-
-					if(seq2.getSpeciesName() == null)
-						continue;
-	
-					if(seq.getSpeciesName().equals(seq2.getSpeciesName())) {
-						v.add(seq);
-						found = true;
-						break;
-					}
-				}
+			String name = seq.getSpeciesName();
+			if(name != null) {
+				Vector v = (Vector) groups_by_name.get(name);
 
-				if(found)
+				if(v != null) {
+					v.add(seq);
 					continue;
+				}
 			}
 
 			Vector vec = new Vector();
 			vec.add(seq);
 			groups.add(vec);
+
+			if(name != null)
+				groups_by_name.put(name, vec);
 		}
 
 //		System.err.println("Number of groups: " + groups.size());
@@ -200,96 +195,27 @@ public class BarcodeGenerator extends Panel implements UIExtension, ActionListen
 		// 
 		SequenceList results = new SequenceList();
 
-		// now, we compress each group into a single sequence.
-		i = groups.iterator();		
-		
-		count = 0;
-		try {
-		while(i.hasNext()) {
-			Vector group = (Vector) i.next();
-
-			count++;
-			delay.delay(set.count() + count, set.count() * 2);
-			
-			if(group.size() == 1) {
-				results.add((Sequence)group.get(0));	
-			} else {
-				int count_sequences = group.size();
-				int length = set.getMaxLength();
-				StringBuffer buff = new StringBuffer();
-				String name = "";
-
-				for(int x = 0; x < length; x++) {
-					int found_in = 0;
-					char ch = '?';
-					char ch2 = '?';
-					
-					for(int y = 0; y < count_sequences; y++) {
-						String str = ((Sequence)group.get(y)).getSequence();
-
-						if(name.equals("")) {
-							name = ((Sequence)group.get(y)).getSpeciesName();
-						}
-						
-						if(x < str.length())
-							ch2 = str.charAt(x);
-						else
-							ch2 = '?';
-						
-						if(ch == '?')
-							ch = ch2;
-						
-						if(Sequence.identical(ch, ch2)) {
-							found_in++;
-						} 
-						
-						ch = Sequence.consensus(ch, ch2);
-						if(ch == '_')
-							ch = '-';
-					}
-
-					if(num_sequences_should_match == -1) {
-						// everything goes!
-						buff.append(ch);
-					} else if(found_in >= num_sequences_should_match) {
-						buff.append(ch);
-					} else {
-						// not enough matched!
-						//
-						// we make it 'N' here, but later on
-						// leading and lagging 'N's are converted into gaps 
-						buff.append('N');
-					}
-				}
-
-				for(int x = 0; x < buff.length(); x++) {
-					if(buff.charAt(x) == '-') {
-						// go on
-					} else if(buff.charAt(x) == 'N') {
-						// turn into gap!
-						buff.setCharAt(x, '-');
-					} else {
-						// lead over!
-						break;
-					}
-				}
-
-				for(int x = buff.length() - 1; x >= 0; x--) {
-					if(buff.charAt(x) == '-') {
-						// go on
-					} else if(buff.charAt(x) == 'N') {
-						// turn into gap!
-						buff.setCharAt(x, '-');
-					} else {
-						// lead over!
-						break;
-					}
-				}
+		// now, we compress each group into a single sequence. The groups
+		// are independent of each other, so we do them all at once.
+		final Vector		final_groups = groups;
+		final Sequence[]	barcodes = new Sequence[groups.size()];
+		final int		length = set.getMaxLength();
+		final int		should_match = num_sequences_should_match;
 
-				String str = buff.toString().replace('_', '-');
-//				System.err.println("Consensus of " + name + " (" + count_sequences + "): " + str);
-				results.add(new Sequence(name + " (barcode of " + count_sequences + " sequences)", str));
+		try {
+		WorkerPool.forEach(groups.size(), new WorkerPool.Job() {
+			public void run(int index) throws SequenceException {
+				Vector group = (Vector) final_groups.get(index);
+
+				if(group.size() == 1)
+					barcodes[index] = (Sequence) group.get(0);
+				else
+					barcodes[index] = getBarcode(group, length, should_match);
 			}
+		}, new DelayOffset(delay, set.count(), set.count() * 2));
+
+		for(int x = 0; x < barcodes.length; x++) {
+			results.add(barcodes[x]);
 		}
 
 		// now, we either spawn a new instance of SpeciesIdentifier, or
@@ -309,8 +235,9 @@ public class BarcodeGenerator extends Panel implements UIExtension, ActionListen
 
 		results = null;
 		
-		} catch(SequenceException e) {
-			MessageBox.messageBox(seqId.getFrame(), "Error: sequence incorrect", "An incorrect sequence was generated. This is an error in the program. Please inform the programmer.\n\nTechnical description: " + e);
+		} catch(java.util.concurrent.ExecutionException e) {
+			// almost certainly a SequenceException from getBarcode()
+			MessageBox.messageBox(seqId.getFrame(), "Error: sequence incorrect", "An incorrect sequence was generated. This is an error in the program. Please inform the programmer.\n\nTechnical description: " + e.getCause());
 			e.printStackTrace();
 		} catch(IOException e) {
 			MessageBox.messageBox(seqId.getFrame(), "Error: could not write file", "The following error was reported while trying to write the Fasta file: " + e);
@@ -322,6 +249,119 @@ public class BarcodeGenerator extends Panel implements UIExtension, ActionListen
 		}
 	}
 	
+	/**
+	 * Generates the consensus barcode for a group of conspecific sequences.
+	 * For every column, we OR together the bases each sequence might
+	 * have there (so A+T becomes W, and W+C becomes H), and count the
+	 * number of sequences which have any information (a base or an
+	 * internal gap) at that position, all in a single pass over each
+	 * sequence.
+	 *
+	 * @param should_match	the number of sequences which must have information
+	 * 			at a position for it to be included, or -1 if
+	 * 			every position should be included.
+	 */
+	private static Sequence getBarcode(Vector group, int length, int should_match) throws SequenceException {
+		int	count_sequences = group.size();
+		int[]	bases = new int[length];		// the bitmask of all bases seen in each column
+		int[]	found_in = new int[length];		// the number of sequences with information in each column
+		String	name = "";
+
+		for(int y = 0; y < count_sequences; y++) {
+			Sequence seq = (Sequence) group.get(y);
+			char[] str = seq.getSequenceWithExternalGaps().toCharArray();
+
+			if(name.equals("")) {
+				name = seq.getSpeciesName();
+			}
+
+			for(int x = 0; x < str.length && x < length; x++) {
+				char ch = str[x];
+
+				// external gaps ('_') just mean the sequence
+				// doesn't extend this far: no information here.
+				if(Sequence.isMissing(ch) || ch == '_')
+					continue;
+
+				bases[x] |= Sequence.baseToBitmask(ch);
+				found_in[x]++;
+			}
+		}
+
+		char[] buff = new char[length];
+		for(int x = 0; x < length; x++) {
+			char ch;
+
+			if(found_in[x] == 0)
+				ch = '?';			// nobody had anything here
+			else
+				ch = Sequence.bitmaskToBase(bases[x]);	// 0x00 (only gaps) becomes '-'
+
+			if(should_match == -1) {
+				// everything goes!
+				buff[x] = ch;
+			} else if(found_in[x] >= should_match) {
+				buff[x] = ch;
+			} else {
+				// not enough matched!
+				//
+				// we make it 'N' here, but later on
+				// leading and lagging 'N's are converted into gaps 
+				buff[x] = 'N';
+			}
+		}
+
+		for(int x = 0; x < buff.length; x++) {
+			if(buff[x] == '-') {
+				// go on
+			} else if(buff[x] == 'N') {
+				// turn into gap!
+				buff[x] = '-';
+			} else {
+				// lead over!
+				break;
+			}
+		}
+
+		for(int x = buff.length - 1; x >= 0; x--) {
+			if(buff[x] == '-') {
+				// go on
+			} else if(buff[x] == 'N') {
+				// turn into gap!
+				buff[x] = '-';
+			} else {
+				// lead over!
+				break;
+			}
+		}
+
+//		System.err.println("Consensus of " + name + " (" + count_sequences + "): " + new String(buff));
+		return new Sequence(name + " (barcode of " + count_sequences + " sequences)", new String(buff));
+	}
+
+	/**
+	 * Reports the progress of the second half of a job to a DelayCallback
+	 * which is keeping track of the whole thing.
+	 */
+	private static class DelayOffset implements DelayCallback {
+		private DelayCallback	delay;
+		private int		offset;
+		private int		total;
+
+		public DelayOffset(DelayCallback delay, int offset, int total) {
+			this.delay = delay;
+			this.offset = offset;
+			this.total = total;
+		}
+
+		public void begin()			{}
+		public void end()			{}
+		public void addWarning(String warning)	{ delay.addWarning(warning); }
+		public void delay(int done, int ignored) throws DelayAbortedException {
+			delay.delay(offset + done, total);
+		}
+	}
+	
 	public String getShortName() {		return "Consensus Barcode Generator"; 	}
 	public String getDescription() {	return "Generates a consensus sequence for every species in the dataset"; }
 	public boolean addCommandsToMenu(Menu commandMenu) {	return false; }
@@ -48,6 +48,12 @@ public class BestMatch extends Panel implements UIExtension, ActionListener, Run
 	private Button		btn_Copy;
 	private Button		btn_threshold = new Button("Compute from Pairwise Summary");
 
+	private Checkbox	check_kmerFilter = new Checkbox("Only compare sequences which share at least ");
+	private TextField	tf_kmerMinShared = new TextField("10");
+	private Label		label_kmerFilter = new Label(" " + KMER_LENGTH + "-bp k-mers (faster on large, diverse datasets)");
+
+	private static final int KMER_LENGTH = 11;	// the length of k-mers used by the k-mer filter
+
 	private boolean		processingDone = false;
 	private double		threshold = 0;
 
@@ -70,6 +76,10 @@ public class BestMatch extends Panel implements UIExtension, ActionListener, Run
 		btn_threshold.addActionListener(this);
 		rl.add(btn_threshold, RightLayout.BESIDE);
 		
+		rl.add(check_kmerFilter, RightLayout.NEXTLINE);
+		rl.add(tf_kmerMinShared, RightLayout.BESIDE);
+		rl.add(label_kmerFilter, RightLayout.BESIDE | RightLayout.FILL_2);
+
 		btn_recalculate.addActionListener(this);
 		rl.add(btn_recalculate, RightLayout.NEXTLINE | RightLayout.FILL_4);
 
@@ -210,6 +220,31 @@ public class BestMatch extends Panel implements UIExtension, ActionListener, Run
 
 		total_count_sequences = set.count();
 
+		// if the k-mer filter is on, we only compare each query
+		// against the sequences which share enough k-mers with it.
+		KmerIndex index = null;
+		int min_shared = 0;
+		if(check_kmerFilter.getState()) {
+			try {
+				min_shared = Integer.parseInt(tf_kmerMinShared.getText());
+			} catch(NumberFormatException e) {
+				min_shared = 10;
+				tf_kmerMinShared.setText("10");
+			}
+
+			try {
+				index = new KmerIndex(set, KMER_LENGTH, ProgressDialog.create(
+						seqId.getFrame(),
+						"Please wait, indexing sequences ...",
+						"The k-mers in every sequence are being indexed. Sorry for the wait!",
+						0
+					));
+			} catch(DelayAbortedException e) {
+				seqId.unlockSequenceList();
+				return;
+			}
+		}
+
 		/*
 		// We need to know what the species summary is.
 		SpeciesDetails sd = null;
@@ -263,6 +298,22 @@ public class BestMatch extends Panel implements UIExtension, ActionListener, Run
 				continue;
 			}
 			
+			// with the k-mer filter, we only sort the candidates (and
+			// the query itself, which must always come first).
+			if(index != null) {
+				int[] candidates = index.getCandidates(query, min_shared);
+				SequenceList shortlist = new SequenceList();
+
+				shortlist.add(query);
+				for(int c = 0; c < candidates.length; c++) {
+					Sequence candidate = index.get(candidates[c]);
+					if(candidate != query)
+						shortlist.add(candidate);
+				}
+
+				sset = new SortedSequenceList(shortlist);
+			}
+
 			// for each query, we run a SortedSequenceSet.
 			try { 
 				sset.sortAgainst(query, null);
@@ -43,6 +43,10 @@ public class Cluster extends Panel implements UIExtension, ActionListener, ItemL
 	private SequenceList		set = null;
 
 	private Button		btn_MakeClusters = new Button(" Make clusters now! ");
+
+	private Checkbox	check_kmerFilter = new Checkbox("Only compare sequences which share at least ");
+	private TextField	tf_kmerMinShared = new TextField("10");
+	private static final int KMER_LENGTH = 11;	// the length of k-mers used by the k-mer filter
 	private TextField	text_threshold = new TextField("03.000");
 	private java.awt.List	list_clusters = new java.awt.List();
 	private TextArea	text_main = new TextArea();
@@ -80,6 +84,10 @@ public class Cluster extends Panel implements UIExtension, ActionListener, ItemL
 		rl.add(text_threshold, RightLayout.BESIDE);
 		rl.add(new Label("%"), RightLayout.BESIDE);
 
+		rl.add(check_kmerFilter, RightLayout.NEXTLINE);
+		rl.add(tf_kmerMinShared, RightLayout.BESIDE);
+		rl.add(new Label(" " + KMER_LENGTH + "-bp k-mers (faster on large, diverse datasets)"), RightLayout.BESIDE);
+
 		rl.add(check_skipIndivEntries, RightLayout.NEXTLINE);
 		
 		btn_MakeClusters.addActionListener(this);
@@ -663,6 +671,25 @@ public class Cluster extends Panel implements UIExtension, ActionListener, ItemL
 			list_consensuses_perfect= new SequenceList();
 			list_consensuses_split	= new SequenceList();
 			
+			// if the k-mer filter is on, we only calculate the pairwise
+			// distance between sequences which share enough k-mers.
+			KmerIndex index = null;
+			int min_shared = 0;
+			if(set != null && check_kmerFilter.getState()) {
+				try {
+					min_shared = Integer.parseInt(tf_kmerMinShared.getText());
+				} catch(NumberFormatException e) {
+					min_shared = 10;
+					tf_kmerMinShared.setText("10");
+				}
+
+				try {
+					index = new KmerIndex(set, KMER_LENGTH, null);
+				} catch(DelayAbortedException e) {
+					// no DelayCallback
+				}
+			}
+
 			if(set != null) {
 				Iterator iter = set.iterator();
 				int c = 0;
@@ -679,6 +706,10 @@ public class Cluster extends Panel implements UIExtension, ActionListener, ItemL
 					}
 
 					c++;	// only used to drive the pb.delay
+
+					int[] shared = null;
+					if(index != null)
+						shared = index.getSharedCounts(seq);
 		
 					int cluster = clusters.size();
 					while(cluster > 0) {
@@ -692,6 +723,8 @@ public class Cluster extends Panel implements UIExtension, ActionListener, ItemL
 		
 							Sequence compare = (Sequence) v.get(current);
 
+							if(shared != null && shared[index.indexOf(compare)] < min_shared) continue;
+
 							if(seq.getPairwise(compare) < 0) continue;
 
 							if(seq.getPairwise(compare) <= max_pairwise) {
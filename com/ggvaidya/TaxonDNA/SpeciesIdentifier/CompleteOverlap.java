@@ -390,121 +390,195 @@ public class CompleteOverlap extends Panel implements UIExtension, Runnable, Act
 		list_results.removeAll();
 	}
 
+	/**
+	 * A BlockIndex summarises every sequence in a SequenceList once, so
+	 * that we can then check whether a sequence is complete in any block
+	 * (and how many ambiguous bases it has there) without looking at its
+	 * bases again. Gaps are stored as runs (there are usually only two
+	 * of them: the external gaps at either end), and ambiguous bases as
+	 * a running count, which we only bother with if the sequence has
+	 * any ambiguous bases at all.
+	 */
+	private static class BlockIndex {
+		int	count;			// number of sequences
+		int[]	lengths;		// length of each sequence
+		int[][]	gapRuns;		// pairs of [start, end) for every run of '_'
+		int[][]	ambiguousBefore;	// ambiguousBefore[s][x] = ambiguous bases in [0, x); null if there are none
+		int[]	speciesIds;		// an index into the species names, or -1 if there isn't one
+		int	speciesCount;		// number of distinct species names
+
+		/**
+		 * Builds the index. The SequenceList should be locked by the caller.
+		 */
+		BlockIndex(SequenceList sl) {
+			count = sl.count();
+			lengths = new int[count];
+			gapRuns = new int[count][];
+			ambiguousBefore = new int[count][];
+			speciesIds = new int[count];
+
+			Hashtable species = new Hashtable();
+
+			int[] runs = new int[16];
+			Iterator i = sl.iterator();
+			for(int s = 0; i.hasNext(); s++) {
+				Sequence seq = (Sequence) i.next();
+				char[] array = seq.getSequenceWithExternalGaps().toCharArray();
+
+				lengths[s] = array.length;
+
+				int no_runs = 0;
+				int[] ambiguous = null;
+				int no_ambiguous = 0;
+				for(int x = 0; x < array.length; x++) {
+					char ch = array[x];
+
+					if(ch == '_') {
+						if(no_runs > 0 && runs[no_runs - 1] == x) {
+							// extend the last run
+							runs[no_runs - 1] = x + 1;
+						} else {
+							if(no_runs + 2 > runs.length) {
+								int[] bigger = new int[runs.length * 2];
+								System.arraycopy(runs, 0, bigger, 0, no_runs);
+								runs = bigger;
+							}
+							runs[no_runs++] = x;
+							runs[no_runs++] = x + 1;
+						}
+					} else if(Sequence.isAmbiguous(ch)) {
+						if(ambiguous == null)
+							ambiguous = new int[array.length + 1];
+						no_ambiguous++;
+					}
+
+					if(ambiguous != null)
+						ambiguous[x + 1] = no_ambiguous;
+				}
+
+				gapRuns[s] = new int[no_runs];
+				System.arraycopy(runs, 0, gapRuns[s], 0, no_runs);
+				ambiguousBefore[s] = ambiguous;
+
+				String name = seq.getSpeciesName();
+				if(name == null) {
+					speciesIds[s] = -1;
+				} else {
+					Integer id = (Integer) species.get(name);
+					if(id == null) {
+						id = new Integer(species.size());
+						species.put(name, id);
+					}
+					speciesIds[s] = id.intValue();
+				}
+			}
+
+			speciesCount = species.size();
+		}
+
+		/**
+		 * Does sequence 's' have an external gap anywhere in [from, to)?
+		 */
+		boolean hasGap(int s, int from, int to) {
+			int[] runs = gapRuns[s];
+
+			// find the first run which ends after 'from'
+			int lo = 0;
+			int hi = runs.length / 2;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(runs[mid * 2 + 1] <= from)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+
+			return (lo < runs.length / 2 && runs[lo * 2] < to);
+		}
+
+		/**
+		 * How many ambiguous bases does sequence 's' have in [from, to)?
+		 */
+		int countAmbiguous(int s, int from, int to) {
+			int[] ambiguous = ambiguousBefore[s];
+			if(ambiguous == null)
+				return 0;
+			return ambiguous[to] - ambiguous[from];
+		}
+	}
+
 	/**
 	 * @param ambiguous_allowed	the NUMBER of ambiguous base pairs allowed in any sequence for it be 'defined'
+	 * @param wellDefinedOnly	if true, sequences with more than ambiguous_allowed ambiguous bases are ignored entirely
 	 */
-	private int[] sequencesInBlock(SequenceList sl, int from, int to, int ambiguous_allowed) {
+	private static int[] sequencesInBlock(BlockIndex index, int from, int to, int ambiguous_allowed, boolean wellDefinedOnly) {
 		// technicalities:
 		// 1.	not all sequences will HAVE content between 'from' and 'to'.
 		// 	Sequences are allowed to Be Different etc	
 		//
-		int results[] = new int[4];		// we have to return three things:
+		int results[] = new int[4];		// we have to return four things:
 							//	- no of sequences completely in this block
 							//	- no of species completely in this block
 							//	- no of non-singleton species completely in this block
+							//	- no of well-defined sequences completely in this block
 		int no_sequences = 0;
 		int no_species = 0;
 		int no_singletons = 0;
 		int no_sequences_defined = 0;
 
-		sl.lock();
-
-		try {
-			Hashtable ht = new Hashtable();
-
-			Iterator i = sl.iterator();
-			while(i.hasNext()) {
-				int no_ambiguous_bases = 0;
-				Sequence seq = (Sequence) i.next();
-				String str_seq = seq.getSequenceWithExternalGaps();
-
-				// now: is seq LONG enough?	
-				if(str_seq.length() < to) {	// we need to atleast be able to reach 'to'	
-					// if one of the sequence 'ends' in this area,
-					// it's an implicit gap, and thus, an exit.
-					continue;
-				}
+		// how many sequences we've seen for each species (we only care about 0, 1 and more)
+		int[] species_seen = new int[index.speciesCount];
 
-				char[] array = new char[to - from + 1];
-				str_seq.getChars(from, to, array, 0);
-
-				// ugh, the kludges, the kludges!
-				// basically: if we hit a '_', we break
-				// out of the for look and set
-				// everything_okay to false. If
-				// everything_okay is FALSE, we
-				// continue the outer while loop.
-				boolean sequence_failed = false;
-				for(int x = 0; x < to - from; x++) {
-					char ch = array[x];
+		for(int s = 0; s < index.count; s++) {
+			// now: is seq LONG enough?	
+			if(index.lengths[s] < to) {	// we need to atleast be able to reach 'to'	
+				// if one of the sequence 'ends' in this area,
+				// it's an implicit gap, and thus, an exit.
+				continue;
+			}
 
-					// we are NOT testing for validity
-					// as any Sequence must be valid.
-					if(ch == '_') {
-						sequence_failed = true;
-						break;
-					}
+			if(index.hasGap(s, from, to))
+				continue;
 
-					// is this character ambiguous?
-					if(Sequence.isAmbiguous(ch))
-						no_ambiguous_bases++;
-				}
+			int no_ambiguous_bases = index.countAmbiguous(s, from, to);
 
-				if(sequence_failed)
+			// if we're here, 'seq' is valid!
+			if(wellDefinedOnly) {
+				// skip undefineds!
+				if(no_ambiguous_bases > ambiguous_allowed) {
 					continue;
-
-				// if we're here, 'seq' is valid!
-				if(check_wellDefinedOnly.getState()) {
-					// skip undefineds!
-					if(no_ambiguous_bases > ambiguous_allowed) {
-						continue;
-					}
 				}
-				
-				// if we're here, we need to add this sequences to the statistics
-				no_sequences++;
-
-				if(no_ambiguous_bases <= ambiguous_allowed)
-					no_sequences_defined++;
-
-				// KLUDGE, dead ahead!
-				//
-				// 	first time around (ht.get() == null), we count it
-				// 	as a new species, and a singleton, and ht.put(new Integer)
-				//	
-				//	the SECOND time around, we ht.put(new Object()), and
-				//	DECREMENT the singleton count. very hairy, but as a
-				//	five line hack, I'll leave it in (atleast until tomorrow :p)
-				//
-				//	only for sequences with species names, obviously. Non-species name
-				//	sequences are not counted.
-				//
-				if(seq.getSpeciesName() != null) {
-					if(ht.get(seq.getSpeciesName()) == null) {
-						// not already in list
-						no_species++;
-						ht.put(seq.getSpeciesName(), new Integer(0));
-						no_singletons++;
-					} else {
-						// already in list
-						if(ht.get(seq.getSpeciesName()).getClass().equals(Integer.class)) {
-							no_singletons--;
-							ht.put(seq.getSpeciesName(), new Object());
-						}
-					}
+			}
+			
+			// if we're here, we need to add this sequences to the statistics
+			no_sequences++;
+
+			if(no_ambiguous_bases <= ambiguous_allowed)
+				no_sequences_defined++;
+
+			// only for sequences with species names, obviously. Non-species name
+			// sequences are not counted.
+			int species = index.speciesIds[s];
+			if(species != -1) {
+				species_seen[species]++;
+
+				if(species_seen[species] == 1) {
+					// a new species, and (for now) a singleton
+					no_species++;
+					no_singletons++;
+				} else if(species_seen[species] == 2) {
+					// not a singleton any more
+					no_singletons--;
 				}
 			}
+		}
 
-			results[0] = no_sequences;
-			results[1] = no_species;
-			results[2] = no_species - no_singletons;
-			results[3] = no_sequences_defined;
-
-			return results;
+		results[0] = no_sequences;
+		results[1] = no_species;
+		results[2] = no_species - no_singletons;
+		results[3] = no_sequences_defined;
 
-		} finally {
-			sl.unlock();	
-		}
+		return results;
 	}
 
 	public void run() {
@@ -518,24 +592,15 @@ public class CompleteOverlap extends Panel implements UIExtension, Runnable, Act
 			return;
 		}
 
-		// the rules:
-		// 1.	minimal memory. really. please.
-		// 2.	as fast as possible, GIVEN ONE.
-		//
 		// the algo:	
-		// 1.	create an array of the 'score' for each 'position'.
-		// 	The 'score' is either zero (if atleast one of the
-		// 	sequences in this area 'failed'), or 1 (if
-		// 	everybody is happy here).
-		//
-		// 	score will be O(N) for size
-		// 2.	Loop through the score matrix. Push run pairs onto
-		// 	a results stack.
-		//
-		// 	results stack will be between O(N-1) and O(1) in size.
-		//
-		// 3.	Loop thorugh the results stack. the largest total distance
-		// 	wins!
+		// 1.	index every sequence once: where its external gaps
+		// 	are, and a running count of its ambiguous bases.
+		// 	With that, checking a sequence against a block
+		// 	is O(1), no matter how wide the block is.
+		// 2.	check every block position against every sequence.
+		// 	The blocks are independent of each other, so we
+		// 	farm them out to every processor we've got.
+		// 3.	report the results in order.
 		//
 		
 		step_width = 300;
@@ -559,28 +624,50 @@ public class CompleteOverlap extends Panel implements UIExtension, Runnable, Act
 		pd.begin();
 
 		// the number of ambiguous bases allowed is ('ambiguous_percent' x 'step_width')
-		int ambiguous_allowed = (int)((double)ambiguous_percent * step_width);
-		int no_of_entries = sl.getMaxLength() - step_width + 1;
-
-		int interval = (no_of_entries) / 100;
-		if(interval == 0)
-			interval = 1;
+		final int ambiguous_allowed = (int)((double)ambiguous_percent * step_width);
+		final int no_of_entries = sl.getMaxLength() - step_width + 1;
+		final boolean wellDefinedOnly = check_wellDefinedOnly.getState();
+		final int width = step_width;
 
 		list_results.removeAll();
 		String defined = "";
-		if(check_wellDefinedOnly.getState()) {
+		if(wellDefinedOnly) {
 			// ONLY the defined sequences	
 			defined = " defined";
 		}
 
+		final BlockIndex index = new BlockIndex(sl);
+		final int[][] all_results = new int[Math.max(no_of_entries, 0)][];
+
+		try {
+			WorkerPool.forEach(no_of_entries, new WorkerPool.Job() {
+				public void run(int x) {
+					all_results[x] = sequencesInBlock(index, x, x + width, ambiguous_allowed, wellDefinedOnly);
+				}
+			}, pd);
+		} catch(DelayAbortedException e) {
+			seqId.unlockSequenceList();
+			return;
+		} catch(java.util.concurrent.ExecutionException e) {
+			pd.end();
+			seqId.unlockSequenceList();
+
+			MessageBox mb = new MessageBox(
+					seqId.getFrame(),
+					"Unable to determine complete blocks",
+					"An internal error occurred while looking for complete blocks: " + e.getCause());
+			mb.go();
+			return;
+		}
+
 		for(int x = 0; x < no_of_entries; x++) {
-			int results[] = sequencesInBlock(sl, x, x + step_width, ambiguous_allowed);
+			int results[] = all_results[x];
 			int sequences = results[0];
 			int species = results[1];
 			int non_singletons = results[2];
 			int sequences_defined = results[3];
 
-			if(!check_wellDefinedOnly.getState()) {
+			if(!wellDefinedOnly) {
 				// if we're NOT in 'defined only' mode
 				// we should report the number of defined as well
 				defined = " sequences, " + sequences_defined + " defined";
@@ -591,14 +678,6 @@ public class CompleteOverlap extends Panel implements UIExtension, Runnable, Act
 			// if you edit this line, please search for __USES_LIST_STRING__ and
 			// fix those too.
 			list_results.add((x + 1) + " to " + (x + step_width) + ": " + sequences + defined + " sequences across " + species + " species (with " + non_singletons + " non-singleton sequences)");
-
-			// do the delay
-				try {
-					pd.delay(x, sl.getMaxLength() - step_width);
-				} catch(DelayAbortedException e) {
-					seqId.unlockSequenceList();
-					return;
-				}
 		}
 
 		pd.end();
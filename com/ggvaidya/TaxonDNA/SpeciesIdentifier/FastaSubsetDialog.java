@@ -0,0 +1,217 @@
+/**
+ * A modal dialog which lists the species in a FastaIndex, and lets the
+ * user pick which of them to load. Since the index only holds names,
+ * species and lengths, this works even for files far too large to load
+ * in one go. The species can be narrowed down by typing part of their
+ * name into the filter box.
+ *
+ * Call getIndices() once the dialog has been shown to find out which
+ * sequences were picked.
+ *
+ * @author Gaurav Vaidya, gaurav@ggvaidya.com
+ */
+
+/*
+    TaxonDNA
+    Copyright (C) 2010	Gaurav Vaidya
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+package com.ggvaidya.TaxonDNA.SpeciesIdentifier;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+
+import com.ggvaidya.TaxonDNA.DNA.formats.*;
+import com.ggvaidya.TaxonDNA.UI.*;
+
+public class FastaSubsetDialog extends Dialog implements ActionListener, WindowListener {
+	/**
+	 * A generated serialVersionUID
+	 */
+	private static final long serialVersionUID = 4819174747478093878L;
+
+	private FastaIndex	index;
+	private Vector		species;		// every species name in the index, in order
+	private Vector		shown = new Vector();	// the species names currently in list_species
+	private int[]		counts;			// the number of sequences for each species in 'species'
+	private int[]		selected = null;	// what the user picked, or null
+
+	private TextField	tf_filter = new TextField(30);
+	private java.awt.List	list_species = new java.awt.List(20, true);
+	private Label		label_status = new Label();
+
+	/**
+	 * Creates a dialog listing the species in 'index'.
+	 */
+	public FastaSubsetDialog(Frame parent, FastaIndex index) {
+		super(parent, "Which species would you like to load from '" + index.getFile().getName() + "'?", true);
+
+		this.index = index;
+
+		// count up the sequences for each species
+		species = index.getSpeciesNames();
+		Hashtable positions = new Hashtable();
+		for(int x = 0; x < species.size(); x++)
+			positions.put(species.get(x), new Integer(x));
+
+		counts = new int[species.size()];
+		for(int x = 0; x < index.count(); x++) {
+			String name = index.getSpeciesName(x);
+			if(name != null)
+				counts[((Integer) positions.get(name)).intValue()]++;
+		}
+
+		setLayout(new BorderLayout());
+
+		Panel top = new Panel();
+		top.setLayout(new FlowLayout(FlowLayout.LEFT));
+		top.add(new Label("Only show species containing:"));
+		tf_filter.addActionListener(this);
+		top.add(tf_filter);
+
+		Button btn = new Button("Filter");
+		btn.addActionListener(this);
+		top.add(btn);
+		add(top, BorderLayout.NORTH);
+
+		add(list_species);
+
+		Panel bottom = new Panel();
+		bottom.setLayout(new BorderLayout());
+		bottom.add(label_status, BorderLayout.NORTH);
+
+		Panel buttons = new Panel();
+		buttons.setLayout(new FlowLayout(FlowLayout.RIGHT));
+
+		btn = new Button("Select all");
+		btn.addActionListener(this);
+		buttons.add(btn);
+
+		btn = new Button("Load selected species");
+		btn.addActionListener(this);
+		buttons.add(btn);
+
+		btn = new Button("Cancel");
+		btn.addActionListener(this);
+		buttons.add(btn);
+
+		bottom.add(buttons, BorderLayout.SOUTH);
+		add(bottom, BorderLayout.SOUTH);
+
+		addWindowListener(this);
+
+		filter("");
+		pack();
+	}
+
+	/**
+	 * Shows only the species whose names contain 'text' (ignoring case).
+	 */
+	private void filter(String text) {
+		text = text.trim().toLowerCase();
+
+		list_species.setVisible(false);
+		list_species.removeAll();
+		shown.clear();
+
+		for(int x = 0; x < species.size(); x++) {
+			String name = (String) species.get(x);
+
+			if(text.length() == 0 || name.toLowerCase().indexOf(text) != -1) {
+				list_species.add(name + " (" + counts[x] + " sequences)");
+				shown.add(name);
+			}
+		}
+
+		list_species.setVisible(true);
+		label_status.setText(shown.size() + " of " + species.size() + " species (" + index.count() + " sequences in all) are shown.");
+	}
+
+	/**
+	 * Works out the indices of every sequence belonging to the selected
+	 * species, in the order they appear in the file.
+	 */
+	private int[] getSelectedIndices() {
+		HashSet picked = new HashSet();
+		int[] rows = list_species.getSelectedIndexes();
+		for(int x = 0; x < rows.length; x++)
+			picked.add(shown.get(rows[x]));
+
+		int found = 0;
+		int[] indices = new int[index.count()];
+		for(int x = 0; x < index.count(); x++) {
+			if(picked.contains(index.getSpeciesName(x)))
+				indices[found++] = x;
+		}
+
+		int[] results = new int[found];
+		System.arraycopy(indices, 0, results, 0, found);
+		return results;
+	}
+
+	/**
+	 * Returns the indices (into the FastaIndex) of every sequence the
+	 * user picked, or null if they cancelled.
+	 */
+	public int[] getIndices() {
+		return selected;
+	}
+
+	/**
+	 * ActionListener for the filter box and the buttons.
+	 */
+	public void actionPerformed(ActionEvent e) {
+		String cmd = e.getActionCommand();
+
+		if(e.getSource().equals(tf_filter) || cmd.equals("Filter")) {
+			filter(tf_filter.getText());
+
+		} else if(cmd.equals("Select all")) {
+			for(int x = 0; x < list_species.getItemCount(); x++)
+				list_species.select(x);
+
+		} else if(cmd.equals("Load selected species")) {
+			int[] indices = getSelectedIndices();
+
+			if(indices.length == 0) {
+				MessageBox mb = new MessageBox(this, "No species selected", "Please select at least one species to load.");
+				mb.go();
+				return;
+			}
+
+			selected = indices;
+			dispose();
+
+		} else if(cmd.equals("Cancel")) {
+			selected = null;
+			dispose();
+		}
+	}
+
+	public void windowClosing(WindowEvent e) {
+		selected = null;
+		dispose();
+	}
+
+	public void windowActivated(WindowEvent e) {}
+	public void windowClosed(WindowEvent e) {}
+	public void windowDeactivated(WindowEvent e) {}
+	public void windowDeiconified(WindowEvent e) {}
+	public void windowIconified(WindowEvent e) {}
+	public void windowOpened(WindowEvent e) {}
+}
@@ -36,6 +36,7 @@
 
 package com.ggvaidya.TaxonDNA.SpeciesIdentifier;
 
+import java.io.*;
 import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
@@ -47,7 +48,7 @@ import com.ggvaidya.TaxonDNA.DNA.*;
 import com.ggvaidya.TaxonDNA.UI.*;
 
 
-public class QuerySequence extends Panel implements UIExtension, ActionListener, ItemListener {	
+public class QuerySequence extends Panel implements UIExtension, ActionListener, ItemListener, Runnable {	
 	private SpeciesIdentifier	seqId;
 
 	private SortedSequenceList	sset;
@@ -62,6 +63,13 @@ public class QuerySequence extends Panel implements UIExtension, ActionListener,
 	private Button		btn_Query = new Button("Query");
 	private Button		btn_Copy = new Button("Copy to Clipboard");
 
+	// batch mode: identify every sequence in a FASTA file
+	private TextField	tf_batchKmerLength = new TextField("11");
+	private TextField	tf_batchMinShared = new TextField("10");
+	private Button		btn_QueryFile = new Button("Identify FASTA file ...");
+
+	private static final int BATCH_SIZE = 1000;	// queries identified before results are written out
+
 	public QuerySequence(SpeciesIdentifier view) {
 		super();
 
@@ -79,7 +87,23 @@ public class QuerySequence extends Panel implements UIExtension, ActionListener,
 		text_sequence.setFont(new Font("Monospaced", Font.PLAIN, 12));
 		enterSeqHere.add(text_sequence);
 		btn_Query.addActionListener(this);
-		enterSeqHere.add(btn_Query, BorderLayout.SOUTH);
+
+		Panel queryButtons = new Panel();
+		queryButtons.setLayout(new BorderLayout());
+		queryButtons.add(btn_Query);
+
+		Panel batch = new Panel();
+		batch.setLayout(new FlowLayout(FlowLayout.RIGHT));
+		batch.add(new Label("Batch: shortlist references sharing at least"));
+		batch.add(tf_batchMinShared);
+		batch.add(new Label("k-mers of"));
+		batch.add(tf_batchKmerLength);
+		batch.add(new Label("bp with each query"));
+		btn_QueryFile.addActionListener(this);
+		batch.add(btn_QueryFile);
+		queryButtons.add(batch, BorderLayout.SOUTH);
+
+		enterSeqHere.add(queryButtons, BorderLayout.SOUTH);
 		add(enterSeqHere, BorderLayout.NORTH);
 		
 		Panel resultsAndScores = new Panel();
@@ -214,8 +238,231 @@ public class QuerySequence extends Panel implements UIExtension, ActionListener,
 		if(cmd.equals("Query")) {
 			query(text_sequence.getText());
 		}
+
+		if(evt.getSource().equals(btn_QueryFile)) {
+			new Thread(this, "QuerySequence").start();
+		}
 	}		
 
+	/**
+	 * Batch mode: identifies every sequence in a FASTA file against the
+	 * current dataset, and writes out the best match for each of them
+	 * into a tab-delimited file.
+	 *
+	 * Comparing every query against every sequence in the dataset would
+	 * take forever for large batches, so we index the k-mers in the
+	 * dataset once, and only calculate real pairwise distances against
+	 * the sequences which share enough k-mers with each query. Queries
+	 * are identified in parallel, BATCH_SIZE at a time, and each batch is
+	 * written out as soon as it's done.
+	 */
+	public void run() {
+		int k = 11;
+		int min_shared = 10;
+
+		try {
+			k = Integer.parseInt(tf_batchKmerLength.getText());
+			min_shared = Integer.parseInt(tf_batchMinShared.getText());
+		} catch(NumberFormatException e) {
+			MessageBox.messageBox(seqId.getFrame(), "Invalid batch settings", "The k-mer length and the minimum number of shared k-mers must both be whole numbers.");
+			return;
+		}
+
+		if(k < KmerIndex.MIN_K || k > KmerIndex.MAX_K) {
+			MessageBox.messageBox(seqId.getFrame(), "Invalid k-mer length", "The k-mer length must be between " + KmerIndex.MIN_K + " and " + KmerIndex.MAX_K + " bp.");
+			return;
+		}
+
+		// where are the queries?
+		FileDialog fd = new FileDialog(seqId.getFrame(), "Which FASTA file contains the sequences to identify?", FileDialog.LOAD);
+		fd.setVisible(true);
+
+		if(fd.getFile() == null)
+			return;
+		File file_queries = new File(fd.getDirectory() + fd.getFile());
+
+		// where should the results go?
+		fd = new FileDialog(seqId.getFrame(), "Where should I save the identifications?", FileDialog.SAVE);
+		fd.setVisible(true);
+
+		if(fd.getFile() == null)
+			return;
+		File file_results = new File(fd.getDirectory() + fd.getFile());
+
+		SequenceList queries = null;
+		try {
+			queries = new SequenceList(
+				file_queries,
+				new com.ggvaidya.TaxonDNA.DNA.formats.FastaFile(),
+				ProgressDialog.create(seqId.getFrame(), "Please wait, loading queries ...", "The query sequences are being loaded from '" + file_queries + "'. Please wait.", 0)
+			);
+		} catch(SequenceListException e) {
+			MessageBox.messageBox(seqId.getFrame(), "Could not read queries", e.getMessage());
+			return;
+		} catch(DelayAbortedException e) {
+			return;
+		}
+
+		SequenceList set = seqId.lockSequenceList();
+		if(set == null) {
+			seqId.unlockSequenceList();
+			return;
+		}
+
+		PrintWriter pw = null;
+		try {
+			final KmerIndex index = getKmerIndex(set, k);
+
+			pw = new PrintWriter(new BufferedWriter(new FileWriter(file_results)));
+			pw.println("query	candidates_compared	best_match	best_match_species	distance_percent	overlap	equally_good_matches");
+
+			ProgressDialog pd = ProgressDialog.create(seqId.getFrame(), "Please wait, identifying queries ...", "All " + queries.count() + " queries are being identified against the dataset. Please wait.", 0);
+			pd.begin();
+
+			final Sequence[] batch_queries = (Sequence[]) queries.toArray(new Sequence[queries.count()]);
+			final String[] results = new String[BATCH_SIZE];
+			final int final_min_shared = min_shared;
+
+			for(int start = 0; start < batch_queries.length; start += BATCH_SIZE) {
+				final int offset = start;
+				final int count = Math.min(BATCH_SIZE, batch_queries.length - start);
+
+				// if we're aborted, the ProgressDialog end()s itself
+				pd.delay(start, batch_queries.length);
+
+				try {
+					WorkerPool.forEach(count, new WorkerPool.Job() {
+						public void run(int x) {
+							results[x] = identify(index, batch_queries[offset + x], final_min_shared);
+						}
+					}, null);
+				} catch(java.util.concurrent.ExecutionException e) {
+					pd.end();
+					throw e;
+				}
+
+				for(int x = 0; x < count; x++)
+					pw.println(results[x]);
+			}
+
+			pd.end();
+
+			pw.close();
+			if(pw.checkError())
+				throw new IOException("Could not write to '" + file_results + "'");
+			pw = null;
+
+			MessageBox.messageBox(seqId.getFrame(), "Done!", queries.count() + " queries were identified against " + index.count() + " sequences, and the results written to '" + file_results + "'.");
+		} catch(IOException e) {
+			MessageBox.messageBox(seqId.getFrame(), "Error while writing to '" + file_results + "'", SpeciesIdentifier.getMessage(Messages.IOEXCEPTION_WRITING, file_results, e));
+		} catch(java.util.concurrent.ExecutionException e) {
+			MessageBox.messageBox(seqId.getFrame(), "Could not identify queries", "An internal error occurred while identifying the queries: " + e.getCause());
+		} catch(DelayAbortedException e) {
+			// cancelled
+		} finally {
+			if(pw != null)
+				pw.close();
+			seqId.unlockSequenceList();
+		}
+	}
+
+	/**
+	 * Returns a KmerIndex for the dataset. If the dataset came from a file
+	 * and hasn't been changed since, we keep the index in a cache directory
+	 * in the system's temporary directory (see getKmerIndexFile()), so
+	 * that the next batch against the same dataset doesn't need to index
+	 * it all over again. We never write anything next to the dataset
+	 * itself.
+	 */
+	private KmerIndex getKmerIndex(SequenceList set, int k) throws DelayAbortedException {
+		File file_index = null;
+		if(set.getFile() != null && !set.isModified())
+			file_index = getKmerIndexFile(set.getFile(), k);
+
+		if(file_index != null && file_index.exists() && file_index.lastModified() >= set.getFile().lastModified()) {
+			try {
+				KmerIndex index = KmerIndex.read(file_index, set);
+				if(index.getSeed().equals(KmerIndex.getContiguousSeed(k)) && index.getWindow() == 1)
+					return index;
+			} catch(IOException e) {
+				// we'll just have to build a new one
+			}
+		}
+
+		KmerIndex index = new KmerIndex(set, k, ProgressDialog.create(seqId.getFrame(), "Please wait, indexing dataset ...", "The k-mers in the dataset are being indexed. Please wait.", 0));
+
+		if(file_index != null) {
+			try {
+				file_index.getParentFile().mkdirs();
+				index.write(file_index);
+			} catch(IOException e) {
+				// not a problem: we just won't have it next time
+				file_index.delete();
+			} catch(SecurityException e) {
+				// ditto
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the file in which we cache the KmerIndex for 'file': this is
+	 * in a 'TaxonDNA-<user>' directory inside the system's temporary
+	 * directory, named after the dataset's full path and length, so that
+	 * two datasets with the same name don't share an index.
+	 */
+	private static File getKmerIndexFile(File file, int k) {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "TaxonDNA-" + System.getProperty("user.name"));
+
+		String key = file.getAbsolutePath() + "\t" + file.length();
+		return new File(dir, file.getName() + "-" + Integer.toHexString(key.hashCode()) + ".k" + k + ".index");
+	}
+
+	/**
+	 * Identifies a single query against the sequences in a KmerIndex,
+	 * and returns the tab-delimited line describing the best match.
+	 */
+	private static String identify(KmerIndex index, Sequence query, int min_shared) {
+		int[] candidates = index.getCandidates(query, min_shared);
+
+		Sequence best = null;
+		double best_distance = -1;
+		int ties = 0;
+		for(int x = 0; x < candidates.length; x++) {
+			Sequence seq = index.get(candidates[x]);
+
+			// we don't use the pairwise cache here: we'll
+			// probably never see this query again.
+			double distance = query.getPairwiseNoBuffer(seq);
+			if(distance < 0)
+				continue;
+
+			if(best == null || distance < best_distance) {
+				best = seq;
+				best_distance = distance;
+				ties = 0;
+			} else if(distance == best_distance) {
+				ties++;
+			}
+		}
+
+		StringBuffer buff = new StringBuffer();
+		buff.append(query.getFullName()).append('\t').append(candidates.length).append('\t');
+		if(best == null) {
+			buff.append("(no match)\t\t\t\t");
+		} else {
+			String species = best.getSpeciesName();
+
+			buff.append(best.getFullName()).append('\t');
+			buff.append(species == null ? "" : species).append('\t');
+			buff.append(best_distance * 100).append('\t');
+			buff.append(query.getSharedLength(best)).append('\t');
+			buff.append(ties);
+		}
+		return buff.toString();
+	}
+
 	// what to display in the text_main
 	private void displaySummary() {
 		String str = "Please select one of the matched sequences for more details.";
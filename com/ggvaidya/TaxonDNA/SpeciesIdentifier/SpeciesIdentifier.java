@@ -181,6 +181,23 @@ public class SpeciesIdentifier implements WindowListener, ActionListener, ItemLi
 				}
 		}
 
+		//
+		// File -> Open Species from FASTA File. Indexes a
+		// (possibly very large) FASTA file, and loads only
+		// the species the user picks out of it.
+		//
+		if(cmd.equals("Open Species from FASTA File")) {
+			FileDialog fd = new FileDialog(mainFrame, "Which FASTA file would you like to pick species from?", FileDialog.LOAD);
+			fd.setVisible(true);
+
+			if(fd.getFile() != null)
+				if(fd.getDirectory() != null) {
+					loadSpeciesFromFile(new File(fd.getDirectory() + fd.getFile()));
+				} else {
+					loadSpeciesFromFile(new File(fd.getFile()));
+				}
+		}
+
 		//
 		// File -> Save. Tries to save this SequenceList
 		// to its own file.
@@ -548,6 +565,84 @@ public class SpeciesIdentifier implements WindowListener, ActionListener, ItemLi
 	public boolean loadFile(File file) {
 		return loadFile(file, null);
 	}
+
+	/**
+	 * Indexes a FASTA file without loading it, asks the user which species
+	 * they'd like, and loads only the sequences belonging to those species.
+	 * The new SequenceList isn't tied to 'file', so saving it will ask for
+	 * a new filename instead of overwriting the original. If not successful,
+	 * it will leave the external situation (file, sequences) unchanged.
+	 *
+	 * @return true, if the species were successfully loaded.
+	 */
+	public boolean loadSpeciesFromFile(File file) {
+		lockSequenceList();
+		FastaIndex index = null;
+		SequenceList sequences = null;
+
+		try {
+			index = new FastaIndex(
+					file,
+					ProgressDialog.create(
+						getFrame(),
+						"Indexing file ...",
+						"Indexing '" + file + "'. Sorry for the delay!",
+						ProgressDialog.FLAG_NOCANCEL
+						)
+				);
+
+			FastaSubsetDialog dialog = new FastaSubsetDialog(getFrame(), index);
+			dialog.setVisible(true);
+
+			int[] indices = dialog.getIndices();
+			if(indices == null) {
+				unlockSequenceList();
+				return false;
+			}
+
+			sequences = index.getSequences(
+					indices,
+					ProgressDialog.create(
+						getFrame(),
+						"Loading sequences ...",
+						"Loading " + indices.length + " sequences from '" + file + "' into memory. Sorry for the delay!",
+						ProgressDialog.FLAG_NOCANCEL
+						)
+				);
+
+		} catch(IOException e) {
+			MessageBox mb = new MessageBox(getFrame(), "Could not read file " + file + "!", e.getMessage());
+			mb.go();
+
+			unlockSequenceList();
+			return false;
+
+		} catch(SequenceException e) {
+			MessageBox mb = new MessageBox(getFrame(), "Could not read file " + file + "!", e.getMessage());
+			mb.go();
+
+			unlockSequenceList();
+			return false;
+
+		} catch(DelayAbortedException e) {
+			unlockSequenceList();
+			return false;
+
+		} finally {
+			// we've got everything we need out of the index
+			if(index != null) {
+				try {
+					index.close();
+				} catch(IOException e) {
+					// it was only open for reading, so there's nothing to lose
+				}
+			}
+		}
+
+		closeFile();
+		unlockSequenceList(sequences);
+		return true;
+	}
 	
 
 	/**
@@ -940,6 +1035,7 @@ public class SpeciesIdentifier implements WindowListener, ActionListener, ItemLi
 		Menu 	file		=	new Menu("File");
 		file.add(new MenuItem("New", new MenuShortcut(KeyEvent.VK_N)));
 		file.add(new MenuItem("Open", new MenuShortcut(KeyEvent.VK_O)));
+		file.add(new MenuItem("Open Species from FASTA File", null));
 		file.addSeparator();
 		file.add(new MenuItem("Save", new MenuShortcut(KeyEvent.VK_S)));
 		file.add(new MenuItem("Save As", null));
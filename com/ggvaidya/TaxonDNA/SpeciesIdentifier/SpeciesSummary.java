@@ -516,6 +516,11 @@ public class SpeciesSummary extends Panel implements UIExtension, Runnable, Acti
 		TextField tf_rands = new TextField();
 		rl.add(tf_rands, RightLayout.BESIDE);
 
+		rl.add(new Label("Random seed (leave blank for a new one):"), RightLayout.NEXTLINE);
+
+		TextField tf_seed = new TextField();
+		rl.add(tf_seed, RightLayout.BESIDE);
+
 		DefaultButton 	btn_go = 	new DefaultButton(w, "OK");
 		DefaultButton 	btn_cancel = 	new DefaultButton(w, "Cancel");
 
@@ -537,6 +542,15 @@ public class SpeciesSummary extends Panel implements UIExtension, Runnable, Acti
 				rands = 10;
 			}
 
+			// the seed makes the randomizations reproducible
+			long seed = System.currentTimeMillis();
+			try {
+				if(!tf_seed.getText().trim().equals(""))
+					seed = Long.parseLong(tf_seed.getText().trim());
+			} catch(NumberFormatException e) {
+				seed = tf_seed.getText().trim().hashCode();
+			}
+
 			species = ch_no_of_species.getSelectedIndex() + 1;
 			specimens = ch_no_of_specimens.getSelectedIndex() + 1;
 			
@@ -552,23 +566,23 @@ public class SpeciesSummary extends Panel implements UIExtension, Runnable, Acti
 			try {
 				Checkbox ch_selected = check_group.getSelectedCheckbox();
 				if(ch_selected == ch_species) {
-					exportSpeciesRandomly(dir, species, rands, ProgressDialog.create(
+					exportSpeciesRandomly(dir, species, rands, seed, ProgressDialog.create(
 							seqId.getFrame(),
 							"Please wait, exporting species ...",
 							"Now exporting species to " + dir + ", sorry for the delay!"));
 					new MessageBox(seqId.getFrame(),
 						"All done!",
-						rands + " randomizations of " + species + " species each were exported to " + dir).go();
+						rands + " randomizations of " + species + " species each were exported to " + dir + " (random seed: " + seed + ")").go();
 
 				}
 				else {
-					exportSpecimensRandomly(dir, specimens, rands, ProgressDialog.create(
+					exportSpecimensRandomly(dir, specimens, rands, seed, ProgressDialog.create(
 							seqId.getFrame(),
 							"Please wait, exporting specimens ...",
 							"Now exporting specimens to " + dir + ", sorry for the delay!"));
 					new MessageBox(seqId.getFrame(),
 						"All done!",
-						rands + " randomizations of " + specimens + " specimens each were exported to " + dir).go();
+						rands + " randomizations of " + specimens + " specimens each were exported to " + dir + " (random seed: " + seed + ")").go();
 					
 				}
 
@@ -582,122 +596,166 @@ public class SpeciesSummary extends Panel implements UIExtension, Runnable, Acti
 	}
 
 	public void exportSpeciesRandomly(File dir, int species, int rands, ProgressDialog pd) throws IOException, DelayAbortedException {
+		exportSpeciesRandomly(dir, species, rands, System.currentTimeMillis(), pd);
+	}
+
+	/**
+	 * Exports 'rands' files, each containing every sequence from 'species'
+	 * randomly chosen species. Randomizations are written in parallel; each
+	 * one uses its own random number generator, seeded from 'seed' and its
+	 * number, so the same seed will always give you the same files.
+	 */
+	public void exportSpeciesRandomly(final File dir, final int species, int rands, final long seed, ProgressDialog pd) throws IOException, DelayAbortedException {
 		if(vec_Species == null)
 			return;
 
-		if(pd != null)
-			pd.begin();
-
-		for(int x = 1; x <= rands; x++) {
-		//	System.err.println("x = " + x);
-
-			if(pd != null)
-				pd.delay(x, rands);
+		// take one snapshot of every species' sequences, which all the
+		// randomizations can share.
+		final String[]		species_names = (String[]) vec_Species.toArray(new String[vec_Species.size()]);
+		final Sequence[][]	conspecifics = new Sequence[species_names.length][];
 
-			File f = null;
-			f = new File(dir, species + "_species_randomization_" + x + ".txt");
-			
-			Vector v_from = new Vector();
-			Vector v_to = new Vector();
-
-			v_from.addAll(vec_Species);
-			Random r = new Random();
+		SequenceList sl = seqId.lockSequenceList();
+		try {
+			for(int x = 0; x < species_names.length; x++) {
+				Vector v = new Vector();
+				Iterator i_sp = sl.conspecificIterator(species_names[x]);
 
-			for(int c = 0; c < species; c++) {
-				int index = r.nextInt(v_from.size());
+				while(i_sp != null && i_sp.hasNext())
+					v.add(i_sp.next());
 
-				Object o = v_from.get(index);
-				v_to.add(o);
-				v_from.remove(o);
+				conspecifics[x] = (Sequence[]) v.toArray(new Sequence[v.size()]);
 			}
+		} finally {
+			seqId.unlockSequenceList();
+		}
 
-			SequenceList sl_exp = new SequenceList();
-
-			Iterator i_to = v_to.iterator();
-			SequenceList sl = seqId.lockSequenceList();
-			int tmp_count = 0;
-			while(i_to.hasNext()) {
-				tmp_count++;
-			//	System.err.println("tmp_count = " + tmp_count);
+		if(pd != null)
+			pd.begin();
 
-				String spName = (String) i_to.next();
+		try {
+			WorkerPool.forEach(rands, new WorkerPool.Job() {
+				public void run(int x) throws IOException, DelayAbortedException {
+					File f = new File(dir, species + "_species_randomization_" + (x + 1) + ".txt");
+					int[] picked = pickRandomly(conspecifics.length, species, getRandom(seed, x));
 
-				// export spName to a file
-				Iterator i_sp = sl.conspecificIterator(spName);
+					SequenceList sl_exp = new SequenceList();
+					for(int c = 0; c < picked.length; c++) {
+						Sequence[] seqs = conspecifics[picked[c]];
 
-				System.err.println("cons found");
+						for(int y = 0; y < seqs.length; y++)
+							sl_exp.add(seqs[y]);
+					}
 
-				while(i_sp.hasNext()) {
-					Sequence seq = (Sequence) i_sp.next();
-					sl_exp.add(seq);
+					new FastaFile().writeFile(f, sl_exp, null);
 				}
-
-			//	System.err.println("sec copied");
-			}
-			seqId.unlockSequenceList();
-			
-			FastaFile ff = new FastaFile();
-
-			try {
-				ff.writeFile(f, sl_exp, null);
-			} catch(IOException e) {
-				if(pd != null)
-					pd.end();
-				throw e;
-			}
+			}, pd);
+		} catch(java.util.concurrent.ExecutionException e) {
+			if(pd != null)
+				pd.end();
+			rethrow(e);
 		}
 
+		// if we were aborted, the ProgressDialog has already end()ed itself
 		if(pd != null)
 			pd.end();
 	}
 
 	public void exportSpecimensRandomly(File dir, int specimens, int rands, ProgressDialog pd) throws IOException, DelayAbortedException {
+		exportSpecimensRandomly(dir, specimens, rands, System.currentTimeMillis(), pd);
+	}
+
+	/**
+	 * Exports 'rands' files, each containing 'specimens' randomly chosen
+	 * sequences. Randomizations are written in parallel; each one uses its
+	 * own random number generator, seeded from 'seed' and its number, so
+	 * the same seed will always give you the same files.
+	 */
+	public void exportSpecimensRandomly(final File dir, final int specimens, int rands, final long seed, ProgressDialog pd) throws IOException, DelayAbortedException {
+		// take one snapshot of the sequences, which all the randomizations
+		// can share.
+		final Sequence[] all;
+
+		SequenceList sl = seqId.lockSequenceList();
+		try {
+			all = (Sequence[]) sl.toArray(new Sequence[sl.count()]);
+		} finally {
+			seqId.unlockSequenceList();
+		}
+
 		if(pd != null)
 			pd.begin();
 
-		for(int x = 1; x <= rands; x++) {
-		//	System.err.println("x = " + x);
+		try {
+			WorkerPool.forEach(rands, new WorkerPool.Job() {
+				public void run(int x) throws IOException, DelayAbortedException {
+					File f = new File(dir, specimens + "_specimens_randomization_" + (x + 1) + ".txt");
+					int[] picked = pickRandomly(all.length, specimens, getRandom(seed, x));
+
+					SequenceList sl_exp = new SequenceList();
+					for(int c = 0; c < picked.length; c++)
+						sl_exp.add(all[picked[c]]);
 
+					new FastaFile().writeFile(f, sl_exp, null);
+				}
+			}, pd);
+		} catch(java.util.concurrent.ExecutionException e) {
 			if(pd != null)
-				pd.delay(x, rands);
+				pd.end();
+			rethrow(e);
+		}
 
-			File f = null;
-			f = new File(dir, specimens + "_specimens_randomization_" + x + ".txt");
-			
-			Vector v_from = new Vector();
-			Vector v_to = new Vector();
+		// if we were aborted, the ProgressDialog has already end()ed itself
+		if(pd != null)
+			pd.end();
+	}
 
-			SequenceList sl = seqId.lockSequenceList();
+	/**
+	 * Returns the random number generator for randomization number 'x'.
+	 * We scramble the seed and the randomization number together, so
+	 * that neighbouring randomizations don't get similar streams.
+	 */
+	private static Random getRandom(long seed, int x) {
+		long z = seed + (x + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new Random(z ^ (z >>> 31));
+	}
 
-			v_from.addAll(sl);
-			Random r = new Random();
-			
-			seqId.unlockSequenceList();
+	/**
+	 * Picks 'count' different indices between 0 and 'total' - 1, in random
+	 * order (this is the first 'count' steps of a Fisher-Yates shuffle).
+	 */
+	private static int[] pickRandomly(int total, int count, Random r) {
+		int[] indices = new int[total];
+		for(int x = 0; x < total; x++)
+			indices[x] = x;
 
-			for(int c = 0; c < specimens; c++) {
-				int index = r.nextInt(v_from.size());
+		if(count > total)
+			count = total;
 
-				Object o = v_from.get(index);
-				v_to.add(o);
-				v_from.remove(o);
-			}
+		for(int x = 0; x < count; x++) {
+			int y = x + r.nextInt(total - x);
 
-			SequenceList sl_exp = new SequenceList();
-			sl_exp.addAll(v_to);
+			int tmp = indices[x];
+			indices[x] = indices[y];
+			indices[y] = tmp;
+		}
 
-			FastaFile ff = new FastaFile();
+		int[] results = new int[count];
+		System.arraycopy(indices, 0, results, 0, count);
+		return results;
+	}
 
-			try {
-				ff.writeFile(f, sl_exp, null);
-			} catch(IOException e) {
-				if(pd != null)
-					pd.end();
-				throw e;
-			}
-		}
+	/**
+	 * Rethrows the IOException which caused an ExecutionException.
+	 */
+	private static void rethrow(java.util.concurrent.ExecutionException e) throws IOException {
+		if(e.getCause() instanceof IOException)
+			throw (IOException) e.getCause();
 
-		if(pd != null)
-			pd.end();
+		IOException ex = new IOException("Could not export randomizations: " + e.getCause());
+		ex.initCause(e.getCause());
+		throw ex;
 	}
 
 	public double percentage(double x, double y) {